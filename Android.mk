@@ -16,6 +16,7 @@ LOCAL_MODULE_TAGS := optional
 
 LOCAL_SRC_FILES := \
         $(call all-java-files-under, src) \
+        $(call all-Iaidl-files-under, src) \
         $(call all-proto-files-under, src)
 
 LOCAL_PACKAGE_NAME := Bluetooth
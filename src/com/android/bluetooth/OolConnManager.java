@@ -28,6 +28,7 @@
  */
 
 package com.android.bluetooth;
+import java.util.HashMap;
 import java.util.UUID;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
@@ -37,9 +38,19 @@ import android.bluetooth.SdpOppOpsRecord;
 public class OolConnManager {
 
     private static final String TAG="OolConnManager";
+    private static final long SDP_TIMEOUT_MS = 10000;
+    /* The last L2CAP PSM found, used by CreateL2capConnection */
     static int channel = 0;
-    static boolean sdpDone = false;
-    static String mAddress;
+
+    /* OPP SDP searches in progress per remote address. Transfers to different
+     * devices can run in parallel, so each device has its own result. */
+    private static final HashMap<String, SdpResult> sSdpResults =
+            new HashMap<String, SdpResult>();
+
+    private static class SdpResult {
+        int psm = -1;
+        boolean done = false;
+    }
 
     public static BluetoothSocket CreateL2capConnection(BluetoothDevice remBtDev,UUID uuid ) {
 
@@ -52,45 +63,76 @@ public class OolConnManager {
         return null;
     }
 
+    /**
+     * Record that an OPP SDP search was started for the device, its L2CAP PSM
+     * is then returned by {@link #getL2cPSM(BluetoothDevice)}.
+     */
     public static void setSdpInitiatedAddress(BluetoothDevice remBtDev) {
 
-        if (remBtDev != null)
-            mAddress = remBtDev.getAddress();
-        else
-            mAddress = null;
-        Log.d(TAG,"setSdpInitiatedAddress "+ mAddress);
+        if (remBtDev == null)
+            return;
+        synchronized (sSdpResults) {
+            sSdpResults.put(remBtDev.getAddress(), new SdpResult());
+        }
+        Log.d(TAG,"setSdpInitiatedAddress "+ remBtDev.getAddress());
+
+    }
+
+    /**
+     * Forget the SDP search of the device, e.g. when it could not be started.
+     */
+    public static void clearSdpInitiatedAddress(BluetoothDevice remBtDev) {
+
+        if (remBtDev == null)
+            return;
+        synchronized (sSdpResults) {
+            sSdpResults.remove(remBtDev.getAddress());
+        }
+        Log.d(TAG,"clearSdpInitiatedAddress "+ remBtDev.getAddress());
 
     }
 
     public static int getL2cPSM(BluetoothDevice remBtDev) {
 
-        int waitCount = 0;
         int channelNo = -1;
-        while(!sdpDone && waitCount < 100) {
-
-           try {
-               Thread.sleep(100);
-           } catch (InterruptedException e) {
-               Log.e(TAG, "Interrupted", e);
-           }
-           waitCount++;
+        String address = remBtDev.getAddress();
+        synchronized (sSdpResults) {
+            SdpResult result = sSdpResults.get(address);
+            long deadline = System.currentTimeMillis() + SDP_TIMEOUT_MS;
+            while (result != null && !result.done) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                    break;
+                try {
+                    sSdpResults.wait(wait);
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "Interrupted", e);
+                    break;
+                }
+                result = sSdpResults.get(address);
+            }
+            if (result != null) {
+                channelNo = result.psm;
+                sSdpResults.remove(address);
+            }
         }
-        waitCount = 0;
-        sdpDone = false;
 
-        Log.d(TAG,"returning l2c channel as "+channel);
-        channelNo = channel;
-        channel = -1;
+        Log.d(TAG,"returning l2c channel as "+channelNo);
         return channelNo;
     }
 
     public static void saveOppSdpRecord(SdpOppOpsRecord sdpRec, BluetoothDevice btDevice) {
 
         Log.v(TAG,"saveOppSdpRecord"+ btDevice.getAddress());
-        if ((mAddress != null) && mAddress.equalsIgnoreCase(btDevice.getAddress())) {
-           channel = sdpRec != null ? sdpRec.getL2capPsm() : -1;
-           sdpDone = true;
-           Log.d(TAG,"saveOppSdpRecord channel "+ channel);
+        synchronized (sSdpResults) {
+            SdpResult result = sSdpResults.get(btDevice.getAddress());
+            if (result != null) {
+                result.psm = sdpRec != null ? sdpRec.getL2capPsm() : -1;
+                result.done = true;
+                channel = result.psm;
+                sSdpResults.notifyAll();
+                Log.d(TAG,"saveOppSdpRecord channel "+ result.psm);
+            }
         }
     }
 
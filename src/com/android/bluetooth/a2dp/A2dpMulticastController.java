@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.a2dp;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Tracks the streaming health of each sink of the A2DP multicast group.
+ *
+ * The stack reports connection and audio state changes per sink but nothing
+ * about the link itself, so the health of a sink is derived from its audio
+ * state. A sink suspending the stream on its own while other sinks keep
+ * streaming stalls the group, as the encoder is paced by the slowest sink.
+ * A sink with DEGRADED_STALLS such stalls within DEGRADED_WINDOW_MS is
+ * degraded. If eviction is enabled (off by default) it is dropped from the
+ * group and, while multicast stays enabled, incoming connections from it are
+ * refused for QUARANTINE_MS, so the remaining sinks keep streaming undisturbed.
+ *
+ * Per sink metrics are kept for dump. Events arrive on the native callback
+ * thread and the state machine thread, all methods are synchronized. Times
+ * are elapsedRealtime() milliseconds passed in by the caller.
+ */
+public final class A2dpMulticastController {
+
+    static final int DEGRADED_STALLS = 3;
+    static final long DEGRADED_WINDOW_MS = 60 * 1000;
+    static final long QUARANTINE_MS = 5 * 60 * 1000;
+    /* A sink starting later than this after the first one is not joining it */
+    private static final long MAX_JOIN_SKEW_MS = 5 * 1000;
+    /* Disconnected sinks kept for dump */
+    private static final int MAX_SINKS = 8;
+
+    private static final int STREAM_IDLE = 0;
+    private static final int STREAM_STARTED = 1;
+    private static final int STREAM_SUSPENDED = 2;
+
+    private static final class Sink {
+        final BluetoothDevice device;
+        boolean connected;
+        int streamState = STREAM_IDLE;
+        long streamStartMs;
+        long streamingMs;
+        int starts;
+        int remoteSuspends;
+        int stalls;
+        int reconfigs;
+        long suspendMs = -1;
+        int resumes;
+        long totalResumeMs;
+        long maxResumeMs;
+        int joins;
+        long totalJoinSkewMs;
+        long maxJoinSkewMs;
+        /* Times of the last DEGRADED_STALLS stalls, oldest first */
+        final long[] recentStalls = new long[DEGRADED_STALLS];
+        int recentStallCount;
+        boolean degraded;
+        int evictions;
+        long quarantineEndMs;
+
+        Sink(BluetoothDevice device) {
+            this.device = device;
+        }
+    }
+
+    private final boolean mEvictEnabled;
+    private final LinkedHashMap<BluetoothDevice, Sink> mSinks =
+            new LinkedHashMap<BluetoothDevice, Sink>();
+    private boolean mMulticastEnabled = false;
+    /* Start of the current group stream, -1 if no sink is streaming */
+    private long mGroupStartMs = -1;
+
+    public A2dpMulticastController(boolean evictEnabled) {
+        mEvictEnabled = evictEnabled;
+    }
+
+    public synchronized void setMulticastEnabled(boolean enabled) {
+        mMulticastEnabled = enabled;
+    }
+
+    public synchronized void onSinkConnected(BluetoothDevice device, long nowMs) {
+        Sink sink = getSink(device);
+        if (sink.connected) {
+            return;
+        }
+        sink.connected = true;
+        if (sink.quarantineEndMs <= nowMs) {
+            // Health is judged again from scratch once a sink is back
+            sink.degraded = false;
+            sink.recentStallCount = 0;
+        }
+    }
+
+    public synchronized void onSinkDisconnected(BluetoothDevice device, long nowMs) {
+        Sink sink = mSinks.get(device);
+        if (sink == null) {
+            return;
+        }
+        stopStream(sink, nowMs);
+        sink.connected = false;
+        trimSinks(nowMs);
+    }
+
+    public synchronized void onStreamStarted(BluetoothDevice device, long nowMs) {
+        Sink sink = getSink(device);
+        if (sink.streamState == STREAM_STARTED) {
+            return;
+        }
+        boolean resuming = sink.suspendMs >= 0;
+        if (resuming) {
+            long latency = nowMs - sink.suspendMs;
+            sink.resumes++;
+            sink.totalResumeMs += latency;
+            sink.maxResumeMs = Math.max(sink.maxResumeMs, latency);
+            sink.suspendMs = -1;
+        }
+        if (mGroupStartMs < 0 || getStreamingCount() == 0) {
+            mGroupStartMs = nowMs;
+        } else if (!resuming && nowMs - mGroupStartMs <= MAX_JOIN_SKEW_MS) {
+            long skew = nowMs - mGroupStartMs;
+            sink.joins++;
+            sink.totalJoinSkewMs += skew;
+            sink.maxJoinSkewMs = Math.max(sink.maxJoinSkewMs, skew);
+        }
+        sink.streamState = STREAM_STARTED;
+        sink.streamStartMs = nowMs;
+        sink.starts++;
+    }
+
+    /**
+     * A sink suspended the stream on its own.
+     * @return true if the sink just became degraded and shall be dropped
+     *         from the multicast group
+     */
+    public synchronized boolean onStreamSuspended(BluetoothDevice device, long nowMs) {
+        Sink sink = getSink(device);
+        boolean wasStreaming = sink.streamState == STREAM_STARTED;
+        stopStream(sink, nowMs);
+        sink.streamState = STREAM_SUSPENDED;
+        sink.suspendMs = nowMs;
+        sink.remoteSuspends++;
+        if (!wasStreaming || !mMulticastEnabled || getStreamingCount() == 0) {
+            return false;
+        }
+        sink.stalls++;
+        if (sink.recentStallCount == DEGRADED_STALLS) {
+            System.arraycopy(sink.recentStalls, 1, sink.recentStalls, 0, DEGRADED_STALLS - 1);
+            sink.recentStallCount--;
+        }
+        sink.recentStalls[sink.recentStallCount++] = nowMs;
+        if (sink.degraded || sink.recentStallCount < DEGRADED_STALLS
+                || nowMs - sink.recentStalls[0] > DEGRADED_WINDOW_MS) {
+            return false;
+        }
+        sink.degraded = true;
+        if (!mEvictEnabled) {
+            return false;
+        }
+        sink.evictions++;
+        sink.quarantineEndMs = nowMs + QUARANTINE_MS;
+        return true;
+    }
+
+    public synchronized void onStreamStopped(BluetoothDevice device, long nowMs) {
+        Sink sink = mSinks.get(device);
+        if (sink != null) {
+            stopStream(sink, nowMs);
+            sink.suspendMs = -1;
+        }
+    }
+
+    public synchronized void onReconfigured(BluetoothDevice device) {
+        getSink(device).reconfigs++;
+    }
+
+    public synchronized boolean isDegraded(BluetoothDevice device) {
+        Sink sink = mSinks.get(device);
+        return sink != null && sink.degraded;
+    }
+
+    /**
+     * @return true if the sink was dropped from the group and shall not be
+     *         accepted again yet. A sink is never refused while multicast is
+     *         disabled, there is no group to protect then.
+     */
+    public synchronized boolean isQuarantined(BluetoothDevice device, long nowMs) {
+        if (!mMulticastEnabled) {
+            return false;
+        }
+        Sink sink = mSinks.get(device);
+        return sink != null && sink.quarantineEndMs > nowMs;
+    }
+
+    public synchronized void dump(StringBuilder sb, long nowMs) {
+        sb.append("  Multicast enabled: " + mMulticastEnabled + ", evict degraded sinks: "
+                + mEvictEnabled + "\n");
+        for (Sink sink : mSinks.values()) {
+            long streamingMs = sink.streamingMs;
+            if (sink.streamState == STREAM_STARTED) {
+                streamingMs += nowMs - sink.streamStartMs;
+            }
+            sb.append("  Sink " + sink.device + (sink.connected ? "" : " (disconnected)")
+                    + (sink.degraded ? " DEGRADED" : "") + "\n");
+            sb.append("    streaming: " + (streamingMs / 1000) + "s, starts: " + sink.starts
+                    + ", remote suspends: " + sink.remoteSuspends + ", stalls: " + sink.stalls
+                    + ", reconfigs: " + sink.reconfigs + "\n");
+            sb.append("    resume latency avg: "
+                    + (sink.resumes == 0 ? 0 : sink.totalResumeMs / sink.resumes) + "ms, max: "
+                    + sink.maxResumeMs + "ms, join skew avg: "
+                    + (sink.joins == 0 ? 0 : sink.totalJoinSkewMs / sink.joins) + "ms, max: "
+                    + sink.maxJoinSkewMs + "ms\n");
+            if (sink.evictions > 0) {
+                sb.append("    evictions: " + sink.evictions + ", quarantined for: "
+                        + (Math.max(0, sink.quarantineEndMs - nowMs) / 1000) + "s\n");
+            }
+        }
+    }
+
+    private Sink getSink(BluetoothDevice device) {
+        Sink sink = mSinks.get(device);
+        if (sink == null) {
+            sink = new Sink(device);
+            mSinks.put(device, sink);
+        }
+        return sink;
+    }
+
+    private void stopStream(Sink sink, long nowMs) {
+        if (sink.streamState == STREAM_STARTED) {
+            sink.streamingMs += nowMs - sink.streamStartMs;
+        }
+        sink.streamState = STREAM_IDLE;
+        if (getStreamingCount() == 0) {
+            mGroupStartMs = -1;
+        }
+    }
+
+    private int getStreamingCount() {
+        int count = 0;
+        for (Sink sink : mSinks.values()) {
+            if (sink.streamState == STREAM_STARTED) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void trimSinks(long nowMs) {
+        Iterator<Sink> it = mSinks.values().iterator();
+        int excess = mSinks.size() - MAX_SINKS;
+        while (excess > 0 && it.hasNext()) {
+            Sink sink = it.next();
+            // Keep quarantined sinks, they are still refused
+            if (!sink.connected && sink.quarantineEndMs <= nowMs) {
+                it.remove();
+                excess--;
+            }
+        }
+    }
+}
@@ -54,6 +54,8 @@ import android.os.Message;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.util.Log;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
@@ -89,6 +91,8 @@ final class A2dpStateMachine extends StateMachine {
     private static boolean isMultiCastEnabled = false;
     private static boolean isScanDisabled = false;
     private static boolean isMultiCastFeatureEnabled = false;
+    // Per sink streaming health, drops sinks stalling the multicast group
+    private final A2dpMulticastController mMulticastController;
 
     private Disconnected mDisconnected;
     private Pending mPending;
@@ -162,6 +166,9 @@ final class A2dpStateMachine extends StateMachine {
             isMultiCastFeatureEnabled = false;
         }
 
+        mMulticastController = new A2dpMulticastController(
+                SystemProperties.getBoolean("persist.bt.a2dp.multicast_evict", false));
+
         initNative(maxA2dpConnections, multiCastState, offload_cap);
 
         mDisconnected = new Disconnected();
@@ -1657,6 +1664,13 @@ final class A2dpStateMachine extends StateMachine {
                 (device.getBondState() != BluetoothDevice.BOND_NONE))){
             ret= true;
         }
+        // Refuse a sink dropped from the multicast group for a while, unless
+        // it is the device we are connecting to.
+        if (ret && !device.equals(mTargetDevice) && mMulticastController.isQuarantined(device,
+                SystemClock.elapsedRealtime())) {
+            Log.w(TAG, "okToConnect: " + device + " recently dropped from multicast group");
+            ret = false;
+        }
         log("Exit okToConnect() ");
         return ret;
     }
@@ -1756,6 +1770,11 @@ final class A2dpStateMachine extends StateMachine {
         event.valueInt = state;
         event.device = getDevice(address);
         sendMessage(STACK_EVENT, event);
+        if (state == CONNECTION_STATE_CONNECTED) {
+            mMulticastController.onSinkConnected(event.device, SystemClock.elapsedRealtime());
+        } else if (state == CONNECTION_STATE_DISCONNECTED) {
+            mMulticastController.onSinkDisconnected(event.device, SystemClock.elapsedRealtime());
+        }
         log("Exit onConnectionStateChanged() ");
     }
 
@@ -1765,6 +1784,22 @@ final class A2dpStateMachine extends StateMachine {
         event.valueInt = state;
         event.device = getDevice(address);
         sendMessage(STACK_EVENT, event);
+        long now = SystemClock.elapsedRealtime();
+        switch (state) {
+            case AUDIO_STATE_STARTED:
+                mMulticastController.onStreamStarted(event.device, now);
+                break;
+            case AUDIO_STATE_REMOTE_SUSPEND:
+                if (mMulticastController.onStreamSuspended(event.device, now)) {
+                    Log.w(TAG, "Sink " + event.device + " keeps stalling the multicast"
+                            + " group, disconnecting it");
+                    sendMessage(DISCONNECT, event.device);
+                }
+                break;
+            case AUDIO_STATE_STOPPED:
+                mMulticastController.onStreamStopped(event.device, now);
+                break;
+        }
         log("Exit onAudioStateChanged() ");
     }
 
@@ -1791,12 +1826,14 @@ final class A2dpStateMachine extends StateMachine {
             Log.i(TAG,"A2dp Multicast is Disabled");
             isMultiCastEnabled = false;
         }
+        mMulticastController.setMulticastEnabled(isMultiCastEnabled);
         log("Exit onMulticastStateChanged() ");
     }
 
     private void onReconfigA2dpTriggered(int reason, byte[] address) {
         BluetoothDevice device = getDevice(address);
         Log.i(TAG,"onSoftHandoffTriggered to device " + device);
+        mMulticastController.onReconfigured(device);
         StackEvent event = new StackEvent(EVENT_TYPE_RECONFIGURE_A2DP);
         event.valueInt = reason;//SOFT_HANDOFF;
         event.device = device;
@@ -1851,6 +1888,7 @@ final class A2dpStateMachine extends StateMachine {
         ProfileService.println(sb, "mIncomingDevice: " + mIncomingDevice);
         ProfileService.println(sb, "mPlayingA2dpDevice: " + mPlayingA2dpDevice);
         ProfileService.println(sb, "StateMachine: " + this.toString());
+        mMulticastController.dump(sb, SystemClock.elapsedRealtime());
     }
 
     // Event types for STACK_EVENT message
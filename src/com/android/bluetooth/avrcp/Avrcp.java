@@ -69,6 +69,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.provider.MediaStore;
 import android.content.ContentResolver;
@@ -94,7 +95,18 @@ public final class Avrcp {
     private Context mContext;
     private final AudioManager mAudioManager;
     private A2dpService mA2dpService;
+    /* Latency critical lane: passthrough, volume, metadata and notifications */
     private AvrcpMessageHandler mHandler;
+    /* Throughput lane: browsing and MediaStore backed item queries */
+    private AvrcpMessageHandler mBrowseHandler;
+    /* Guards the browse state shared by the two lanes: mBrowserDevice, mMediaUriStatic,
+     * the browse path of each device, the flags in mMediaPlayers and mMediaController.
+     * The browse lane holds it for each message, the control lane only where it
+     * touches that state. Neither lane holds it during a MediaStore query, see
+     * queryMediaStore(). */
+    private final ReentrantLock mBrowseLock = new ReentrantLock();
+    private final AvrcpDispatchStats mControlLaneStats = new AvrcpDispatchStats("Control");
+    private final AvrcpDispatchStats mBrowseLaneStats = new AvrcpDispatchStats("Browse");
     private MediaSessionManager mMediaSessionManager;
     private MediaSessionChangeListener mSessionChangeListener;
     private MediaController mMediaController;
@@ -164,7 +176,8 @@ public final class Avrcp {
     private static final int MESSAGE_GET_ITEM_ATTRS = 2007;
     private static final int MESSAGE_GET_TOTAL_NUMBER_OF_ITEMS = 2008;
 
-    private CachedRequest mCachedRequest = null;
+    /* Set on the browse lane, read when the player answers on the control lane */
+    private volatile CachedRequest mCachedRequest = null;
 
     private static final int MSG_UPDATE_AVAILABLE_PLAYERS = 201;
     private static final int MSG_UPDATE_ADDRESSED_PLAYER = 202;
@@ -254,7 +267,7 @@ public final class Avrcp {
     private static final String PLAYERSETTINGS_RESPONSE =
            "org.codeaurora.music.playersettingsresponse";
     // Max number of Avrcp connections at any time
-    private int maxAvrcpConnections = 1;
+    private final int maxAvrcpConnections;
     BluetoothDevice mBrowserDevice = null;
     private static final int INVALID_DEVICE_INDEX = 0xFF;
     // codes for reset of of notifications
@@ -417,7 +430,14 @@ public final class Avrcp {
     private final String UPDATE_VALUE_TEXT = "UpdateValuesText";
     private ArrayList <Integer> mPendingCmds;
     private ArrayList <Integer> mPendingSetAttributes;
-    DeviceDependentFeature[] deviceFeatures;
+    /* Sized once for the connections the native stack accepts, see AvrcpDeviceIndex */
+    final DeviceDependentFeature[] deviceFeatures;
+    /* Slot of each connected device in deviceFeatures */
+    private final AvrcpDeviceIndex mDeviceIndex;
+    /* Play position notification due times of all devices, by slot */
+    private final AvrcpPlayPosScheduler mPlayPosScheduler;
+    /* Uptime of the pending MESSAGE_PLAY_INTERVAL_TIMEOUT, -1 if none */
+    private long mPlayPosTimerDueMs = -1;
 
     static {
         classInitNative();
@@ -434,6 +454,8 @@ public final class Avrcp {
         mA2dpService = svc;
         maxAvrcpConnections = maxConnections;
         deviceFeatures = new DeviceDependentFeature[maxAvrcpConnections];
+        mDeviceIndex = new AvrcpDeviceIndex(maxAvrcpConnections);
+        mPlayPosScheduler = new AvrcpPlayPosScheduler(maxAvrcpConnections);
         mAddressedPlayerId = INVALID_ADDRESSED_PLAYER_ID;
         for(int i = 0; i < maxAvrcpConnections; i++) {
             deviceFeatures[i] = new DeviceDependentFeature();
@@ -457,7 +479,15 @@ public final class Avrcp {
         HandlerThread thread = new HandlerThread("BluetoothAvrcpHandler");
         thread.start();
         Looper looper = thread.getLooper();
-        mHandler = new AvrcpMessageHandler(looper);
+        mHandler = new AvrcpMessageHandler(looper, mControlLaneStats, null);
+        // Long browse queries of one device must not delay volume and
+        // passthrough commands of the others. Each lane is FIFO, but there is
+        // no ordering between the lanes: commands changing the browsed player
+        // or starting playback stay on the control lane.
+        HandlerThread browseThread = new HandlerThread("BluetoothAvrcpBrowse");
+        browseThread.start();
+        mBrowseHandler = new AvrcpMessageHandler(browseThread.getLooper(), mBrowseLaneStats,
+                mBrowseLock);
         registerMediaPlayers();
         mSessionChangeListener = new MediaSessionChangeListener();
         mMediaSessionManager.addOnActiveSessionsChangedListener(mSessionChangeListener, null, mHandler);
@@ -754,6 +784,11 @@ public final class Avrcp {
         if (looper != null) {
             looper.quit();
         }
+        mBrowseHandler.removeCallbacksAndMessages(null);
+        looper = mBrowseHandler.getLooper();
+        if (looper != null) {
+            looper.quit();
+        }
         mMediaSessionManager.removeOnActiveSessionsChangedListener(mSessionChangeListener);
         clearDeviceDependentFeature();
         for (int i = 0; i < maxAvrcpConnections; i++) {
@@ -777,9 +812,14 @@ public final class Avrcp {
         Log.d(TAG, "Enter clearDeviceDependentFeature()");
         for (int i = 0; i < maxAvrcpConnections; i++) {
             deviceFeatures[i].keyPressState = KEY_STATE_RELEASE; //Key release state
-            deviceFeatures[i].mCurrentPath = PATH_INVALID;
-            deviceFeatures[i].mMediaUri = Uri.EMPTY;
-            deviceFeatures[i].mCurrentPathUid = null;
+            mBrowseLock.lock();
+            try {
+                deviceFeatures[i].mCurrentPath = PATH_INVALID;
+                deviceFeatures[i].mMediaUri = Uri.EMPTY;
+                deviceFeatures[i].mCurrentPathUid = null;
+            } finally {
+                mBrowseLock.unlock();
+            }
             deviceFeatures[i].mRequestedAddressedPlayerPackageName = null;
             if (deviceFeatures[i].mVolumeMapping != null)
                 deviceFeatures[i].mVolumeMapping.clear();
@@ -836,7 +876,12 @@ public final class Avrcp {
                 for (int count = 0; count < SplitPath.length; count++) {
                     Log.v(TAG, "folderName: " + SplitPath[count]);
                 }
-                mMediaUriStatic = uri;
+                mBrowseLock.lock();
+                try {
+                    mMediaUriStatic = uri;
+                } finally {
+                    mBrowseLock.unlock();
+                }
                 if (mHandler != null) {
                     // Don't send the complete path to CK as few gets confused by that
                     // Send only the name of the root folder
@@ -894,12 +939,43 @@ public final class Avrcp {
         }
     }
 
+    /**
+     * Query the MediaStore without holding mBrowseLock, so that a long query
+     * on one lane does not hold up the other. The first window of the cursor
+     * is filled before the lock is taken again. Browse state read before the
+     * call may have changed when it returns.
+     */
+    private Cursor queryMediaStore(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        int holds = mBrowseLock.getHoldCount();
+        for (int i = 0; i < holds; i++) {
+            mBrowseLock.unlock();
+        }
+        try {
+            Cursor cursor = mContext.getContentResolver().query(uri, projection, selection,
+                    selectionArgs, sortOrder);
+            if (cursor != null) {
+                cursor.getCount();
+            }
+            return cursor;
+        } finally {
+            for (int i = 0; i < holds; i++) {
+                mBrowseLock.lock();
+            }
+        }
+    }
+
     private void updateCurrentMediaController(MediaController controller) {
         Log.v(TAG, "Updating media controller to " + controller);
         if (mMediaController != null) {
             mMediaController.unregisterCallback(mMediaControllerCb);
         }
-        mMediaController = controller;
+        mBrowseLock.lock();
+        try {
+            mMediaController = controller;
+        } finally {
+            mBrowseLock.unlock();
+        }
         if (mMediaController == null) {
             updateMetadata(null);
             return;
@@ -917,8 +993,33 @@ public final class Avrcp {
 
     /** Handles Avrcp messages. */
     private final class AvrcpMessageHandler extends Handler {
-        private AvrcpMessageHandler(Looper looper) {
+        private final AvrcpDispatchStats mStats;
+        /* Held while handling each message, null for none */
+        private final ReentrantLock mLock;
+
+        private AvrcpMessageHandler(Looper looper, AvrcpDispatchStats stats,
+                ReentrantLock lock) {
             super(looper);
+            mStats = stats;
+            mLock = lock;
+        }
+
+        @Override
+        public void dispatchMessage(Message msg) {
+            long start = SystemClock.uptimeMillis();
+            long queueDelay = start - msg.getWhen();
+            int what = msg.what;
+            if (mLock != null) {
+                mLock.lock();
+                try {
+                    super.dispatchMessage(msg);
+                } finally {
+                    mLock.unlock();
+                }
+            } else {
+                super.dispatchMessage(msg);
+            }
+            mStats.record(what, queueDelay, SystemClock.uptimeMillis() - start);
         }
 
         @Override
@@ -939,26 +1040,26 @@ public final class Avrcp {
                     case GET_ATTRIBUTE_IDS:
                         getListPlayerappAttrRspNative((byte)def_attrib.length ,
                                 def_attrib, getByteAddress(
-                                mAdapter.getRemoteDevice((String) msg.obj)));
+                                getDeviceForAddress((String) msg.obj)));
                     break;
                     case GET_VALUE_IDS:
                         switch (mPlayerSettings.attr) {
                             case ATTRIBUTE_REPEATMODE:
                                 getPlayerAppValueRspNative((byte)value_repmode.length,
                                         value_repmode,
-                                        getByteAddress(mAdapter.getRemoteDevice(
+                                        getByteAddress(getDeviceForAddress(
                                         (String) msg.obj)));
                             break;
                             case ATTRIBUTE_SHUFFLEMODE:
                                 getPlayerAppValueRspNative((byte)value_shufmode.length,
                                         value_shufmode,
-                                        getByteAddress(mAdapter.getRemoteDevice(
+                                        getByteAddress(getDeviceForAddress(
                                         (String) msg.obj)));
                             break;
                             default:
                                 getPlayerAppValueRspNative((byte)value_default.length,
                                         value_default,
-                                        getByteAddress(mAdapter.getRemoteDevice(
+                                        getByteAddress(getDeviceForAddress(
                                         (String) msg.obj)));
                             break;
                         }
@@ -977,12 +1078,12 @@ public final class Avrcp {
                              }
                         }
                         SendCurrentPlayerValueRspNative((byte)retVal.length ,
-                                retVal, getByteAddress(mAdapter.getRemoteDevice(
+                                retVal, getByteAddress(getDeviceForAddress(
                                 (String) msg.obj)));
                     break;
                     case SET_ATTRIBUTE_VALUES :
                         SendSetPlayerAppRspNative(INTERNAL_ERROR, getByteAddress(
-                                mAdapter.getRemoteDevice((String) msg.obj)));
+                                getDeviceForAddress((String) msg.obj)));
                     break;
                     case GET_ATTRIBUTE_TEXT:
                         String [] attribText = new String [mPlayerSettings.attrIds.length];
@@ -991,7 +1092,7 @@ public final class Avrcp {
                         }
                         sendSettingsTextRspNative(mPlayerSettings.attrIds.length ,
                                 mPlayerSettings.attrIds, attribText.length,
-                                attribText, getByteAddress(mAdapter.getRemoteDevice(
+                                attribText, getByteAddress(getDeviceForAddress(
                                 (String) msg.obj)));
                     break;
                     case GET_VALUE_TEXT:
@@ -1001,7 +1102,7 @@ public final class Avrcp {
                         }
                         sendValueTextRspNative(mPlayerSettings.attrIds.length ,
                                 mPlayerSettings.attrIds, valueText.length,
-                                valueText,getByteAddress(mAdapter.getRemoteDevice(
+                                valueText,getByteAddress(getDeviceForAddress(
                                 (String) msg.obj)));
                     break;
                     default :
@@ -1020,7 +1121,12 @@ public final class Avrcp {
 
             case MSG_UPDATE_BROWSED_PLAYER_FOLDER:
                 Log.v(TAG, "MSG_UPDATE_BROWSED_PLAYER_FOLDER");
-                updateBrowsedPlayerFolder(msg.arg1, msg.arg2, (String [])msg.obj);
+                mBrowseLock.lock();
+                try {
+                    updateBrowsedPlayerFolder(msg.arg1, msg.arg2, (String [])msg.obj);
+                } finally {
+                    mBrowseLock.unlock();
+                }
                 break;
 
             case MSG_UPDATE_NOW_PLAYING_CONTENT_CHANGED:
@@ -1032,12 +1138,22 @@ public final class Avrcp {
                 Log.v(TAG, "MSG_PLAY_ITEM_RESPONSE");
                 boolean success = ((Boolean)msg.obj).booleanValue();
                 Log.v(TAG, "success: " + success);
-                updatePlayItemResponse(success);
+                mBrowseLock.lock();
+                try {
+                    updatePlayItemResponse(success);
+                } finally {
+                    mBrowseLock.unlock();
+                }
                 break;
 
             case MSG_NOW_PLAYING_ENTRIES_RECEIVED:
                 Log.v(TAG, "MSG_NOW_PLAYING_ENTRIES_RECEIVED");
-                updateNowPlayingEntriesReceived((long [])msg.obj);
+                mBrowseLock.lock();
+                try {
+                    updateNowPlayingEntriesReceived((long [])msg.obj);
+                } finally {
+                    mBrowseLock.unlock();
+                }
                 break;
 
             case MESSAGE_GET_RC_FEATURES:
@@ -1046,7 +1162,7 @@ public final class Avrcp {
                 if (DEBUG)
                     Log.v(TAG, "MESSAGE_GET_RC_FEATURES: address="+address+
                             ", features="+msg.arg1);
-                BluetoothDevice device = mAdapter.getRemoteDevice(address);
+                BluetoothDevice device = getDeviceForAddress(address);
                 deviceIndex = getIndexForDevice(device);
                 if (deviceIndex == INVALID_DEVICE_INDEX) {
                     Log.v(TAG,"device entry not present, bailing out");
@@ -1102,7 +1218,7 @@ public final class Avrcp {
                     Log.v(TAG, "MESSAGE_GET_PLAY_STATUS");
                 Log.v(TAG, "Event for device address " + (String)msg.obj);
 
-                device = mAdapter.getRemoteDevice((String) msg.obj);
+                device = getDeviceForAddress((String) msg.obj);
                 deviceIndex = getIndexForDevice(device);
                 if (deviceIndex == INVALID_DEVICE_INDEX) {
                     Log.e(TAG,"Invalid device index for play status");
@@ -1139,7 +1255,7 @@ public final class Avrcp {
                                " str=" + textArray[i]);
                 }
                 getElementAttrRspNative(numAttr ,attrIds ,textArray ,
-                        getByteAddress(mAdapter.getRemoteDevice(itemAttr.mAddress)));
+                        getByteAddress(getDeviceForAddress(itemAttr.mAddress)));
                 break;
 
             case MESSAGE_REGISTER_NOTIFICATION:
@@ -1150,28 +1266,33 @@ public final class Avrcp {
                 break;
 
             case MESSAGE_PLAY_INTERVAL_TIMEOUT:
+            {
+                mPlayPosTimerDueMs = -1;
+                int count = mPlayPosScheduler.pollDue(SystemClock.uptimeMillis());
                 if (DEBUG)
-                    Log.v(TAG, "MESSAGE_PLAY_INTERVAL_TIMEOUT");
-                Log.v(TAG, "event for device address " + (BluetoothDevice)msg.obj);
-                deviceIndex = getIndexForDevice((BluetoothDevice) msg.obj);
-                if (deviceIndex == INVALID_DEVICE_INDEX) {
-                    Log.e(TAG,"invalid index for device");
-                    break;
+                    Log.v(TAG, "MESSAGE_PLAY_INTERVAL_TIMEOUT: " + count + " devices due");
+                for (int i = 0; i < count; i++) {
+                    deviceIndex = mPlayPosScheduler.getDueSlot(i);
+                    if (deviceIndex < maxAvrcpConnections &&
+                            deviceFeatures[deviceIndex].mCurrentDevice != null) {
+                        updatePlayPosNotification(false, deviceIndex);
+                    }
                 }
-                sendPlayPosNotificationRsp(false, deviceIndex);
+                schedulePlayPosTimer();
                 break;
+            }
 
             case MESSAGE_SET_ADDR_PLAYER_REQ_TIMEOUT:
                 if (DEBUG)
                     Log.v(TAG, "setAddressedPlayer fails, Times out");
-                deviceIndex = getIndexForDevice(mAdapter.getRemoteDevice((String) msg.obj));
+                deviceIndex = getIndexForAddress((String) msg.obj);
                 if (deviceIndex == INVALID_DEVICE_INDEX) {
                     Log.e(TAG,"invalid device index");
                     break;
                 }
                 Log.v(TAG, "event for device address " + (String)msg.obj);
                 setAdressedPlayerRspNative((byte)PLAYER_NOT_ADDRESSED,
-                            getByteAddress(mAdapter.getRemoteDevice((String) msg.obj)));
+                            getByteAddress(getDeviceForAddress((String) msg.obj)));
                 deviceFeatures[deviceIndex].mRequestedAddressedPlayerPackageName = null;
                 break;
 
@@ -1184,7 +1305,7 @@ public final class Avrcp {
                     Log.v(TAG, "MESSAGE_VOLUME_CHANGED: volume=" + ((byte)msg.arg1 & 0x7f)
                                                         + " ctype=" + msg.arg2);
                 Log.v(TAG, "event for device address " + (String)msg.obj);
-                deviceIndex = getIndexForDevice(mAdapter.getRemoteDevice((String) msg.obj));
+                deviceIndex = getIndexForAddress((String) msg.obj);
                 if (deviceIndex == INVALID_DEVICE_INDEX) {
                     Log.e(TAG,"invalid index for device");
                     break;
@@ -1544,14 +1665,24 @@ public final class Avrcp {
                 String callingPackageName = (String)msg.obj;
                 int isFocussed = msg.arg1;
                 int isAvailable = msg.arg2;
-                processRCCStateChange(callingPackageName, isFocussed, isAvailable);
+                mBrowseLock.lock();
+                try {
+                    processRCCStateChange(callingPackageName, isFocussed, isAvailable);
+                } finally {
+                    mBrowseLock.unlock();
+                }
                 break;
 
             case MESSAGE_SET_ADDR_PLAYER:
                 processSetAddressedPlayer(msg.arg1, (String) msg.obj);
                 break;
             case MESSAGE_SET_BROWSED_PLAYER:
-                processSetBrowsedPlayer(msg.arg1, (String) msg.obj);
+                mBrowseLock.lock();
+                try {
+                    processSetBrowsedPlayer(msg.arg1, (String) msg.obj);
+                } finally {
+                    mBrowseLock.unlock();
+                }
                 break;
             case MESSAGE_CHANGE_PATH:
                 itemAttr = (ItemAttr)msg.obj;
@@ -1559,7 +1690,12 @@ public final class Avrcp {
                 break;
             case MESSAGE_PLAY_ITEM:
                 itemAttr = (ItemAttr)msg.obj;
-                processPlayItem(msg.arg1, itemAttr.mUid, itemAttr.mAddress);
+                mBrowseLock.lock();
+                try {
+                    processPlayItem(msg.arg1, itemAttr.mUid, itemAttr.mAddress);
+                } finally {
+                    mBrowseLock.unlock();
+                }
                 break;
             case MESSAGE_GET_ITEM_ATTRS:
                 itemAttr = (ItemAttr)msg.obj;
@@ -1678,7 +1814,8 @@ public final class Avrcp {
                     NOTIFICATION_TYPE_REJECT;
             registerNotificationRspPlayPosNative(deviceFeatures[index].mPlayPosChangedNT,
                     -1 ,getByteAddress(device));
-            mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
+            mPlayPosScheduler.cancel(index);
+            schedulePlayPosTimer();
         } else {
             Log.v(TAG,"index " + index + " status is"+
                     deviceFeatures[index].mPlayPosChangedNT);
@@ -1762,8 +1899,9 @@ public final class Avrcp {
         }
 
         for (int deviceIndex = 0; deviceIndex < maxAvrcpConnections; deviceIndex++) {
-            sendPlayPosNotificationRsp(false, deviceIndex);
+            updatePlayPosNotification(false, deviceIndex);
         }
+        schedulePlayPosTimer();
     }
 
     private boolean isPlayStateToBeUpdated(int deviceIndex) {
@@ -1893,7 +2031,8 @@ public final class Avrcp {
                         registerNotificationRspPlayPosNative(
                                 deviceFeatures[i].mPlayPosChangedNT,
                                 -1 ,getByteAddress(deviceFeatures[i].mCurrentDevice));
-                        mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
+                        mPlayPosScheduler.cancel(i);
+                        schedulePlayPosTimer();
                     } else {
                         Log.v(TAG,"i " + i + " status is"+
                             deviceFeatures[i].mPlayPosChangedNT);
@@ -2106,7 +2245,7 @@ public final class Avrcp {
 
         for (index = 0; index < reqItems; index++) {
             try {
-                cursor = mContext.getContentResolver().query(
+                cursor = queryMediaStore(
                      deviceFeatures[deviceIndex].mMediaUri, mCursorCols,
                      MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" +
                          playList[index + (int)mCachedRequest.mStart], null, null);
@@ -2346,13 +2485,13 @@ public final class Avrcp {
 
     private void getRcFeatures(byte[] address, int features) {
         Message msg = mHandler.obtainMessage(MESSAGE_GET_RC_FEATURES, features, 0,
-                                             Utils.getAddressStringFromByte(address));
+                                             getAddressString(address));
         mHandler.sendMessage(msg);
     }
 
     private void getPlayStatus(byte[] address) {
         Message msg = mHandler.obtainMessage(MESSAGE_GET_PLAY_STATUS, 0, 0,
-                Utils.getAddressStringFromByte(address));
+                getAddressString(address));
         mHandler.sendMessage(msg);
     }
 
@@ -2363,7 +2502,7 @@ public final class Avrcp {
             attrList.add(attrs[i]);
         }
         ItemAttr itemAttr = new ItemAttr(attrList, 0, 0,
-                Utils.getAddressStringFromByte(address));
+                getAddressString(address));
         Message msg = mHandler.obtainMessage(MESSAGE_GET_ELEM_ATTRS, (int)numAttr, 0,
                 itemAttr);
         mHandler.sendMessage(msg);
@@ -2373,14 +2512,14 @@ public final class Avrcp {
         if (DEBUG)
             Log.v(TAG, "setBrowsedPlayer: PlayerID: " + playerId);
         Message msg = mHandler.obtainMessage(MESSAGE_SET_BROWSED_PLAYER, playerId, 0,
-                Utils.getAddressStringFromByte(address));
+                getAddressString(address));
         mHandler.sendMessage(msg);
     }
 
     private void processSetBrowsedPlayer(int playerId, String deviceAddress) {
         String packageName = null;
         byte retError = INVALID_PLAYER_ID;
-        BluetoothDevice device = mAdapter.getRemoteDevice(deviceAddress);
+        BluetoothDevice device = getDeviceForAddress(deviceAddress);
         int deviceIndex = getIndexForDevice(device);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
             Log.v(TAG,"device entry not present, bailing out");
@@ -2435,7 +2574,7 @@ public final class Avrcp {
     }
 
     private void fastForward(int keyState, String deviceAddress) {
-        BluetoothDevice device = mAdapter.getRemoteDevice(deviceAddress);
+        BluetoothDevice device = getDeviceForAddress(deviceAddress);
         int deviceIndex = getIndexForDevice(device);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
             Log.e(TAG,"invalid index for device");
@@ -2453,7 +2592,7 @@ public final class Avrcp {
     }
 
     private void rewind(int keyState, String deviceAddress) {
-        BluetoothDevice device = mAdapter.getRemoteDevice(deviceAddress);
+        BluetoothDevice device = getDeviceForAddress(deviceAddress);
         int deviceIndex = getIndexForDevice(device);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
             Log.e(TAG,"invalid index for device");
@@ -2474,16 +2613,16 @@ public final class Avrcp {
         if (DEBUG)
             Log.v(TAG, "changePath: direction: " + direction + " uid:" + uid);
         ItemAttr itemAttr = new ItemAttr(null, uid, 0,
-                Utils.getAddressStringFromByte(address));
-        Message msg = mHandler.obtainMessage(MESSAGE_CHANGE_PATH, direction, 0, itemAttr);
-        mHandler.sendMessage(msg);
+                getAddressString(address));
+        Message msg = mBrowseHandler.obtainMessage(MESSAGE_CHANGE_PATH, direction, 0, itemAttr);
+        mBrowseHandler.sendMessage(msg);
     }
 
     private void processChangePath(int direction, long folderUid,
             String deviceAddress) {
         long numberOfItems = 0;
         int status = OPERATION_SUCCESSFUL;
-        BluetoothDevice device = mAdapter.getRemoteDevice(deviceAddress);
+        BluetoothDevice device = getDeviceForAddress(deviceAddress);
         int deviceIndex = getIndexForDevice(device);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
             Log.v(TAG,"device entry not present, bailing out");
@@ -2533,7 +2672,7 @@ public final class Avrcp {
                 case FOLDER_DOWN:
                     Cursor cursor = null;
                     try {
-                        cursor = mContext.getContentResolver().query(
+                        cursor = queryMediaStore(
                             deviceFeatures[deviceIndex].mMediaUri,
                             new String[] {MediaStore.Audio.Media.TITLE},
                             MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id="
@@ -2574,7 +2713,7 @@ public final class Avrcp {
                     if (deviceFeatures[deviceIndex].mCurrentPathUid == null) { // Path @ Album
                         Cursor cursor = null;
                         try {
-                            cursor = mContext.getContentResolver().query(
+                            cursor = queryMediaStore(
                                 deviceFeatures[deviceIndex].mMediaUri,
                                 new String[] {MediaStore.Audio.Media.ALBUM},
                                 MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
@@ -2600,7 +2739,7 @@ public final class Avrcp {
                     } else { // Path @ Individual Album id
                         Cursor cursor = null;
                         try {
-                            cursor = mContext.getContentResolver().query(
+                            cursor = queryMediaStore(
                                 deviceFeatures[deviceIndex].mMediaUri,
                                 new String[] {MediaStore.Audio.Media.TITLE},
                                 MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" + folderUid,
@@ -2645,7 +2784,7 @@ public final class Avrcp {
                     if (deviceFeatures[deviceIndex].mCurrentPathUid == null) {
                         Cursor cursor = null;
                         try {
-                            cursor = mContext.getContentResolver().query(
+                            cursor = queryMediaStore(
                                 deviceFeatures[deviceIndex].mMediaUri,
                                 new String[] {MediaStore.Audio.Media.ARTIST},
                                 MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
@@ -2672,7 +2811,7 @@ public final class Avrcp {
                     } else {
                         Cursor cursor = null;
                         try {
-                            cursor = mContext.getContentResolver().query(
+                            cursor = queryMediaStore(
                                 deviceFeatures[deviceIndex].mMediaUri,
                                 new String[] {MediaStore.Audio.Media.TITLE},
                                 MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id="
@@ -2728,7 +2867,7 @@ public final class Avrcp {
                                                folderUid);
                             StringBuilder where = new StringBuilder();
                             where.append(MediaStore.Audio.Media.TITLE + " != ''");
-                            cursor = mContext.getContentResolver().query(uri, playlistMemberCols,
+                            cursor = queryMediaStore(uri, playlistMemberCols,
                                             where.toString(), null,
                                             MediaStore.Audio.Playlists.Members.DEFAULT_SORT_ORDER);
                             if (cursor != null) {
@@ -2776,7 +2915,7 @@ public final class Avrcp {
                 MediaStore.Audio.Playlists.NAME
         };
         try {
-            cursor = mContext.getContentResolver().query(
+            cursor = queryMediaStore(
                 MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
                 cols, MediaStore.Audio.Playlists.NAME + " != ''", null,
                 MediaStore.Audio.Playlists.NAME);
@@ -2802,7 +2941,7 @@ public final class Avrcp {
             return 0;
         Cursor cursor = null;
         try {
-            cursor = mContext.getContentResolver().query(
+            cursor = queryMediaStore(
                 deviceFeatures[deviceIndex].mMediaUri,
                 new String[] {element},
                 MediaStore.Audio.Media.IS_MUSIC + "=1", null,
@@ -2843,15 +2982,15 @@ public final class Avrcp {
 
     private void getTotalNumberOfItems(byte scope, byte[] address) {
         if (DEBUG) Log.v(TAG, "getTotalNumberOfItems: scope: " + scope);
-        Message msg = mHandler.obtainMessage(MESSAGE_GET_TOTAL_NUMBER_OF_ITEMS, scope, 0,
-                Utils.getAddressStringFromByte(address));
-        mHandler.sendMessage(msg);
+        Message msg = mBrowseHandler.obtainMessage(MESSAGE_GET_TOTAL_NUMBER_OF_ITEMS, scope, 0,
+                getAddressString(address));
+        mBrowseHandler.sendMessage(msg);
     }
 
     private void processGetTotalNumberOfItems(byte scope, String deviceAddress) {
         long itemCount = 0;
         boolean IsPlayerInFocus = false;
-        BluetoothDevice device = mAdapter.getRemoteDevice(deviceAddress);
+        BluetoothDevice device = getDeviceForAddress(deviceAddress);
         int deviceIndex = getIndexForDevice(device);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
             Log.v(TAG,"device entry not present, bailing out");
@@ -2889,7 +3028,7 @@ public final class Avrcp {
 
     private void processGetMediaPlayerTotalItems(byte scope, String deviceAddress) {
         int totalAvailableMediaPlayers = 0;
-        BluetoothDevice device = mAdapter.getRemoteDevice(deviceAddress);
+        BluetoothDevice device = getDeviceForAddress(deviceAddress);
         if (DEBUG)
             Log.v(TAG, "processGetMediaPlayerTotalItems");
 
@@ -2910,7 +3049,7 @@ public final class Avrcp {
 
     private void processGetVirtualFileTotalItems(byte scope, String deviceAddress) {
         long virtualFileTotalItems = 0;
-        BluetoothDevice device = mAdapter.getRemoteDevice(deviceAddress);
+        BluetoothDevice device = getDeviceForAddress(deviceAddress);
 
         int deviceIndex = getIndexForDevice(device);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
@@ -2937,7 +3076,7 @@ public final class Avrcp {
         } else if (deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_TITLES)) {
             Cursor cursor = null;
             try {
-                cursor = mContext.getContentResolver().query(
+                cursor = queryMediaStore(
                             deviceFeatures[deviceIndex].mMediaUri,
                             mCursorCols, MediaStore.Audio.Media.IS_MUSIC + "=1", null,
                             MediaStore.Audio.Media.DEFAULT_SORT_ORDER);
@@ -2973,7 +3112,7 @@ public final class Avrcp {
                 long folderUid = Long.valueOf(deviceFeatures[deviceIndex].mCurrentPathUid);
                 Cursor cursor = null;
                 try {
-                    cursor = mContext.getContentResolver().query(
+                    cursor = queryMediaStore(
                         deviceFeatures[deviceIndex].mMediaUri,
                         mCursorCols, MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
                         MediaStore.Audio.Media.ALBUM_ID + "=" + folderUid, null,
@@ -3012,7 +3151,7 @@ public final class Avrcp {
                 long folderUid = Long.valueOf(deviceFeatures[deviceIndex].mCurrentPathUid);
                 Cursor cursor = null;
                 try {
-                    cursor = mContext.getContentResolver().query(
+                    cursor = queryMediaStore(
                         deviceFeatures[deviceIndex].mMediaUri,
                         mCursorCols, MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
                         MediaStore.Audio.Media.ARTIST_ID + "=" + folderUid, null,
@@ -3065,7 +3204,7 @@ public final class Avrcp {
                                                                                     folderUid);
                     StringBuilder where = new StringBuilder();
                     where.append(MediaStore.Audio.Media.TITLE + " != ''");
-                    cursor = mContext.getContentResolver().query(uri, playlistMemberCols,
+                    cursor = queryMediaStore(uri, playlistMemberCols,
                                     where.toString(), null,
                                     MediaStore.Audio.Playlists.Members.DEFAULT_SORT_ORDER);
 
@@ -3101,7 +3240,7 @@ public final class Avrcp {
 
     private void processGetNowPlayingTotalItems(byte scope, String deviceAddress) {
         long virtualFileTotalItems = 0;
-        BluetoothDevice device = mAdapter.getRemoteDevice(deviceAddress);
+        BluetoothDevice device = getDeviceForAddress(deviceAddress);
 
         int deviceIndex = getIndexForDevice(device);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
@@ -3139,7 +3278,7 @@ public final class Avrcp {
         if (DEBUG)
             Log.v(TAG, "playItem: scope: " + scope + " uid:" + uid);
         ItemAttr itemAttr = new ItemAttr(null, uid, 0,
-                Utils.getAddressStringFromByte(address));
+                getAddressString(address));
         Message msg = mHandler.obtainMessage(MESSAGE_PLAY_ITEM, scope, 0, itemAttr);
         mHandler.sendMessage(msg);
     }
@@ -3148,7 +3287,7 @@ public final class Avrcp {
             String deviceAddress) {
         if (DEBUG)
             Log.v(TAG, "processPlayItem: scope: " + scope + " uid:" + uid);
-        BluetoothDevice device = mAdapter.getRemoteDevice(deviceAddress);
+        BluetoothDevice device = getDeviceForAddress(deviceAddress);
         int deviceIndex = getIndexForDevice(device);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
             Log.v(TAG,"device entry not present, bailing out");
@@ -3184,7 +3323,7 @@ public final class Avrcp {
             } else if (deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_TITLES)) {
                 Cursor cursor = null;
                 try {
-                    cursor = mContext.getContentResolver().query(
+                    cursor = queryMediaStore(
                         deviceFeatures[deviceIndex].mMediaUri,
                         new String[] {MediaStore.Audio.Media.TITLE},
                         MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" + uid,
@@ -3214,7 +3353,7 @@ public final class Avrcp {
                 } else {
                     Cursor cursor = null;
                     try {
-                        cursor = mContext.getContentResolver().query(
+                        cursor = queryMediaStore(
                             deviceFeatures[deviceIndex].mMediaUri,
                             new String[] {MediaStore.Audio.Media.TITLE},
                             MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" + uid + " AND " +
@@ -3247,7 +3386,7 @@ public final class Avrcp {
                 } else {
                     Cursor cursor = null;
                     try {
-                        cursor = mContext.getContentResolver().query(
+                        cursor = queryMediaStore(
                             deviceFeatures[deviceIndex].mMediaUri,
                             new String[] {MediaStore.Audio.Media.TITLE},
                             MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" + uid + " AND " +
@@ -3295,7 +3434,7 @@ public final class Avrcp {
                                 Long.parseLong(deviceFeatures[deviceIndex].mCurrentPathUid));
                         StringBuilder where = new StringBuilder();
                         where.append(MediaStore.Audio.Playlists.Members.AUDIO_ID + "=" + uid);
-                        cursor = mContext.getContentResolver().query(uri, playlistMemberCols,
+                        cursor = queryMediaStore(uri, playlistMemberCols,
                                     where.toString(), null, MediaStore.Audio.Playlists.Members.
                                                                             DEFAULT_SORT_ORDER);
 
@@ -3345,10 +3484,10 @@ public final class Avrcp {
                 Log.v(TAG, "attrs[" + i + "] = " + attrs[i]);
         }
         ItemAttr itemAttr = new ItemAttr(attrList, uid, size,
-                Utils.getAddressStringFromByte(address));
-        Message msg = mHandler.obtainMessage(MESSAGE_GET_ITEM_ATTRS, (int)numAttr,
+                getAddressString(address));
+        Message msg = mBrowseHandler.obtainMessage(MESSAGE_GET_ITEM_ATTRS, (int)numAttr,
                                                                 (int)scope, itemAttr);
-        mHandler.sendMessage(msg);
+        mBrowseHandler.sendMessage(msg);
     }
 
     private String[] mCursorCols = new String[] {
@@ -3371,7 +3510,7 @@ public final class Avrcp {
             Log.v(TAG, "processGetItemAttr: scope: " + scope + " uid:" + uid +
                     " numAttr:" + numAttr + " size: " + size);
         String[] textArray;
-        BluetoothDevice device = mAdapter.getRemoteDevice(deviceAddress);
+        BluetoothDevice device = getDeviceForAddress(deviceAddress);
         int deviceIndex = getIndexForDevice(device);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
             Log.v(TAG,"device entry not present, bailing out");
@@ -3389,7 +3528,7 @@ public final class Avrcp {
                             textArray, size, getByteAddress(device));
                     return;
                 }
-                cursor = mContext.getContentResolver().query(
+                cursor = queryMediaStore(
                      deviceFeatures[deviceIndex].mMediaUri, mCursorCols,
                      MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" + uid, null, null);
                 if ((cursor == null) || (cursor.getCount() == 0)) {
@@ -3447,7 +3586,7 @@ public final class Avrcp {
         if (DEBUG)
             Log.v(TAG, "setAddressedPlayer: PlayerID: " + playerId);
         Message msg = mHandler.obtainMessage(MESSAGE_SET_ADDR_PLAYER, playerId, 0,
-                Utils.getAddressStringFromByte(address));
+                getAddressString(address));
         mHandler.sendMessage(msg);
     }
 
@@ -3455,7 +3594,7 @@ public final class Avrcp {
         if (DEBUG)
             Log.v(TAG, "processSetAddressedPlayer: PlayerID: " + playerId);
         String packageName = null;
-        BluetoothDevice device = mAdapter.getRemoteDevice(deviceAddress);
+        BluetoothDevice device = getDeviceForAddress(deviceAddress);
         int deviceIndex = getIndexForDevice(device);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
             Log.v(TAG,"device entry not present, bailing out");
@@ -3466,7 +3605,7 @@ public final class Avrcp {
             if (DEBUG)
                 Log.v(TAG, "setAddressedPlayer: Request in progress, Reject this Request");
             setAdressedPlayerRspNative((byte)PLAYER_NOT_ADDRESSED,
-                        getByteAddress(mAdapter.getRemoteDevice(deviceAddress)));
+                        getByteAddress(getDeviceForAddress(deviceAddress)));
             return;
         }
         if (mMediaPlayers.size() > 0) {
@@ -3483,7 +3622,7 @@ public final class Avrcp {
                 if (DEBUG)
                     Log.v(TAG, "setAddressedPlayer: Already addressed, sending success");
                 setAdressedPlayerRspNative((byte)OPERATION_SUCCESSFUL,
-                            getByteAddress(mAdapter.getRemoteDevice(deviceAddress)));
+                            getByteAddress(getDeviceForAddress(deviceAddress)));
                 return;
             }
             String newPackageName = packageName.replace("com.android", "org.codeaurora");
@@ -3504,7 +3643,7 @@ public final class Avrcp {
             if (DEBUG)
                 Log.v(TAG, "setAddressedPlayer fails: No such media player available");
             setAdressedPlayerRspNative((byte)INVALID_PLAYER_ID,
-                        getByteAddress(mAdapter.getRemoteDevice(deviceAddress)));
+                        getByteAddress(getDeviceForAddress(deviceAddress)));
         }
     }
 
@@ -3522,9 +3661,9 @@ public final class Avrcp {
         }
 
         FolderListEntries folderListEntries = new FolderListEntries (scope, start, end, size,
-                numAttr, attrs, Utils.getAddressStringFromByte(address));
-        Message msg = mHandler.obtainMessage(MESSAGE_GET_FOLDER_ITEMS, 0, 0, folderListEntries);
-        mHandler.sendMessage(msg);
+                numAttr, attrs, getAddressString(address));
+        Message msg = mBrowseHandler.obtainMessage(MESSAGE_GET_FOLDER_ITEMS, 0, 0, folderListEntries);
+        mBrowseHandler.sendMessage(msg);
     }
 
     private void processGetFolderItems(byte scope, long start, long end, int size,
@@ -3555,7 +3694,7 @@ public final class Avrcp {
         int availableMediaPlayers = 0;
         int count = 0;
         int positionItemStart = 0;
-        BluetoothDevice device = mAdapter.getRemoteDevice(deviceAddress);
+        BluetoothDevice device = getDeviceForAddress(deviceAddress);
         if (mMediaPlayers.size() > 0) {
             final Iterator<MediaPlayerInfo> rccIterator = mMediaPlayers.iterator();
             while (rccIterator.hasNext()) {
@@ -3607,7 +3746,7 @@ public final class Avrcp {
         byte[] numAtt = new byte[MAX_BROWSE_ITEM_TO_SEND];
         String[] attValues = new String[MAX_BROWSE_ITEM_TO_SEND * 8];
         int[] attIds = new int[MAX_BROWSE_ITEM_TO_SEND * 8];
-        BluetoothDevice device = mAdapter.getRemoteDevice(deviceAddress);
+        BluetoothDevice device = getDeviceForAddress(deviceAddress);
 
         int deviceIndex = getIndexForDevice(device);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
@@ -3733,7 +3872,7 @@ public final class Avrcp {
                 long availableItems = 0;
                 Cursor cursor = null;
                 try {
-                    cursor = mContext.getContentResolver().query(
+                    cursor = queryMediaStore(
                             deviceFeatures[deviceIndex].mMediaUri,
                             mCursorCols, MediaStore.Audio.Media.IS_MUSIC + "=1", null,
                             MediaStore.Audio.Media.DEFAULT_SORT_ORDER);
@@ -3837,7 +3976,7 @@ public final class Avrcp {
                             reqItems = (int)availableItems;
                         Log.i(TAG, "revised reqItems: " + reqItems);
 
-                        cursor = mContext.getContentResolver().query(
+                        cursor = queryMediaStore(
                                             deviceFeatures[deviceIndex].mMediaUri, mCursorCols,
                                             MediaStore.Audio.Media.IS_MUSIC + "=1", null,
                                             MediaStore.Audio.Albums.DEFAULT_SORT_ORDER);
@@ -3912,7 +4051,7 @@ public final class Avrcp {
                     long availableItems = 0;
                     Cursor cursor = null;
                     try {
-                        cursor = mContext.getContentResolver().query(
+                        cursor = queryMediaStore(
                             deviceFeatures[deviceIndex].mMediaUri,
                             mCursorCols, MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
                             MediaStore.Audio.Media.ALBUM_ID + "=" + folderUid, null,
@@ -4022,7 +4161,7 @@ public final class Avrcp {
                         if (DEBUG)
                             Log.v(TAG, "revised reqItems: " + reqItems);
 
-                        cursor = mContext.getContentResolver().query(
+                        cursor = queryMediaStore(
                             deviceFeatures[deviceIndex].mMediaUri, mCursorCols,
                             MediaStore.Audio.Media.IS_MUSIC + "=1", null,
                             MediaStore.Audio.Artists.DEFAULT_SORT_ORDER);
@@ -4096,7 +4235,7 @@ public final class Avrcp {
                     long availableItems = 0;
                     Cursor cursor = null;
                     try {
-                        cursor = mContext.getContentResolver().query(
+                        cursor = queryMediaStore(
                             deviceFeatures[deviceIndex].mMediaUri,
                             mCursorCols, MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
                             MediaStore.Audio.Media.ARTIST_ID + "=" + folderUid, null,
@@ -4209,7 +4348,7 @@ public final class Avrcp {
                                 MediaStore.Audio.Playlists.NAME
                         };
 
-                        cursor = mContext.getContentResolver().query(
+                        cursor = queryMediaStore(
                             MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
                             cols, MediaStore.Audio.Playlists.NAME + " != ''", null,
                             MediaStore.Audio.Playlists.DEFAULT_SORT_ORDER);
@@ -4291,7 +4430,7 @@ public final class Avrcp {
                                                                                     folderUid);
                         StringBuilder where = new StringBuilder();
                         where.append(MediaStore.Audio.Media.TITLE + " != ''");
-                        cursor = mContext.getContentResolver().query(uri, playlistMemberCols,
+                        cursor = queryMediaStore(uri, playlistMemberCols,
                                         where.toString(), null,
                                         MediaStore.Audio.Playlists.Members.DEFAULT_SORT_ORDER);
 
@@ -4404,7 +4543,7 @@ public final class Avrcp {
 
     private void registerNotification(int eventId, int param, byte[] address) {
         Message msg = mHandler.obtainMessage(MESSAGE_REGISTER_NOTIFICATION, eventId,
-                param, Utils.getAddressStringFromByte(address));
+                param, getAddressString(address));
         mHandler.sendMessage(msg);
     }
 
@@ -4525,7 +4664,7 @@ public final class Avrcp {
 
     private void processRegisterNotification(int eventId, int param,
             String deviceAddress) {
-        BluetoothDevice device = mAdapter.getRemoteDevice(deviceAddress);
+        BluetoothDevice device = getDeviceForAddress(deviceAddress);
         int deviceIndex = getIndexForDevice(device);
         Log.v(TAG,"processRegisterNotification: eventId" + eventId);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
@@ -4600,16 +4739,16 @@ public final class Avrcp {
                 byte[] address) {
         switch (id) {
             case BluetoothAvrcp.PASSTHROUGH_ID_REWIND:
-                rewind(keyState, Utils.getAddressStringFromByte(address));
+                rewind(keyState, getAddressString(address));
                 break;
             case BluetoothAvrcp.PASSTHROUGH_ID_FAST_FOR:
-                fastForward(keyState, Utils.getAddressStringFromByte(address));
+                fastForward(keyState, getAddressString(address));
                 break;
         }
     }
 
     private void changePositionBy(long amount, String deviceAddress) {
-        long currentPosMs = getPlayPosition(mAdapter.getRemoteDevice(deviceAddress));
+        long currentPosMs = getPlayPosition(getDeviceForAddress(deviceAddress));
         if (currentPosMs == -1L) return;
         long newPosMs = Math.max(0L, currentPosMs + amount);
         mMediaController.getTransportControls().seekTo(newPosMs);
@@ -4797,8 +4936,19 @@ public final class Avrcp {
      * TG.
      */
     private void sendPlayPosNotificationRsp(boolean requested, int i) {
+        updatePlayPosNotification(requested, i);
+        schedulePlayPosTimer();
+    }
+
+    /**
+     * Same as {@link #sendPlayPosNotificationRsp} without rescheduling the
+     * handler, for callers updating several devices at once. They have to call
+     * {@link #schedulePlayPosTimer} when done.
+     */
+    private void updatePlayPosNotification(boolean requested, int i) {
         if (!requested && deviceFeatures[i].mPlayPosChangedNT != NOTIFICATION_TYPE_INTERIM) {
             if (DEBUG) Log.d(TAG, "sendPlayPosNotificationRsp: Not registered or requesting.");
+            mPlayPosScheduler.cancel(i);
             return;
         }
         long playPositionMs = getPlayPosition(deviceFeatures[i].mCurrentDevice);
@@ -4826,17 +4976,34 @@ public final class Avrcp {
             }
         }
 
-        mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
         if (deviceFeatures[i].mPlayPosChangedNT == NOTIFICATION_TYPE_INTERIM &&
                  isPlayingState(deviceFeatures[i].mCurrentPlayState)) {
-            Message msg = mHandler.obtainMessage(MESSAGE_PLAY_INTERVAL_TIMEOUT, 0, 0,
-                                                 deviceFeatures[i].mCurrentDevice);
             long delay = deviceFeatures[i].mPlaybackIntervalMs;
             if (deviceFeatures[i].mNextPosMs != -1) {
                 delay = deviceFeatures[i].mNextPosMs - (playPositionMs > 0 ? playPositionMs : 0);
             }
             if (DEBUG) Log.d(TAG, "PLAY_INTERVAL_TIMEOUT set for " + delay + "ms from now");
-            mHandler.sendMessageDelayed(msg, delay);
+            mPlayPosScheduler.schedule(i, SystemClock.uptimeMillis() + delay);
+        } else {
+            mPlayPosScheduler.cancel(i);
+        }
+    }
+
+    /**
+     * Keep a single MESSAGE_PLAY_INTERVAL_TIMEOUT pending for the earliest
+     * play position notification of all devices, or none if no device is
+     * playing with a registered notification.
+     */
+    private void schedulePlayPosTimer() {
+        long dueMs = mPlayPosScheduler.getNextDueTime();
+        if (dueMs == mPlayPosTimerDueMs) {
+            return;
+        }
+        mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
+        mPlayPosTimerDueMs = dueMs;
+        if (dueMs != -1) {
+            mHandler.sendMessageAtTime(
+                    mHandler.obtainMessage(MESSAGE_PLAY_INTERVAL_TIMEOUT), dueMs);
         }
     }
 
@@ -4926,7 +5093,7 @@ public final class Avrcp {
      */
     private void volumeChangeCallback(int volume, int ctype, byte[] address) {
         Message msg = mHandler.obtainMessage(MESSAGE_VOLUME_CHANGED, volume,
-                ctype, Utils.getAddressStringFromByte(address));
+                ctype, getAddressString(address));
         mHandler.sendMessage(msg);
     }
 
@@ -5051,9 +5218,7 @@ public final class Avrcp {
         intent.putExtra(COMMAND, CMDGET);
         intent.putExtra(EXTRA_GET_COMMAND, GET_ATTRIBUTE_IDS);
         mContext.sendBroadcast(intent, BLUETOOTH_PERM);
-        int deviceIndex =
-                getIndexForDevice(mAdapter.getRemoteDevice(
-                        Utils.getAddressStringFromByte(address)));
+        int deviceIndex = getIndexForAddress(address);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
             Log.e(TAG,"invalid index for device");
             return;
@@ -5061,7 +5226,7 @@ public final class Avrcp {
         deviceFeatures[deviceIndex].isMusicAppResponsePending = true;
         Message msg = mHandler.obtainMessage(MESSAGE_PLAYERSETTINGS_TIMEOUT,
                 GET_ATTRIBUTE_IDS,0 ,
-                Utils.getAddressStringFromByte(address));
+                getAddressString(address));
         mPendingCmds.add(new Integer(msg.arg1));
         mHandler.sendMessageDelayed(msg, 500);
     }
@@ -5075,9 +5240,7 @@ public final class Avrcp {
         intent.putExtra(EXTRA_ATTRIBUTE_ID, attr);
         mContext.sendBroadcast(intent, BLUETOOTH_PERM);
         mPlayerSettings.attr = attr;
-        int deviceIndex =
-                getIndexForDevice(mAdapter.getRemoteDevice(
-                Utils.getAddressStringFromByte(address)));
+        int deviceIndex = getIndexForAddress(address);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
             Log.e(TAG,"invalid index for device");
             return;
@@ -5089,7 +5252,7 @@ public final class Avrcp {
         msg.what = MESSAGE_PLAYERSETTINGS_TIMEOUT;
         msg.arg1 = GET_VALUE_IDS;
         msg.arg2 = 0;
-        msg.obj = Utils.getAddressStringFromByte(address);
+        msg.obj = getAddressString(address);
         mPendingCmds.add(new Integer(msg.arg1));
         mHandler.sendMessageDelayed(msg, 500);
     }
@@ -5113,9 +5276,7 @@ public final class Avrcp {
         intent.putExtra(EXTRA_GET_COMMAND, GET_ATTRIBUTE_VALUES);
         intent.putExtra(EXTRA_ATTIBUTE_ID_ARRAY, barray);
         mContext.sendBroadcast(intent, BLUETOOTH_PERM);
-        int deviceIndex =
-                getIndexForDevice(mAdapter.getRemoteDevice(
-                Utils.getAddressStringFromByte(address)));
+        int deviceIndex = getIndexForAddress(address);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
             Log.e(TAG,"invalid index for device");
             return;
@@ -5126,7 +5287,7 @@ public final class Avrcp {
         msg.what = MESSAGE_PLAYERSETTINGS_TIMEOUT;
         msg.arg1 = GET_ATTRIBUTE_VALUES;
         msg.arg2 = 0;
-        msg.obj = Utils.getAddressStringFromByte(address);
+        msg.obj = getAddressString(address);
         mPendingCmds.add(new Integer(msg.arg1));
         mHandler.sendMessageDelayed(msg, 500);
     }
@@ -5148,9 +5309,7 @@ public final class Avrcp {
         intent.putExtra(COMMAND, CMDSET);
         intent.putExtra(EXTRA_ATTRIB_VALUE_PAIRS, array);
         mContext.sendBroadcast(intent, BLUETOOTH_PERM);
-        int deviceIndex =
-                getIndexForDevice(mAdapter.getRemoteDevice(
-                Utils.getAddressStringFromByte(address)));
+        int deviceIndex = getIndexForAddress(address);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
             Log.e(TAG,"invalid index for device");
             return;
@@ -5162,7 +5321,7 @@ public final class Avrcp {
         msg.what = MESSAGE_PLAYERSETTINGS_TIMEOUT;
         msg.arg1 = SET_ATTRIBUTE_VALUES;
         msg.arg2 = 0;
-        msg.obj = Utils.getAddressStringFromByte(address);
+        msg.obj = getAddressString(address);
         mPendingCmds.add(new Integer(msg.arg1));
         mHandler.sendMessageDelayed(msg, 500);
     }
@@ -5182,9 +5341,7 @@ public final class Avrcp {
         for (int i = 0; i < attr; i++)
             mPlayerSettings.attrIds[i] = attrIds[i];
         mContext.sendBroadcast(intent, BLUETOOTH_PERM);
-        int deviceIndex =
-                getIndexForDevice(mAdapter.getRemoteDevice(
-                Utils.getAddressStringFromByte(address)));
+        int deviceIndex = getIndexForAddress(address);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
             Log.e(TAG,"invalid index for device");
             return;
@@ -5195,7 +5352,7 @@ public final class Avrcp {
         msg.what = MESSAGE_PLAYERSETTINGS_TIMEOUT;
         msg.arg1 = GET_ATTRIBUTE_TEXT;
         msg.arg2 = 0;
-        msg.obj = Utils.getAddressStringFromByte(address);
+        msg.obj = getAddressString(address);
         mPendingCmds.add(new Integer(msg.arg1));
         mHandler.sendMessageDelayed(msg, 500);
    }
@@ -5213,9 +5370,7 @@ public final class Avrcp {
         intent.putExtra(EXTRA_ATTRIBUTE_ID, attr_id);
         intent.putExtra(EXTRA_VALUE_ID_ARRAY, value);
         mPlayerSettings.attrIds = new byte [num_value];
-        int deviceIndex =
-                getIndexForDevice(mAdapter.getRemoteDevice(
-                Utils.getAddressStringFromByte(address)));
+        int deviceIndex = getIndexForAddress(address);
         if (deviceIndex == INVALID_DEVICE_INDEX) {
             Log.e(TAG,"invalid index for device");
             return;
@@ -5228,7 +5383,7 @@ public final class Avrcp {
         msg.what = MESSAGE_PLAYERSETTINGS_TIMEOUT;
         msg.arg1 = GET_VALUE_TEXT;
         msg.arg2 = 0;
-        msg.obj = Utils.getAddressStringFromByte(address);
+        msg.obj = getAddressString(address);
         mPendingCmds.add(new Integer(msg.arg1));
         mHandler.sendMessageDelayed(msg, 500);
     }
@@ -5244,43 +5399,41 @@ public final class Avrcp {
 
     public void setAvrcpConnectedDevice(BluetoothDevice device) {
         Log.i(TAG,"Device added is " + device);
-        for (int i = 0; i < maxAvrcpConnections; i++) {
-            if (deviceFeatures[i].mCurrentDevice != null &&
-                    deviceFeatures[i].mCurrentDevice.equals(device)) {
-                Log.v(TAG,"device is already added in connected list, ignore now");
-                return;
-            }
+        if (mDeviceIndex.indexOf(device) != AvrcpDeviceIndex.INVALID_SLOT) {
+            Log.v(TAG,"device is already added in connected list, ignore now");
+            return;
         }
-        for (int i = 0; i < maxAvrcpConnections; i++ ) {
-            if (deviceFeatures[i].mCurrentDevice == null) {
-                deviceFeatures[i].mCurrentDevice = device;
-                deviceFeatures[i].isActiveDevice = true;
-                /*Playstate is explicitly updated here to take care of cases
-                        where play state update is missed because of that happening
-                        even before Avrcp connects*/
-                deviceFeatures[i].mCurrentPlayState = mCurrentPlayerState;
-                if (!isPlayingState(mCurrentPlayerState) &&
-                     mA2dpService.getA2dpPlayingDevice().size() > 0) {
-                /*A2DP playstate updated for video playback scenario, where a2dp play status is
-                    updated when avrcp connection was not up yet.*/
-                    Log.i(TAG,"A2dp playing device found");
-                    List<BluetoothDevice> playingDevice = mA2dpService.getA2dpPlayingDevice();
-                    for (int j = 0; j < playingDevice.size(); j++) {
-                        if (playingDevice.get(j).equals(device)) {
-                            PlaybackState.Builder playState = new PlaybackState.Builder();
-                            playState.setState(PlaybackState.STATE_PLAYING,
-                                           PlaybackState.PLAYBACK_POSITION_UNKNOWN, 1.0f);
-                            deviceFeatures[i].mCurrentPlayState = playState.build();
-                        }
-                    }
+        int index = mDeviceIndex.add(device);
+        if (index == AvrcpDeviceIndex.INVALID_SLOT) {
+            Log.e(TAG, "No slot left for " + device + ", max connections: "
+                    + maxAvrcpConnections);
+            return;
+        }
+        deviceFeatures[index].mCurrentDevice = device;
+        deviceFeatures[index].isActiveDevice = true;
+        /*Playstate is explicitly updated here to take care of cases
+                where play state update is missed because of that happening
+                even before Avrcp connects*/
+        deviceFeatures[index].mCurrentPlayState = mCurrentPlayerState;
+        if (!isPlayingState(mCurrentPlayerState) &&
+             mA2dpService.getA2dpPlayingDevice().size() > 0) {
+        /*A2DP playstate updated for video playback scenario, where a2dp play status is
+            updated when avrcp connection was not up yet.*/
+            Log.i(TAG,"A2dp playing device found");
+            List<BluetoothDevice> playingDevice = mA2dpService.getA2dpPlayingDevice();
+            for (int j = 0; j < playingDevice.size(); j++) {
+                if (playingDevice.get(j).equals(device)) {
+                    PlaybackState.Builder playState = new PlaybackState.Builder();
+                    playState.setState(PlaybackState.STATE_PLAYING,
+                                   PlaybackState.PLAYBACK_POSITION_UNKNOWN, 1.0f);
+                    deviceFeatures[index].mCurrentPlayState = playState.build();
                 }
-                Log.i(TAG,"play status updated on Avrcp connection as: " +
-                                                    deviceFeatures[i].mCurrentPlayState);
-                Log.i(TAG,"device added at " + i);
-                Log.i(TAG,"Active device set to true at index =  " + i);
-                break;
             }
         }
+        Log.i(TAG,"play status updated on Avrcp connection as: " +
+                                            deviceFeatures[index].mCurrentPlayState);
+        Log.i(TAG,"device added at " + index);
+        Log.i(TAG,"Active device set to true at index =  " + index);
 
         for (int i = 0; i < maxAvrcpConnections; i++ ) {
             if (deviceFeatures[i].mCurrentDevice != null &&
@@ -5293,37 +5446,65 @@ public final class Avrcp {
     }
 
     public boolean isAvrcpConnected() {
-        boolean ret = false;
-        for (int i = 0; i < maxAvrcpConnections; i++) {
-            if (deviceFeatures[i].mCurrentDevice != null) {
-                ret = true;
-                break;
-            }
-        }
+        boolean ret = mDeviceIndex.size() > 0;
         Log.i(TAG,"isAvrcpConnected: " + ret);
         return ret;
     }
 
     private int getIndexForDevice(BluetoothDevice device) {
-        for (int i = 0; i < maxAvrcpConnections; i++) {
-            if (deviceFeatures[i].mCurrentDevice != null &&
-                    deviceFeatures[i].mCurrentDevice.equals(device)) {
-                Log.i(TAG,"device found at index " + i);
-                return i;
-            }
+        return toDeviceIndex(mDeviceIndex.indexOf(device), device);
+    }
+
+    private int getIndexForAddress(String address) {
+        return toDeviceIndex(mDeviceIndex.indexOf(address), address);
+    }
+
+    private int getIndexForAddress(byte[] address) {
+        int slot = mDeviceIndex.indexOf(address);
+        if (slot == AvrcpDeviceIndex.INVALID_SLOT) {
+            return toDeviceIndex(slot, Utils.getAddressStringFromByte(address));
         }
-        Log.e(TAG, "returning invalid index");
-        return INVALID_DEVICE_INDEX;
+        return slot;
+    }
+
+    private int toDeviceIndex(int slot, Object device) {
+        if (slot == AvrcpDeviceIndex.INVALID_SLOT) {
+            Log.e(TAG, "returning invalid index for " + device);
+            return INVALID_DEVICE_INDEX;
+        }
+        return slot;
+    }
+
+    /**
+     * Get the device for an address reported by the stack, without creating
+     * a new BluetoothDevice if the device is connected.
+     */
+    private BluetoothDevice getDeviceForAddress(String address) {
+        BluetoothDevice device = mDeviceIndex.getDevice(address);
+        return device != null ? device : mAdapter.getRemoteDevice(address);
+    }
+
+    /**
+     * Convert an address reported by a native callback, reusing the address
+     * string of the device if it is connected.
+     */
+    private String getAddressString(byte[] address) {
+        String addressString = mDeviceIndex.getAddressString(address);
+        return addressString != null ? addressString : Utils.getAddressStringFromByte(address);
     }
 
     public void cleanupDeviceFeaturesIndex (int index) {
         Log.i(TAG,"cleanupDeviceFeaturesIndex index:" + index);
+        if (deviceFeatures[index].mCurrentDevice != null) {
+            mDeviceIndex.remove(deviceFeatures[index].mCurrentDevice);
+        }
         deviceFeatures[index].mCurrentDevice = null;
         deviceFeatures[index].mCurrentPlayState = new PlaybackState.Builder().setState(PlaybackState.STATE_NONE, -1L, 0.0f).build();;
         deviceFeatures[index].mPlayStatusChangedNT = NOTIFICATION_TYPE_CHANGED;
         deviceFeatures[index].mPlayerStatusChangeNT = NOTIFICATION_TYPE_CHANGED;
         deviceFeatures[index].mTrackChangedNT = NOTIFICATION_TYPE_CHANGED;
         deviceFeatures[index].mPlaybackIntervalMs = 0L;
+        mPlayPosScheduler.cancel(index);
         deviceFeatures[index].mPlayPosChangedNT = NOTIFICATION_TYPE_CHANGED;
         deviceFeatures[index].mFeatures = 0;
         deviceFeatures[index].mAbsoluteVolume = -1;
@@ -5337,9 +5518,14 @@ public final class Avrcp {
         deviceFeatures[index].mAvailablePlayersChangedNT = NOTIFICATION_TYPE_CHANGED;
         deviceFeatures[index].mNowPlayingContentChangedNT = NOTIFICATION_TYPE_CHANGED;
         deviceFeatures[index].mRequestedAddressedPlayerPackageName = null;
-        deviceFeatures[index].mCurrentPath = PATH_INVALID;
-        deviceFeatures[index].mCurrentPathUid = null;
-        deviceFeatures[index].mMediaUri = Uri.EMPTY;
+        mBrowseLock.lock();
+        try {
+            deviceFeatures[index].mCurrentPath = PATH_INVALID;
+            deviceFeatures[index].mCurrentPathUid = null;
+            deviceFeatures[index].mMediaUri = Uri.EMPTY;
+        } finally {
+            mBrowseLock.unlock();
+        }
         deviceFeatures[index].isMusicAppResponsePending = false;
         deviceFeatures[index].isBrowsingSupported = false;
         deviceFeatures[index].isActiveDevice = false;
@@ -5356,7 +5542,6 @@ public final class Avrcp {
 
                 Log.i(TAG,"Device removed is " + device);
                 Log.i(TAG,"removed at " + i);
-                deviceFeatures[i].mCurrentDevice = null;
                 cleanupDeviceFeaturesIndex(i);
                 /* device is disconnect and some response form music app was
                  * pending for this device clear it.*/
@@ -5396,12 +5581,12 @@ public final class Avrcp {
     }
 
     private byte[] getByteAddress(BluetoothDevice device) {
-        return Utils.getBytesFromAddress(device.getAddress());
+        byte[] address = mDeviceIndex.getAddressBytes(device);
+        return address != null ? address : Utils.getBytesFromAddress(device.getAddress());
     }
 
     private void onConnectionStateChanged(boolean connected, byte[] address) {
-        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice
-            (Utils.getAddressStringFromByte(address));
+        BluetoothDevice device = getDeviceForAddress(getAddressString(address));
         Log.d(TAG, "onConnectionStateChanged state: " + connected + " Addr: " + device);
         if (connected) {
             setAvrcpConnectedDevice(device);
@@ -5440,6 +5625,9 @@ public final class Avrcp {
                 ProfileService.println(sb, "mMediaSession pkg: " +
                         mMediaController.getPackageName());
         }
+        mPlayPosScheduler.dump(sb);
+        mControlLaneStats.dump(sb);
+        mBrowseLaneStats.dump(sb);
     }
 
     // Do not modify without updating the HAL bt_rc.h files.
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.avrcp;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.android.bluetooth.Utils;
+
+import java.util.Arrays;
+
+/**
+ * Index of the devices connected over AVRCP.
+ *
+ * Each connected device owns a slot, the index of its device dependent state
+ * in {@link Avrcp}. Devices are looked up by their address packed into a long,
+ * so native callbacks (address as bytes) and handler messages (address as
+ * string) reach the slot with a single hash probe, without scanning the slots
+ * or creating a BluetoothDevice. The address string and bytes of a connected
+ * device are kept as well, so they are not converted again per command.
+ *
+ * The number of slots is fixed, it is the maximum number of connections the
+ * native stack accepts, so the slot state in {@link Avrcp} never has to be
+ * reallocated while other threads index it. Slots are reused after a
+ * disconnect. All methods are synchronized, lookups happen on the native
+ * callback thread and on the AVRCP handler thread.
+ */
+public class AvrcpDeviceIndex {
+
+    public static final int INVALID_SLOT = -1;
+
+    private static final long NO_ADDRESS = -1L;
+    private static final int ADDRESS_LENGTH = 6;
+
+    /* Per slot state, a null device marks a free slot */
+    private final BluetoothDevice[] mDevices;
+    private final String[] mAddressStrings;
+    private final byte[][] mAddressBytes;
+    private final long[] mAddresses;
+    private int mSize = 0;
+
+    /* Open addressing table from packed address to slot */
+    private long[] mKeys;
+    private int[] mValues;
+
+    public AvrcpDeviceIndex(int maxSlots) {
+        int slots = Math.max(1, maxSlots);
+        mDevices = new BluetoothDevice[slots];
+        mAddressStrings = new String[slots];
+        mAddressBytes = new byte[slots][];
+        mAddresses = new long[slots];
+        Arrays.fill(mAddresses, NO_ADDRESS);
+        // Keep the table at most half full so probes stay short
+        resizeTable(slots * 2);
+    }
+
+    /**
+     * Pack a Bluetooth address given as bytes into a long.
+     * @return the packed address, or -1 if the address is malformed
+     */
+    public static long pack(byte[] address) {
+        if (address == null || address.length != ADDRESS_LENGTH) {
+            return NO_ADDRESS;
+        }
+        long packed = 0;
+        for (int i = 0; i < ADDRESS_LENGTH; i++) {
+            packed = (packed << 8) | (address[i] & 0xFF);
+        }
+        return packed;
+    }
+
+    /**
+     * Pack a Bluetooth address given as "XX:XX:XX:XX:XX:XX" into a long.
+     * @return the packed address, or -1 if the address is malformed
+     */
+    public static long pack(String address) {
+        if (address == null || address.length() != ADDRESS_LENGTH * 3 - 1) {
+            return NO_ADDRESS;
+        }
+        long packed = 0;
+        for (int i = 0; i < address.length(); i++) {
+            if (i % 3 == 2) {
+                if (address.charAt(i) != ':') return NO_ADDRESS;
+                continue;
+            }
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit < 0) return NO_ADDRESS;
+            packed = (packed << 4) | digit;
+        }
+        return packed;
+    }
+
+    /**
+     * Assign a slot to a device, reusing its slot if it already has one.
+     * @return the slot of the device, or INVALID_SLOT if all slots are in use
+     */
+    public synchronized int add(BluetoothDevice device) {
+        String addressString = device.getAddress();
+        long address = pack(addressString);
+        int slot = find(address);
+        if (slot != INVALID_SLOT) {
+            return slot;
+        }
+        for (int i = 0; i < mDevices.length; i++) {
+            if (mDevices[i] == null) {
+                slot = i;
+                break;
+            }
+        }
+        if (slot == INVALID_SLOT) {
+            return INVALID_SLOT;
+        }
+        mDevices[slot] = device;
+        mAddressStrings[slot] = addressString;
+        mAddressBytes[slot] = Utils.getBytesFromAddress(addressString);
+        mAddresses[slot] = address;
+        mSize++;
+        insert(address, slot);
+        return slot;
+    }
+
+    /**
+     * Release the slot of a device.
+     * @return the slot the device had, or INVALID_SLOT if it had none
+     */
+    public synchronized int remove(BluetoothDevice device) {
+        int slot = find(pack(device.getAddress()));
+        if (slot == INVALID_SLOT) {
+            return INVALID_SLOT;
+        }
+        mDevices[slot] = null;
+        mAddressStrings[slot] = null;
+        mAddressBytes[slot] = null;
+        mAddresses[slot] = NO_ADDRESS;
+        mSize--;
+        // Rebuild rather than delete in place, disconnects are rare
+        resizeTable(mKeys.length);
+        return slot;
+    }
+
+    public synchronized int indexOf(BluetoothDevice device) {
+        return device == null ? INVALID_SLOT : find(pack(device.getAddress()));
+    }
+
+    public synchronized int indexOf(String address) {
+        return find(pack(address));
+    }
+
+    public synchronized int indexOf(byte[] address) {
+        return find(pack(address));
+    }
+
+    public synchronized BluetoothDevice getDevice(int slot) {
+        return slot >= 0 && slot < mDevices.length ? mDevices[slot] : null;
+    }
+
+    /**
+     * @return the connected device with the given address, or null
+     */
+    public synchronized BluetoothDevice getDevice(String address) {
+        int slot = find(pack(address));
+        return slot == INVALID_SLOT ? null : mDevices[slot];
+    }
+
+    /**
+     * @return the address string of a connected device, or null
+     */
+    public synchronized String getAddressString(byte[] address) {
+        int slot = find(pack(address));
+        return slot == INVALID_SLOT ? null : mAddressStrings[slot];
+    }
+
+    /**
+     * @return the address bytes of a connected device, or null. The array is
+     *         shared and must not be modified.
+     */
+    public synchronized byte[] getAddressBytes(BluetoothDevice device) {
+        int slot = indexOf(device);
+        return slot == INVALID_SLOT ? null : mAddressBytes[slot];
+    }
+
+    /**
+     * @return the number of slots, used or not
+     */
+    public synchronized int getSlotCount() {
+        return mDevices.length;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    private int find(long address) {
+        if (address == NO_ADDRESS) {
+            return INVALID_SLOT;
+        }
+        int mask = mKeys.length - 1;
+        for (int i = hash(address) & mask; ; i = (i + 1) & mask) {
+            if (mKeys[i] == address) return mValues[i];
+            if (mKeys[i] == NO_ADDRESS) return INVALID_SLOT;
+        }
+    }
+
+    private void insert(long address, int slot) {
+        int mask = mKeys.length - 1;
+        int i = hash(address) & mask;
+        while (mKeys[i] != NO_ADDRESS) {
+            i = (i + 1) & mask;
+        }
+        mKeys[i] = address;
+        mValues[i] = slot;
+    }
+
+    private void resizeTable(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(4, minCapacity) - 1) << 1;
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        Arrays.fill(mKeys, NO_ADDRESS);
+        for (int slot = 0; slot < mAddresses.length; slot++) {
+            if (mAddresses[slot] != NO_ADDRESS) {
+                insert(mAddresses[slot], slot);
+            }
+        }
+    }
+
+    private static int hash(long address) {
+        // Fibonacci hashing, the upper bits of the product mix all address bytes
+        long h = address * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+}
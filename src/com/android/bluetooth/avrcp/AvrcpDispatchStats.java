@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.avrcp;
+
+/**
+ * Queue delay and handling time of the messages of one AVRCP dispatch lane.
+ *
+ * The queue delay is the time between the moment a message was due and the
+ * moment its handler started, i.e. the time it waited behind other work on
+ * the same thread. Delays are also counted in coarse buckets to show the
+ * tail without keeping samples.
+ *
+ * Messages are recorded on the lane thread, dump() is called from the
+ * binder thread, all methods are synchronized.
+ */
+public class AvrcpDispatchStats {
+
+    /* Upper bounds of the delay buckets, the last bucket is unbounded */
+    private static final long[] BUCKET_LIMITS_MS = {1, 10, 50, 200, 1000};
+
+    private final String mName;
+    private final long[] mBuckets = new long[BUCKET_LIMITS_MS.length + 1];
+    private long mMessages = 0;
+    private long mTotalDelayMs = 0;
+    private long mMaxDelayMs = 0;
+    private long mTotalHandlingMs = 0;
+    private long mMaxHandlingMs = 0;
+    private int mMaxHandlingWhat = -1;
+
+    public AvrcpDispatchStats(String name) {
+        mName = name;
+    }
+
+    public synchronized void record(int what, long queueDelayMs, long handlingMs) {
+        long delay = Math.max(0, queueDelayMs);
+        mMessages++;
+        mTotalDelayMs += delay;
+        if (delay > mMaxDelayMs) {
+            mMaxDelayMs = delay;
+        }
+        int bucket = 0;
+        while (bucket < BUCKET_LIMITS_MS.length && delay > BUCKET_LIMITS_MS[bucket]) {
+            bucket++;
+        }
+        mBuckets[bucket]++;
+        mTotalHandlingMs += handlingMs;
+        if (handlingMs > mMaxHandlingMs) {
+            mMaxHandlingMs = handlingMs;
+            mMaxHandlingWhat = what;
+        }
+    }
+
+    public synchronized long getMessages() {
+        return mMessages;
+    }
+
+    public synchronized long getMaxDelayMs() {
+        return mMaxDelayMs;
+    }
+
+    public synchronized void dump(StringBuilder sb) {
+        sb.append("  " + mName + " lane messages: " + mMessages + ", queue delay avg: "
+                + (mMessages == 0 ? 0 : mTotalDelayMs / mMessages) + "ms, max: "
+                + mMaxDelayMs + "ms\n");
+        sb.append("  " + mName + " lane queue delay");
+        for (int i = 0; i < mBuckets.length; i++) {
+            sb.append(i < BUCKET_LIMITS_MS.length ? " <=" + BUCKET_LIMITS_MS[i] + "ms: "
+                    : " >" + BUCKET_LIMITS_MS[i - 1] + "ms: ");
+            sb.append(mBuckets[i]);
+        }
+        sb.append("\n");
+        sb.append("  " + mName + " lane handling avg: "
+                + (mMessages == 0 ? 0 : mTotalHandlingMs / mMessages) + "ms, max: "
+                + mMaxHandlingMs + "ms (message " + mMaxHandlingWhat + ")\n");
+    }
+}
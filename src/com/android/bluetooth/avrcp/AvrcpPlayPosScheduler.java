@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.avrcp;
+
+import java.util.Arrays;
+
+/**
+ * Schedules the periodic play position notifications of the connected
+ * AVRCP controllers.
+ *
+ * Each controller registered for play position changes has its own interval.
+ * The due times of all devices are kept in a hashed timer wheel of
+ * {@link #TICK_MS} ticks, so a single handler message serves every device:
+ * the owner wakes up at {@link #getNextDueTime()} and sends the responses of
+ * all devices returned by {@link #pollDue(long)} in one batch. Devices that
+ * are not playing are not scheduled, so nothing wakes up while paused.
+ *
+ * Devices are identified by their slot in {@link AvrcpDeviceIndex}. Times use
+ * the uptime clock of the Handler. All methods are synchronized, devices are
+ * scheduled on the AVRCP handler thread but cancelled on disconnect too.
+ */
+public class AvrcpPlayPosScheduler {
+
+    public static final long TICK_MS = 50;
+    // 3.2 seconds per revolution, longer intervals take more than one round
+    private static final int WHEEL_SIZE = 64;
+    private static final int NONE = -1;
+
+    private final int[] mBucketHeads = new int[WHEEL_SIZE];
+    /* Per slot due tick, NONE if not scheduled, and next slot in the bucket */
+    private long[] mDueTicks;
+    private int[] mNext;
+    private int[] mDue;
+    private int mDueCount = 0;
+    private int mSize = 0;
+    /* Ticks before this one have been polled */
+    private long mCurrentTick = 0;
+
+    /* Statistics */
+    private long mWakeups = 0;
+    private long mNotifications = 0;
+    private int mMaxBatch = 0;
+
+    public AvrcpPlayPosScheduler(int initialSlots) {
+        Arrays.fill(mBucketHeads, NONE);
+        int slots = Math.max(1, initialSlots);
+        mDueTicks = new long[slots];
+        mNext = new int[slots];
+        mDue = new int[slots];
+        Arrays.fill(mDueTicks, NONE);
+    }
+
+    /**
+     * Schedule the next notification of a device, replacing any earlier one.
+     * The notification is due at the first tick at or after dueTimeMs, it is
+     * never reported early.
+     */
+    public synchronized void schedule(int slot, long dueTimeMs) {
+        if (slot >= mDueTicks.length) {
+            grow(Math.max(slot + 1, mDueTicks.length * 2));
+        }
+        cancel(slot);
+        long tick = Math.max((dueTimeMs + TICK_MS - 1) / TICK_MS, mCurrentTick);
+        int bucket = (int) (tick % WHEEL_SIZE);
+        mDueTicks[slot] = tick;
+        mNext[slot] = mBucketHeads[bucket];
+        mBucketHeads[bucket] = slot;
+        mSize++;
+    }
+
+    public synchronized void cancel(int slot) {
+        if (slot < 0 || slot >= mDueTicks.length || mDueTicks[slot] == NONE) {
+            return;
+        }
+        int bucket = (int) (mDueTicks[slot] % WHEEL_SIZE);
+        if (mBucketHeads[bucket] == slot) {
+            mBucketHeads[bucket] = mNext[slot];
+        } else {
+            int prev = mBucketHeads[bucket];
+            while (mNext[prev] != slot) {
+                prev = mNext[prev];
+            }
+            mNext[prev] = mNext[slot];
+        }
+        mDueTicks[slot] = NONE;
+        mNext[slot] = NONE;
+        mSize--;
+    }
+
+    public synchronized boolean isScheduled(int slot) {
+        return slot >= 0 && slot < mDueTicks.length && mDueTicks[slot] != NONE;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the time the handler has to wake up for the next notification,
+     *         or -1 if no device is scheduled
+     */
+    public synchronized long getNextDueTime() {
+        if (mSize == 0) {
+            return NONE;
+        }
+        // Nearest ticks first, entries due in a later round are skipped
+        for (long tick = mCurrentTick; tick < mCurrentTick + WHEEL_SIZE; tick++) {
+            for (int slot = mBucketHeads[(int) (tick % WHEEL_SIZE)]; slot != NONE;
+                    slot = mNext[slot]) {
+                if (mDueTicks[slot] <= tick) {
+                    return tick * TICK_MS;
+                }
+            }
+        }
+        long next = Long.MAX_VALUE;
+        for (long tick : mDueTicks) {
+            if (tick != NONE && tick < next) {
+                next = tick;
+            }
+        }
+        return next * TICK_MS;
+    }
+
+    /**
+     * Remove all devices due at nowMs from the wheel. The devices are read
+     * with {@link #getDueSlot(int)} until the next call.
+     * @return the number of devices due
+     */
+    public synchronized int pollDue(long nowMs) {
+        long nowTick = nowMs / TICK_MS;
+        mDueCount = 0;
+        // After a long idle period every bucket is visited once
+        long first = Math.max(mCurrentTick, nowTick - WHEEL_SIZE + 1);
+        for (long tick = first; tick <= nowTick && mSize > 0; tick++) {
+            int slot = mBucketHeads[(int) (tick % WHEEL_SIZE)];
+            while (slot != NONE) {
+                int next = mNext[slot];
+                if (mDueTicks[slot] <= nowTick) {
+                    cancel(slot);
+                    mDue[mDueCount++] = slot;
+                }
+                slot = next;
+            }
+        }
+        mCurrentTick = Math.max(mCurrentTick, nowTick + 1);
+        mWakeups++;
+        mNotifications += mDueCount;
+        if (mDueCount > mMaxBatch) {
+            mMaxBatch = mDueCount;
+        }
+        return mDueCount;
+    }
+
+    public synchronized int getDueSlot(int i) {
+        return mDue[i];
+    }
+
+    public synchronized void dump(StringBuilder sb) {
+        sb.append("  Play position timer wakeups: " + mWakeups + ", notifications: "
+                + mNotifications + ", max batch: " + mMaxBatch + ", scheduled: " + mSize
+                + "\n");
+    }
+
+    private void grow(int slots) {
+        int oldSlots = mDueTicks.length;
+        mDueTicks = Arrays.copyOf(mDueTicks, slots);
+        mNext = Arrays.copyOf(mNext, slots);
+        mDue = Arrays.copyOf(mDue, slots);
+        Arrays.fill(mDueTicks, oldSlots, slots, NONE);
+    }
+}
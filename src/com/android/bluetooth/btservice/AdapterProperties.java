@@ -31,7 +31,7 @@ import com.android.bluetooth.btservice.RemoteDevices.DeviceProperties;
 
 import java.util.HashMap;
 import java.util.ArrayList;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.LinkedHashMap;
 
 class AdapterProperties {
     private static final boolean DBG = true;
@@ -45,7 +45,11 @@ class AdapterProperties {
     private volatile int mScanMode;
     private volatile int mDiscoverableTimeout;
     private volatile ParcelUuid[] mUuids;
-    private CopyOnWriteArrayList<BluetoothDevice> mBondedDevices = new CopyOnWriteArrayList<BluetoothDevice>();
+    // Bonded devices by address, in bonding order. The array returned by
+    // getBondedDevices() is cached until the set changes.
+    private final LinkedHashMap<String, BluetoothDevice> mBondedDevices =
+            new LinkedHashMap<String, BluetoothDevice>();
+    private BluetoothDevice[] mBondedDevicesArray;
 
     private int mProfilesConnecting, mProfilesConnected, mProfilesDisconnecting;
     private HashMap<Integer, Pair<Integer, Integer>> mProfileConnectionState;
@@ -95,7 +99,10 @@ class AdapterProperties {
             mProfileConnectionState = null;
         }
         mService = null;
-        mBondedDevices.clear();
+        synchronized (mBondedDevices) {
+            mBondedDevices.clear();
+            mBondedDevicesArray = null;
+        }
     }
 
     @Override
@@ -255,16 +262,27 @@ class AdapterProperties {
      * @return the mBondedDevices
      */
     BluetoothDevice[] getBondedDevices() {
-        BluetoothDevice[] bondedDeviceList = new BluetoothDevice[0];
-        try {
-            bondedDeviceList = mBondedDevices.toArray(bondedDeviceList);
-        } catch(ArrayStoreException ee) {
-            errorLog("Error retrieving bonded device array");
+        BluetoothDevice[] bondedDeviceList;
+        synchronized (mBondedDevices) {
+            if (mBondedDevicesArray == null) {
+                mBondedDevicesArray = mBondedDevices.values().toArray(
+                        new BluetoothDevice[mBondedDevices.size()]);
+            }
+            bondedDeviceList = mBondedDevicesArray.clone();
         }
         infoLog("getBondedDevices: length=" + bondedDeviceList.length);
         return bondedDeviceList;
     }
 
+    /**
+     * @return the number of bonded devices
+     */
+    int getBondedDeviceCount() {
+        synchronized (mBondedDevices) {
+            return mBondedDevices.size();
+        }
+    }
+
     // This function shall be invoked from BondStateMachine whenever the bond
     // state changes.
     void onBondStateChanged(BluetoothDevice device, int state)
@@ -280,16 +298,23 @@ class AdapterProperties {
 
             if (state == BluetoothDevice.BOND_BONDED) {
                 // add if not already in list
-                if(!mBondedDevices.contains(device)) {
-                    debugLog("Adding bonded device:" +  device);
-                    mBondedDevices.add(device);
+                synchronized (mBondedDevices) {
+                    if (!mBondedDevices.containsKey(device.getAddress())) {
+                        debugLog("Adding bonded device:" +  device);
+                        mBondedDevices.put(device.getAddress(), device);
+                        mBondedDevicesArray = null;
+                    }
                 }
             } else if (state == BluetoothDevice.BOND_NONE) {
                 // remove device from list
-                if (mBondedDevices.remove(device))
-                    debugLog("Removing bonded device:" +  device);
-                else
-                    debugLog("Failed to remove device: " + device);
+                synchronized (mBondedDevices) {
+                    if (mBondedDevices.remove(device.getAddress()) != null) {
+                        debugLog("Removing bonded device:" +  device);
+                        mBondedDevicesArray = null;
+                    } else {
+                        debugLog("Failed to remove device: " + device);
+                    }
+                }
             }
         }
         catch(Exception ee) {
@@ -69,6 +69,7 @@ import com.android.bluetooth.sdp.SdpManager;
 import com.android.internal.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.RemoteDevices.DeviceProperties;
+import com.android.bluetooth.util.Interop;
 
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
@@ -78,6 +79,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Iterator;
 import java.util.List;
@@ -116,6 +118,8 @@ public class AdapterService extends Service {
     public static final String ACTION_SERVICE_STATE_CHANGED =
         "com.android.bluetooth.btservice.action.STATE_CHANGED";
     public static final String EXTRA_ACTION="action";
+    /* Set on the start request of a profile service deferred until first use */
+    public static final String EXTRA_DEFERRED_START = "deferred_start";
     public static final int PROFILE_CONN_CONNECTED  = 1;
     public static final int PROFILE_CONN_REJECTED  = 2;
 
@@ -207,6 +211,9 @@ public class AdapterService extends Service {
     private boolean mNativeAvailable;
     private boolean mCleaningUp;
     private HashMap<String,Integer> mProfileServicesState = new HashMap<String,Integer>();
+    private ProfileServiceScheduler mProfileScheduler;
+    /* Deferred profile services bound so far, they stay bound across restarts */
+    private final HashSet<String> mDeferredProfilesInUse = new HashSet<String>();
     //Only BluetoothManagerService should be registered
     private RemoteCallbackList<IBluetoothCallback> mCallbacks;
     private int mCurrentRequestId;
@@ -383,6 +390,9 @@ public class AdapterService extends Service {
         if (!doUpdate) {
             return;
         }
+        if (mProfileScheduler != null) {
+            mProfileScheduler.onStateChanged(serviceName, state);
+        }
 
         synchronized (mAdapterStateMachine) {
             isTurningOff = mAdapterStateMachine.isTurningOff();
@@ -437,6 +447,9 @@ public class AdapterService extends Service {
         } else if (isTurningOn) {
             updateInteropDatabase();
 
+            //Start the profile services waiting for this one
+            startPendingProfileServices();
+
             //Process start pending
             //Check if all services are started if so, update state
             synchronized (mProfileServicesState) {
@@ -448,6 +461,11 @@ public class AdapterService extends Service {
                         Log.w(TAG, "Skip GATT service - already started before");
                         continue;
                     }
+                    if (mProfileScheduler != null && mProfileScheduler.isDeferred(entry.getKey())
+                            && BluetoothAdapter.STATE_OFF == entry.getValue()) {
+                        debugLog("Skip deferred service - started on first use");
+                        continue;
+                    }
                     if (BluetoothAdapter.STATE_ON != entry.getValue()) {
                         Log.w(TAG, "onProfileServiceStateChange() - Profile still not running:"
                               + entry.getKey());
@@ -457,6 +475,9 @@ public class AdapterService extends Service {
             }
             Log.w(TAG,"onProfileServiceStateChange() - All profile services started.");
             mProfilesStarted=true;
+            if (mProfileScheduler != null) {
+                mProfileScheduler.onBringUpFinished();
+            }
             //Send message to state machine
             mAdapterStateMachine.sendMessage(mAdapterStateMachine.obtainMessage(AdapterState.BREDR_STARTED));
         }
@@ -612,8 +633,13 @@ public class AdapterService extends Service {
 
         //Start profile services
         if (!mProfilesStarted && supportedProfileServices.length >0) {
-            //Startup all profile services
-            setProfileServiceState(supportedProfileServices,BluetoothAdapter.STATE_ON);
+            //Startup the profile services, in dependency order
+            mProfileScheduler = new ProfileServiceScheduler(supportedProfileServices,
+                    getResources().getStringArray(
+                            com.android.bluetooth.R.array.config_bluetooth_deferred_profiles),
+                    mDeferredProfilesInUse);
+            mProfileScheduler.onBringUpStarted();
+            startPendingProfileServices();
         }else {
             Log.w(TAG,"startCoreProfiles(): Profile Services alreay started");
             mAdapterStateMachine.sendMessage(mAdapterStateMachine.obtainMessage(AdapterState.BREDR_STARTED));
@@ -628,6 +654,94 @@ public class AdapterService extends Service {
          mAdapterStateMachine.sendMessage(mAdapterStateMachine.obtainMessage(AdapterState.BEGIN_BREDR_CLEANUP));
     }
 
+    /* Start the profile services whose dependencies are running */
+    @SuppressWarnings("rawtypes")
+    private void startPendingProfileServices() {
+        if (mProfileScheduler == null) {
+            return;
+        }
+        ArrayList<Class> startable;
+        synchronized (mProfileServicesState) {
+            startable = mProfileScheduler.getStartable(mProfileServicesState);
+        }
+        if (!startable.isEmpty()) {
+            setProfileServiceState(startable.toArray(new Class[startable.size()]),
+                    BluetoothAdapter.STATE_ON);
+        }
+    }
+
+    /** Whether the profile service is deferred and not started yet */
+    boolean isProfileDeferred(String serviceName) {
+        if (mProfileScheduler != null) {
+            return mProfileScheduler.isDeferred(serviceName);
+        }
+        // Not brought up yet, go by the configuration
+        if (mDeferredProfilesInUse.contains(serviceName)) {
+            return false;
+        }
+        String simpleName = serviceName.substring(serviceName.lastIndexOf('.') + 1);
+        for (String name : getResources().getStringArray(
+                com.android.bluetooth.R.array.config_bluetooth_deferred_profiles)) {
+            if (name.equals(simpleName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Start a profile service deferred until first use, called when the
+     * service is bound before it was started.
+     */
+    void requestDeferredProfileStart(String serviceName) {
+        Message m = mHandler.obtainMessage(MESSAGE_START_DEFERRED_PROFILE);
+        m.obj = serviceName;
+        mHandler.sendMessage(m);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void processDeferredProfileStart(String serviceName) {
+        if (mProfileScheduler == null) {
+            mDeferredProfilesInUse.add(serviceName);
+            return;
+        }
+        if (!mProfileScheduler.requestDeferredStart(serviceName)) {
+            return;
+        }
+        boolean isTurningOn;
+        synchronized (mAdapterStateMachine) {
+            isTurningOn = mAdapterStateMachine.isTurningOn();
+        }
+        if (isTurningOn) {
+            // Started with the other profile services
+            startPendingProfileServices();
+            return;
+        }
+        if (!mProfilesStarted) {
+            return;
+        }
+        for (Class service : Config.getSupportedProfiles()) {
+            if (!service.getName().equals(serviceName)) {
+                continue;
+            }
+            synchronized (mProfileServicesState) {
+                Integer serviceState = mProfileServicesState.get(serviceName);
+                if (serviceState != null && serviceState != BluetoothAdapter.STATE_OFF) {
+                    return;
+                }
+                mProfileServicesState.put(serviceName, BluetoothAdapter.STATE_TURNING_ON);
+            }
+            Log.i(TAG, "Starting deferred profile service " + serviceName);
+            mProfileScheduler.onStateRequested(serviceName, BluetoothAdapter.STATE_ON);
+            Intent intent = new Intent(this, service);
+            intent.putExtra(EXTRA_ACTION, ACTION_SERVICE_STATE_CHANGED);
+            intent.putExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.STATE_ON);
+            intent.putExtra(EXTRA_DEFERRED_START, true);
+            startService(intent);
+            return;
+        }
+    }
+
     boolean stopProfileServices() {
         Class[] supportedProfileServices = Config.getSupportedProfiles();
         if (mProfilesStarted && supportedProfileServices.length>0) {
@@ -767,6 +881,7 @@ public class AdapterService extends Service {
     private static final int MESSAGE_CONNECT_OTHER_PROFILES = 30;
     private static final int MESSAGE_CONNECT_OTHER_CLIENT_PROFILES = 31;
     private static final int MESSAGE_PROFILE_INIT_PRIORITIES=40;
+    private static final int MESSAGE_START_DEFERRED_PROFILE = 50;
     private static final int CONNECT_OTHER_PROFILES_TIMEOUT= 6000;
     private static final int CONNECT_OTHER_PROFILES_TIMEOUT_DELAYED = 10000;
     private static final int CONNECT_OTHER_CLIENT_PROFILES_TIMEOUT= 2000;
@@ -805,6 +920,10 @@ public class AdapterService extends Service {
                     debugLog( "handleMessage() - MESSAGE_CONNECT_OTHER_CLIENT_PROFILES ");
                     processConnectOtherClientProfiles((BluetoothDevice) msg.obj, msg.arg1);
                     break;
+                case MESSAGE_START_DEFERRED_PROFILE:
+                    debugLog("handleMessage() - MESSAGE_START_DEFERRED_PROFILE");
+                    processDeferredProfileStart((String) msg.obj);
+                    break;
             }
         }
     };
@@ -842,6 +961,9 @@ public class AdapterService extends Service {
                     + (state == BluetoothAdapter.STATE_OFF ? "Stopping" : "Starting")
                     + " service " + serviceName);
                 mProfileServicesState.put(serviceName,pendingState);
+                if (mProfileScheduler != null) {
+                    mProfileScheduler.onStateRequested(serviceName, state);
+                }
                 Intent intent = new Intent(this,services[i]);
                 intent.putExtra(EXTRA_ACTION,ACTION_SERVICE_STATE_CHANGED);
                 intent.putExtra(BluetoothAdapter.EXTRA_STATE,state);
@@ -887,6 +1009,9 @@ public class AdapterService extends Service {
                 + " service " + serviceName);
 
             mProfileServicesState.put(serviceName,pendingState);
+            if (mProfileScheduler != null) {
+                mProfileScheduler.onStateRequested(serviceName, state);
+            }
             Intent intent = new Intent(this,services[i]);
             intent.putExtra(EXTRA_ACTION,ACTION_SERVICE_STATE_CHANGED);
             intent.putExtra(BluetoothAdapter.EXTRA_STATE,state);
@@ -2150,6 +2275,9 @@ public class AdapterService extends Service {
 
      boolean cancelBondProcess(BluetoothDevice device) {
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM, "Need BLUETOOTH ADMIN permission");
+        if (mBondStateMachine.cancelQueuedBond(device)) {
+            return true;
+        }
         byte[] addr = Utils.getBytesFromAddress(device.getAddress());
         return cancelBondNative(addr);
     }
@@ -2752,6 +2880,19 @@ public class AdapterService extends Service {
 
         // Dump profile information
         StringBuilder sb = new StringBuilder();
+        if (mRemoteDevices != null) {
+            mRemoteDevices.dump(sb);
+        }
+        if (mSdpManager != null) {
+            mSdpManager.dump(sb);
+        }
+        Interop.dump(sb);
+        if (mBondStateMachine != null) {
+            mBondStateMachine.dump(sb);
+        }
+        if (mProfileScheduler != null) {
+            mProfileScheduler.dump(sb);
+        }
         synchronized (mProfiles) {
             for (ProfileService profile : mProfiles) {
                 profile.dump(sb);
@@ -2766,7 +2907,10 @@ public class AdapterService extends Service {
 
     private void dumpJava(FileDescriptor fd) {
         BluetoothProto.BluetoothLog log = new BluetoothProto.BluetoothLog();
-        log.setNumBondedDevices(getBondedDevices().length);
+        log.setNumBondedDevices(mAdapterProperties.getBondedDeviceCount());
+        if (mBondStateMachine != null) {
+            mBondStateMachine.dumpProto(log);
+        }
 
         for (ProfileService profile : mProfiles) {
             profile.dumpProto(log);
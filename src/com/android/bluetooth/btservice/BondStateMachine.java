@@ -34,6 +34,7 @@ import android.bluetooth.OobData;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.Log;
 import android.os.PowerManager;
@@ -43,13 +44,19 @@ import com.android.bluetooth.btservice.RemoteDevices.DeviceProperties;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 
 /**
  * This state machine handles Bluetooth Adapter State.
  * States:
  *      {@link StableState} :  No device is in bonding / unbonding state.
  *      {@link PendingCommandState} : Some device is in bonding / unbonding state.
+ * Bond requests made while another device is bonding are kept in a FIFO queue
+ * and started as soon as the previous device is bonded, so its service
+ * discovery overlaps with pairing of the next device.
  * TODO(BT) This class can be removed and this logic moved to the stack.
  */
 
@@ -67,6 +74,8 @@ final class BondStateMachine extends StateMachine {
     static final int BOND_STATE_BONDING = 1;
     static final int BOND_STATE_BONDED = 2;
 
+    private static final int MAX_PAIR_EVENTS = 50;
+
     private AdapterService mAdapterService;
     private AdapterProperties mAdapterProperties;
     private RemoteDevices mRemoteDevices;
@@ -84,6 +93,44 @@ final class BondStateMachine extends StateMachine {
     private final ArrayList<BluetoothDevice> mDevices =
         new ArrayList<BluetoothDevice>();
 
+    private static class BondRequest {
+        final BluetoothDevice device;
+        final int transport;
+        final OobData oobData;
+        final long queuedTime;
+
+        BondRequest(BluetoothDevice device, int transport, OobData oobData) {
+            this.device = device;
+            this.transport = transport;
+            this.oobData = oobData;
+            this.queuedTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /* Stage timestamps of a bond, 0 if the stage was not reached */
+    private static class PairTiming {
+        long queuedTime;
+        long startTime;
+        long authTime;
+        long bondedTime;
+        BluetoothProto.PairEvent event;
+    }
+
+    // Bond requests waiting for the outgoing bond in progress
+    private final ArrayDeque<BondRequest> mBondQueue = new ArrayDeque<BondRequest>();
+    // Device of the outgoing bond in progress
+    private BluetoothDevice mBondingDevice;
+
+    // Bonds in progress or waiting for service discovery, guarded by mPairEvents
+    private final HashMap<BluetoothDevice, PairTiming> mPairTimings =
+            new HashMap<BluetoothDevice, PairTiming>();
+    private final ArrayDeque<BluetoothProto.PairEvent> mPairEvents =
+            new ArrayDeque<BluetoothProto.PairEvent>();
+    private int mBondsQueued;
+    private int mBondsSucceeded;
+    private int mBondsFailed;
+    private int mMaxBondQueueDepth;
+
     private BondStateMachine(PowerManager pm, AdapterService service,
             AdapterProperties prop, RemoteDevices remoteDevices) {
         super("BondStateMachine:");
@@ -114,6 +161,9 @@ final class BondStateMachine extends StateMachine {
     }
 
     public void cleanup() {
+        synchronized (mBondQueue) {
+            mBondQueue.clear();
+        }
         mAdapterService = null;
         mRemoteDevices = null;
         mAdapterProperties = null;
@@ -151,6 +201,7 @@ final class BondStateMachine extends StateMachine {
                         mDevices.add(dev);
                     }
                     sendIntent(dev, newState, 0);
+                    onBondStageChanged(dev, newState, msg.arg2);
                     transitionTo(mPendingCommandState);
                 }
                 else if (newState == BluetoothDevice.BOND_NONE)
@@ -203,6 +254,10 @@ final class BondStateMachine extends StateMachine {
                     if (msg.getData() != null)
                         oobData = msg.getData().getParcelable(OOBDATA);
 
+                    if (isBondInProgress() && !dev.equals(mBondingDevice)) {
+                        queueBond(new BondRequest(dev, msg.arg1, oobData));
+                        break;
+                    }
                     result = createBond(dev, msg.arg1, oobData, false);
                     break;
                 case REMOVE_BOND:
@@ -215,8 +270,12 @@ final class BondStateMachine extends StateMachine {
                     int newState = msg.arg1;
                     int reason = getUnbondReasonFromHALCode(msg.arg2);
                     sendIntent(dev, newState, reason);
+                    onBondStageChanged(dev, newState, msg.arg2);
                     if(newState != BluetoothDevice.BOND_BONDING )
                     {
+                        if (dev.equals(mBondingDevice)) {
+                            mBondingDevice = null;
+                        }
                         // check if bond none is received from device which
                         // was in pairing state otherwise don't transition to
                         // stable state.
@@ -233,7 +292,9 @@ final class BondStateMachine extends StateMachine {
                             // the device to the list again. This prevents us
                             // from pairing with a device that we just unpaired
                             result = false;
-                            transitionTo(mStableState);
+                            if (!startQueuedBond()) {
+                                transitionTo(mStableState);
+                            }
                         }
                         if (newState == BluetoothDevice.BOND_NONE)
                         {
@@ -258,6 +319,7 @@ final class BondStateMachine extends StateMachine {
                         Log.e(TAG,"Received msg from an unknown device");
                         return false;
                     }
+                    onBondAuthRequest(dev);
                     sendDisplayPinIntent(devProp.getAddress(), passkey, variant);
                     break;
                 case PIN_REQUEST:
@@ -268,6 +330,7 @@ final class BondStateMachine extends StateMachine {
                         Log.e(TAG,"Received msg from an unknown device");
                         return false;
                     }
+                    onBondAuthRequest(dev);
                     if (btDeviceClass == BluetoothClass.Device.PERIPHERAL_KEYBOARD ||
                          btDeviceClass == BluetoothClass.Device.PERIPHERAL_KEYBOARD_POINTING) {
                         // Its a keyboard. Follow the HID spec recommendation of creating the
@@ -352,11 +415,179 @@ final class BondStateMachine extends StateMachine {
             } else if (transition) {
                 transitionTo(mPendingCommandState);
             }
+            mBondingDevice = dev;
+            onBondStarted(dev, 0);
             return true;
         }
         return false;
     }
 
+    private boolean isBondInProgress() {
+        return mBondingDevice != null || !mDevices.isEmpty();
+    }
+
+    private void queueBond(BondRequest request) {
+        synchronized (mBondQueue) {
+            for (BondRequest r : mBondQueue) {
+                if (r.device.equals(request.device)) {
+                    infoLog("Bond request already queued:" + request.device);
+                    return;
+                }
+            }
+            mBondQueue.add(request);
+            mBondsQueued++;
+            if (mBondQueue.size() > mMaxBondQueueDepth) {
+                mMaxBondQueueDepth = mBondQueue.size();
+            }
+            infoLog("Queued bond request:" + request.device + " queue size:"
+                    + mBondQueue.size());
+        }
+    }
+
+    /**
+     * Start the next queued bond request, unless an outgoing bond is still in
+     * progress.
+     * @return true if an outgoing bond is in progress
+     */
+    private boolean startQueuedBond() {
+        while (mBondingDevice == null) {
+            BondRequest request;
+            synchronized (mBondQueue) {
+                request = mBondQueue.poll();
+            }
+            if (request == null) {
+                return false;
+            }
+            if (createBond(request.device, request.transport, request.oobData, false)) {
+                synchronized (mPairEvents) {
+                    PairTiming timing = mPairTimings.get(request.device);
+                    if (timing != null) timing.queuedTime = request.queuedTime;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop a bond request which has not been started yet.
+     * @return true if the device was waiting in the bond queue
+     */
+    boolean cancelQueuedBond(BluetoothDevice dev) {
+        synchronized (mBondQueue) {
+            Iterator<BondRequest> it = mBondQueue.iterator();
+            while (it.hasNext()) {
+                if (it.next().device.equals(dev)) {
+                    it.remove();
+                    infoLog("Removed queued bond request:" + dev);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void onBondStarted(BluetoothDevice dev, long queuedTime) {
+        synchronized (mPairEvents) {
+            PairTiming timing = new PairTiming();
+            timing.startTime = SystemClock.elapsedRealtime();
+            timing.queuedTime = queuedTime;
+            mPairTimings.put(dev, timing);
+        }
+    }
+
+    private void onBondAuthRequest(BluetoothDevice dev) {
+        synchronized (mPairEvents) {
+            PairTiming timing = mPairTimings.get(dev);
+            if (timing != null && timing.authTime == 0) {
+                timing.authTime = SystemClock.elapsedRealtime();
+            }
+        }
+    }
+
+    private void onBondStageChanged(BluetoothDevice dev, int newState, int status) {
+        synchronized (mPairEvents) {
+            PairTiming timing = mPairTimings.get(dev);
+            if (newState == BluetoothDevice.BOND_BONDING) {
+                // incoming pairing has no createBond() call
+                if (timing == null || timing.event != null) onBondStarted(dev, 0);
+                return;
+            }
+            if (timing == null || timing.event != null) return;
+
+            long now = SystemClock.elapsedRealtime();
+            BluetoothProto.PairEvent event = new BluetoothProto.PairEvent();
+            event.setEventTimeMillis(System.currentTimeMillis());
+            if (timing.queuedTime != 0) {
+                event.setQueueDurationMillis(timing.startTime - timing.queuedTime);
+            }
+            long authTime = timing.authTime != 0 ? timing.authTime : now;
+            event.setPairingDurationMillis(authTime - timing.startTime);
+            if (timing.authTime != 0) {
+                event.setKeyExchangeDurationMillis(now - timing.authTime);
+            }
+
+            DeviceProperties devProp = mRemoteDevices.getDeviceProperties(dev);
+            if (devProp != null) {
+                BluetoothProto.DeviceInfo info = new BluetoothProto.DeviceInfo();
+                info.setDeviceClass(devProp.getBluetoothClass());
+                info.setDeviceType(devProp.getDeviceType());
+                event.setDevicePairedWith(info);
+            }
+
+            if (newState == BluetoothDevice.BOND_BONDED) {
+                // completed once the remote services are known
+                timing.bondedTime = now;
+                timing.event = event;
+                mBondsSucceeded++;
+            } else {
+                event.setDisconnectReason(status);
+                mPairTimings.remove(dev);
+                mBondsFailed++;
+            }
+
+            mPairEvents.add(event);
+            if (mPairEvents.size() > MAX_PAIR_EVENTS) {
+                mPairEvents.poll();
+            }
+        }
+    }
+
+    /* Called from the JNI thread when the remote UUIDs are reported */
+    void uuidsReceivedCallback(byte[] address) {
+        BluetoothDevice device = mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
+        synchronized (mPairEvents) {
+            PairTiming timing = mPairTimings.get(device);
+            if (timing == null || timing.event == null) return;
+            timing.event.setSdpDurationMillis(SystemClock.elapsedRealtime() - timing.bondedTime);
+            mPairTimings.remove(device);
+        }
+    }
+
+    void dump(StringBuilder sb) {
+        synchronized (mBondQueue) {
+            sb.append("Bonding: queued " + mBondsQueued + " (waiting " + mBondQueue.size()
+                    + ", max " + mMaxBondQueueDepth + ")");
+        }
+        synchronized (mPairEvents) {
+            sb.append(", succeeded " + mBondsSucceeded + ", failed " + mBondsFailed + "\n");
+            for (BluetoothProto.PairEvent event : mPairEvents) {
+                sb.append("  queue " + event.getQueueDurationMillis() + "ms, pairing "
+                        + event.getPairingDurationMillis() + "ms, key exchange "
+                        + event.getKeyExchangeDurationMillis() + "ms, sdp "
+                        + event.getSdpDurationMillis() + "ms, reason "
+                        + event.getDisconnectReason() + "\n");
+            }
+        }
+    }
+
+    void dumpProto(BluetoothProto.BluetoothLog proto) {
+        synchronized (mPairEvents) {
+            for (BluetoothProto.PairEvent event : mPairEvents) {
+                proto.addPairEvent(event);
+            }
+        }
+    }
+
     private void sendDisplayPinIntent(byte[] address, int pin, int variant) {
 
         // Acquire wakelock during PIN code request to bring up LCD display
@@ -94,11 +94,16 @@ public class Config {
             return;
         }
 
+        boolean isA2dpSinkEnabled = SystemProperties.getBoolean("persist.service.bt.a2dp.sink",
+                                                                                         false);
+        boolean isHfpClientEnabled = SystemProperties.getBoolean("persist.service.bt.hfp.client",
+                                                                                         false);
         ArrayList<Class> profiles = new ArrayList<Class>(PROFILE_SERVICES.length);
         for (int i=0; i < PROFILE_SERVICES_FLAG.length; i++) {
             boolean supported = resources.getBoolean(PROFILE_SERVICES_FLAG[i]);
             if (supported && !isProfileDisabled(ctx, PROFILE_SERVICES[i])) {
-                if(!addAudioProfiles(PROFILE_SERVICES[i].getSimpleName()))
+                if(!addAudioProfiles(PROFILE_SERVICES[i].getSimpleName(), isA2dpSinkEnabled,
+                        isHfpClientEnabled))
                     continue;
                 Log.d(TAG, "Adding " + PROFILE_SERVICES[i].getSimpleName());
                 profiles.add(PROFILE_SERVICES[i]);
@@ -110,11 +115,8 @@ public class Config {
     }
 
     @SuppressWarnings("rawtypes")
-    private static synchronized boolean addAudioProfiles(String serviceName) {
-        boolean isA2dpSinkEnabled = SystemProperties.getBoolean("persist.service.bt.a2dp.sink",
-                                                                                         false);
-        boolean isHfpClientEnabled = SystemProperties.getBoolean("persist.service.bt.hfp.client",
-                                                                                         false);
+    private static synchronized boolean addAudioProfiles(String serviceName,
+            boolean isA2dpSinkEnabled, boolean isHfpClientEnabled) {
         Log.d(TAG, "addA2dpProfile: isA2dpSinkEnabled = " + isA2dpSinkEnabled+"isHfpClientEnabled "
         + isHfpClientEnabled + " serviceName " + serviceName);
         /* If property not enabled and request is for A2DPSinkService, don't add */
@@ -52,6 +52,12 @@ final class JniCallbacks {
     }
     void devicePropertyChangedCallback(byte[] address, int[] types, byte[][] val) {
         mRemoteDevices.devicePropertyChangedCallback(address, types, val);
+        for (int type : types) {
+            if (type == AbstractionLayer.BT_PROPERTY_UUIDS) {
+                mBondStateMachine.uuidsReceivedCallback(address);
+                break;
+            }
+        }
     }
 
     void deviceFoundCallback(byte[] address) {
@@ -54,13 +54,16 @@ public abstract class ProfileService extends Service {
     protected IProfileServiceBinder mBinder;
     protected boolean mStartError=false;
     private boolean mCleaningUp = false;
+    private boolean mStarted = false;
+    /* Bound before being started, see AdapterService#requestDeferredProfileStart */
+    private boolean mDeferredStartPending = false;
 
     protected String getName() {
         return getClass().getSimpleName();
     }
 
     protected boolean isAvailable() {
-        return !mStartError && !mCleaningUp;
+        return !mStartError && !mCleaningUp && !mDeferredStartPending;
     }
 
     protected abstract IProfileServiceBinder initBinder();
@@ -140,7 +143,11 @@ public abstract class ProfileService extends Service {
                     Log.d(mName, "Received stop request...Stopping profile...");
                     doStop(intent);
                 } else if (state == BluetoothAdapter.STATE_ON) {
-                          if ((mAdapter.getLeState()== BluetoothAdapter.STATE_TURNING_ON &&
+                          boolean deferredStart = intent.getBooleanExtra(
+                                  AdapterService.EXTRA_DEFERRED_START, false);
+                          if ((deferredStart &&
+                              mAdapter.getLeState() == BluetoothAdapter.STATE_ON) ||
+                              (mAdapter.getLeState()== BluetoothAdapter.STATE_TURNING_ON &&
                               !mName.equals("BtGatt.GattService")) ||
                               (mAdapter.getLeState()== BluetoothAdapter.STATE_BLE_TURNING_ON &&
                               mName.equals("BtGatt.GattService")) ) {
@@ -164,6 +171,13 @@ public abstract class ProfileService extends Service {
 
     public IBinder onBind(Intent intent) {
         if (DBG) log("onBind");
+        AdapterService adapterService = AdapterService.getAdapterService();
+        if (!mStarted && adapterService != null
+                && adapterService.isProfileDeferred(getClass().getName())) {
+            // First use of a deferred profile service
+            mDeferredStartPending = true;
+            adapterService.requestDeferredProfileStart(getClass().getName());
+        }
         return mBinder;
     }
 
@@ -216,7 +230,9 @@ public abstract class ProfileService extends Service {
         } else {
             if (DBG) log("start()");
             mStartError = !start();
+            mDeferredStartPending = false;
             if (!mStartError) {
+                mStarted = true;
                 Log.d(mName, " profile started successfully");
                 notifyProfileServiceStateChanged(BluetoothAdapter.STATE_ON);
             } else {
@@ -228,6 +244,7 @@ public abstract class ProfileService extends Service {
     private void doStop(Intent intent) {
         if (stop()) {
             if (DBG) log("stop()");
+            mStarted = false;
             stopSelf();
             Log.d(mName, " profile stopped successfully");
             notifyProfileServiceStateChanged(BluetoothAdapter.STATE_OFF);
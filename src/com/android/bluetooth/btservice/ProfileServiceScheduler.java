@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothAdapter;
+import android.os.SystemClock;
+
+import com.android.bluetooth.a2dpsink.A2dpSinkService;
+import com.android.bluetooth.avrcp.AvrcpControllerService;
+import com.android.bluetooth.gatt.GattService;
+import com.android.bluetooth.hfpclient.HeadsetClientService;
+import com.android.bluetooth.pbapclient.PbapClientService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides the order in which AdapterService brings up the profile services, and
+ * keeps the timings of the profile service state changes.
+ *
+ * A profile service is started once the services it depends on are running, so
+ * independent services are all requested together. Deferred profiles are not
+ * started with the adapter but on first use, see
+ * {@link #requestDeferredStart(String)}.
+ *
+ * Not thread safe, used on the AdapterService handler.
+ */
+class ProfileServiceScheduler {
+    private static final String GATT_SERVICE = GattService.class.getName();
+
+    /* Profile service -> profile services that must be running first */
+    @SuppressWarnings("rawtypes")
+    private static final Class[][] DEPENDENCIES = {
+        { AvrcpControllerService.class, A2dpSinkService.class },
+        { PbapClientService.class, HeadsetClientService.class },
+    };
+
+    private static class Timing {
+        long requested;
+        int requestedState;
+        long startMs = -1;
+        long stopMs = -1;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private final Class[] mServices;
+    private final HashSet<String> mDeferred = new HashSet<String>();
+    /* Deferred profile services in use, kept by AdapterService across restarts */
+    private final Set<String> mDeferredRequested;
+    private final HashMap<String, ArrayList<String>> mDependencies =
+            new HashMap<String, ArrayList<String>>();
+    private final LinkedHashMap<String, Timing> mTimings = new LinkedHashMap<String, Timing>();
+
+    private long mBringUpStart;
+    private long mBringUpMs = -1;
+
+    /**
+     * @param services the supported profile services
+     * @param deferred simple names of the profile services to start on first use
+     * @param inUse class names of the deferred profile services used so far
+     */
+    @SuppressWarnings("rawtypes")
+    ProfileServiceScheduler(Class[] services, String[] deferred, Set<String> inUse) {
+        mServices = services;
+        mDeferredRequested = inUse;
+        HashSet<String> supported = new HashSet<String>();
+        for (Class service : services) {
+            supported.add(service.getName());
+        }
+        if (deferred != null) {
+            for (Class service : services) {
+                for (String name : deferred) {
+                    if (service.getSimpleName().equals(name)) {
+                        mDeferred.add(service.getName());
+                    }
+                }
+            }
+        }
+        for (Class[] dependency : DEPENDENCIES) {
+            // Only supported services can be waited for
+            if (!supported.contains(dependency[1].getName())) {
+                continue;
+            }
+            ArrayList<String> list = mDependencies.get(dependency[0].getName());
+            if (list == null) {
+                list = new ArrayList<String>(1);
+                mDependencies.put(dependency[0].getName(), list);
+            }
+            list.add(dependency[1].getName());
+        }
+    }
+
+    boolean isDeferred(String serviceName) {
+        return mDeferred.contains(serviceName) && !mDeferredRequested.contains(serviceName);
+    }
+
+    /**
+     * Mark a deferred profile service as used, it is started from now on.
+     * @return false if the service is not deferred
+     */
+    boolean requestDeferredStart(String serviceName) {
+        if (!mDeferred.contains(serviceName)) {
+            return false;
+        }
+        mDeferredRequested.add(serviceName);
+        return true;
+    }
+
+    void onBringUpStarted() {
+        mBringUpStart = SystemClock.elapsedRealtime();
+        mBringUpMs = -1;
+    }
+
+    void onBringUpFinished() {
+        if (mBringUpStart != 0) {
+            mBringUpMs = SystemClock.elapsedRealtime() - mBringUpStart;
+            mBringUpStart = 0;
+        }
+    }
+
+    /**
+     * Get the profile services to start now: services not started yet, not
+     * deferred, and whose dependencies are running.
+     * @param states the current state of the profile services by class name
+     */
+    @SuppressWarnings("rawtypes")
+    ArrayList<Class> getStartable(Map<String, Integer> states) {
+        ArrayList<Class> startable = new ArrayList<Class>();
+        for (Class service : mServices) {
+            String name = service.getName();
+            Integer state = states.get(name);
+            if (GATT_SERVICE.equals(name) || isDeferred(name)
+                    || (state != null && state != BluetoothAdapter.STATE_OFF)) {
+                continue;
+            }
+            if (dependenciesRunning(name, states)) {
+                startable.add(service);
+            }
+        }
+        return startable;
+    }
+
+    private boolean dependenciesRunning(String serviceName, Map<String, Integer> states) {
+        ArrayList<String> dependencies = mDependencies.get(serviceName);
+        if (dependencies == null) {
+            return true;
+        }
+        for (String dependency : dependencies) {
+            Integer state = states.get(dependency);
+            // A deferred dependency is not waited for, it starts on its own first use
+            if (state != null && state != BluetoothAdapter.STATE_ON && !isDeferred(dependency)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Record a start or stop request sent to a profile service */
+    void onStateRequested(String serviceName, int state) {
+        Timing timing = mTimings.get(serviceName);
+        if (timing == null) {
+            timing = new Timing();
+            mTimings.put(serviceName, timing);
+        }
+        timing.requested = SystemClock.elapsedRealtime();
+        timing.requestedState = state;
+    }
+
+    /** Record a state change reported by a profile service */
+    void onStateChanged(String serviceName, int state) {
+        Timing timing = mTimings.get(serviceName);
+        if (timing == null || timing.requested == 0 || timing.requestedState != state) {
+            return;
+        }
+        long duration = SystemClock.elapsedRealtime() - timing.requested;
+        if (state == BluetoothAdapter.STATE_ON) {
+            timing.startMs = duration;
+        } else {
+            timing.stopMs = duration;
+        }
+        timing.requested = 0;
+    }
+
+    void dump(StringBuilder sb) {
+        sb.append("Profile services startup:\n");
+        sb.append("  time to all profiles started: "
+                + (mBringUpMs < 0 ? "n/a" : mBringUpMs + " ms") + "\n");
+        for (Map.Entry<String, Timing> entry : mTimings.entrySet()) {
+            Timing timing = entry.getValue();
+            String name = entry.getKey();
+            sb.append("  " + name.substring(name.lastIndexOf('.') + 1)
+                    + ": start " + (timing.startMs < 0 ? "n/a" : timing.startMs + " ms")
+                    + ", stop " + (timing.stopMs < 0 ? "n/a" : timing.stopMs + " ms")
+                    + (timing.requested != 0 ? ", pending" : "") + "\n");
+        }
+        for (String name : mDeferred) {
+            sb.append("  deferred: " + name.substring(name.lastIndexOf('.') + 1)
+                    + (mDeferredRequested.contains(name) ? " (in use)" : "") + "\n");
+        }
+    }
+}
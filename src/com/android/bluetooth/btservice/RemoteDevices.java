@@ -27,48 +27,64 @@ import android.util.Log;
 
 import com.android.bluetooth.Utils;
 
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 final class RemoteDevices {
     private static final boolean DBG = false;
     private static final String TAG = "BluetoothRemoteDevices";
 
-    // Maximum number of device properties to remember
+    // Maximum number of device properties to remember. Bonded and connected
+    // devices are never evicted and may exceed this limit.
     private static final int MAX_DEVICE_QUEUE_SIZE = 200;
 
     private static BluetoothAdapter mAdapter;
     private static AdapterService mAdapterService;
-    private static ArrayList<BluetoothDevice> mSdpTracker;
+    // Devices with an outstanding fetchUuids() request, accessed from the binder,
+    // JNI callback and handler threads
+    private final ArrayList<BluetoothDevice> mSdpTracker = new ArrayList<BluetoothDevice>();
     private Object mObject = new Object();
 
     private static final int UUID_INTENT_DELAY = 6000;
     private static final int MESSAGE_UUID_INTENT = 1;
+    private static final int MESSAGE_PROPERTY_BROADCAST = 2;
 
-    private HashMap<String, DeviceProperties> mDevices;
-    private Queue<String> mDeviceQueue;
+    // Window in which name/class changes of a device are merged into one broadcast
+    private static final int PROPERTY_BROADCAST_DELAY = 100;
+    private static final int PENDING_NAME = 1 << 0;
+    private static final int PENDING_CLASS = 1 << 1;
+
+    // Keyed by the packed 48 bit address, ordered from least to most recently seen
+    private LinkedHashMap<Long, DeviceProperties> mDevices;
+    private long mDevicesAdded;
+    private long mDevicesEvicted;
+
+    // Property change broadcast counters, guarded by mObject
+    private long mBroadcastsSent;
+    private long mBroadcastsSuppressed;
+    private long mBroadcastsCoalesced;
 
     RemoteDevices(AdapterService service) {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mAdapterService = service;
-        mSdpTracker = new ArrayList<BluetoothDevice>();
-        mDevices = new HashMap<String, DeviceProperties>();
-        mDeviceQueue = new LinkedList<String>();
+        mDevices = new LinkedHashMap<Long, DeviceProperties>();
     }
 
 
     void cleanup() {
-        if (mSdpTracker !=null)
-            mSdpTracker.clear();
+        mHandler.removeMessages(MESSAGE_PROPERTY_BROADCAST);
 
-        if (mDevices != null)
-            mDevices.clear();
+        synchronized (mSdpTracker) {
+            mSdpTracker.clear();
+        }
 
-        if (mDeviceQueue != null)
-            mDeviceQueue.clear();
+        if (mDevices != null) {
+            synchronized (mDevices) {
+                mDevices.clear();
+            }
+        }
     }
 
     @Override
@@ -78,13 +94,13 @@ final class RemoteDevices {
 
     DeviceProperties getDeviceProperties(BluetoothDevice device) {
         synchronized (mDevices) {
-            return mDevices.get(device.getAddress());
+            return mDevices.get(getAddressKey(device.getAddress()));
         }
     }
 
     BluetoothDevice getDevice(byte[] address) {
         synchronized (mDevices) {
-            DeviceProperties p = mDevices.get(Utils.getAddressStringFromByte(address));
+            DeviceProperties p = mDevices.get(getAddressKey(address));
             if (p != null) {
                 return p.getDevice();
             }
@@ -97,24 +113,89 @@ final class RemoteDevices {
             DeviceProperties prop = new DeviceProperties();
             prop.mDevice = mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
             prop.mAddress = address;
-            String key = Utils.getAddressStringFromByte(address);
-            DeviceProperties pv = mDevices.put(key, prop);
+            Long key = getAddressKey(address);
+            // Remove first so that the device is moved to the most recently seen end
+            DeviceProperties pv = mDevices.remove(key);
+            mDevices.put(key, prop);
 
             if (pv == null) {
-                mDeviceQueue.offer(key);
-                if (mDeviceQueue.size() > MAX_DEVICE_QUEUE_SIZE) {
-                    String deleteKey = mDeviceQueue.poll();
-                    for (BluetoothDevice device : mAdapterService.getBondedDevices()) {
-                        if (device.getAddress().equals(deleteKey)) return prop;
-                    }
-                    debugLog("Removing device " + deleteKey + " from property map");
-                    mDevices.remove(deleteKey);
-                }
+                mDevicesAdded++;
+                evictDevices();
             }
             return prop;
         }
     }
 
+    /**
+     * Mark the device as recently seen, so that it is the last candidate for eviction.
+     */
+    private void touchDevice(byte[] address) {
+        synchronized (mDevices) {
+            Long key = getAddressKey(address);
+            DeviceProperties prop = mDevices.remove(key);
+            if (prop != null) {
+                mDevices.put(key, prop);
+            }
+        }
+    }
+
+    /**
+     * Drop the least recently seen devices until the cache is within its limit.
+     * Must be called with mDevices locked.
+     */
+    private void evictDevices() {
+        Iterator<DeviceProperties> it = mDevices.values().iterator();
+        while (mDevices.size() > MAX_DEVICE_QUEUE_SIZE && it.hasNext()) {
+            DeviceProperties prop = it.next();
+            if (prop.isPinned()) continue;
+            debugLog("Removing device " + prop.mDevice + " from property map");
+            it.remove();
+            mDevicesEvicted++;
+        }
+    }
+
+    void dump(StringBuilder sb) {
+        synchronized (mDevices) {
+            int pinned = 0;
+            for (DeviceProperties prop : mDevices.values()) {
+                if (prop.isPinned()) pinned++;
+            }
+            sb.append("Remote device cache:\n");
+            sb.append("  size: " + mDevices.size() + " (pinned: " + pinned + ", limit: "
+                    + MAX_DEVICE_QUEUE_SIZE + ")\n");
+            sb.append("  added: " + mDevicesAdded + ", evicted: " + mDevicesEvicted + "\n");
+        }
+        synchronized (mObject) {
+            sb.append("  property broadcasts sent: " + mBroadcastsSent + ", suppressed: "
+                    + mBroadcastsSuppressed + ", coalesced: " + mBroadcastsCoalesced + "\n");
+        }
+    }
+
+    /**
+     * Pack a 6 byte Bluetooth address into the low 48 bits of a long.
+     */
+    static long getAddressKey(byte[] address) {
+        long key = 0;
+        for (int i = 0; i < address.length; i++) {
+            key = (key << 8) | (address[i] & 0xFF);
+        }
+        return key;
+    }
+
+    /**
+     * Pack a "XX:XX:XX:XX:XX:XX" address into the low 48 bits of a long.
+     */
+    static long getAddressKey(String address) {
+        long key = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                key = (key << 4) | digit;
+            }
+        }
+        return key;
+    }
+
     class DeviceProperties {
         private String mName;
         private byte[] mAddress;
@@ -123,8 +204,15 @@ final class RemoteDevices {
         private ParcelUuid[] mUuids;
         private int mDeviceType;
         private String mAlias;
-        private int mBondState;
+        // Read without mObject held when deciding on eviction
+        private volatile int mBondState;
+        private volatile boolean mAclConnected;
         private BluetoothDevice mDevice;
+        // Broadcasts waiting for MESSAGE_PROPERTY_BROADCAST, guarded by mObject
+        private int mPendingBroadcasts;
+        private boolean mClassReported;
+        // ACTION_UUID sent since the bond state last changed, guarded by mObject
+        private boolean mUuidsDelivered;
 
         DeviceProperties() {
             mBondState = BluetoothDevice.BOND_NONE;
@@ -223,6 +311,8 @@ final class RemoteDevices {
         void setBondState(int mBondState) {
             synchronized (mObject) {
                 this.mBondState = mBondState;
+                // Deliver the UUIDs found for the new bond, even if unchanged
+                mUuidsDelivered = false;
                 if (mBondState == BluetoothDevice.BOND_NONE)
                 {
                     /* Clearing the Uuids local copy when the device is unpaired. If not cleared,
@@ -242,6 +332,13 @@ final class RemoteDevices {
                 return mBondState;
             }
         }
+
+        /**
+         * @return true if the device must be kept in the cache
+         */
+        boolean isPinned() {
+            return mBondState != BluetoothDevice.BOND_NONE || mAclConnected;
+        }
     }
 
     private void sendUuidIntent(BluetoothDevice device) {
@@ -251,14 +348,26 @@ final class RemoteDevices {
         intent.putExtra(BluetoothDevice.EXTRA_UUID, prop == null? null: prop.mUuids);
         mAdapterService.initProfilePriorities(device, prop == null? null: prop.mUuids);
         mAdapterService.sendBroadcast(intent, AdapterService.BLUETOOTH_ADMIN_PERM);
+        if (prop != null) {
+            synchronized (mObject) {
+                prop.mUuidsDelivered = true;
+            }
+        }
 
         //Remove the outstanding UUID request
-        mSdpTracker.remove(device);
+        synchronized (mSdpTracker) {
+            mSdpTracker.remove(device);
+        }
+    }
+
+    private boolean isSdpPending(BluetoothDevice device) {
+        synchronized (mSdpTracker) {
+            return mSdpTracker.contains(device);
+        }
     }
 
 
     void devicePropertyChangedCallback(byte[] address, int[] types, byte[][] values) {
-        Intent intent;
         byte[] val;
         int type;
         BluetoothDevice bdDevice = getDevice(address);
@@ -269,73 +378,143 @@ final class RemoteDevices {
             bdDevice = getDevice(address);
         } else {
             device = getDeviceProperties(bdDevice);
+            touchDevice(address);
         }
 
         if (types.length <= 0) {
             errorLog("No properties to update");
             return;
         }
+        if (device == null) {
+            return;
+        }
 
-        for (int j = 0; j < types.length && device != null; j++) {
-            type = types[j];
-            val = values[j];
-            if (val.length <= 0)
-                errorLog("devicePropertyChangedCallback: bdDevice: " + bdDevice
-                        + ", value is empty for type: " + type);
-            else {
-                synchronized(mObject) {
-                    debugLog("Property type: " + type);
-                    switch (type) {
-                        case AbstractionLayer.BT_PROPERTY_BDNAME:
-                            device.mName = new String(val);
-                            intent = new Intent(BluetoothDevice.ACTION_NAME_CHANGED);
-                            intent.putExtra(BluetoothDevice.EXTRA_DEVICE, bdDevice);
-                            intent.putExtra(BluetoothDevice.EXTRA_NAME, device.mName);
-                            intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
-                            mAdapterService.sendBroadcast(intent, mAdapterService.BLUETOOTH_PERM);
-                            debugLog("Remote Device name is: " + device.mName);
-                            break;
-                        case AbstractionLayer.BT_PROPERTY_REMOTE_FRIENDLY_NAME:
-                            if (device.mAlias != null) {
-                                System.arraycopy(val, 0, device.mAlias, 0, val.length);
-                            }
-                            else {
-                                device.mAlias = new String(val);
-                            }
-                            break;
-                        case AbstractionLayer.BT_PROPERTY_BDADDR:
-                            device.mAddress = val;
-                            debugLog("Remote Address is:" + Utils.getAddressStringFromByte(val));
-                            break;
-                        case AbstractionLayer.BT_PROPERTY_CLASS_OF_DEVICE:
-                            device.mBluetoothClass =  Utils.byteArrayToInt(val);
-                            intent = new Intent(BluetoothDevice.ACTION_CLASS_CHANGED);
-                            intent.putExtra(BluetoothDevice.EXTRA_DEVICE, bdDevice);
-                            intent.putExtra(BluetoothDevice.EXTRA_CLASS,
-                                    new BluetoothClass(device.mBluetoothClass));
-                            intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
-                            mAdapterService.sendBroadcast(intent, mAdapterService.BLUETOOTH_PERM);
-                            debugLog("Remote class is:" + device.mBluetoothClass);
-                            break;
-                        case AbstractionLayer.BT_PROPERTY_UUIDS:
-                            int numUuids = val.length/AbstractionLayer.BT_UUID_SIZE;
-                            int state = mAdapterService.getState();
-                            device.mUuids = Utils.byteArrayToUuid(val);
-                            if (state == BluetoothAdapter.STATE_ON)
-                                sendUuidIntent(bdDevice);
+        boolean uuidsChanged = false;
+        boolean scheduleBroadcast = false;
+        boolean sdpPending = isSdpPending(bdDevice);
+        // Apply the whole batch at once, the broadcasts are sent from the handler
+        synchronized (mObject) {
+            int pending = device.mPendingBroadcasts;
+            for (int j = 0; j < types.length; j++) {
+                type = types[j];
+                val = values[j];
+                if (val.length <= 0) {
+                    errorLog("devicePropertyChangedCallback: bdDevice: " + bdDevice
+                            + ", value is empty for type: " + type);
+                    continue;
+                }
+                debugLog("Property type: " + type);
+                switch (type) {
+                    case AbstractionLayer.BT_PROPERTY_BDNAME:
+                        String name = new String(val);
+                        if (name.equals(device.mName)) {
+                            mBroadcastsSuppressed++;
                             break;
-                        case AbstractionLayer.BT_PROPERTY_TYPE_OF_DEVICE:
-                            // The device type from hal layer, defined in bluetooth.h,
-                            // matches the type defined in BluetoothDevice.java
-                            device.mDeviceType = Utils.byteArrayToInt(val);
+                        }
+                        device.mName = name;
+                        pending = markPending(pending, PENDING_NAME);
+                        debugLog("Remote Device name is: " + device.mName);
+                        break;
+                    case AbstractionLayer.BT_PROPERTY_REMOTE_FRIENDLY_NAME:
+                        device.mAlias = new String(val);
+                        break;
+                    case AbstractionLayer.BT_PROPERTY_BDADDR:
+                        device.mAddress = val;
+                        debugLog("Remote Address is:" + Utils.getAddressStringFromByte(val));
+                        break;
+                    case AbstractionLayer.BT_PROPERTY_CLASS_OF_DEVICE:
+                        int bluetoothClass = Utils.byteArrayToInt(val);
+                        if (bluetoothClass == device.mBluetoothClass
+                                && (pending & PENDING_CLASS) == 0 && device.mClassReported) {
+                            mBroadcastsSuppressed++;
                             break;
-                        case AbstractionLayer.BT_PROPERTY_REMOTE_RSSI:
-                            // RSSI from hal is in one byte
-                            device.mRssi = val[0];
+                        }
+                        device.mBluetoothClass = bluetoothClass;
+                        device.mClassReported = true;
+                        pending = markPending(pending, PENDING_CLASS);
+                        debugLog("Remote class is:" + device.mBluetoothClass);
+                        break;
+                    case AbstractionLayer.BT_PROPERTY_UUIDS:
+                        ParcelUuid[] uuids = Utils.byteArrayToUuid(val);
+                        // Always delivered while bonding, for the first report after a
+                        // bond state change and to answer a fetchUuids() request
+                        if (Arrays.equals(uuids, device.mUuids) && device.mUuidsDelivered
+                                && device.mBondState != BluetoothDevice.BOND_BONDING
+                                && !sdpPending) {
+                            mBroadcastsSuppressed++;
                             break;
-                    }
+                        }
+                        device.mUuids = uuids;
+                        uuidsChanged = true;
+                        break;
+                    case AbstractionLayer.BT_PROPERTY_TYPE_OF_DEVICE:
+                        // The device type from hal layer, defined in bluetooth.h,
+                        // matches the type defined in BluetoothDevice.java
+                        device.mDeviceType = Utils.byteArrayToInt(val);
+                        break;
+                    case AbstractionLayer.BT_PROPERTY_REMOTE_RSSI:
+                        // RSSI from hal is in one byte
+                        device.mRssi = val[0];
+                        break;
                 }
             }
+            scheduleBroadcast = (device.mPendingBroadcasts == 0 && pending != 0);
+            device.mPendingBroadcasts = pending;
+        }
+
+        if (scheduleBroadcast) {
+            Message message = mHandler.obtainMessage(MESSAGE_PROPERTY_BROADCAST);
+            message.obj = device;
+            mHandler.sendMessageDelayed(message, PROPERTY_BROADCAST_DELAY);
+        }
+        if (uuidsChanged && mAdapterService.getState() == BluetoothAdapter.STATE_ON) {
+            sendUuidIntent(bdDevice);
+        }
+    }
+
+    /**
+     * Add a broadcast to the set pending for a device, counting it as coalesced if
+     * it was already pending. Must be called with mObject locked.
+     */
+    private int markPending(int pending, int broadcast) {
+        if ((pending & broadcast) != 0) {
+            mBroadcastsCoalesced++;
+        }
+        return pending | broadcast;
+    }
+
+    /**
+     * Send the name/class broadcasts collected for a device during the
+     * coalescing window, carrying the latest values.
+     */
+    private void sendPropertyBroadcasts(DeviceProperties device) {
+        int pending;
+        String name;
+        int bluetoothClass;
+        BluetoothDevice bdDevice;
+        synchronized (mObject) {
+            pending = device.mPendingBroadcasts;
+            device.mPendingBroadcasts = 0;
+            name = device.mName;
+            bluetoothClass = device.mBluetoothClass;
+            bdDevice = device.mDevice;
+            mBroadcastsSent += Integer.bitCount(pending);
+        }
+
+        Intent intent;
+        if ((pending & PENDING_NAME) != 0) {
+            intent = new Intent(BluetoothDevice.ACTION_NAME_CHANGED);
+            intent.putExtra(BluetoothDevice.EXTRA_DEVICE, bdDevice);
+            intent.putExtra(BluetoothDevice.EXTRA_NAME, name);
+            intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
+            mAdapterService.sendBroadcast(intent, mAdapterService.BLUETOOTH_PERM);
+        }
+        if ((pending & PENDING_CLASS) != 0) {
+            intent = new Intent(BluetoothDevice.ACTION_CLASS_CHANGED);
+            intent.putExtra(BluetoothDevice.EXTRA_DEVICE, bdDevice);
+            intent.putExtra(BluetoothDevice.EXTRA_CLASS, new BluetoothClass(bluetoothClass));
+            intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
+            mAdapterService.sendBroadcast(intent, mAdapterService.BLUETOOTH_PERM);
         }
     }
 
@@ -375,6 +554,8 @@ final class RemoteDevices {
         DeviceProperties prop = getDeviceProperties(device);
         if (prop == null) {
  //         errorLog("aclStateChangeCallback reported unknown device " + Arrays.toString(address));
+        } else {
+            prop.mAclConnected = (newState == AbstractionLayer.BT_ACL_STATE_CONNECTED);
         }
         Intent intent = null;
         if (newState == AbstractionLayer.BT_ACL_STATE_CONNECTED) {
@@ -399,8 +580,10 @@ final class RemoteDevices {
 
 
     void fetchUuids(BluetoothDevice device) {
-        if (mSdpTracker.contains(device)) return;
-        mSdpTracker.add(device);
+        synchronized (mSdpTracker) {
+            if (mSdpTracker.contains(device)) return;
+            mSdpTracker.add(device);
+        }
 
         Message message = mHandler.obtainMessage(MESSAGE_UUID_INTENT);
         message.obj = device;
@@ -427,6 +610,9 @@ final class RemoteDevices {
                     sendUuidIntent(device);
                 }
                 break;
+            case MESSAGE_PROPERTY_BROADCAST:
+                sendPropertyBroadcasts((DeviceProperties) msg.obj);
+                break;
             }
         }
     };
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hdp;
+
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+
+/**
+ * Ring buffer for the data received on a health channel, split into
+ * IEEE 11073-20601 APDUs.
+ *
+ * An APDU starts with a 2 byte APDU choice (0xE200 - 0xE700) followed by a
+ * 2 byte length of the rest of the APDU, both big endian. Frame boundaries
+ * are found as data is written, so a reader only ever sees complete APDUs.
+ * Bytes that do not start a valid APDU header are skipped one at a time
+ * until a valid header is found, and counted as framing errors.
+ *
+ * A writer blocks while the buffer is full, which pushes back on the
+ * channel instead of dropping data. All methods are synchronized.
+ */
+public class HealthApduRingBuffer {
+    static final int APDU_HEADER_SIZE = 4;
+    private static final int APDU_CHOICE_FIRST = 0xE2;
+    private static final int APDU_CHOICE_LAST = 0xE7;
+
+    private static class Frame {
+        final int mLength;
+        final boolean mValid;
+        final long mCompleteTime;
+
+        Frame(int length, boolean valid, long completeTime) {
+            mLength = length;
+            mValid = valid;
+            mCompleteTime = completeTime;
+        }
+    }
+
+    private final byte[] mBuffer;
+    // Absolute stream positions, the buffer index is position % capacity
+    private long mReadPos = 0;
+    private long mScanPos = 0;
+    private long mWritePos = 0;
+    private final ArrayDeque<Frame> mFrames = new ArrayDeque<Frame>();
+    private boolean mClosed = false;
+
+    /* Statistics */
+    private long mApdus = 0;
+    private long mFramingErrors = 0;
+    private long mWriterStalls = 0;
+    private long mTotalLatencyMs = 0;
+    private long mMaxLatencyMs = 0;
+
+    public HealthApduRingBuffer(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    /**
+     * Copy |len| bytes into the buffer, waiting for space as needed.
+     * @return false if the buffer was closed before all data was written
+     */
+    public synchronized boolean write(byte[] src, int off, int len)
+            throws InterruptedException {
+        while (len > 0) {
+            while (!mClosed && mWritePos - mReadPos == mBuffer.length) {
+                mWriterStalls++;
+                wait();
+            }
+            if (mClosed) return false;
+            int index = (int) (mWritePos % mBuffer.length);
+            int count = Math.min(len, mBuffer.length - (int) (mWritePos - mReadPos));
+            count = Math.min(count, mBuffer.length - index);
+            System.arraycopy(src, off, mBuffer, index, count);
+            mWritePos += count;
+            off += count;
+            len -= count;
+            scanFrames();
+        }
+        return true;
+    }
+
+    /**
+     * @return the next complete APDU, or null if there is none
+     */
+    public synchronized byte[] poll() {
+        Frame frame;
+        while ((frame = mFrames.poll()) != null) {
+            if (!frame.mValid) {
+                mReadPos += frame.mLength;
+                notifyAll();
+                continue;
+            }
+            byte[] apdu = new byte[frame.mLength];
+            for (int i = 0; i < apdu.length; i++) {
+                apdu[i] = byteAt(mReadPos + i);
+            }
+            mReadPos += frame.mLength;
+            long latency = SystemClock.elapsedRealtime() - frame.mCompleteTime;
+            mTotalLatencyMs += latency;
+            if (latency > mMaxLatencyMs) mMaxLatencyMs = latency;
+            mApdus++;
+            notifyAll();
+            return apdu;
+        }
+        return null;
+    }
+
+    /**
+     * Wait up to |timeoutMs| for a complete APDU.
+     * @return the APDU, or null on timeout or when the buffer is closed
+     */
+    public synchronized byte[] take(long timeoutMs) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        byte[] apdu;
+        while ((apdu = poll()) == null && !mClosed) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) return null;
+            wait(remaining);
+        }
+        return apdu;
+    }
+
+    /**
+     * Wait up to |timeoutMs| for a complete APDU, then also take the APDUs
+     * already complete after it, as long as they fit in |maxBytes| in total.
+     * The first APDU is always taken, whatever its size.
+     * @return the APDUs back to back, an empty array on timeout, or null
+     *         when the buffer is closed and empty
+     */
+    public synchronized byte[] takeBatch(int maxBytes, long timeoutMs)
+            throws InterruptedException {
+        byte[] first = take(timeoutMs);
+        if (first == null) return mClosed ? null : new byte[0];
+        int total = first.length;
+        for (Frame frame : mFrames) {
+            if (!frame.mValid) continue;
+            if (total + frame.mLength > maxBytes) break;
+            total += frame.mLength;
+        }
+        byte[] batch = new byte[total];
+        System.arraycopy(first, 0, batch, 0, first.length);
+        for (int off = first.length; off < total; ) {
+            byte[] apdu = poll();
+            System.arraycopy(apdu, 0, batch, off, apdu.length);
+            off += apdu.length;
+        }
+        return batch;
+    }
+
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    public synchronized long getApduCount() {
+        return mApdus;
+    }
+
+    public synchronized long getFramingErrors() {
+        return mFramingErrors;
+    }
+
+    public synchronized void dump(StringBuilder sb) {
+        sb.append("APDUs: " + mApdus + ", framing errors: " + mFramingErrors
+                + ", writer stalls: " + mWriterStalls + ", buffered: " + (mWritePos - mReadPos)
+                + "/" + mBuffer.length + ", queue latency avg: "
+                + (mApdus == 0 ? 0 : mTotalLatencyMs / mApdus) + "ms, max: " + mMaxLatencyMs
+                + "ms");
+    }
+
+    private byte byteAt(long pos) {
+        return mBuffer[(int) (pos % mBuffer.length)];
+    }
+
+    /* Find the APDUs completed by the data written so far */
+    private void scanFrames() {
+        long now = SystemClock.elapsedRealtime();
+        while (mWritePos - mScanPos >= APDU_HEADER_SIZE) {
+            int choice = byteAt(mScanPos) & 0xFF;
+            int length = ((byteAt(mScanPos + 2) & 0xFF) << 8) | (byteAt(mScanPos + 3) & 0xFF);
+            int frameLength = APDU_HEADER_SIZE + length;
+            if (choice < APDU_CHOICE_FIRST || choice > APDU_CHOICE_LAST
+                    || byteAt(mScanPos + 1) != 0 || frameLength > mBuffer.length) {
+                mFramingErrors++;
+                addFrame(1, false, now);
+                continue;
+            }
+            if (mWritePos - mScanPos < frameLength) break;
+            addFrame(frameLength, true, now);
+        }
+    }
+
+    private void addFrame(int length, boolean valid, long now) {
+        mScanPos += length;
+        Frame last = mFrames.peekLast();
+        if (!valid && last != null && !last.mValid) {
+            // Merge consecutive skipped bytes
+            mFrames.pollLast();
+            length += last.mLength;
+        }
+        mFrames.add(new Frame(length, valid, now));
+        notifyAll();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.hdp;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Data plane of a health channel whose application asked the service to
+ * handle the channel data, see {@link HealthService#ACTION_DATA_CHANNEL}.
+ *
+ * The channel owns the channel fd; the application does not get it. A
+ * dedicated thread reads the channel in large chunks into a
+ * {@link HealthApduRingBuffer}, and the application drains complete APDUs
+ * with {@link #readApdus}. APDUs to the device go through {@link #writeApdu}.
+ */
+class HealthDataChannel {
+    private static final String TAG = "HealthDataChannel";
+
+    private static final int READ_SIZE = 16 * 1024;
+    private static final int BUFFER_SIZE = 128 * 1024;
+
+    private final BluetoothDevice mDevice;
+    private final int mChannelId;
+    private final ParcelFileDescriptor mFd;
+    private final FileOutputStream mOut;
+    private final HealthApduRingBuffer mBuffer = new HealthApduRingBuffer(BUFFER_SIZE);
+    private Thread mReader;
+
+    /* Statistics */
+    private volatile long mBytesRead = 0;
+    private volatile long mReads = 0;
+    private volatile long mApdusWritten = 0;
+    private long mStartTime;
+
+    HealthDataChannel(BluetoothDevice device, int channelId, ParcelFileDescriptor fd) {
+        mDevice = device;
+        mChannelId = channelId;
+        mFd = fd;
+        mOut = new FileOutputStream(fd.getFileDescriptor());
+    }
+
+    synchronized void start() {
+        mStartTime = SystemClock.elapsedRealtime();
+        mReader = new Thread("HealthDataReader-" + mChannelId) {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        };
+        mReader.start();
+    }
+
+    private void readLoop() {
+        byte[] buffer = new byte[READ_SIZE];
+        FileInputStream in = new FileInputStream(mFd.getFileDescriptor());
+        try {
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                mReads++;
+                mBytesRead += count;
+                if (!mBuffer.write(buffer, 0, count)) break;
+            }
+        } catch (IOException e) {
+            if (!mBuffer.isClosed()) Log.w(TAG, "Channel " + mChannelId + " read failed: " + e);
+        } catch (InterruptedException e) {
+            // Closed
+        } finally {
+            mBuffer.close();
+        }
+    }
+
+    /**
+     * See {@link HealthApduRingBuffer#takeBatch}.
+     */
+    byte[] readApdus(int maxBytes, long timeoutMs) throws InterruptedException {
+        return mBuffer.takeBatch(maxBytes, timeoutMs);
+    }
+
+    /**
+     * Send one complete APDU to the device.
+     * @return false if |apdu| is not a single APDU or the channel is closed
+     */
+    synchronized boolean writeApdu(byte[] apdu) {
+        if (apdu == null || apdu.length < HealthApduRingBuffer.APDU_HEADER_SIZE) return false;
+        int length = ((apdu[2] & 0xFF) << 8) | (apdu[3] & 0xFF);
+        if (apdu.length != HealthApduRingBuffer.APDU_HEADER_SIZE + length) {
+            Log.e(TAG, "Channel " + mChannelId + ": APDU length " + length
+                    + " does not match " + apdu.length + " bytes");
+            return false;
+        }
+        if (mBuffer.isClosed()) return false;
+        try {
+            mOut.write(apdu);
+        } catch (IOException e) {
+            Log.w(TAG, "Channel " + mChannelId + " write failed: " + e);
+            return false;
+        }
+        mApdusWritten++;
+        return true;
+    }
+
+    void close() {
+        mBuffer.close();
+        // Shut the socket down first, closing it would not wake up a blocked read
+        try {
+            Os.shutdown(mFd.getFileDescriptor(), OsConstants.SHUT_RDWR);
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Failed to shut down channel " + mChannelId + ": " + e);
+        }
+        synchronized (this) {
+            try {
+                mFd.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close channel fd: " + e);
+            }
+            if (mReader != null) {
+                mReader.interrupt();
+                mReader = null;
+            }
+        }
+    }
+
+    void dump(StringBuilder sb) {
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - mStartTime);
+        long reads = mReads;
+        sb.append("channel " + mChannelId + " (" + mDevice + "): read " + mBytesRead
+                + " bytes in " + reads + " reads (avg "
+                + (reads == 0 ? 0 : mBytesRead / reads) + "), " + (mBytesRead * 1000 / elapsed)
+                + " bytes/s, sent " + mApdusWritten + " APDUs, ");
+        mBuffer.dump(sb);
+    }
+}
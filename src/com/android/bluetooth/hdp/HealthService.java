@@ -60,11 +60,17 @@ public class HealthService extends ProfileService {
     private static final boolean VDBG = false;
     private static final String TAG="HealthService";
 
+    /** Action to bind the {@link IBluetoothHealthDataChannel} of the service */
+    public static final String ACTION_DATA_CHANNEL =
+            "com.android.bluetooth.hdp.IBluetoothHealthDataChannel";
+    private static final long MAX_READ_TIMEOUT_MS = 1000;
+
     private List<HealthChannel> mHealthChannels;
     private Map <BluetoothHealthAppConfiguration, AppInfo> mApps;
     private Map <BluetoothDevice, Integer> mHealthDevices;
     private boolean mNativeAvailable;
     private HealthServiceMessageHandler mHandler;
+    private DataChannelBinder mDataChannel;
     private static final int MESSAGE_REGISTER_APPLICATION = 1;
     private static final int MESSAGE_UNREGISTER_APPLICATION = 2;
     private static final int MESSAGE_CONNECT_CHANNEL = 3;
@@ -84,6 +90,19 @@ public class HealthService extends ProfileService {
         return new BluetoothHealthBinder(this);
     }
 
+    @Override
+    public IBinder onBind(Intent intent) {
+        if (ACTION_DATA_CHANNEL.equals(intent.getAction())) {
+            synchronized (this) {
+                if (mDataChannel == null) {
+                    mDataChannel = new DataChannelBinder(this);
+                }
+                return mDataChannel;
+            }
+        }
+        return super.onBind(intent);
+    }
+
     protected boolean start() {
         mHealthChannels = Collections.synchronizedList(new ArrayList<HealthChannel>());
         mApps = Collections.synchronizedMap(new HashMap<BluetoothHealthAppConfiguration,
@@ -132,6 +151,11 @@ public class HealthService extends ProfileService {
             mNativeAvailable=false;
         }
         if(mHealthChannels != null) {
+            synchronized (mHealthChannels) {
+                for (HealthChannel chan : mHealthChannels) {
+                    chan.closeDataChannel();
+                }
+            }
             mHealthChannels.clear();
         }
         if(mHealthDevices != null) {
@@ -140,6 +164,12 @@ public class HealthService extends ProfileService {
         if(mApps != null) {
             mApps.clear();
         }
+        synchronized (this) {
+            if (mDataChannel != null) {
+                mDataChannel.cleanup();
+                mDataChannel = null;
+            }
+        }
         return true;
     }
 
@@ -289,10 +319,15 @@ public class HealthService extends ProfileService {
                             Log.e(TAG, "failed to dup ParcelFileDescriptor");
                             break;
                         }
+                        AppInfo appInfo = mApps.get(chan.mConfig);
+                        if (appInfo != null && appInfo.mApduMode) {
+                            chan.openDataChannel();
+                        }
                     }
                     /*set the channel fd to null if channel state isnot equal to connected*/
                     else{
                         chan.mChannelFd = null;
+                        chan.closeDataChannel();
                     }
                     callHealthChannelCallback(chan.mConfig, chan.mDevice, newState,
                                               chan.mState, chan.mChannelFd, chan.mChannelId);
@@ -414,6 +449,52 @@ public class HealthService extends ProfileService {
         }
     };
 
+    /**
+     * Handlers for data channel calls, see {@link #ACTION_DATA_CHANNEL}
+     */
+    private static class DataChannelBinder extends IBluetoothHealthDataChannel.Stub {
+        private HealthService mService;
+
+        DataChannelBinder(HealthService svc) {
+            mService = svc;
+        }
+
+        void cleanup() {
+            mService = null;
+        }
+
+        private HealthService getService() {
+            if (!Utils.checkCaller()) {
+                Log.w(TAG, "Health data call not allowed for non-active user");
+                return null;
+            }
+
+            HealthService service = mService;
+            if (service != null && service.isAvailable()) {
+                return service;
+            }
+            return null;
+        }
+
+        public boolean setApduMode(BluetoothHealthAppConfiguration config, boolean enabled) {
+            HealthService service = getService();
+            if (service == null) return false;
+            return service.setApduMode(config, enabled);
+        }
+
+        public byte[] readApdus(int channelId, int maxBytes, long timeoutMs) {
+            HealthService service = getService();
+            if (service == null) return null;
+            return service.readApdus(channelId, maxBytes, timeoutMs);
+        }
+
+        public boolean writeApdu(int channelId, byte[] apdu) {
+            HealthService service = getService();
+            if (service == null) return false;
+            return service.writeApdu(channelId, apdu);
+        }
+    }
+
     boolean registerAppConfiguration(BluetoothHealthAppConfiguration config,
             IBluetoothHealthCallback callback) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM,
@@ -480,6 +561,45 @@ public class HealthService extends ProfileService {
         return healthChan.mChannelFd;
     }
 
+    boolean setApduMode(BluetoothHealthAppConfiguration config, boolean enabled) {
+        enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
+        AppInfo appInfo = mApps.get(config);
+        if (appInfo == null) {
+            Log.e(TAG, "setApduMode: no app found for config: " + config);
+            return false;
+        }
+        appInfo.mApduMode = enabled;
+        return true;
+    }
+
+    byte[] readApdus(int channelId, int maxBytes, long timeoutMs) {
+        enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
+        HealthDataChannel dataChannel = findDataChannel(channelId);
+        if (dataChannel == null) return null;
+        try {
+            return dataChannel.readApdus(maxBytes, Math.min(timeoutMs, MAX_READ_TIMEOUT_MS));
+        } catch (InterruptedException e) {
+            return new byte[0];
+        }
+    }
+
+    boolean writeApdu(int channelId, byte[] apdu) {
+        enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
+        HealthDataChannel dataChannel = findDataChannel(channelId);
+        if (dataChannel == null) return false;
+        return dataChannel.writeApdu(apdu);
+    }
+
+    private HealthDataChannel findDataChannel(int channelId) {
+        HealthChannel chan = findChannelById(channelId);
+        if (chan == null) return null;
+        HealthDataChannel dataChannel = chan.mDataChannel;
+        if (dataChannel == null) {
+            Log.e(TAG, "Channel " + channelId + " is not in APDU mode");
+        }
+        return dataChannel;
+    }
+
     int getHealthDeviceConnectionState(BluetoothDevice device) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
         return getConnectionState(device);
@@ -818,6 +938,12 @@ public class HealthService extends ProfileService {
         println(sb, "mHealthChannels:");
         for (HealthChannel channel : mHealthChannels) {
             println(sb, "  " + channel);
+            HealthDataChannel dataChannel = channel.mDataChannel;
+            if (dataChannel != null) {
+                StringBuilder dataInfo = new StringBuilder();
+                dataChannel.dump(dataInfo);
+                println(sb, "    " + dataInfo);
+            }
         }
         println(sb, "mApps:");
         for (BluetoothHealthAppConfiguration conf : mApps.keySet()) {
@@ -833,6 +959,8 @@ public class HealthService extends ProfileService {
         private IBluetoothHealthCallback mCallback;
         private BluetoothHealthDeathRecipient mRcpObj;
         private int mAppId;
+        // Channels connected from now on are handled by the service
+        private volatile boolean mApduMode;
 
         private AppInfo(IBluetoothHealthCallback callback) {
             mCallback = callback;
@@ -869,6 +997,8 @@ public class HealthService extends ProfileService {
         private int mState;
         private int mChannelType;
         private int mChannelId;
+        // Set in APDU mode, then owns the channel fd instead of mChannelFd
+        private volatile HealthDataChannel mDataChannel;
 
         private HealthChannel(BluetoothDevice device, BluetoothHealthAppConfiguration config,
                       int channelType) {
@@ -879,6 +1009,20 @@ public class HealthService extends ProfileService {
              mChannelType = channelType;
              mChannelId = -1;
         }
+
+        private synchronized void openDataChannel() {
+            closeDataChannel();
+            mDataChannel = new HealthDataChannel(mDevice, mChannelId, mChannelFd);
+            mChannelFd = null;
+            mDataChannel.start();
+        }
+
+        private synchronized void closeDataChannel() {
+            if (mDataChannel != null) {
+                mDataChannel.close();
+                mDataChannel = null;
+            }
+        }
     }
 
     // Channel state event from Hal
@@ -107,6 +107,11 @@ final class HeadsetClientStateMachine extends StateMachine {
     // special action to handle terminating specific call from multiparty call
     static final int TERMINATE_SPECIFIC_CALL = 53;
 
+    // delay used to collapse a burst of indicator changes into one AT+CLCC
+    private static final int QUERY_CURRENT_CALLS_DELAY = 100;
+    // delay between AT+CLCC while the call list stays ambiguous
+    private static final int QUERY_CURRENT_CALLS_LOOP_DELAY = 1523;
+
     static final int MAX_HFP_SCO_VOICE_CALL_VOLUME = 15; // HFP 1.5 spec.
     static final int MIN_HFP_SCO_VOICE_CALL_VOLUME = 1; // HFP 1.5 spec.
 
@@ -122,6 +127,15 @@ final class HeadsetClientStateMachine extends StateMachine {
     private Hashtable<Integer, BluetoothHeadsetClientCall> mCalls;
     private Hashtable<Integer, BluetoothHeadsetClientCall> mCallsUpdate;
     private boolean mQueryCallsSupported;
+    // AT+CLCC is scheduled and will be sent after QUERY_CURRENT_CALLS_DELAY
+    private boolean mQueryCallsScheduled;
+    // call list changed while AT+CLCC was in progress, query once more
+    private boolean mQueryCallsRepeat;
+
+    // call state sync statistics
+    private long mQueryCallsSent;
+    private long mQueryCallsCoalesced;
+    private long mQueryCallsAvoided;
 
     private int mIndicatorNetworkState;
     private int mIndicatorNetworkType;
@@ -203,6 +217,11 @@ final class HeadsetClientStateMachine extends StateMachine {
                 ProfileService.println(sb, "  " + call);
             }
         }
+
+        ProfileService.println(sb, "mQueryCallsSupported: " + mQueryCallsSupported);
+        ProfileService.println(sb, "CLCC queries sent: " + mQueryCallsSent
+                + ", coalesced: " + mQueryCallsCoalesced
+                + ", avoided: " + mQueryCallsAvoided);
         Log.d(TAG, "Exit Dump()");
     }
 
@@ -414,6 +433,49 @@ final class HeadsetClientStateMachine extends StateMachine {
         return true;
     }
 
+    /*
+     * Ask the AG for the current call list. Requests arriving while a query is
+     * already scheduled are merged into it, requests arriving while a query is
+     * in progress cause a single follow-up query once it completes.
+     */
+    private void requestQueryCalls() {
+        Log.d(TAG, "Enter requestQueryCalls()");
+        if (mCallsUpdate != null) {
+            mQueryCallsRepeat = true;
+            mQueryCallsCoalesced++;
+            return;
+        }
+
+        if (mQueryCallsScheduled) {
+            mQueryCallsCoalesced++;
+            return;
+        }
+
+        // replaces a pending loop query, if any
+        removeMessages(QUERY_CURRENT_CALLS);
+        mQueryCallsScheduled = true;
+        sendMessageDelayed(QUERY_CURRENT_CALLS, QUERY_CURRENT_CALLS_DELAY);
+        Log.d(TAG, "Exit requestQueryCalls()");
+    }
+
+    /*
+     * Indicator updates are applied to mCalls directly when they can only
+     * refer to one call. Returns false if the call list has to be queried
+     * instead, i.e. more than one call is known or a query is pending anyway.
+     */
+    private boolean canUpdateCallsFromIndicators() {
+        if (!mQueryCallsSupported) {
+            return true;
+        }
+
+        if (mQueryCallsScheduled || mCallsUpdate != null || mCalls.size() > 1) {
+            return false;
+        }
+
+        mQueryCallsAvoided++;
+        return true;
+    }
+
     private void updateCallIndicator(int call) {
         Log.d(TAG, "Enter updateCallIndicator()");
         Log.d(TAG, "updateCallIndicator " + call);
@@ -422,8 +484,16 @@ final class HeadsetClientStateMachine extends StateMachine {
             return;
         }
 
-        if (mQueryCallsSupported) {
-            sendMessage(QUERY_CURRENT_CALLS);
+        // call became active without a known call in setup state
+        boolean unknownActive = call == HeadsetClientHalConstants.CALL_CALLS_IN_PROGRESS &&
+                mIndicatorCall != HeadsetClientHalConstants.CALL_CALLS_IN_PROGRESS &&
+                getCall(BluetoothHeadsetClientCall.CALL_STATE_DIALING,
+                        BluetoothHeadsetClientCall.CALL_STATE_ALERTING,
+                        BluetoothHeadsetClientCall.CALL_STATE_INCOMING) == null;
+
+        if ((unknownActive && mQueryCallsSupported) || !canUpdateCallsFromIndicators()) {
+            mIndicatorCall = call;
+            requestQueryCalls();
             return;
         }
 
@@ -481,8 +551,16 @@ final class HeadsetClientStateMachine extends StateMachine {
             return;
         }
 
-        if (mQueryCallsSupported) {
-            sendMessage(QUERY_CURRENT_CALLS);
+        // number of an outgoing call not dialed by us is only known from CLCC
+        boolean unknownOutgoing =
+                (callsetup == HeadsetClientHalConstants.CALLSETUP_OUTGOING ||
+                callsetup == HeadsetClientHalConstants.CALLSETUP_ALERTING) &&
+                mPendingAction.first != DIAL_NUMBER &&
+                getCall(BluetoothHeadsetClientCall.CALL_STATE_DIALING) == null;
+
+        if ((unknownOutgoing && mQueryCallsSupported) || !canUpdateCallsFromIndicators()) {
+            mIndicatorCallSetup = callsetup;
+            requestQueryCalls();
             return;
         }
 
@@ -611,7 +689,15 @@ final class HeadsetClientStateMachine extends StateMachine {
         }
 
         if (mQueryCallsSupported) {
-            sendMessage(QUERY_CURRENT_CALLS);
+            // hold changes are resolved through CLCC, unless no call is or
+            // was held
+            if (callheld != HeadsetClientHalConstants.CALLHELD_NONE ||
+                    getCall(BluetoothHeadsetClientCall.CALL_STATE_HELD) != null) {
+                requestQueryCalls();
+            } else {
+                mQueryCallsAvoided++;
+            }
+            mIndicatorCallHeld = callheld;
             return;
         }
 
@@ -762,7 +848,7 @@ final class HeadsetClientStateMachine extends StateMachine {
         Log.d(TAG, "updatRespAndHold " + resp_and_hold);
 
         if (mQueryCallsSupported) {
-            sendMessage(QUERY_CURRENT_CALLS);
+            requestQueryCalls();
             return;
         }
 
@@ -847,6 +933,8 @@ final class HeadsetClientStateMachine extends StateMachine {
         }
 
         if (queryCurrentCallsNative()) {
+            mQueryCallsSent++;
+            mQueryCallsRepeat = false;
             mCallsUpdate = new Hashtable<Integer, BluetoothHeadsetClientCall>();
             addQueuedAction(QUERY_CURRENT_CALLS, 0);
             return true;
@@ -907,9 +995,13 @@ final class HeadsetClientStateMachine extends StateMachine {
         mCalls = mCallsUpdate;
         mCallsUpdate = null;
 
-        if (loopQueryCalls()) {
+        if (mQueryCallsRepeat) {
+            Log.d(TAG, "queryCallsDone calls changed during query, querying again");
+            mQueryCallsRepeat = false;
+            requestQueryCalls();
+        } else if (loopQueryCalls()) {
             Log.d(TAG, "queryCallsDone ambigious calls, starting call query loop");
-            sendMessageDelayed(QUERY_CURRENT_CALLS, 1523);
+            sendMessageDelayed(QUERY_CURRENT_CALLS, QUERY_CURRENT_CALLS_LOOP_DELAY);
         }
         Log.d(TAG, "Exit queryCallsDone()");
     }
@@ -1302,6 +1394,8 @@ final class HeadsetClientStateMachine extends StateMachine {
         mCalls = new Hashtable<Integer, BluetoothHeadsetClientCall>();
         mCallsUpdate = null;
         mQueryCallsSupported = true;
+        mQueryCallsScheduled = false;
+        mQueryCallsRepeat = false;
 
         initializeNative();
         mNativeAvailable = true;
@@ -1398,6 +1492,8 @@ final class HeadsetClientStateMachine extends StateMachine {
             mCalls = new Hashtable<Integer, BluetoothHeadsetClientCall>();
             mCallsUpdate = null;
             mQueryCallsSupported = true;
+            mQueryCallsScheduled = false;
+            mQueryCallsRepeat = false;
 
             mPeerFeatures = 0;
             mChldFeatures = 0;
@@ -1807,6 +1903,7 @@ final class HeadsetClientStateMachine extends StateMachine {
                     }
                     break;
                 case QUERY_CURRENT_CALLS:
+                    mQueryCallsScheduled = false;
                     queryCallsStart();
                     break;
                 case STACK_EVENT:
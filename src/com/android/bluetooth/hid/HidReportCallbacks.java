@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.hid;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Report callbacks registered through the HidService report channel. While a
+ * device has a callback, its reports, handshakes and protocol modes are
+ * delivered to it on the native callback thread, instead of as broadcasts
+ * sent from the handler.
+ *
+ * Registration, removal and delivery synchronize on this object, so a caller
+ * can check the connection state and register atomically with respect to
+ * {@link #removeDevice(BluetoothDevice)}.
+ */
+public class HidReportCallbacks {
+    private static final String TAG = "HidReportCallbacks";
+
+    /* Callbacks with the device they serve as cookie */
+    private final RemoteCallbackList<IBluetoothHidReportCallback> mCallbacks =
+            new RemoteCallbackList<IBluetoothHidReportCallback>();
+
+    private long mDelivered;
+
+    private long mFailed;
+
+    private abstract static class Event {
+        abstract void send(IBluetoothHidReportCallback callback) throws RemoteException;
+    }
+
+    public synchronized boolean register(BluetoothDevice device,
+            IBluetoothHidReportCallback callback) {
+        return mCallbacks.register(callback, device);
+    }
+
+    public synchronized void unregister(IBluetoothHidReportCallback callback) {
+        mCallbacks.unregister(callback);
+    }
+
+    /** Drop the callbacks of a device, when it disconnects */
+    public synchronized void removeDevice(BluetoothDevice device) {
+        ArrayList<IBluetoothHidReportCallback> removed =
+                new ArrayList<IBluetoothHidReportCallback>();
+        int count = mCallbacks.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++) {
+                if (device.equals(mCallbacks.getBroadcastCookie(i))) {
+                    removed.add(mCallbacks.getBroadcastItem(i));
+                }
+            }
+        } finally {
+            mCallbacks.finishBroadcast();
+        }
+        for (IBluetoothHidReportCallback callback : removed) {
+            mCallbacks.unregister(callback);
+        }
+    }
+
+    public synchronized void clear() {
+        mCallbacks.kill();
+    }
+
+    /** @return false if the device has no callback, and the report must be broadcast */
+    public boolean onReport(final BluetoothDevice device, final byte[] report,
+            final int bufferSize) {
+        return dispatch(device, new Event() {
+            @Override
+            void send(IBluetoothHidReportCallback callback) throws RemoteException {
+                callback.onReport(device, report, bufferSize);
+            }
+        });
+    }
+
+    /** @return false if the device has no callback, and the handshake must be broadcast */
+    public boolean onHandshake(final BluetoothDevice device, final int status) {
+        return dispatch(device, new Event() {
+            @Override
+            void send(IBluetoothHidReportCallback callback) throws RemoteException {
+                callback.onHandshake(device, status);
+            }
+        });
+    }
+
+    /** @return false if the device has no callback, and the mode must be broadcast */
+    public boolean onProtocolMode(final BluetoothDevice device, final int protocolMode) {
+        return dispatch(device, new Event() {
+            @Override
+            void send(IBluetoothHidReportCallback callback) throws RemoteException {
+                callback.onProtocolMode(device, protocolMode);
+            }
+        });
+    }
+
+    private synchronized boolean dispatch(BluetoothDevice device, Event event) {
+        boolean found = false;
+        int count = mCallbacks.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++) {
+                if (!device.equals(mCallbacks.getBroadcastCookie(i))) {
+                    continue;
+                }
+                found = true;
+                try {
+                    event.send(mCallbacks.getBroadcastItem(i));
+                    mDelivered++;
+                } catch (RemoteException e) {
+                    // The callback list drops the callback once its process is gone
+                    Log.w(TAG, "Unable to deliver to the report callback of " + device, e);
+                    mFailed++;
+                }
+            }
+        } finally {
+            mCallbacks.finishBroadcast();
+        }
+        return found;
+    }
+
+    public synchronized String getSummary() {
+        return mCallbacks.getRegisteredCallbackCount() + " callbacks, " + mDelivered
+                + " delivered, " + mFailed + " failed";
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hid;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Round trip times of get/set report requests, from the request being passed
+ * to native until the report or the handshake answering it is received.
+ *
+ * The control channel of a HID device carries one transaction at a time, so
+ * responses arrive in the order of the requests. Each device keeps a FIFO of
+ * its outstanding control requests, including SET_PROTOCOL and SET_IDLE, which
+ * are answered by a handshake as well but are not sampled. A handshake answers
+ * the oldest request, a report answers the oldest GET_REPORT.
+ *
+ * All methods are synchronized, requests are made on the handler thread and
+ * responses arrive on the native callback thread.
+ */
+public class HidReportLatency {
+
+    public static final int REQUEST_GET_REPORT = 0;
+    public static final int REQUEST_SET_REPORT = 1;
+    public static final int REQUEST_SET_PROTOCOL = 2;
+    public static final int REQUEST_SET_IDLE = 3;
+
+    private static final int MAX_SAMPLES = 512;
+    // Requests without a response are dropped beyond this
+    private static final int MAX_PENDING = 32;
+
+    private static class Request {
+        final int mType;
+        final long mTimeNanos;
+
+        Request(int type, long timeNanos) {
+            mType = type;
+            mTimeNanos = timeNanos;
+        }
+    }
+
+    private final HashMap<BluetoothDevice, ArrayDeque<Request>> mPending =
+            new HashMap<BluetoothDevice, ArrayDeque<Request>>();
+    private final long[] mSamples = new long[MAX_SAMPLES];
+    private int mSampleCount = 0;
+    private long mTotal = 0;
+
+    public synchronized void onRequest(BluetoothDevice device, int type) {
+        ArrayDeque<Request> pending = mPending.get(device);
+        if (pending == null) {
+            pending = new ArrayDeque<Request>();
+            mPending.put(device, pending);
+        }
+        if (pending.size() == MAX_PENDING) {
+            pending.poll();
+        }
+        pending.add(new Request(type, SystemClock.elapsedRealtimeNanos()));
+    }
+
+    /**
+     * A report was received. Requests queued before the oldest GET_REPORT
+     * were not answered and are dropped.
+     */
+    public synchronized void onReport(BluetoothDevice device) {
+        ArrayDeque<Request> pending = mPending.get(device);
+        if (pending == null) return;
+        Request request;
+        while ((request = pending.poll()) != null) {
+            if (request.mType == REQUEST_GET_REPORT) {
+                addSample(request);
+                return;
+            }
+        }
+    }
+
+    /**
+     * A handshake was received. It answers the oldest request, which is only
+     * sampled if it is a SET_REPORT; a GET_REPORT answered by a handshake failed.
+     */
+    public synchronized void onHandshake(BluetoothDevice device) {
+        ArrayDeque<Request> pending = mPending.get(device);
+        if (pending == null) return;
+        Request request = pending.poll();
+        if (request != null && request.mType == REQUEST_SET_REPORT) {
+            addSample(request);
+        }
+    }
+
+    /**
+     * The last request of |device| could not be sent, it will not be answered.
+     */
+    public synchronized void cancel(BluetoothDevice device) {
+        ArrayDeque<Request> pending = mPending.get(device);
+        if (pending != null) {
+            pending.pollLast();
+        }
+    }
+
+    public synchronized void clear(BluetoothDevice device) {
+        mPending.remove(device);
+    }
+
+    public synchronized int getPendingCount(BluetoothDevice device) {
+        ArrayDeque<Request> pending = mPending.get(device);
+        return pending == null ? 0 : pending.size();
+    }
+
+    public synchronized long getSampleTotal() {
+        return mTotal;
+    }
+
+    public synchronized String getSummary() {
+        if (mSampleCount == 0) return "no samples";
+        long[] sorted = Arrays.copyOf(mSamples, mSampleCount);
+        Arrays.sort(sorted);
+        return "p50 " + percentile(sorted, 50) + "us, p90 " + percentile(sorted, 90)
+                + "us, p99 " + percentile(sorted, 99) + "us, max " + sorted[mSampleCount - 1]
+                + "us (last " + mSampleCount + " of " + mTotal + ")";
+    }
+
+    private void addSample(Request request) {
+        long latencyUs = (SystemClock.elapsedRealtimeNanos() - request.mTimeNanos) / 1000;
+        mSamples[(int) (mTotal % MAX_SAMPLES)] = latencyUs;
+        mTotal++;
+        if (mSampleCount < MAX_SAMPLES) mSampleCount++;
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        int index = (sorted.length * percent + 99) / 100 - 1;
+        return sorted[Math.max(0, index)];
+    }
+}
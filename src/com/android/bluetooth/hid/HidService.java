@@ -52,11 +52,22 @@ public class HidService extends ProfileService {
     public static final String LOG_TAG = "BluetoothHidHost";
     private static boolean DBG = Log.isLoggable(LOG_TAG, Log.DEBUG);
 
+    /** Bind action returning the {@link IBluetoothHidReportChannel} of the service */
+    public static final String ACTION_REPORT_CHANNEL =
+            "com.android.bluetooth.hid.IBluetoothHidReportChannel";
+
     private Map<BluetoothDevice, Integer> mInputDevices;
     private boolean mNativeAvailable;
     private static HidService sHidService;
     private BluetoothDevice mTargetDevice = null;
 
+    // Native addresses of the devices in use, to avoid parsing the address per report
+    private final Map<BluetoothDevice, byte[]> mNativeAddresses =
+            Collections.synchronizedMap(new HashMap<BluetoothDevice, byte[]>());
+    private final HidReportLatency mReportLatency = new HidReportLatency();
+    private final HidReportCallbacks mReportCallbacks = new HidReportCallbacks();
+    private ReportChannelBinder mReportChannel;
+
     private static final int MESSAGE_CONNECT = 1;
     private static final int MESSAGE_DISCONNECT = 2;
     private static final int MESSAGE_CONNECT_STATE_CHANGED = 3;
@@ -73,6 +84,7 @@ public class HidService extends ProfileService {
     private static final int MESSAGE_GET_IDLE_TIME = 14;
     private static final int MESSAGE_ON_GET_IDLE_TIME = 15;
     private static final int MESSAGE_SET_IDLE_TIME = 16;
+    private static final int MESSAGE_SET_REPORT_BATCH = 17;
 
     static {
         classInitNative();
@@ -86,6 +98,19 @@ public class HidService extends ProfileService {
         return new BluetoothInputDeviceBinder(this);
     }
 
+    @Override
+    public IBinder onBind(Intent intent) {
+        if (ACTION_REPORT_CHANNEL.equals(intent.getAction())) {
+            synchronized (this) {
+                if (mReportChannel == null) {
+                    mReportChannel = new ReportChannelBinder(this);
+                }
+                return mReportChannel;
+            }
+        }
+        return super.onBind(intent);
+    }
+
     protected boolean start() {
         if(!DBG)
             DBG = Log.isLoggable(LOG_TAG, Log.DEBUG);
@@ -111,6 +136,14 @@ public class HidService extends ProfileService {
         if(mInputDevices != null) {
             mInputDevices.clear();
         }
+        mNativeAddresses.clear();
+        mReportCallbacks.clear();
+        synchronized (this) {
+            if (mReportChannel != null) {
+                mReportChannel.cleanup();
+                mReportChannel = null;
+            }
+        }
         clearHidService();
         return true;
     }
@@ -158,7 +191,7 @@ public class HidService extends ProfileService {
                 case MESSAGE_CONNECT:
                 {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
-                    if (!connectHidNative(Utils.getByteAddress(device)) ) {
+                    if (!connectHidNative(getNativeAddress(device)) ) {
                         broadcastConnectionState(device, BluetoothProfile.STATE_DISCONNECTING);
                         broadcastConnectionState(device, BluetoothProfile.STATE_DISCONNECTED);
                         break;
@@ -169,7 +202,7 @@ public class HidService extends ProfileService {
                 case MESSAGE_DISCONNECT:
                 {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
-                    if (!disconnectHidNative(Utils.getByteAddress(device)) ) {
+                    if (!disconnectHidNative(getNativeAddress(device)) ) {
                         broadcastConnectionState(device, BluetoothProfile.STATE_DISCONNECTING);
                         broadcastConnectionState(device, BluetoothProfile.STATE_DISCONNECTED);
                         break;
@@ -189,7 +222,7 @@ public class HidService extends ProfileService {
                        prevState == BluetoothInputDevice.STATE_DISCONNECTED &&
                        (!okToConnect(device))) {
                         if (DBG) Log.d(TAG,"Incoming HID connection rejected");
-                        disconnectHidNative(Utils.getByteAddress(device));
+                        disconnectHidNative(getNativeAddress(device));
                     } else {
                         broadcastConnectionState(device, convertHalState(halState));
                     }
@@ -206,7 +239,7 @@ public class HidService extends ProfileService {
                 case MESSAGE_GET_PROTOCOL_MODE:
                 {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
-                    if(!getProtocolModeNative(Utils.getByteAddress(device)) ) {
+                    if(!getProtocolModeNative(getNativeAddress(device)) ) {
                         Log.e(TAG, "Error: get protocol mode native returns false");
                     }
                 }
@@ -222,7 +255,7 @@ public class HidService extends ProfileService {
                 case MESSAGE_VIRTUAL_UNPLUG:
                 {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
-                    if(!virtualUnPlugNative(Utils.getByteAddress(device))) {
+                    if(!virtualUnPlugNative(getNativeAddress(device))) {
                         Log.e(TAG, "Error: virtual unplug native returns false");
                     }
                 }
@@ -232,8 +265,10 @@ public class HidService extends ProfileService {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
                     byte protocolMode = (byte) msg.arg1;
                     log("sending set protocol mode(" + protocolMode + ")");
-                    if(!setProtocolModeNative(Utils.getByteAddress(device), protocolMode)) {
+                    mReportLatency.onRequest(device, HidReportLatency.REQUEST_SET_PROTOCOL);
+                    if(!setProtocolModeNative(getNativeAddress(device), protocolMode)) {
                         Log.e(TAG, "Error: set protocol mode native returns false");
+                        mReportLatency.cancel(device);
                     }
                 }
                 break;
@@ -244,8 +279,10 @@ public class HidService extends ProfileService {
                     byte reportType = data.getByte(BluetoothInputDevice.EXTRA_REPORT_TYPE);
                     byte reportId = data.getByte(BluetoothInputDevice.EXTRA_REPORT_ID);
                     int bufferSize = data.getInt(BluetoothInputDevice.EXTRA_REPORT_BUFFER_SIZE);
-                    if(!getReportNative(Utils.getByteAddress(device), reportType, reportId, bufferSize)) {
+                    mReportLatency.onRequest(device, HidReportLatency.REQUEST_GET_REPORT);
+                    if(!getReportNative(getNativeAddress(device), reportType, reportId, bufferSize)) {
                         Log.e(TAG, "Error: get report native returns false");
+                        mReportLatency.cancel(device);
                     }
                 }
                 break;
@@ -271,8 +308,28 @@ public class HidService extends ProfileService {
                     Bundle data = msg.getData();
                     byte reportType = data.getByte(BluetoothInputDevice.EXTRA_REPORT_TYPE);
                     String report = data.getString(BluetoothInputDevice.EXTRA_REPORT);
-                    if(!setReportNative(Utils.getByteAddress(device), reportType, report)) {
+                    mReportLatency.onRequest(device, HidReportLatency.REQUEST_SET_REPORT);
+                    if(!setReportNative(getNativeAddress(device), reportType, report)) {
                         Log.e(TAG, "Error: set report native returns false");
+                        mReportLatency.cancel(device);
+                    }
+                }
+                break;
+                case MESSAGE_SET_REPORT_BATCH:
+                {
+                    BluetoothDevice device = (BluetoothDevice) msg.obj;
+                    byte reportType = (byte) msg.arg1;
+                    String[] reports = msg.getData().getStringArray(
+                            BluetoothInputDevice.EXTRA_REPORT);
+                    byte[] address = getNativeAddress(device);
+                    for (int i = 0; i < reports.length; i++) {
+                        mReportLatency.onRequest(device, HidReportLatency.REQUEST_SET_REPORT);
+                        if (!setReportNative(address, reportType, reports[i])) {
+                            Log.e(TAG, "Error: set report native returns false, dropping "
+                                    + (reports.length - i) + " reports");
+                            mReportLatency.cancel(device);
+                            break;
+                        }
                     }
                 }
                 break;
@@ -281,7 +338,7 @@ public class HidService extends ProfileService {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
                     Bundle data = msg.getData();
                     String report = data.getString(BluetoothInputDevice.EXTRA_REPORT);
-                    if(!sendDataNative(Utils.getByteAddress(device), report)) {
+                    if(!sendDataNative(getNativeAddress(device), report)) {
                         Log.e(TAG, "Error: send data native returns false");
                     }
                 }
@@ -296,7 +353,7 @@ public class HidService extends ProfileService {
                 case MESSAGE_GET_IDLE_TIME:
                 {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
-                    if(!getIdleTimeNative(Utils.getByteAddress(device)) ) {
+                    if(!getIdleTimeNative(getNativeAddress(device)) ) {
                         Log.e(TAG, "Error: get idle time native returns false");
                     }
                 }
@@ -313,8 +370,10 @@ public class HidService extends ProfileService {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
                     Bundle data = msg.getData();
                     byte idleTime = data.getByte(BluetoothInputDevice.EXTRA_IDLE_TIME);
-                    if(!setIdleTimeNative(Utils.getByteAddress(device), idleTime)) {
+                    mReportLatency.onRequest(device, HidReportLatency.REQUEST_SET_IDLE);
+                    if(!setIdleTimeNative(getNativeAddress(device), idleTime)) {
                         Log.e(TAG, "Error: get idle time native returns false");
+                        mReportLatency.cancel(device);
                     }
                 }
                 break;
@@ -439,6 +498,67 @@ public class HidService extends ProfileService {
         }
     };
 
+    /**
+     * Handlers for report channel calls, see {@link #ACTION_REPORT_CHANNEL}
+     */
+    private static class ReportChannelBinder extends IBluetoothHidReportChannel.Stub {
+        private HidService mService;
+
+        ReportChannelBinder(HidService svc) {
+            mService = svc;
+        }
+
+        void cleanup() {
+            mService = null;
+        }
+
+        private HidService getService() {
+            if (!Utils.checkCaller()) {
+                Log.w(TAG, "Report channel call not allowed for non-active user");
+                return null;
+            }
+
+            HidService service = mService;
+            if (service != null && service.isAvailable()) {
+                return service;
+            }
+            return null;
+        }
+
+        public boolean registerCallback(BluetoothDevice device,
+                IBluetoothHidReportCallback callback) {
+            HidService service = getService();
+            if (service == null) return false;
+            return service.registerReportCallback(device, callback);
+        }
+
+        public void unregisterCallback(IBluetoothHidReportCallback callback) {
+            HidService service = getService();
+            if (service == null) return;
+            service.unregisterReportCallback(callback);
+        }
+
+        public boolean getReport(BluetoothDevice device, byte reportType, byte reportId,
+                int bufferSize) {
+            HidService service = getService();
+            if (service == null) return false;
+            return service.getReport(device, reportType, reportId, bufferSize);
+        }
+
+        public boolean setReportBatch(BluetoothDevice device, byte reportType,
+                String[] reports) {
+            HidService service = getService();
+            if (service == null) return false;
+            return service.setReportBatch(device, reportType, reports);
+        }
+
+        public int sendDataBatch(BluetoothDevice device, String[] reports) {
+            HidService service = getService();
+            if (service == null) return 0;
+            return service.sendDataBatch(device, reports);
+        }
+    }
+
     //APIs
     boolean connect(BluetoothDevice device) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
@@ -599,7 +719,7 @@ public class HidService extends ProfileService {
             return false;
         }
 
-        return sendDataNative(Utils.getByteAddress(device), report);
+        return sendDataNative(getNativeAddress(device), report);
         /*Message msg = mHandler.obtainMessage(MESSAGE_SEND_DATA);
         msg.obj = device;
         Bundle data = new Bundle();
@@ -609,6 +729,73 @@ public class HidService extends ProfileService {
         return true ;*/
     }
 
+    boolean registerReportCallback(BluetoothDevice device,
+            IBluetoothHidReportCallback callback) {
+        enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
+                                       "Need BLUETOOTH_ADMIN permission");
+        if (callback == null) {
+            return false;
+        }
+        // Checked under the callbacks lock, so a disconnect drops the registration
+        synchronized (mReportCallbacks) {
+            if (getConnectionState(device) != BluetoothInputDevice.STATE_CONNECTED) {
+                return false;
+            }
+            return mReportCallbacks.register(device, callback);
+        }
+    }
+
+    void unregisterReportCallback(IBluetoothHidReportCallback callback) {
+        enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
+                                       "Need BLUETOOTH_ADMIN permission");
+        if (callback != null) {
+            mReportCallbacks.unregister(callback);
+        }
+    }
+
+    boolean setReportBatch(BluetoothDevice device, byte reportType, String[] reports) {
+        enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
+                                       "Need BLUETOOTH_ADMIN permission");
+        int state = this.getConnectionState(device);
+        if (state != BluetoothInputDevice.STATE_CONNECTED || reports == null) {
+            return false;
+        }
+        Message msg = mHandler.obtainMessage(MESSAGE_SET_REPORT_BATCH, reportType, 0, device);
+        Bundle data = new Bundle();
+        data.putStringArray(BluetoothInputDevice.EXTRA_REPORT, reports);
+        msg.setData(data);
+        mHandler.sendMessage(msg);
+        return true;
+    }
+
+    int sendDataBatch(BluetoothDevice device, String[] reports) {
+        enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
+                                       "Need BLUETOOTH_ADMIN permission");
+        int state = this.getConnectionState(device);
+        if (state != BluetoothInputDevice.STATE_CONNECTED || reports == null) {
+            return 0;
+        }
+        byte[] address = getNativeAddress(device);
+        int sent = 0;
+        for (String report : reports) {
+            if (!sendDataNative(address, report)) {
+                Log.e(TAG, "Error: send data native returns false after " + sent + " reports");
+                break;
+            }
+            sent++;
+        }
+        return sent;
+    }
+
+    private byte[] getNativeAddress(BluetoothDevice device) {
+        byte[] address = mNativeAddresses.get(device);
+        if (address == null) {
+            address = Utils.getByteAddress(device);
+            mNativeAddresses.put(device, address);
+        }
+        return address;
+    }
+
     boolean getIdleTime(BluetoothDevice device) {
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
                                        "Need BLUETOOTH_ADMIN permission");
@@ -638,6 +825,9 @@ public class HidService extends ProfileService {
     }
 
     private void onGetProtocolMode(byte[] address, int mode) {
+        if (mReportCallbacks.onProtocolMode(getDevice(address), mode)) {
+            return;
+        }
         Message msg = mHandler.obtainMessage(MESSAGE_ON_GET_PROTOCOL_MODE);
         msg.obj = address;
         msg.arg1 = mode;
@@ -652,6 +842,11 @@ public class HidService extends ProfileService {
     }
 
     private void onGetReport(byte[] address, byte[] report, int rpt_size) {
+        BluetoothDevice device = getDevice(address);
+        mReportLatency.onReport(device);
+        if (mReportCallbacks.onReport(device, report, rpt_size)) {
+            return;
+        }
         Message msg = mHandler.obtainMessage(MESSAGE_ON_GET_REPORT);
         msg.obj = address;
         Bundle data = new Bundle();
@@ -662,6 +857,11 @@ public class HidService extends ProfileService {
     }
 
     private void onHandshake(byte[] address, int status) {
+        BluetoothDevice device = getDevice(address);
+        mReportLatency.onHandshake(device);
+        if (mReportCallbacks.onHandshake(device, status)) {
+            return;
+        }
         Message msg = mHandler.obtainMessage(MESSAGE_ON_HANDSHAKE);
         msg.obj = address;
         msg.arg1 = status;
@@ -691,7 +891,16 @@ public class HidService extends ProfileService {
             Log.w(TAG, "no state change: " + newState);
             return;
         }
-        mInputDevices.put(device, newState);
+        synchronized (mReportCallbacks) {
+            mInputDevices.put(device, newState);
+            if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mReportCallbacks.removeDevice(device);
+            }
+        }
+        if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            mNativeAddresses.remove(device);
+            mReportLatency.clear(device);
+        }
 
         /* Notifying the connection state change of the profile before sending the intent for
            connection state change, as it was causing a race condition, with the UI not being
@@ -786,6 +995,8 @@ public class HidService extends ProfileService {
         for (BluetoothDevice device : mInputDevices.keySet()) {
             println(sb, "  " + device + " : " + mInputDevices.get(device));
         }
+        println(sb, "Report round trip: " + mReportLatency.getSummary());
+        println(sb, "Report callbacks: " + mReportCallbacks.getSummary());
     }
 
     // Constants matching Hal header file bt_hh.h
@@ -17,10 +17,10 @@ package com.android.bluetooth.map;
 import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.net.Uri;
 import android.net.Uri.Builder;
-import android.os.ParcelFileDescriptor;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
@@ -47,9 +47,9 @@ import com.android.bluetooth.mapapi.BluetoothMapContract.ConversationColumns;
 import com.google.android.mms.pdu.CharacterSets;
 import com.google.android.mms.pdu.PduHeaders;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -3309,6 +3309,20 @@ public class BluetoothMapContent {
     public byte[] getMessage(String handle, BluetoothMapAppParams appParams,
             BluetoothMapFolderElement folderElement, String version)
             throws UnsupportedEncodingException{
+        return loadMessage(handle, appParams, folderElement, version).encode();
+    }
+
+    /**
+     * Load a message without encoding it. Attachments and e-mail bodies are not read,
+     * but streamed from the content provider when the returned bMessage is encoded
+     * using {@link BluetoothMapbMessage#encode(java.io.OutputStream)}.
+     * @return the bMessage to send to the client
+     * @throws IllegalArgumentException if the handle is invalid, or the requested
+     * parameters are not supported for the message type.
+     */
+    public BluetoothMapbMessage loadMessage(String handle, BluetoothMapAppParams appParams,
+            BluetoothMapFolderElement folderElement, String version)
+            throws UnsupportedEncodingException{
         TYPE type = BluetoothMapUtils.getMsgTypeFromHandle(handle);
         mMessageVersion = version;
         long id = BluetoothMapUtils.getCpHandle(handle);
@@ -3402,7 +3416,8 @@ public class BluetoothMapContent {
     public static final int MAP_MESSAGE_CHARSET_NATIVE = 0;
     public static final int MAP_MESSAGE_CHARSET_UTF8 = 1;
 
-    public byte[] getSmsMessage(long id, int charset) throws UnsupportedEncodingException{
+    public BluetoothMapbMessageSms getSmsMessage(long id, int charset)
+            throws UnsupportedEncodingException{
         int type, threadId;
         long time = -1;
         String msgBody;
@@ -3460,13 +3475,13 @@ public class BluetoothMapContent {
                 } else /*if (charset == MAP_MESSAGE_CHARSET_UTF8)*/ {
                     message.setSmsBody(msgBody);
                 }
-                return message.encode();
+                return message;
             }
         } finally {
             if (c != null) c.close();
         }
 
-        return message.encode();
+        return message;
     }
 
     private void extractMmsAddresses(long id, BluetoothMapbMessageMime message) {
@@ -3512,6 +3527,65 @@ public class BluetoothMapContent {
     }
 
 
+    /**
+     * Message content read from the content provider while the bMessage is encoded.
+     * Content missing in the provider is sent as empty data, as when it was read up front.
+     */
+    private class ProviderDataSource implements BluetoothMapbMessage.DataSource {
+        private final Uri mUri;
+
+        /* Once the content is found missing it stays empty, so the length and
+         * the data read for the same bMessage match */
+        private boolean mMissing = false;
+
+        ProviderDataSource(Uri uri) {
+            mUri = uri;
+        }
+
+        @Override
+        public long getLength() {
+            if (mMissing) {
+                return 0;
+            }
+            AssetFileDescriptor afd = null;
+            try {
+                afd = mResolver.openAssetFileDescriptor(mUri, "r");
+                if (afd != null) {
+                    // UNKNOWN_LENGTH is -1, as expected by the bMessage encoder
+                    return afd.getLength();
+                }
+            } catch (FileNotFoundException e) {
+                Log.w(TAG, "No content for " + mUri + ", sending it empty", e);
+                mMissing = true;
+                return 0;
+            } finally {
+                if (afd != null) {
+                    try {
+                        afd.close();
+                    } catch (IOException e) {}
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            InputStream is = null;
+            if (!mMissing) {
+                try {
+                    is = mResolver.openInputStream(mUri);
+                } catch (FileNotFoundException e) {
+                    Log.w(TAG, "No content for " + mUri + ", sending it empty", e);
+                }
+            }
+            if (is == null) {
+                mMissing = true;
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            return is;
+        }
+    }
+
     /**
      * Read out a mime data part and return the data in a byte array.
      * @param contentPartUri TODO
@@ -3595,6 +3669,14 @@ public class BluetoothMapContent {
                         if(text != null) {
                             part.mData = text.getBytes("UTF-8");
                             part.mCharsetName = "utf-8";
+                        } else if(part.isBase64Encoded()) {
+                            /* Attachments are read while the message is encoded */
+                            part.mDataSource = new ProviderDataSource(
+                                    Uri.parse(Mms.CONTENT_URI + "/part/" + partId));
+                            if(charset != null) {
+                                part.mCharsetName =
+                                        CharacterSets.getMimeName(Integer.parseInt(charset));
+                            }
                         } else {
                             part.mData =
                                     readRawDataPart(Uri.parse(Mms.CONTENT_URI+"/part"), partId);
@@ -3697,11 +3779,11 @@ public class BluetoothMapContent {
      *
      * @param id the content provider id for the message to fetch.
      * @param appParams The application parameter object received from the client.
-     * @return a byte[] containing the utf-8 encoded bMessage to send to the client.
+     * @return the bMessage to send to the client.
      * @throws UnsupportedEncodingException if UTF-8 is not supported,
      * which is guaranteed to be supported on an android device
      */
-    public byte[] getMmsMessage(long id,BluetoothMapAppParams appParams)
+    public BluetoothMapbMessageMime getMmsMessage(long id,BluetoothMapAppParams appParams)
                                                         throws UnsupportedEncodingException {
         int msgBox, threadId;
         if (appParams.getCharset() == MAP_MESSAGE_CHARSET_NATIVE)
@@ -3742,24 +3824,24 @@ public class BluetoothMapContent {
                 extractMmsAddresses(id, message);
 
 
-                return message.encode();
+                return message;
             }
         } finally {
             if (c != null) c.close();
         }
 
-        return message.encode();
+        return message;
     }
 
     /**
     *
     * @param id the content provider id for the message to fetch.
     * @param appParams The application parameter object received from the client.
-    * @return a byte[] containing the utf-8 encoded bMessage to send to the client.
+    * @return the bMessage to send to the client.
     * @throws UnsupportedEncodingException if UTF-8 is not supported,
     * which is guaranteed to be supported on an android device
     */
-   public byte[] getEmailMessage(long id, BluetoothMapAppParams appParams,
+   public BluetoothMapbMessage getEmailMessage(long id, BluetoothMapAppParams appParams,
            BluetoothMapFolderElement currentFolder) throws UnsupportedEncodingException {
        // Log print out of application parameters set
        if(D && appParams != null) {
@@ -3781,8 +3863,6 @@ public class BluetoothMapContent {
            if(c != null && c.moveToFirst())
            {
                BluetoothMapFolderElement folderElement;
-               FileInputStream is = null;
-               ParcelFileDescriptor fd = null;
                try {
                    // Handle fraction requests
                    int fractionRequest = appParams.getFractionRequest();
@@ -3858,37 +3938,9 @@ public class BluetoothMapContent {
                                            "/" +  BluetoothMapContract.FILE_MSG_NO_ATTACHMENTS : "";
                Uri uri = Uri.parse(contentUri + "/" + id + attStr);
 
-               // Get email message body content
-               int count = 0;
-               try {
-                   fd = mResolver.openFileDescriptor(uri, "r");
-                   is = new FileInputStream(fd.getFileDescriptor());
-                   StringBuilder email = new StringBuilder("");
-                   byte[] buffer = new byte[1024];
-                   while((count = is.read(buffer)) != -1) {
-                       // TODO: Handle breaks within a UTF8 character
-                       email.append(new String(buffer,0,count));
-                       if(V) Log.d(TAG, "Email part = "
-                                         + new String(buffer,0,count)
-                                         + " count=" + count);
-                   }
-                   // Set email message body:
-                   message.setEmailBody(email.toString());
-               } catch (FileNotFoundException e) {
-                   Log.w(TAG, e);
-               } catch (NullPointerException e) {
-                   Log.w(TAG, e);
-               } catch (IOException e) {
-                   Log.w(TAG, e);
-               } finally {
-                   try {
-                       if(is != null) is.close();
-                   } catch (IOException e) {}
-                   try {
-                       if(fd != null) fd.close();
-                   } catch (IOException e) {}
-               }
-               return message.encode();
+               // The email message body content is read while the message is encoded
+               message.setEmailBodySource(new ProviderDataSource(uri));
+               return message;
            }
        } finally {
            if (c != null) c.close();
@@ -3899,7 +3951,7 @@ public class BluetoothMapContent {
    *
    * @param id the content provider id for the message to fetch.
    * @param appParams The application parameter object received from the client.
-   * @return a byte[] containing the UTF-8 encoded bMessage to send to the client.
+   * @return the bMessage to send to the client.
    * @throws UnsupportedEncodingException if UTF-8 is not supported,
    * which is guaranteed to be supported on an android device
    */
@@ -3908,11 +3960,11 @@ public class BluetoothMapContent {
    *
    * @param id the content provider id for the message to fetch.
    * @param appParams The application parameter object received from the client.
-   * @return a byte[] containing the utf-8 encoded bMessage to send to the client.
+   * @return the bMessage to send to the client.
    * @throws UnsupportedEncodingException if UTF-8 is not supported,
    * which is guaranteed to be supported on an android device
    */
-   public byte[] getIMMessage(long id,
+   public BluetoothMapbMessageMime getIMMessage(long id,
            BluetoothMapAppParams appParams,
            BluetoothMapFolderElement folderElement)
                    throws UnsupportedEncodingException {
@@ -4004,7 +4056,7 @@ public class BluetoothMapContent {
 
                    }
                }
-               return message.encode();
+               return message;
            }
        } finally {
            if(c != null) c.close();
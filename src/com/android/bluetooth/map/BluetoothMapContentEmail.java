@@ -1763,11 +1763,11 @@ public class BluetoothMapContentEmail extends BluetoothMapContent {
     *
     * @param id the content provider id for the message to fetch.
     * @param appParams The application parameter object received from the client.
-    * @return a byte[] containing the utf-8 encoded bMessage to send to the client.
+    * @return the bMessage to send to the client.
     * @throws UnsupportedEncodingException if UTF-8 is not supported,
     * which is guaranteed to be supported on an android device
     */
-   public byte[] getEmailMessage(long id, BluetoothMapAppParams appParams,
+   public BluetoothMapbMessage getEmailMessage(long id, BluetoothMapAppParams appParams,
            BluetoothMapFolderElement currentFolder) throws UnsupportedEncodingException {
        // Log print out of application parameters set
        if(D && appParams != null) {
@@ -1881,7 +1881,7 @@ public class BluetoothMapContentEmail extends BluetoothMapContent {
 
                // The addresses
                extractEmailAddresses(id, message);
-               return message.encodeEmail();
+               return message;
            }
        } finally {
            if (c != null) c.close();
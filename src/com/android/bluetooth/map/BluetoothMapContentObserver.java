@@ -728,6 +728,19 @@ public class BluetoothMapContentObserver {
             }
         }
 
+        /**
+         * @return the MAP handle used to coalesce pending events for the same message,
+         *         or null for events not related to a message handle.
+         */
+        String getCoalesceHandle() {
+            if (eventType.equals(EVENT_TYPE_CONVERSATION) ||
+                    eventType.equals(EVENT_TYPE_PRESENCE) ||
+                    eventType.equals(EVENT_TYPE_CHAT_STATE) || msgType == null) {
+                return null;
+            }
+            return BluetoothMapUtils.getMapHandle(handle, msgType);
+        }
+
         public byte[] encode() throws UnsupportedEncodingException {
             StringWriter sw = new StringWriter();
             XmlSerializer xmlEvtReport = Xml.newSerializer();
@@ -1184,7 +1197,7 @@ public class BluetoothMapContentObserver {
         }
 
         try {
-            mMnsClient.sendEvent(evt.encode(), mMasId);
+            mMnsClient.sendEvent(evt.encode(), mMasId, evt.eventType, evt.getCoalesceHandle());
         } catch (UnsupportedEncodingException ex) {
             /* do nothing */
             if (D) Log.e(TAG, "Exception - should not happen: ",ex);
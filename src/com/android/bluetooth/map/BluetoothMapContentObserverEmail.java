@@ -454,7 +454,7 @@ public class BluetoothMapContentObserverEmail extends BluetoothMapContentObserve
        }
 
         try {
-            mMnsClient.sendEvent(evt.encode(), mMasId);
+            mMnsClient.sendEvent(evt.encode(), mMasId, evt.eventType, evt.getCoalesceHandle());
         } catch (UnsupportedEncodingException ex) {
             /* do nothing */
             if (D) Log.e(TAG, "Exception - should not happen: ",ex);
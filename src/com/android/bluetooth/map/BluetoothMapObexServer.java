@@ -34,6 +34,8 @@ import com.android.bluetooth.map.BluetoothMapMasInstance;
 import com.android.bluetooth.mapapi.BluetoothMapContract;
 import com.android.bluetooth.mapapi.BluetoothMapEmailContract;
 
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -1533,11 +1535,13 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     private int sendGetMessageRsp(Operation op, String handle,
             BluetoothMapAppParams appParams, String version){
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0;
+        BluetoothMapbMessage message = null;
+        int maxChunkSize;
+        boolean complete = false;
 
         try {
-            outBytes = mOutContent.getMessage(handle, appParams, mCurrentFolder, version);
+            // Attachments are not loaded here, but read while encoding into the OBEX stream
+            message = mOutContent.loadMessage(handle, appParams, mCurrentFolder, version);
             outStream = op.openOutputStream();
 
             // If it is a fraction request of Email message, set header before responding
@@ -1574,22 +1578,24 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
 
         maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
 
-        if(outBytes != null) {
+        if(message != null) {
             try {
-                while (bytesWritten < outBytes.length && mIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                OutputStream bMsgStream = new BufferedOutputStream(
+                        new GetMessageOutputStream(outStream, maxChunkSize), maxChunkSize);
+                message.encode(bMsgStream);
+                bMsgStream.flush();
+                complete = true;
             } catch (IOException e) {
                 // We were probably aborted or disconnected
-                if(D && e.getMessage().equals("Abort Received")) {
+                if(D && "Abort Received".equals(e.getMessage())) {
                     Log.w(TAG, "getMessage() Aborted...", e);
+                } else {
+                    Log.w(TAG, "getMessage() failed", e);
                 }
             } finally {
                 if(outStream != null) { try { outStream.close(); } catch (IOException e) {} }
             }
-            if(bytesWritten == outBytes.length || mIsAborted)
+            if(complete || mIsAborted)
                 return ResponseCodes.OBEX_HTTP_OK;
             else
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
@@ -1598,6 +1604,38 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
+    /**
+     * Writes the encoded bMessage to the OBEX stream in writes of at most one packet,
+     * and stops the encoding when the operation is aborted.
+     */
+    private class GetMessageOutputStream extends FilterOutputStream {
+        private final int mMaxChunkSize;
+
+        GetMessageOutputStream(OutputStream out, int maxChunkSize) {
+            super(out);
+            mMaxChunkSize = maxChunkSize;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mIsAborted) {
+                    throw new IOException("Abort Received");
+                }
+                int bytesToWrite = Math.min(mMaxChunkSize, len);
+                out.write(b, off, bytesToWrite);
+                off += bytesToWrite;
+                len -= bytesToWrite;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The OBEX stream is closed by sendGetMessageRsp
+            flush();
+        }
+    }
+
     @Override
     public int onDelete(HeaderSet request, HeaderSet reply) {
         if(D) Log.v(TAG, "onDelete() " + request.toString());
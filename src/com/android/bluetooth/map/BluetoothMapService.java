@@ -1361,6 +1361,9 @@ public class BluetoothMapService extends ProfileService {
         println(sb, "mPermission: " + mPermission);
         println(sb, "mAccountChanged: " + mAccountChanged);
         println(sb, "mBluetoothMnsObexClient: " + mBluetoothMnsObexClient);
+        if (mBluetoothMnsObexClient != null) {
+            mBluetoothMnsObexClient.dump(sb);
+        }
         println(sb, "mMasInstanceMap:");
         for (BluetoothMapAccountItem key : mMasInstanceMap.keySet()) {
             println(sb, "  " + key + " : " + mMasInstanceMap.get(key));
@@ -21,6 +21,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 
@@ -40,6 +41,27 @@ public abstract class BluetoothMapbMessage {
 
     public static int INVALID_VALUE = -1;
 
+    /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
+    private static final int MSG_FRAME_LENGTH = 22;
+    private static final String MSG_START = "BEGIN:MSG\r\n";
+    private static final String MSG_END = "\r\nEND:MSG\r\n";
+    private static final String ENVELOPE_END = "END:BBODY\r\nEND:BENV\r\nEND:BMSG\r\n";
+
+    /**
+     * Message content which is not held in memory, e.g. an MMS attachment or an e-mail body
+     * stored by the e-mail client. The content is read when the bMessage is encoded to a
+     * stream. It might be read twice, if the length is needed for the LENGTH header and
+     * is not known up front.
+     */
+    public interface DataSource {
+        /**
+         * @return the length of the raw content in bytes, or -1 if unknown.
+         */
+        long getLength();
+
+        InputStream open() throws IOException;
+    }
+
     protected int mAppParamCharset = BluetoothMapAppParams.INVALID_VALUE_PARAMETER;
 
     /* BMSG attributes */
@@ -911,6 +933,16 @@ public abstract class BluetoothMapbMessage {
 
     public abstract byte[] encode() throws UnsupportedEncodingException;
 
+    /**
+     * Encode the bMessage into a stream. Messages holding {@link DataSource} content
+     * override this to avoid building the complete bMessage in memory.
+     * @param out the stream to write the encoded bMessage to
+     * @throws IOException if writing to the stream or reading the message content fails
+     */
+    public void encode(OutputStream out) throws IOException {
+        out.write(encode());
+    }
+
     public void setStatus(boolean read) {
         if(read)
             this.mStatus = "READ";
@@ -1079,8 +1111,61 @@ public abstract class BluetoothMapbMessage {
 
     public byte[] encodeGeneric(ArrayList<byte[]> bodyFragments) throws UnsupportedEncodingException
     {
-        StringBuilder sb = new StringBuilder(256);
         byte[] msgStart, msgEnd;
+
+        int length = 0;
+        for (byte[] fragment : bodyFragments) {
+            length += fragment.length + MSG_FRAME_LENGTH;
+        }
+
+        // Extract the initial part of the bMessage string
+        msgStart = encodeEnvelopeStart(length).getBytes("UTF-8");
+
+        msgEnd = ENVELOPE_END.getBytes("UTF-8");
+
+        try {
+
+            ByteArrayOutputStream stream = new ByteArrayOutputStream(
+                                                       msgStart.length + msgEnd.length + length);
+            stream.write(msgStart);
+
+            for (byte[] fragment : bodyFragments) {
+                stream.write(MSG_START.getBytes("UTF-8"));
+                stream.write(fragment);
+                stream.write(MSG_END.getBytes("UTF-8"));
+            }
+            stream.write(msgEnd);
+
+            if(V) Log.v(TAG,stream.toString("UTF-8"));
+            return stream.toByteArray();
+        } catch (IOException e) {
+            Log.w(TAG,e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the bMessage envelope and the start of a single message body to a stream.
+     * The caller shall write exactly bodyLength bytes of (escaped) message body, followed
+     * by a call to {@link #encodeStreamEnd(OutputStream)}.
+     * @param out the stream to write to
+     * @param bodyLength the length of the message body in bytes
+     */
+    protected void encodeStreamStart(OutputStream out, long bodyLength) throws IOException {
+        out.write(encodeEnvelopeStart(bodyLength + MSG_FRAME_LENGTH).getBytes("UTF-8"));
+        out.write(MSG_START.getBytes("UTF-8"));
+    }
+
+    protected void encodeStreamEnd(OutputStream out) throws IOException {
+        out.write((MSG_END + ENVELOPE_END).getBytes("UTF-8"));
+    }
+
+    /**
+     * Build the bMessage envelope up to and including the LENGTH header.
+     * @param length the value of the LENGTH header
+     */
+    private String encodeEnvelopeStart(long length) {
+        StringBuilder sb = new StringBuilder(256);
         sb.append("BEGIN:BMSG").append("\r\n");
 
         sb.append(mVersionString).append("\r\n");
@@ -1115,42 +1200,7 @@ public abstract class BluetoothMapbMessage {
         if(mCharset != null && mCharset != "")
             sb.append("CHARSET:").append(mCharset).append("\r\n");
 
-
-        int length = 0;
-        /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
-        for (byte[] fragment : bodyFragments) {
-            length += fragment.length + 22;
-        }
         sb.append("LENGTH:").append(length).append("\r\n");
-
-        // Extract the initial part of the bMessage string
-        msgStart = sb.toString().getBytes("UTF-8");
-
-        sb = new StringBuilder(31);
-        sb.append("END:BBODY").append("\r\n");
-        sb.append("END:BENV").append("\r\n");
-        sb.append("END:BMSG").append("\r\n");
-
-        msgEnd = sb.toString().getBytes("UTF-8");
-
-        try {
-
-            ByteArrayOutputStream stream = new ByteArrayOutputStream(
-                                                       msgStart.length + msgEnd.length + length);
-            stream.write(msgStart);
-
-            for (byte[] fragment : bodyFragments) {
-                stream.write("BEGIN:MSG\r\n".getBytes("UTF-8"));
-                stream.write(fragment);
-                stream.write("\r\nEND:MSG\r\n".getBytes("UTF-8"));
-            }
-            stream.write(msgEnd);
-
-            if(V) Log.v(TAG,stream.toString("UTF-8"));
-            return stream.toByteArray();
-        } catch (IOException e) {
-            Log.w(TAG,e);
-            return null;
-        }
+        return sb.toString();
     }
 }
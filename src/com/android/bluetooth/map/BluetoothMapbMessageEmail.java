@@ -14,6 +14,10 @@
 */
 package com.android.bluetooth.map;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
@@ -34,6 +38,10 @@ import android.util.Log;
 public class BluetoothMapbMessageEmail extends BluetoothMapbMessage {
 
     private String mEmailBody = null;
+    private DataSource mEmailBodySource = null;
+
+    /* Size of the buffer used to copy a streamed email body */
+    private static final int BODY_BUFFER_SIZE = 8192;
 
     public void setEmailBody(String emailBody) {
         this.mEmailBody = emailBody;
@@ -41,6 +49,16 @@ public class BluetoothMapbMessageEmail extends BluetoothMapbMessage {
         this.mEncoding = "8bit";
     }
 
+    /**
+     * Set the source of an UTF-8 encoded email body, to be read while the bMessage is
+     * encoded, instead of keeping the body in memory.
+     */
+    public void setEmailBodySource(DataSource source) {
+        this.mEmailBodySource = source;
+        this.mCharset = "UTF-8";
+        this.mEncoding = "8bit";
+    }
+
     public String getEmailBody() {
         return mEmailBody;
     }
@@ -62,6 +80,18 @@ public class BluetoothMapbMessageEmail extends BluetoothMapbMessage {
 
     public byte[] encode() throws UnsupportedEncodingException
     {
+        if(mEmailBody == null && mEmailBodySource != null) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            try {
+                encode(stream);
+            } catch (UnsupportedEncodingException e) {
+                throw e;
+            } catch (IOException e) {
+                Log.w(TAG, e);
+                return null;
+            }
+            return stream.toByteArray();
+        }
         ArrayList<byte[]> bodyFragments = new ArrayList<byte[]>();
 
         /* Store the messages in an ArrayList to be able to handle the different message types in a generic way.
@@ -76,4 +106,42 @@ public class BluetoothMapbMessageEmail extends BluetoothMapbMessage {
         return encodeGeneric(bodyFragments);
     }
 
+    /**
+     * Encode the bMessage into a stream. A body set using
+     * {@link #setEmailBodySource(DataSource)} is read twice: once to count the length of
+     * the escaped body for the LENGTH header, and once to write it.
+     */
+    @Override
+    public void encode(OutputStream out) throws IOException {
+        if(mEmailBodySource == null || mEmailBody != null) {
+            super.encode(out);
+            return;
+        }
+        BluetoothMapbMessageEscapeStream counter = new BluetoothMapbMessageEscapeStream(null);
+        copyBody(counter);
+        long length = counter.getCount();
+
+        encodeStreamStart(out, length);
+        BluetoothMapbMessageEscapeStream body = new BluetoothMapbMessageEscapeStream(out);
+        copyBody(body);
+        if(body.getCount() != length) {
+            throw new IOException("Email body changed size while encoding");
+        }
+        encodeStreamEnd(out);
+    }
+
+    private void copyBody(BluetoothMapbMessageEscapeStream out) throws IOException {
+        InputStream is = mEmailBodySource.open();
+        try {
+            byte[] buffer = new byte[BODY_BUFFER_SIZE];
+            int count;
+            while((count = is.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            out.finish();
+        } finally {
+            is.close();
+        }
+    }
+
 }
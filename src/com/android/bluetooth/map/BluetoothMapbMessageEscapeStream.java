@@ -0,0 +1,131 @@
+/*
+* Copyright (C) 2016 The CyanogenMod Project
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.android.bluetooth.map;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a bMessage body, replacing any occurrence of "END:MSG" with "/END:MSG",
+ * as done by the in-memory encoders, and counts the bytes written.
+ *
+ * The replacement is done on the raw bytes, hence a match can be split between writes,
+ * and no decoding of the body is needed. If no stream is given, the bytes are only
+ * counted, which is used to calculate the LENGTH header before writing the body.
+ * {@link #finish()} must be called after the last write of the body.
+ */
+public class BluetoothMapbMessageEscapeStream extends FilterOutputStream {
+
+    private static final byte[] MSG_END = { 'E', 'N', 'D', ':', 'M', 'S', 'G' };
+    private static final byte[] MSG_END_ESCAPED = { '/', 'E', 'N', 'D', ':', 'M', 'S', 'G' };
+
+    /* Number of bytes of MSG_END matched by the last bytes written, not yet forwarded */
+    private int mMatched = 0;
+    private long mCount = 0;
+
+    /**
+     * @param out the stream to write the escaped body to, or null to only count the bytes
+     */
+    public BluetoothMapbMessageEscapeStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (b == MSG_END[mMatched]) {
+            mMatched++;
+            if (mMatched == MSG_END.length) {
+                forward(MSG_END_ESCAPED, MSG_END_ESCAPED.length);
+                mMatched = 0;
+            }
+            return;
+        }
+        // No proper prefix of MSG_END is also a suffix, so a mismatch restarts the match.
+        forward(MSG_END, mMatched);
+        mMatched = 0;
+        if (b == MSG_END[0]) {
+            mMatched = 1;
+        } else {
+            if (out != null) {
+                out.write(b);
+            }
+            mCount++;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int start = off;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            if (b[i] == MSG_END[0] || mMatched != 0) {
+                // Forward the bytes not part of a match in one go
+                if (i > start) {
+                    forward(b, start, i - start);
+                }
+                write(b[i]);
+                start = i + 1;
+            }
+        }
+        if (end > start) {
+            forward(b, start, end - start);
+        }
+    }
+
+    /**
+     * Write any bytes held back as the start of a possible match.
+     */
+    public void finish() throws IOException {
+        forward(MSG_END, mMatched);
+        mMatched = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        if (out != null) {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the number of bytes written to the underlying stream
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    private void forward(byte[] b, int len) throws IOException {
+        forward(b, 0, len);
+    }
+
+    private void forward(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        if (out != null) {
+            out.write(b, off, len);
+        }
+        mCount += len;
+    }
+}
@@ -16,6 +16,8 @@
 */
 package com.android.bluetooth.map;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.Charset;
@@ -296,4 +298,17 @@ public class BluetoothMapbMessageExtEmail extends BluetoothMapbMessageMime {
        return encodeGeneric(bodyFragments);
    }
 
+   @Override
+   public byte[] encode() throws UnsupportedEncodingException {
+       return encodeEmail();
+   }
+
+   /**
+    * The e-mail parts are held in memory, hence the bMessage is encoded as a whole.
+    */
+   @Override
+   public void encode(OutputStream out) throws IOException {
+       out.write(encodeEmail());
+   }
+
 }
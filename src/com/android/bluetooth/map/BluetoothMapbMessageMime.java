@@ -14,6 +14,10 @@
 */
 package com.android.bluetooth.map;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
@@ -48,6 +52,11 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
         public String mFileName = null;     /* Do not seem to be used */
         public byte[] mData = null;        /* The raw un-encoded data e.g. the raw
                                             * jpeg data or the text.getBytes("utf-8") */
+        public DataSource mDataSource = null; /* The raw data if not loaded into mData, only
+                                               * used for parts encoded as Base64 */
+
+        /* Raw bytes per Base64 chunk - a multiple of the 57 bytes encoded in a 76 char line */
+        private static final int BASE64_CHUNK_SIZE = 57 * 64;
 
 
         String getDataAsString() {
@@ -79,8 +88,23 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
             return result;
         }
 
-        public void encode(StringBuilder sb, String boundaryTag, boolean last)
-                                                       throws UnsupportedEncodingException {
+        /**
+         * @return true if the part data is encoded as Base64, false if it is sent as text.
+         */
+        boolean isBase64Encoded() {
+            return !(mContentType != null &&
+                    (mContentType.toUpperCase().contains("TEXT") ||
+                     mContentType.toUpperCase().contains("SMIL")));
+        }
+
+        /**
+         * @return true if the part data shall be read from {@link #mDataSource} while encoding
+         */
+        boolean isStreamed() {
+            return mData == null && mDataSource != null && isBase64Encoded();
+        }
+
+        private void encodeHeaders(StringBuilder sb, String boundaryTag) {
             sb.append("--").append(boundaryTag).append("\r\n");
             if(mContentType != null)
                 sb.append("Content-Type: ").append(mContentType);
@@ -93,6 +117,11 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
                 sb.append("Content-ID: ").append(mContentId).append("\r\n");
             if(mContentDisposition != null)
                 sb.append("Content-Disposition: ").append(mContentDisposition).append("\r\n");
+        }
+
+        public void encode(StringBuilder sb, String boundaryTag, boolean last)
+                                                       throws UnsupportedEncodingException {
+            encodeHeaders(sb, boundaryTag);
             if(mData != null) {
                 /* TODO: If errata 4176 is adopted in the current form (it is not in either 1.1 or 1.2),
                 the below use of UTF-8 is not allowed, Base64 should be used for text. */
@@ -122,6 +151,88 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
             }
         }
 
+        /**
+         * Encode the part headers of a streamed part. The Base64 data must be written using
+         * {@link #encodeBase64(OutputStream, long)}, followed by {@link #encodeTrailer}.
+         */
+        void encodeStreamedHeaders(StringBuilder sb, String boundaryTag) {
+            encodeHeaders(sb, boundaryTag);
+            /* Add the header split empty line */
+            sb.append("Content-Transfer-Encoding: Base64\r\n\r\n");
+        }
+
+        void encodeTrailer(StringBuilder sb, String boundaryTag, boolean last) {
+            sb.append("\r\n");
+            if(last) {
+                sb.append("--").append(boundaryTag).append("--").append("\r\n");
+            }
+        }
+
+        /**
+         * @return the length of the raw data of a streamed part. If the data source
+         * does not know the length, the data is read once to count the bytes.
+         */
+        long getStreamedLength() throws IOException {
+            long length = mDataSource.getLength();
+            if(length >= 0) {
+                return length;
+            }
+            length = 0;
+            InputStream is = mDataSource.open();
+            try {
+                byte[] buffer = new byte[BASE64_CHUNK_SIZE];
+                int count;
+                while((count = is.read(buffer)) != -1) {
+                    length += count;
+                }
+            } finally {
+                is.close();
+            }
+            return length;
+        }
+
+        /**
+         * Read the data of a streamed part and write it Base64 encoded, as
+         * Base64.encodeToString(data, Base64.DEFAULT) would encode it.
+         * @param out the stream to write to
+         * @param length the length returned by {@link #getStreamedLength()}
+         * @throws IOException if the data cannot be read, or the length of the data
+         *         no longer match the length used for the LENGTH header
+         */
+        void encodeBase64(OutputStream out, long length) throws IOException {
+            InputStream is = mDataSource.open();
+            try {
+                byte[] buffer = new byte[BASE64_CHUNK_SIZE];
+                long remaining = length;
+                while(remaining > 0) {
+                    int count = readFully(is, buffer, (int)Math.min(buffer.length, remaining));
+                    if(count == 0) {
+                        break;
+                    }
+                    out.write(Base64.encode(buffer, 0, count, Base64.DEFAULT));
+                    remaining -= count;
+                }
+                if(remaining != 0 || is.read() != -1) {
+                    throw new IOException("Part " + mId + " changed size while encoding");
+                }
+            } finally {
+                is.close();
+            }
+        }
+
+        private static int readFully(InputStream is, byte[] buffer, int length)
+                throws IOException {
+            int offset = 0;
+            while(offset < length) {
+                int count = is.read(buffer, offset, length - offset);
+                if(count == -1) {
+                    break;
+                }
+                offset += count;
+            }
+            return offset;
+        }
+
         public void encodePlainText(StringBuilder sb) throws UnsupportedEncodingException {
             if(mContentType != null && mContentType.toUpperCase().contains("TEXT")) {
                 String text = new String(mData, "UTF-8");
@@ -141,6 +252,14 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
         }
     }
 
+    /**
+     * @return the length of Base64.encodeToString(data, Base64.DEFAULT) for length bytes
+     * of data - 4 chars per 3 bytes, and a line feed per 76 chars and after the last line.
+     */
+    static long getBase64Length(long length) {
+        return ((length + 2) / 3) * 4 + (length + 56) / 57;
+    }
+
     private long date = INVALID_VALUE;
     private String subject = null;
     private ArrayList<Rfc822Token> from = null;   // Shall not be empty
@@ -741,9 +860,107 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
 
     }
 
+    /**
+     * Encode the bMessage as a Mime message(MMS/IM) into a stream. Parts with a
+     * {@link DataSource} are Base64 encoded while being read, so only the headers
+     * and the text parts are kept in memory. The produced bytes are identical to
+     * {@link #encodeMime()} with all part data loaded.
+     * @param out the stream to write to
+     * @throws IOException
+     */
+    public void encodeMime(OutputStream out) throws IOException
+    {
+        /* The body is text fragments, with a streamed part between each pair */
+        ArrayList<byte[]> textFragments = new ArrayList<byte[]>();
+        ArrayList<MimePart> streamedParts = new ArrayList<MimePart>();
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+
+        encoding = "8BIT"; // The encoding used
+
+        encodeHeaders(sb);
+        if(parts != null) {
+            if(getIncludeAttachments() == false) {
+                for(MimePart part : parts) {
+                    /* We call encode on all parts, to include a tag,
+                     * where an attachment is missing. */
+                    part.encodePlainText(sb);
+                }
+            } else {
+                for(MimePart part : parts) {
+                    count++;
+                    boolean last = (count == parts.size());
+                    if(part.isStreamed()) {
+                        part.encodeStreamedHeaders(sb, getBoundary());
+                        textFragments.add(escapeBody(sb.toString()));
+                        streamedParts.add(part);
+                        sb = new StringBuilder();
+                        part.encodeTrailer(sb, getBoundary(), last);
+                    } else {
+                        part.encode(sb, getBoundary(), last);
+                    }
+                }
+            }
+        }
+        textFragments.add(escapeBody(sb.toString()));
+
+        /* Base64 can never contain END:MSG, hence the LENGTH can be calculated
+         * from the raw part lengths without encoding anything. */
+        long[] partLengths = new long[streamedParts.size()];
+        long length = 0;
+        for(byte[] fragment : textFragments) {
+            length += fragment.length;
+        }
+        for(int i = 0; i < partLengths.length; i++) {
+            partLengths[i] = streamedParts.get(i).getStreamedLength();
+            length += getBase64Length(partLengths[i]);
+        }
+
+        encodeStreamStart(out, length);
+        for(int i = 0; i < partLengths.length; i++) {
+            out.write(textFragments.get(i));
+            streamedParts.get(i).encodeBase64(out, partLengths[i]);
+        }
+        out.write(textFragments.get(partLengths.length));
+        encodeStreamEnd(out);
+    }
+
+    private static byte[] escapeBody(String body) throws UnsupportedEncodingException {
+        // Replace any occurrences of END:MSG with \END:MSG
+        return body.replaceAll("END:MSG", "/END\\:MSG").getBytes("UTF-8");
+    }
+
+    private boolean hasStreamedParts() {
+        if(parts != null) {
+            for(MimePart part : parts) {
+                if(part.isStreamed()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     @Override
     public byte[] encode() throws UnsupportedEncodingException {
-        return encodeMime();
+        if(hasStreamedParts() == false) {
+            return encodeMime();
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            encodeMime(stream);
+        } catch (UnsupportedEncodingException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            return null;
+        }
+        return stream.toByteArray();
+    }
+
+    @Override
+    public void encode(OutputStream out) throws IOException {
+        encodeMime(out);
     }
 
 }
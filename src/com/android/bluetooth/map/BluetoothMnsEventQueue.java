@@ -0,0 +1,221 @@
+/*
+* Copyright (C) 2016 The CyanogenMod Project
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.android.bluetooth.map;
+
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Pending MNS event reports waiting to be sent to the MNS server.
+ *
+ * Events are kept in the order they were reported by the content observers.
+ * Events referring to the same message handle are coalesced while they are
+ * still pending:
+ *  - A NewMessage followed by MessageDeleted/MessageRemoved cancels both
+ *    (and anything reported for that handle in between), as the client never
+ *    learned about the message.
+ *  - Repeated ReadStatusChanged for a handle are merged into the latest one.
+ *    The merged event is moved to the tail to keep the order of the last
+ *    report relative to e.g. a MessageShift of the same handle.
+ *
+ * The class is not bound to a thread, all methods are synchronized.
+ */
+public class BluetoothMnsEventQueue {
+
+    public static final String EVENT_TYPE_NEW = "NewMessage";
+    public static final String EVENT_TYPE_DELETE = "MessageDeleted";
+    public static final String EVENT_TYPE_REMOVED = "MessageRemoved";
+    public static final String EVENT_TYPE_READ_STATUS = "ReadStatusChanged";
+
+    public static class EventEntry {
+        public final int masId;
+        public final String eventType;
+        public final String handle;
+        public final byte[] data;
+        public final long queuedTime;
+        boolean cancelled = false;
+
+        EventEntry(int masId, String eventType, String handle, byte[] data, long queuedTime) {
+            this.masId = masId;
+            this.eventType = eventType;
+            this.handle = handle;
+            this.data = data;
+            this.queuedTime = queuedTime;
+        }
+    }
+
+    private final ArrayDeque<EventEntry> mQueue = new ArrayDeque<EventEntry>();
+    /* Pending, not cancelled, entries per masId/handle key */
+    private final HashMap<String, List<EventEntry>> mPendingByHandle =
+            new HashMap<String, List<EventEntry>>();
+    private int mPendingCount = 0;
+
+    /* Statistics */
+    private long mEventsQueued = 0;
+    private long mEventsSent = 0;
+    private long mEventsCancelled = 0;
+    private long mEventsMerged = 0;
+    private long mSendErrors = 0;
+    private int mMaxQueueDepth = 0;
+    private long mTotalLatencyMs = 0;
+    private long mMaxLatencyMs = 0;
+
+    private static String getKey(int masId, String handle) {
+        return masId + "/" + handle;
+    }
+
+    /**
+     * Add an event report to the queue.
+     * @param masId the MAS instance the event belongs to
+     * @param eventType the event type string as used in the event report
+     * @param handle the MAP message handle, or null if the event must not be
+     *        coalesced with other events (e.g. conversation/presence events)
+     * @param data the encoded event report
+     * @return the number of events pending after the operation
+     */
+    public synchronized int offer(int masId, String eventType, String handle, byte[] data) {
+        mEventsQueued++;
+        if (handle == null || eventType == null) {
+            append(new EventEntry(masId, eventType, null, data, now()));
+            return mPendingCount;
+        }
+
+        String key = getKey(masId, handle);
+        List<EventEntry> pending = mPendingByHandle.get(key);
+
+        if (pending != null && !pending.isEmpty()) {
+            if ((EVENT_TYPE_DELETE.equals(eventType) || EVENT_TYPE_REMOVED.equals(eventType))
+                    && EVENT_TYPE_NEW.equals(pending.get(0).eventType)) {
+                // The client never saw the message - drop everything for the handle.
+                for (EventEntry entry : pending) {
+                    cancel(entry);
+                }
+                mPendingByHandle.remove(key);
+                // Count the events dropped, including the delete event itself
+                mEventsCancelled += pending.size() + 1;
+                return mPendingCount;
+            }
+            if (EVENT_TYPE_READ_STATUS.equals(eventType)) {
+                for (int i = pending.size() - 1; i >= 0; i--) {
+                    EventEntry entry = pending.get(i);
+                    if (EVENT_TYPE_READ_STATUS.equals(entry.eventType)) {
+                        cancel(entry);
+                        pending.remove(i);
+                        mEventsMerged++;
+                        break;
+                    }
+                }
+            }
+        }
+
+        EventEntry entry = new EventEntry(masId, eventType, handle, data, now());
+        if (pending == null) {
+            pending = new ArrayList<EventEntry>(2);
+            mPendingByHandle.put(key, pending);
+        }
+        pending.add(entry);
+        append(entry);
+        return mPendingCount;
+    }
+
+    /**
+     * Remove all pending events from the queue.
+     * @return the events to send, in the order they shall be sent.
+     */
+    public synchronized List<EventEntry> drain() {
+        ArrayList<EventEntry> events = new ArrayList<EventEntry>(mPendingCount);
+        EventEntry entry;
+        while ((entry = mQueue.poll()) != null) {
+            if (!entry.cancelled) {
+                events.add(entry);
+            }
+        }
+        mPendingByHandle.clear();
+        mPendingCount = 0;
+        return events;
+    }
+
+    public synchronized int size() {
+        return mPendingCount;
+    }
+
+    public synchronized void clear() {
+        mQueue.clear();
+        mPendingByHandle.clear();
+        mPendingCount = 0;
+    }
+
+    /**
+     * Record the outcome of sending an event previously returned by {@link #drain()}.
+     */
+    public synchronized void onEventSent(EventEntry entry, boolean success) {
+        if (!success) {
+            mSendErrors++;
+            return;
+        }
+        mEventsSent++;
+        long latency = now() - entry.queuedTime;
+        mTotalLatencyMs += latency;
+        if (latency > mMaxLatencyMs) {
+            mMaxLatencyMs = latency;
+        }
+    }
+
+    public synchronized long getEventsSent() {
+        return mEventsSent;
+    }
+
+    public synchronized long getEventsCancelled() {
+        return mEventsCancelled;
+    }
+
+    public synchronized long getEventsMerged() {
+        return mEventsMerged;
+    }
+
+    public synchronized void dump(StringBuilder sb) {
+        sb.append("  MNS events queued: " + mEventsQueued + ", sent: " + mEventsSent
+                + ", cancelled: " + mEventsCancelled + ", merged: " + mEventsMerged
+                + ", send errors: " + mSendErrors + "\n");
+        sb.append("  MNS queue pending: " + mPendingCount + ", max depth: " + mMaxQueueDepth
+                + "\n");
+        sb.append("  MNS event latency avg: "
+                + (mEventsSent == 0 ? 0 : mTotalLatencyMs / mEventsSent) + "ms, max: "
+                + mMaxLatencyMs + "ms\n");
+    }
+
+    private void append(EventEntry entry) {
+        mQueue.add(entry);
+        mPendingCount++;
+        if (mPendingCount > mMaxQueueDepth) {
+            mMaxQueueDepth = mPendingCount;
+        }
+    }
+
+    private void cancel(EventEntry entry) {
+        if (!entry.cancelled) {
+            entry.cancelled = true;
+            mPendingCount--;
+        }
+    }
+
+    private static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+}
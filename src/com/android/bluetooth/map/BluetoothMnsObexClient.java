@@ -29,6 +29,7 @@ import com.android.bluetooth.BluetoothObexTransport;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
 
 import javax.obex.ClientOperation;
 import javax.obex.ClientSession;
@@ -65,11 +66,18 @@ public class BluetoothMnsObexClient {
     public static final int MSG_MNS_NOTIFICATION_REGISTRATION = 1;
     public static final int MSG_MNS_SEND_EVENT = 2;
     public static final int MSG_MNS_SDP_SEARCH_REGISTRATION = 3;
+    private static final int MSG_MNS_FLUSH_EVENTS = 4;
 
     //Copy SdpManager.SDP_INTENT_DELAY - The timeout to wait for reply from native.
     private final int MNS_SDP_SEARCH_DELAY = 6000;
     public MnsSdpSearchInfo mMnsLstRegRqst = null;
     private static final int MNS_NOTIFICATION_DELAY = 10;
+    /* Time to collect event reports before sending them, allowing opposing events
+     * (e.g. new followed by deleted) to cancel out during bulk operations. */
+    private static final int MNS_EVENT_COALESCE_DELAY = 100;
+    /* Flush without waiting for the coalesce window when this many events are pending */
+    private static final int MNS_EVENT_QUEUE_FLUSH_SIZE = 64;
+    private final BluetoothMnsEventQueue mEventQueue = new BluetoothMnsEventQueue();
     public static final ParcelUuid BLUETOOTH_UUID_OBEX_MNS =
             ParcelUuid.fromString("00001133-0000-1000-8000-00805F9B34FB");
 
@@ -134,6 +142,9 @@ public class BluetoothMnsObexClient {
             case MSG_MNS_SEND_EVENT:
                 sendEventHandler((byte[])msg.obj/*byte[]*/, msg.arg1 /*masId*/);
                 break;
+            case MSG_MNS_FLUSH_EVENTS:
+                flushEvents();
+                break;
             case MSG_MNS_SDP_SEARCH_REGISTRATION:
                 //Initiate SDP Search
                 notifyMnsSdpSearch();
@@ -213,6 +224,7 @@ public class BluetoothMnsObexClient {
         disconnect();
 
         mRegisteredMasIds.clear();
+        mEventQueue.clear();
     }
 
     /**
@@ -368,16 +380,53 @@ public class BluetoothMnsObexClient {
      * @param masInstanceId the MasId of the instance sending the event.
      */
     public void sendEvent(byte[] eventBytes, int masInstanceId) {
+        sendEvent(eventBytes, masInstanceId, null, null);
+    }
+
+    /**
+     * Call this method to queue an event report to be send to the MNS server.
+     * Pending events for the same message handle are coalesced, and all events
+     * collected within {@link #MNS_EVENT_COALESCE_DELAY} are sent back to back.
+     * @param eventBytes the encoded event data.
+     * @param masInstanceId the MasId of the instance sending the event.
+     * @param eventType the event type of the report.
+     * @param handle the MAP handle the event refers to, or null if the event
+     *        must not be coalesced.
+     */
+    public void sendEvent(byte[] eventBytes, int masInstanceId, String eventType,
+            String handle) {
         // We need to check for null, to handle shutdown.
-        if(mHandler != null) {
-            Message msg = mHandler.obtainMessage(MSG_MNS_SEND_EVENT, masInstanceId, 0, eventBytes);
-            if(msg != null) {
-                msg.sendToTarget();
+        Handler handler = mHandler;
+        if(handler != null) {
+            int pending = mEventQueue.offer(masInstanceId, eventType, handle, eventBytes);
+            if (pending >= MNS_EVENT_QUEUE_FLUSH_SIZE) {
+                handler.removeMessages(MSG_MNS_FLUSH_EVENTS);
+                handler.sendEmptyMessage(MSG_MNS_FLUSH_EVENTS);
+            } else if (!handler.hasMessages(MSG_MNS_FLUSH_EVENTS)) {
+                handler.sendEmptyMessageDelayed(MSG_MNS_FLUSH_EVENTS,
+                        MNS_EVENT_COALESCE_DELAY);
             }
         }
         notifyUpdateWakeLock();
     }
 
+    /**
+     * Send all pending event reports in the order they were queued.
+     * Must be called from the MNS handler thread.
+     */
+    private void flushEvents() {
+        List<BluetoothMnsEventQueue.EventEntry> events = mEventQueue.drain();
+        if (V) Log.v(TAG, "flushEvents: " + events.size() + " events");
+        for (BluetoothMnsEventQueue.EventEntry event : events) {
+            int responseCode = sendEventHandler(event.data, event.masId);
+            mEventQueue.onEventSent(event, responseCode == ResponseCodes.OBEX_HTTP_OK);
+        }
+    }
+
+    public void dump(StringBuilder sb) {
+        mEventQueue.dump(sb);
+    }
+
     private void notifyMnsSdpSearch() {
         if (mCallback != null) {
             Message msg = Message.obtain(mCallback);
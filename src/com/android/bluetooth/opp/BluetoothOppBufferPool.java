@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of large byte buffers used to move file data between disk and the
+ * OBEX session. Buffers are reused between files and transfers to avoid
+ * allocating a new buffer per file.
+ */
+class BluetoothOppBufferPool {
+    /** Size of the pooled buffers, a multiple of the typical OBEX packet size */
+    static final int BUFFER_SIZE = 0x10000;
+
+    /** Maximum number of idle buffers kept in the pool */
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    private static BluetoothOppBufferPool sInstance;
+
+    private final ArrayDeque<byte[]> mBuffers = new ArrayDeque<byte[]>();
+
+    private final int mBufferSize;
+
+    private final int mMaxPooled;
+
+    private int mAllocated;
+
+    static synchronized BluetoothOppBufferPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new BluetoothOppBufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+        }
+        return sInstance;
+    }
+
+    BluetoothOppBufferPool(int bufferSize, int maxPooled) {
+        mBufferSize = bufferSize;
+        mMaxPooled = maxPooled;
+    }
+
+    int getBufferSize() {
+        return mBufferSize;
+    }
+
+    synchronized byte[] acquire() {
+        byte[] buffer = mBuffers.poll();
+        if (buffer == null) {
+            buffer = new byte[mBufferSize];
+            mAllocated++;
+        }
+        return buffer;
+    }
+
+    synchronized void release(byte[] buffer) {
+        if (buffer != null && buffer.length == mBufferSize && mBuffers.size() < mMaxPooled) {
+            mBuffers.push(buffer);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BluetoothOppBufferPool: size=" + mBufferSize + " idle=" + mBuffers.size()
+                + " allocated=" + mAllocated;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Shares the content of an outgoing file between the transfers sending it.
+ *
+ * An outbound share only has one {@link BluetoothOppSendFileInfo}, and with it
+ * one input stream, even when the same file is sent to several devices. When
+ * more than one share of a file is registered as its first transfer opens it,
+ * the file content is read into a buffer, and each transfer reads its own view
+ * of that buffer. The buffer is filled on demand, so the fastest transfer
+ * drives the reads from storage and the others are served from memory.
+ *
+ * Otherwise, and for files larger than {@link #MAX_SHARED_FILE_SIZE} or beyond
+ * the total budget, the stream is read directly by one transfer at a time, see
+ * {@link #isAvailable(Uri)}. The stream is rewound when it is opened, so a
+ * share registered while the file was already being sent still gets the whole
+ * file once the other transfer is done with it.
+ */
+class BluetoothOppFileBufferCache {
+    private static final String TAG = "BtOppFileBufferCache";
+    private static final boolean V = Constants.VERBOSE;
+
+    static final int MAX_SHARED_FILE_SIZE = 8 * 1024 * 1024;
+
+    private static final int MAX_TOTAL_SIZE = 32 * 1024 * 1024;
+
+    private static BluetoothOppFileBufferCache sInstance;
+
+    /* Shares registered per send file uri and not yet released */
+    private final HashMap<Uri, Integer> mUsers = new HashMap<Uri, Integer>();
+
+    private final HashMap<Uri, Entry> mEntries = new HashMap<Uri, Entry>();
+
+    /* Files whose stream is read directly by a transfer */
+    private final HashSet<Uri> mDirectOpens = new HashSet<Uri>();
+
+    /* Position of the stream of each file when it was first opened */
+    private final HashMap<Uri, Long> mStartPositions = new HashMap<Uri, Long>();
+
+    private long mTotalSize;
+
+    private long mSharedOpens;
+
+    private long mBytesFromStorage;
+
+    static synchronized BluetoothOppFileBufferCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new BluetoothOppFileBufferCache();
+        }
+        return sInstance;
+    }
+
+    BluetoothOppFileBufferCache() {
+    }
+
+    private static class Entry {
+        final InputStream source;
+        final byte[] data;
+        int loaded;
+        IOException error;
+
+        Entry(InputStream source, int length) {
+            this.source = source;
+            this.data = new byte[length];
+        }
+
+        /* Make sure data up to end is loaded, returns the amount loaded */
+        synchronized int load(int end) throws IOException {
+            while (loaded < end && loaded < data.length) {
+                if (error != null) {
+                    throw error;
+                }
+                int count = Math.min(BluetoothOppBufferPool.BUFFER_SIZE, data.length - loaded);
+                int read;
+                try {
+                    read = source.read(data, loaded, count);
+                } catch (IOException e) {
+                    error = e;
+                    throw e;
+                }
+                if (read < 0) {
+                    break;
+                }
+                loaded += read;
+            }
+            return loaded;
+        }
+    }
+
+    private class SharedInputStream extends InputStream {
+        private final Entry mEntry;
+        private int mPosition;
+
+        SharedInputStream(Entry entry) {
+            mEntry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int before = mEntry.loaded;
+            int available = mEntry.load(mPosition + len) - mPosition;
+            if (mEntry.loaded > before) {
+                onLoaded(mEntry.loaded - before);
+            }
+            if (available <= 0) {
+                return -1;
+            }
+            int count = Math.min(len, available);
+            System.arraycopy(mEntry.data, mPosition, b, off, count);
+            mPosition += count;
+            return count;
+        }
+    }
+
+    /**
+     * Register an outbound share of the file. Called when the share is queued,
+     * before any transfer opens the file.
+     */
+    synchronized void register(Uri uri) {
+        Integer users = mUsers.get(uri);
+        mUsers.put(uri, users == null ? 1 : users + 1);
+    }
+
+    /**
+     * Whether a transfer can open the file now. False while the stream of a file
+     * that is not buffered is read by another transfer.
+     */
+    synchronized boolean isAvailable(Uri uri) {
+        return !mDirectOpens.contains(uri);
+    }
+
+    /**
+     * Open the content of the file for a transfer. Call {@link #close(Uri)} when
+     * the transfer is done reading it.
+     * @return a stream private to the caller if the content is buffered, or the
+     *         stream of the send file info otherwise
+     */
+    synchronized InputStream open(Uri uri, BluetoothOppSendFileInfo fileInfo) {
+        Entry entry = mEntries.get(uri);
+        if (entry == null) {
+            if (mDirectOpens.contains(uri)) {
+                Log.w(TAG, "Stream of " + uri + " is already read by another transfer");
+                return fileInfo.mInputStream;
+            }
+            rewind(uri, fileInfo);
+            Integer users = mUsers.get(uri);
+            if (fileInfo.mInputStream == null || users == null || users < 2
+                    || fileInfo.mLength > MAX_SHARED_FILE_SIZE
+                    || mTotalSize + fileInfo.mLength > MAX_TOTAL_SIZE) {
+                mDirectOpens.add(uri);
+                return fileInfo.mInputStream;
+            }
+            if (V) Log.v(TAG, "Buffering " + uri + " for " + users + " transfers");
+            entry = new Entry(fileInfo.mInputStream, (int) fileInfo.mLength);
+            mEntries.put(uri, entry);
+            mTotalSize += fileInfo.mLength;
+        }
+        mSharedOpens++;
+        return new SharedInputStream(entry);
+    }
+
+    /* Move the stream back to where the first transfer of the file started reading it */
+    private void rewind(Uri uri, BluetoothOppSendFileInfo fileInfo) {
+        if (fileInfo.mInputStream == null) {
+            return;
+        }
+        try {
+            FileChannel channel = fileInfo.mInputStream.getChannel();
+            Long start = mStartPositions.get(uri);
+            if (start == null) {
+                mStartPositions.put(uri, channel.position());
+            } else {
+                channel.position(start);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to rewind " + uri, e);
+        }
+    }
+
+    /**
+     * Called when a transfer is done reading the stream returned by
+     * {@link #open(Uri, BluetoothOppSendFileInfo)}.
+     */
+    synchronized void close(Uri uri) {
+        mDirectOpens.remove(uri);
+    }
+
+    /**
+     * Release a share of the file, when its transfer has ended or failed. The
+     * send file info is closed once the last share of the file is released.
+     */
+    void release(Uri uri) {
+        synchronized (this) {
+            Integer users = mUsers.get(uri);
+            if (users != null && users > 1) {
+                mUsers.put(uri, users - 1);
+                return;
+            }
+            mUsers.remove(uri);
+            mDirectOpens.remove(uri);
+            mStartPositions.remove(uri);
+            Entry entry = mEntries.remove(uri);
+            if (entry != null) {
+                mTotalSize -= entry.data.length;
+            }
+        }
+        BluetoothOppUtility.closeSendFileInfo(uri);
+    }
+
+    synchronized void clear() {
+        mUsers.clear();
+        mEntries.clear();
+        mDirectOpens.clear();
+        mStartPositions.clear();
+        mTotalSize = 0;
+    }
+
+    private synchronized void onLoaded(int bytes) {
+        mBytesFromStorage += bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BluetoothOppFileBufferCache: files=" + mUsers.size() + " shared="
+                + mEntries.size() + " direct=" + mDirectOpens.size() + " size=" + mTotalSize
+                + " sharedOpens=" + mSharedOpens
+                + " bytesFromStorage=" + mBytesFromStorage;
+    }
+}
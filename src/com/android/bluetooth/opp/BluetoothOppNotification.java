@@ -309,6 +309,35 @@ class BluetoothOppNotification {
         cursor.close();
         cursor = null;
 
+        postActiveNotifications();
+    }
+
+    /**
+     * Update the progress of the active notifications from the share store,
+     * without querying the provider. Used for progress-only changes, the
+     * running transfers and their descriptions are known from the last update.
+     */
+    public void updateProgressNotification() {
+        synchronized (BluetoothOppNotification.this) {
+            if (mUpdateNotificationThread != null || mPendingUpdate > 0) {
+                // A full update is running or queued, it picks up the progress too.
+                return;
+            }
+            if (mNotifications.isEmpty()) {
+                return;
+            }
+            BluetoothOppShareStore store = BluetoothOppShareStore.getInstance(mContext);
+            for (NotificationItem item : mNotifications.values()) {
+                BluetoothOppShareInfo info = store.get(item.id);
+                if (info != null) {
+                    item.totalCurrent = info.mCurrentBytes;
+                }
+            }
+            postActiveNotifications();
+        }
+    }
+
+    private void postActiveNotifications() {
         // Add the notifications
         for (NotificationItem item : mNotifications.values()) {
             if (item.handoverInitiated) {
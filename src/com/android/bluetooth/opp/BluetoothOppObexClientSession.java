@@ -38,7 +38,6 @@ import javax.obex.HeaderSet;
 import javax.obex.ObexTransport;
 import javax.obex.ResponseCodes;
 
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.net.Uri;
@@ -49,7 +48,6 @@ import android.os.PowerManager.WakeLock;
 import android.os.Process;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -115,67 +113,6 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
         mThread.addShare(share);
     }
 
-    private static int readFully(InputStream is, byte[] buffer, int size) throws IOException {
-        int done = 0;
-        while (done < size) {
-            int got = is.read(buffer, done, size - done);
-            if (got <= 0) break;
-            done += got;
-        }
-        return done;
-    }
-
-    private class ContentResolverUpdateThread extends Thread {
-
-        private static final int sSleepTime = 1000;
-        private Uri contentUri;
-        private boolean interrupted = false;
-        private ContentResolver cr;
-
-        public ContentResolverUpdateThread(Context context, Uri cntUri) {
-            super("BtOpp ContentResolverUpdateThread");
-            contentUri = cntUri;
-            interrupted = false;
-            cr = context.getContentResolver();
-        }
-
-
-        @Override
-        public void run() {
-
-            ContentValues updateValues;
-
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-            if (V) Log.v(TAG, "Is ContentResolverUpdateThread Interrupted :" + interrupted);
-            /*  Check if the Operation is interrupted before entering into loop */
-            while (!interrupted) {
-                updateValues = new ContentValues();
-                updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                cr.update(contentUri, updateValues, null, null);
-
-                /* Check if the Operation is interrupted before entering sleep */
-                if (interrupted) {
-                    if (V) Log.v(TAG, "CR Thread was interrupted before sleep !, exiting ");
-                    return;
-                }
-
-                try {
-                    Thread.sleep(sSleepTime);
-                } catch (InterruptedException e1) {
-                    if (V) Log.v(TAG, "ContentResolverUpdateThread was interrupted, exiting");
-                    interrupted = true;
-                    return;
-                }
-            }
-        }
-
-        @Override
-        public void interrupt() {
-            interrupted = true;
-            super.interrupt();
-        }
-    }
-
     private class ClientThread extends Thread {
 
         private static final int sSleepTime = 500;
@@ -398,7 +335,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             int status = BluetoothShare.STATUS_SUCCESS;
             Uri contentUri = Uri.parse(BluetoothShare.CONTENT_URI + "/" + mInfo.mId);
             ContentValues updateValues;
-            ContentResolverUpdateThread uiUpdateThread = null;
+            BluetoothOppShareStore shareStore = BluetoothOppShareStore.getInstance(mContext1);
             HeaderSet request;
             request = new HeaderSet();
             request.setHeader(HeaderSet.NAME, fileInfo.mFileName);
@@ -412,6 +349,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             ClientOperation putOperation = null;
             OutputStream outputStream = null;
             InputStream inputStream = null;
+            BluetoothOppPrefetchReader reader = null;
             try {
                 synchronized (this) {
                     mWaitingForRemote = true;
@@ -455,15 +393,25 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                     boolean okToProceed = false;
                     long timestamp = 0;
                     int outputBufferSize = putOperation.getMaxPacketSize();
-                    byte[] buffer = new byte[outputBufferSize];
-                    BufferedInputStream a = new BufferedInputStream(fileInfo.mInputStream, 0x4000);
+                    /* File data is read ahead into large pooled buffers, and sent
+                     * from them one OBEX packet at a time. */
+                    BluetoothOppPrefetchReader.Chunk chunk = null;
+                    int chunkOffset = 0;
+                    reader = new BluetoothOppPrefetchReader(
+                            BluetoothOppFileBufferCache.getInstance().open(mInfo.mUri, fileInfo),
+                            fileInfo.mLength, BluetoothOppBufferPool.getInstance());
+                    reader.start();
 
                     if (!mInterrupted && (position != fileInfo.mLength)) {
                         readbytesleft = fileInfo.mLength - position;
                         if(readbytesleft < outputBufferSize) {
                            outputBufferSize = (int) readbytesleft;
                         }
-                        readLength = readFully(a, buffer, outputBufferSize);
+                        chunk = reader.take();
+                        if (chunk == null) {
+                            throw new IOException("Unexpected end of file");
+                        }
+                        readLength = Math.min(outputBufferSize, chunk.length);
 
                         mCallback.sendMessageDelayed(mCallback
                                 .obtainMessage(BluetoothOppObexSession.MSG_CONNECT_TIMEOUT),
@@ -473,8 +421,9 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                         }
 
                         // first packet will block here
-                        outputStream.write(buffer, 0, readLength);
+                        outputStream.write(chunk.data, 0, readLength);
 
+                        chunkOffset = readLength;
                         position += readLength;
                         /* check remote accept or reject */
                         responseCode = putOperation.getResponseCode();
@@ -488,10 +437,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                 || responseCode == ResponseCodes.OBEX_HTTP_OK) {
                             if (V) Log.v(TAG, "Remote accept");
                             okToProceed = true;
-                            updateValues = new ContentValues();
-                            updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                            mContext1.getContentResolver().update(contentUri, updateValues, null,
-                                    null);
+                            shareStore.updateProgress(mInfo.mId, position);
                         } else {
                             Log.i(TAG, "Remote reject, Response code is " + responseCode);
                         }
@@ -501,12 +447,19 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                     while (!mInterrupted && okToProceed && (position < fileInfo.mLength)) {
                         if (V) timestamp = System.currentTimeMillis();
 
-                        readbytesleft = fileInfo.mLength - position;
-                        if(readbytesleft < outputBufferSize) {
-                            outputBufferSize = (int) readbytesleft;
+                        if (chunkOffset == chunk.length) {
+                            reader.recycle(chunk);
+                            chunk = reader.take();
+                            chunkOffset = 0;
+                            if (chunk == null) {
+                                Log.e(TAG, "File ended at " + position + " of "
+                                        + fileInfo.mLength);
+                                break;
+                            }
                         }
-                        readLength = a.read(buffer, 0, outputBufferSize);
-                        outputStream.write(buffer, 0, readLength);
+                        readLength = Math.min(outputBufferSize, chunk.length - chunkOffset);
+                        outputStream.write(chunk.data, chunkOffset, readLength);
+                        chunkOffset += readLength;
 
                         if (V) Log.v(TAG, "waiting for response code");
 
@@ -524,30 +477,14 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                         + " readLength " + readLength + " bytes took "
                                         + (System.currentTimeMillis() - timestamp) + " ms");
                             }
-                            if (uiUpdateThread == null) {
-                                uiUpdateThread = new ContentResolverUpdateThread (mContext1,
-                                                         contentUri);
-                                if (V) Log.v(TAG, "Worker for Updation : Created");
-                                uiUpdateThread.start ( );
-                            }
+                            shareStore.updateProgress(mInfo.mId, position);
                         }
                     }
+                    reader.recycle(chunk);
+                    chunk = null;
 
-
-                    if (uiUpdateThread != null) {
-                        try {
-                            if (V) Log.v(TAG, "Worker for Updation : Destroying");
-                            uiUpdateThread.interrupt ();
-                            uiUpdateThread.join ();
-                            uiUpdateThread = null;
-                            if (V) Log.v(TAG, "Worker for Updation : Destroyed");
-                                updateValues = new ContentValues();
-                                updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                                mContext1.getContentResolver().update(contentUri, updateValues,
-                                        null, null);
-                        } catch (InterruptedException ie) {
-                            if (V) Log.v(TAG, "Interrupted waiting for uiUpdateThread to join");
-                        }
+                    if (position > 0) {
+                        shareStore.commitProgress(mInfo.mId, position);
                     }
 
 
@@ -593,13 +530,18 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                 Log.e(TAG, "IndexOutOfBoundsException", e);
                 handleSendException(e.toString());
             } finally {
+                if (reader != null) {
+                    reader.close();
+                    BluetoothOppFileBufferCache.getInstance().close(mInfo.mUri);
+                }
                 try {
                     if (outputStream != null) {
                         outputStream.close();
                     }
 
-                    // Close InputStream and remove SendFileInfo from map
-                    BluetoothOppUtility.closeSendFileInfo(mInfo.mUri);
+                    // Close InputStream and remove SendFileInfo from map, once no
+                    // other transfer is sending the same file
+                    BluetoothOppFileBufferCache.getInstance().release(mInfo.mUri);
                     if (!error) {
                         responseCode = putOperation.getResponseCode();
                         if (responseCode != -1) {
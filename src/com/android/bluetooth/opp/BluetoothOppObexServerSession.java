@@ -37,7 +37,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -48,7 +47,6 @@ import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
-import android.os.Process;
 import javax.obex.HeaderSet;
 import javax.obex.ObexTransport;
 import javax.obex.Operation;
@@ -176,59 +174,6 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
         }
      }
 
-    private class ContentResolverUpdateThread extends Thread {
-
-        private static final int sSleepTime = 1000;
-        private Uri contentUri;
-        private boolean interrupted = false;
-        private ContentResolver cr;
-
-        public ContentResolverUpdateThread(Context context, Uri cntUri) {
-            super("BtOpp Server ContentResolverUpdateThread");
-            contentUri = cntUri;
-            interrupted = false;
-            cr = context.getContentResolver();
-
-        }
-
-        @Override
-        public void run() {
-
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-            ContentValues updateValues;
-            if (V) Log.v(TAG, "Is ContentResolverUpdateThread Interrupted :" + interrupted);
-            /*  Check if the Operation is interrupted before entering into loop */
-            while ( !interrupted ) {
-               updateValues = new ContentValues();
-               updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-               cr.update(contentUri, updateValues, null, null);
-               /* Check if the Operation is interrupted before entering sleep */
-               if (interrupted) {
-                   if (V) Log.v(TAG, "CR was interrupted before sleep ! exiting");
-                   return ;
-               }
-
-               try {
-                   Thread.sleep(sSleepTime);
-               } catch (InterruptedException e1) {
-                   if (V) Log.v(TAG, "Server CR was interrupted exiting");
-                   interrupted = true;
-                   return ;
-               }
-            }
-        }
-
-        @Override
-        public void interrupt() {
-            interrupted = true;
-            super.interrupt();
-        }
-    }
-
-
-
-
-
     public void addShare(BluetoothOppShareInfo info) {
         if (D) Log.d(TAG, "addShare for id " + info.mId);
         mInfo = info;
@@ -522,7 +467,7 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
         long beginTime = 0;
         int status = -1;
         BufferedOutputStream bos = null;
-        ContentResolverUpdateThread uiUpdateThread = null;
+        BluetoothOppShareStore shareStore = BluetoothOppShareStore.getInstance(mContext);
         InputStream is = null;
         boolean error = false;
         try {
@@ -548,53 +493,49 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
         }
 
         if (!error) {
-            int outputBufferSize = op.getMaxPacketSize();
-            byte[] b = new byte[outputBufferSize];
+            /* Received data is collected in large pooled buffers, which are written
+             * to disk by the writer thread while the next buffer is received. */
+            BluetoothOppWriteBehindWriter writer = new BluetoothOppWriteBehindWriter(bos,
+                    BluetoothOppBufferPool.getInstance());
+            byte[] b = writer.obtainBuffer();
+            int filled = 0;
             int readLength = 0;
             long timestamp = 0;
+            writer.start();
             try {
                 beginTime = System.currentTimeMillis();
                 while ((!mInterrupted) && (position != fileInfo.mLength)) {
 
                     if (V) timestamp = System.currentTimeMillis();
 
-                    readLength = is.read(b);
+                    readLength = is.read(b, filled,
+                            (int) Math.min(b.length - filled, fileInfo.mLength - position));
                     if (readLength == -1) {
                         if (D) Log.d(TAG, "Receive file reached stream end at position" + position);
                         break;
                     }
 
-                    bos.write(b, 0, readLength);
+                    filled += readLength;
                     position += readLength;
+                    if (filled == b.length) {
+                        writer.submit(b, filled);
+                        b = writer.obtainBuffer();
+                        filled = 0;
+                    }
                     if (V) {
                         Log.v(TAG, "Receive file position = " + position + " readLength "
                                 + readLength + " bytes took "
                                 + (System.currentTimeMillis() - timestamp) + " ms");
                     }
-                    if (uiUpdateThread == null) {
-                        uiUpdateThread = new ContentResolverUpdateThread (mContext, contentUri);
-                        if (V) Log.v(TAG, "Worker for Updation : Created");
-                        uiUpdateThread.start();
-                    }
-
-
-                    }
-
+                    shareStore.updateProgress(mInfo.mId, position);
+                }
+                writer.submit(b, filled);
+                b = null;
+                writer.finish();
+                writer = null;
 
-                if (uiUpdateThread != null) {
-                    try {
-                        if (V) Log.v(TAG, "Worker for Updation : Destroying");
-                        uiUpdateThread.interrupt ();
-                        uiUpdateThread.join ();
-                        uiUpdateThread = null;
-                        if (V) Log.v(TAG, "Worker for Updation : Destroyed");
-                        ContentValues updateValues = new ContentValues();
-                        updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                        mContext.getContentResolver().update(contentUri, updateValues,
-                                        null, null);
-                    } catch (InterruptedException ie) {
-                            if (V) Log.v(TAG, "Interrupted waiting for uiUpdateThread to join");
-                    }
+                if (position > 0) {
+                    shareStore.commitProgress(mInfo.mId, position);
                 }
             } catch (IOException e1) {
                 Log.e(TAG, "Error when receiving file: " + e1);
@@ -609,10 +550,8 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
                 }
                 error = true;
             } finally {
-                if (uiUpdateThread != null) {
-                    if (V) Log.v(TAG, "Worker for Updation : Finally Destroying");
-                    uiUpdateThread.interrupt ();
-                    uiUpdateThread = null;
+                if (writer != null) {
+                    writer.abort();
                 }
             }
         }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reads the content of a file being sent ahead of the OBEX session.
+ *
+ * A reader thread fills pooled buffers from the input stream while the
+ * previously read data is being sent, so disk reads and packet transmission
+ * overlap instead of alternating on the session thread.
+ */
+class BluetoothOppPrefetchReader {
+    private static final String TAG = "BtOppPrefetchReader";
+    private static final boolean V = Constants.VERBOSE;
+
+    /** Number of buffers read ahead, in addition to the one being sent */
+    private static final int PREFETCH_DEPTH = 2;
+
+    static final class Chunk {
+        final byte[] data;
+        final int length;
+
+        Chunk(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private static final Chunk END_OF_STREAM = new Chunk(null, 0);
+
+    private final InputStream mInputStream;
+
+    private final long mLength;
+
+    private final BluetoothOppBufferPool mPool;
+
+    private final ArrayBlockingQueue<Chunk> mChunks =
+            new ArrayBlockingQueue<Chunk>(PREFETCH_DEPTH);
+
+    private final Thread mThread;
+
+    private volatile boolean mStopped;
+
+    private volatile IOException mError;
+
+    private boolean mEndOfStream;
+
+    BluetoothOppPrefetchReader(InputStream inputStream, long length,
+            BluetoothOppBufferPool pool) {
+        mInputStream = inputStream;
+        mLength = length;
+        mPool = pool;
+        mThread = new Thread("BtOpp PrefetchReader") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                readLoop();
+            }
+        };
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Get the next chunk of file data, blocking until it has been read.
+     * The chunk must be handed back with {@link #recycle(Chunk)} once sent.
+     * @return the next chunk, or null at the end of the stream
+     */
+    Chunk take() throws IOException {
+        if (mEndOfStream) {
+            return null;
+        }
+        Chunk chunk;
+        try {
+            chunk = mChunks.take();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while reading file");
+        }
+        if (chunk == END_OF_STREAM) {
+            mEndOfStream = true;
+            if (mError != null) {
+                throw mError;
+            }
+            return null;
+        }
+        return chunk;
+    }
+
+    void recycle(Chunk chunk) {
+        if (chunk != null) {
+            mPool.release(chunk.data);
+        }
+    }
+
+    /**
+     * Stop reading ahead and return all buffers to the pool.
+     * The input stream itself is not closed.
+     */
+    void close() {
+        mStopped = true;
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            if (V) Log.v(TAG, "Interrupted waiting for reader thread to join");
+        }
+        Chunk chunk;
+        while ((chunk = mChunks.poll()) != null) {
+            recycle(chunk);
+        }
+    }
+
+    private void readLoop() {
+        long remaining = mLength;
+        try {
+            while (!mStopped && remaining > 0) {
+                byte[] buffer = mPool.acquire();
+                int toRead = (int) Math.min(buffer.length, remaining);
+                int done = 0;
+                while (done < toRead) {
+                    int got = mInputStream.read(buffer, done, toRead - done);
+                    if (got <= 0) break;
+                    done += got;
+                }
+                if (done == 0) {
+                    mPool.release(buffer);
+                    break;
+                }
+                remaining -= done;
+                mChunks.put(new Chunk(buffer, done));
+                if (done < toRead) {
+                    // Stream ended before the expected length
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading file: " + e);
+            mError = e;
+        } catch (InterruptedException e) {
+            if (V) Log.v(TAG, "Reader interrupted");
+            return;
+        }
+        try {
+            mChunks.put(END_OF_STREAM);
+        } catch (InterruptedException e) {
+            if (V) Log.v(TAG, "Reader interrupted");
+        }
+    }
+}
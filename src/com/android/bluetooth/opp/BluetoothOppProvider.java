@@ -33,9 +33,12 @@
 package com.android.bluetooth.opp;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.content.UriMatcher;
@@ -45,6 +48,8 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.util.Log;
 
+import java.util.ArrayList;
+
 /**
  * This provider allows application to interact with Bluetooth OPP manager
  */
@@ -70,6 +75,21 @@ public final class BluetoothOppProvider extends ContentProvider {
     /** Name of table in the database */
     private static final String DB_TABLE = "btopp";
 
+    /* Set while applying a batch of operations on the calling thread */
+    private final ThreadLocal<Boolean> mInBatch = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+
+    private final ThreadLocal<Boolean> mBatchProgressChanged = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+
     /** MIME type for the entire share list */
     private static final String SHARE_LIST_TYPE = "vnd.android.cursor.dir/vnd.android.btopp";
 
@@ -272,7 +292,7 @@ public final class BluetoothOppProvider extends ContentProvider {
         if (rowID != -1) {
             context.startService(new Intent(context, BluetoothOppService.class));
             ret = Uri.parse(BluetoothShare.CONTENT_URI + "/" + rowID);
-            context.getContentResolver().notifyChange(uri, null);
+            context.getContentResolver().notifyChange(ret, null);
         } else {
             if (D) Log.d(TAG, "couldn't insert into btopp database");
             }
@@ -404,11 +424,50 @@ public final class BluetoothOppProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Cannot update URI: " + uri);
             }
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (values.size() == 1 && values.containsKey(BluetoothShare.CURRENT_BYTES)) {
+            notifyProgressChange(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
 
         return count;
     }
 
+    /**
+     * Apply a batch of updates in one database transaction. Progress-only
+     * notifications of the batch are merged into a single notification.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        mInBatch.set(true);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mInBatch.set(false);
+        }
+        if (mBatchProgressChanged.get()) {
+            mBatchProgressChanged.set(false);
+            notifyProgressChange(BluetoothShare.CONTENT_URI);
+        }
+        return results;
+    }
+
+    private void notifyProgressChange(Uri uri) {
+        if (mInBatch.get()) {
+            mBatchProgressChanged.set(true);
+            return;
+        }
+        Uri progressUri = uri.buildUpon()
+                .appendQueryParameter(Constants.PROGRESS_UPDATE_PARAMETER, "true").build();
+        getContext().getContentResolver().notifyChange(progressUri, null);
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -57,13 +57,17 @@ import android.os.Message;
 import android.os.PowerManager;
 import java.io.File;
 import android.util.Log;
+import android.util.SparseArray;
 import android.os.Process;
 import android.bluetooth.BluetoothUuid;
 
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashSet;
 import com.android.bluetooth.sdp.SdpManager;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
@@ -91,6 +95,26 @@ public class BluetoothOppService extends Service {
             if (V) Log.v(TAG, "ContentObserver received notification");
             updateFromProvider();
         }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (V) Log.v(TAG, "ContentObserver received notification for " + uri);
+            if (uri == null) {
+                updateFromProvider();
+            } else if (uri.getQueryParameter(Constants.PROGRESS_UPDATE_PARAMETER) != null) {
+                // Progress is reported to the share store directly by the
+                // transfer sessions, only the notification needs a refresh.
+                mNotifier.updateProgressNotification();
+            } else if (uri.getPathSegments().size() == 2) {
+                try {
+                    updateFromProvider(Integer.parseInt(uri.getLastPathSegment()));
+                } catch (NumberFormatException e) {
+                    updateFromProvider();
+                }
+            } else {
+                updateFromProvider();
+            }
+        }
     }
 
     private static final String TAG = "BtOppService";
@@ -101,15 +125,37 @@ public class BluetoothOppService extends Service {
     /** Class to handle Notification Manager updates */
     private BluetoothOppNotification mNotifier;
 
+    /* A full rescan of the share table is pending */
     private boolean mPendingUpdate;
 
+    /* Ids of single shares to re-read from the provider */
+    private HashSet<Integer> mPendingShareIds = new HashSet<Integer>();
+
+    /* Ids of single shares not re-read as the listener was stopped, re-read on restart */
+    private HashSet<Integer> mDeferredShareIds = new HashSet<Integer>();
+
     private UpdateThread mUpdateThread;
 
+    /* Shares sorted by id */
     private ArrayList<BluetoothOppShareInfo> mShares;
 
+    private BluetoothOppShareStore mShareStore;
+
+    private int mFullUpdates;
+
+    private int mShareUpdates;
+
     private ArrayList<BluetoothOppBatch> mBatchs;
 
-    private BluetoothOppTransfer mTransfer;
+    /* Running outbound transfers by batch id, one per remote device at most */
+    private SparseArray<BluetoothOppTransfer> mTransfers = new SparseArray<BluetoothOppTransfer>();
+
+    /* Maximum number of outbound batches transferred at the same time */
+    private int mMaxOutboundTransfers;
+
+    private int mMaxConcurrentTransfers;
+
+    private BluetoothOppFileBufferCache mFileBuffers;
 
     private BluetoothOppTransfer mServerTransfer;
 
@@ -160,7 +206,12 @@ public class BluetoothOppService extends Service {
         if (D) Log.d(TAG, "Enter - onCreate for service OPP");
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mShares = Lists.newArrayList();
+        mShareStore = BluetoothOppShareStore.getInstance(this);
+        mShareStore.clear();
         mBatchs = Lists.newArrayList();
+        mMaxOutboundTransfers = Math.max(1,
+                getResources().getInteger(R.integer.opp_max_parallel_outbound_transfers));
+        mFileBuffers = BluetoothOppFileBufferCache.getInstance();
         mObserver = new BluetoothShareContentObserver();
         getContentResolver().registerContentObserver(BluetoothShare.CONTENT_URI, true, mObserver);
         mBatchId = 1;
@@ -256,11 +307,11 @@ public class BluetoothOppService extends Service {
                        mServerTransfer.onBatchCanceled();
                        mServerTransfer =null;
                     }
-                    //Stop Active OUTBOUND Transfer
-                    if(mTransfer != null){
-                       mTransfer.onBatchCanceled();
-                       mTransfer =null;
+                    //Stop Active OUTBOUND Transfers
+                    for (int i = 0; i < mTransfers.size(); i++) {
+                        mTransfers.valueAt(i).onBatchCanceled();
                     }
+                    mTransfers.clear();
                     synchronized (BluetoothOppService.this) {
                         if (mUpdateThread == null) {
                             stopSelf();
@@ -272,6 +323,13 @@ public class BluetoothOppService extends Service {
                 case START_LISTENER:
                     if (mAdapter.isEnabled()) {
                         startSocketListener();
+                        synchronized (BluetoothOppService.this) {
+                            if (!mDeferredShareIds.isEmpty()) {
+                                mPendingShareIds.addAll(mDeferredShareIds);
+                                mDeferredShareIds.clear();
+                                startUpdateThread();
+                            }
+                        }
                     }
                     break;
                 case MEDIA_SCANNED:
@@ -308,7 +366,7 @@ public class BluetoothOppService extends Service {
                      * 2. If there is ongoing transfer, hold it for 20 seconds(1 seconds * 20 times)
                      * 3. If there is on-hold connection, reject directly
                      */
-                    if (mBatchs.size() == 0 && mPendingConnection == null) {
+                    if (!hasInboundBatch() && mPendingConnection == null) {
                         Log.i(TAG, "Start Obex Server");
                         createServerSession(transport);
                     } else {
@@ -333,7 +391,7 @@ public class BluetoothOppService extends Service {
                     }
                     break;
                 case MSG_INCOMING_CONNECTION_RETRY:
-                    if (mBatchs.size() == 0) {
+                    if (!hasInboundBatch()) {
                         Log.i(TAG, "Start Obex Server");
                         createServerSession(mPendingConnection);
                         mIncomingRetries = 0;
@@ -423,11 +481,31 @@ public class BluetoothOppService extends Service {
         if(mShares != null) {
             mShares.clear();
         }
+        if (mShareStore != null) {
+            mShareStore.clear();
+        }
+        if (mFileBuffers != null) {
+            mFileBuffers.clear();
+        }
         if(mHandler != null) {
             mHandler.removeCallbacksAndMessages(null);
         }
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        synchronized (BluetoothOppService.this) {
+            writer.println("Shares: " + mShares.size() + ", batches: " + mBatchs.size());
+            writer.println("Outbound transfers: " + mTransfers.size() + " running, "
+                    + mMaxOutboundTransfers + " max, " + mMaxConcurrentTransfers
+                    + " max reached");
+            writer.println("Full share table scans: " + mFullUpdates
+                    + ", single share updates: " + mShareUpdates);
+            writer.println(mShareStore);
+            writer.println(mFileBuffers);
+        }
+    }
+
     /* suppose we auto accept an incoming OPUSH connection */
     private void createServerSession(ObexTransport transport) {
         mServerSession = new BluetoothOppObexServerSession(this, transport);
@@ -470,16 +548,34 @@ public class BluetoothOppService extends Service {
         }
     };
 
+    /**
+     * Re-read the whole share table. Only needed at start up, and to recover
+     * from changes that cannot be attributed to a single share.
+     */
     private void updateFromProvider() {
         synchronized (BluetoothOppService.this) {
             mPendingUpdate = true;
-            if ((mUpdateThread == null) && (mAdapter != null)
-                && mAdapter.isEnabled()) {
-                mPowerManager = (PowerManager)getSystemService(POWER_SERVICE);
-                if (V) Log.v(TAG, "Starting a new thread");
-                mUpdateThread = new UpdateThread();
-                mUpdateThread.start();
-            }
+            startUpdateThread();
+        }
+    }
+
+    /**
+     * Re-read a single share after it was inserted, changed or deleted.
+     */
+    private void updateFromProvider(int id) {
+        synchronized (BluetoothOppService.this) {
+            mPendingShareIds.add(id);
+            startUpdateThread();
+        }
+    }
+
+    private void startUpdateThread() {
+        if ((mUpdateThread == null) && (mAdapter != null)
+            && mAdapter.isEnabled()) {
+            mPowerManager = (PowerManager)getSystemService(POWER_SERVICE);
+            if (V) Log.v(TAG, "Starting a new thread");
+            mUpdateThread = new UpdateThread();
+            mUpdateThread.start();
         }
     }
 
@@ -493,6 +589,8 @@ public class BluetoothOppService extends Service {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
             boolean keepService = false;
+            boolean fullUpdate;
+            ArrayList<Integer> shareIds = null;
             for (;;) {
                 synchronized (BluetoothOppService.this) {
                     if (mUpdateThread != this) {
@@ -501,7 +599,7 @@ public class BluetoothOppService extends Service {
                     }
                     if (V) Log.v(TAG, "pendingUpdate is " + mPendingUpdate + " keepUpdateThread is "
                                 + keepService + " sListenStarted is " + mListenStarted);
-                    if (!mPendingUpdate) {
+                    if (!mPendingUpdate && mPendingShareIds.isEmpty()) {
                         mUpdateThread = null;
                         if (!keepService && !mListenStarted) {
                             if (V) Log.v(TAG, "Need to stop self");
@@ -518,8 +616,20 @@ public class BluetoothOppService extends Service {
                             Log.e(TAG, "Interrupted", e);
                     }
 
+                    fullUpdate = mPendingUpdate;
+                    if (!fullUpdate) {
+                        shareIds = new ArrayList<Integer>(mPendingShareIds);
+                    } else {
+                        mFullUpdates++;
+                    }
+                    mPendingShareIds.clear();
                     mPendingUpdate = false;
                 }
+                if (!fullUpdate) {
+                    keepService = updateShares(shareIds);
+                    mNotifier.updateNotification();
+                    continue;
+                }
                 Cursor cursor;
                 try {
                     cursor = getContentResolver().query(BluetoothShare.CONTENT_URI, null, null,
@@ -575,13 +685,7 @@ public class BluetoothOppService extends Service {
                         if (arrayPos == mShares.size()) {
                             insertShare(cursor, arrayPos);
                             if (V) Log.v(TAG, "Array update: inserting " + id + " @ " + arrayPos);
-                            if (shouldScanFile(arrayPos) && (!scanFile(cursor, arrayPos))) {
-                                keepService = true;
-                            }
-                            if (visibleNotification(arrayPos)) {
-                                keepService = true;
-                            }
-                            if (needAction(arrayPos)) {
+                            if (checkShare(cursor, arrayPos)) {
                                 keepService = true;
                             }
 
@@ -604,13 +708,7 @@ public class BluetoothOppService extends Service {
                                 // This cursor row already exists in the stored
                                 // array
                                 updateShare(cursor, arrayPos, userAccepted);
-                                if (shouldScanFile(arrayPos) && (!scanFile(cursor, arrayPos))) {
-                                    keepService = true;
-                                }
-                                if (visibleNotification(arrayPos)) {
-                                    keepService = true;
-                                }
-                                if (needAction(arrayPos)) {
+                                if (checkShare(cursor, arrayPos)) {
                                     keepService = true;
                                 }
 
@@ -623,13 +721,7 @@ public class BluetoothOppService extends Service {
                                 if (V) Log.v(TAG, "Array update: appending " + id + " @ " + arrayPos);
                                 insertShare(cursor, arrayPos);
 
-                                if (shouldScanFile(arrayPos) && (!scanFile(cursor, arrayPos))) {
-                                    keepService = true;
-                                }
-                                if (visibleNotification(arrayPos)) {
-                                    keepService = true;
-                                }
-                                if (needAction(arrayPos)) {
+                                if (checkShare(cursor, arrayPos)) {
                                     keepService = true;
                                 }
                                 ++arrayPos;
@@ -649,6 +741,109 @@ public class BluetoothOppService extends Service {
 
     }
 
+    /**
+     * Apply the provider state of the given shares to the local array.
+     * @return true if the service needs to be kept running
+     */
+    private boolean updateShares(ArrayList<Integer> shareIds) {
+        for (int i = 0; i < shareIds.size(); i++) {
+            int id = shareIds.get(i);
+            synchronized (BluetoothOppService.this) {
+                if (!mListenStarted) {
+                    mDeferredShareIds.addAll(shareIds.subList(i, shareIds.size()));
+                    break;
+                }
+                mShareUpdates++;
+            }
+            Cursor cursor;
+            try {
+                cursor = getContentResolver().query(
+                        Uri.parse(BluetoothShare.CONTENT_URI + "/" + id), null, null, null, null);
+            } catch (SQLiteException e) {
+                cursor = null;
+                Log.e(TAG, "SQLite exception: " + e);
+            }
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                int arrayPos = findShare(id);
+                if (!cursor.moveToFirst()) {
+                    if (arrayPos >= 0) {
+                        if (V) Log.v(TAG, "Share update: removing " + id + " @ " + arrayPos);
+                        if (shouldScanFile(arrayPos)) {
+                            scanFile(null, arrayPos);
+                        }
+                        deleteShare(arrayPos);
+                    }
+                } else if (arrayPos >= 0) {
+                    updateShare(cursor, arrayPos, userAccepted);
+                    checkShare(cursor, arrayPos);
+                } else {
+                    arrayPos = -(arrayPos + 1);
+                    if (V) Log.v(TAG, "Share update: inserting " + id + " @ " + arrayPos);
+                    insertShare(cursor, arrayPos);
+                    checkShare(cursor, arrayPos);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        boolean keepService = false;
+        for (int i = 0; i < mShares.size(); i++) {
+            if (visibleNotification(i) || needAction(i)) {
+                keepService = true;
+                break;
+            }
+        }
+        synchronized (BluetoothOppService.this) {
+            if (mMediaScanInProgress) {
+                keepService = true;
+            }
+        }
+        return keepService;
+    }
+
+    /**
+     * Start media scanning of a received share if needed.
+     * @return true if the share needs the service to be kept running
+     */
+    private boolean checkShare(Cursor cursor, int arrayPos) {
+        boolean keepService = false;
+        if (shouldScanFile(arrayPos) && (!scanFile(cursor, arrayPos))) {
+            keepService = true;
+        }
+        if (visibleNotification(arrayPos)) {
+            keepService = true;
+        }
+        if (needAction(arrayPos)) {
+            keepService = true;
+        }
+        return keepService;
+    }
+
+    /**
+     * Binary search for a share id in the sorted local array.
+     * @return the position of the share, or (-(insertion point) - 1) if not found
+     */
+    private int findShare(int id) {
+        int low = 0;
+        int high = mShares.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midId = mShares.get(mid).mId;
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
     private void insertShare(Cursor cursor, int arrayPos) {
         String uriString = cursor.getString(cursor.getColumnIndexOrThrow(BluetoothShare.URI));
         Uri uri;
@@ -695,6 +890,7 @@ public class BluetoothOppService extends Service {
         }
 
         mShares.add(arrayPos, info);
+        mShareStore.put(info);
 
         /* Mark the info as failed if it's in invalid status */
         if (info.isObsolete()) {
@@ -703,11 +899,10 @@ public class BluetoothOppService extends Service {
         /*
          * Add info into a batch. The logic is
          * 1) Only add valid and readyToStart info
-         * 2) If there is no batch, create a batch and insert this transfer into batch,
-         * then run the batch
-         * 3) If there is existing batch and timestamp match, insert transfer into batch
-         * 4) If there is existing batch and timestamp does not match, create a new batch and
-         * put in queue
+         * 2) If there is existing batch and timestamp match, insert transfer into batch
+         * 3) Otherwise create a new batch and put in queue. Outbound batches are
+         * started by startPendingBatches() as long as the limit of parallel outbound
+         * transfers allows and the remote device is not busy with another batch.
          */
 
         if (info.isReadyToStart()) {
@@ -721,57 +916,37 @@ public class BluetoothOppService extends Service {
                     BluetoothOppUtility.closeSendFileInfo(info.mUri);
                     return;
                 }
+                mFileBuffers.register(info.mUri);
             }
-            if (mBatchs.size() == 0) {
+            int i = findBatchWithTimeStamp(info.mTimestamp);
+            if (i != -1) {
+                if (V) Log.v(TAG, "Service add info " + info.mId + " to existing batch "
+                            + mBatchs.get(i).mId);
+                mBatchs.get(i).addShare(info);
+            } else {
+                boolean idle = mBatchs.size() == 0;
                 BluetoothOppBatch newBatch = new BluetoothOppBatch(this, info);
                 newBatch.mId = mBatchId;
                 mBatchId++;
                 mBatchs.add(newBatch);
+                if (V) Log.v(TAG, "Service add new Batch " + newBatch.mId + " for info " +
+                        info.mId);
                 if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
-                    if (V) Log.v(TAG, "Service create new Batch " + newBatch.mId
-                                + " for OUTBOUND info " + info.mId);
-                    mTransfer = new BluetoothOppTransfer(this, mPowerManager, newBatch);
+                    startPendingBatches();
                 } else if (info.mDirection == BluetoothShare.DIRECTION_INBOUND) {
-                    if (V) Log.v(TAG, "Service create new Batch " + newBatch.mId
-                                + " for INBOUND info " + info.mId);
-                    mServerTransfer = new BluetoothOppTransfer(this, mPowerManager, newBatch,
-                            mServerSession);
-                }
-
-                if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND && mTransfer != null) {
-                    if (V) Log.v(TAG, "Service start transfer new Batch " + newBatch.mId
-                                + " for info " + info.mId);
-                    mTransfer.start();
-                } else if (info.mDirection == BluetoothShare.DIRECTION_INBOUND
-                        && mServerTransfer != null) {
-                    if (V) Log.v(TAG, "Service start server transfer new Batch " + newBatch.mId
-                                + " for info " + info.mId);
-                    mServerTransfer.start();
-                }
-
-            } else {
-                int i = findBatchWithTimeStamp(info.mTimestamp);
-                if (i != -1) {
-                    if (V) Log.v(TAG, "Service add info " + info.mId + " to existing batch "
-                                + mBatchs.get(i).mId);
-                    mBatchs.get(i).addShare(info);
-                } else {
-                    // There is ongoing batch
-                    BluetoothOppBatch newBatch = new BluetoothOppBatch(this, info);
-                    newBatch.mId = mBatchId;
-                    mBatchId++;
-                    mBatchs.add(newBatch);
-                    if (V) Log.v(TAG, "Service add new Batch " + newBatch.mId + " for info " +
-                            info.mId);
-                    if (Constants.USE_TCP_DEBUG && !Constants.USE_TCP_SIMPLE_SERVER) {
+                    if (idle || (mServerTransfer == null && mServerSession != null)) {
+                        if (V) Log.v(TAG, "Service start server transfer new Batch "
+                                    + newBatch.mId + " for info " + info.mId);
+                        mServerTransfer = new BluetoothOppTransfer(this, mPowerManager, newBatch,
+                                mServerSession);
+                        mServerTransfer.start();
+                    } else if (Constants.USE_TCP_DEBUG && !Constants.USE_TCP_SIMPLE_SERVER) {
                         // only allow  concurrent serverTransfer in debug mode
-                        if (info.mDirection == BluetoothShare.DIRECTION_INBOUND) {
-                            if (V) Log.v(TAG, "TCP_DEBUG start server transfer new Batch " +
-                                    newBatch.mId + " for info " + info.mId);
-                            mServerTransfer = new BluetoothOppTransfer(this, mPowerManager,
-                                    newBatch, mServerSession);
-                            mServerTransfer.start();
-                        }
+                        if (V) Log.v(TAG, "TCP_DEBUG start server transfer new Batch " +
+                                newBatch.mId + " for info " + info.mId);
+                        mServerTransfer = new BluetoothOppTransfer(this, mPowerManager,
+                                newBatch, mServerSession);
+                        mServerTransfer.start();
                     }
                 }
             }
@@ -845,15 +1020,13 @@ public class BluetoothOppService extends Service {
                     || batch.mStatus == Constants.BATCH_STATUS_FAILED) {
                 if (V) Log.v(TAG, "Batch " + batch.mId + " is finished");
                 if (batch.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
-                    if (mTransfer == null) {
-                        Log.e(TAG, "Unexpected error! mTransfer is null");
-                    } else if (batch.mId == mTransfer.getBatchId()) {
-                        mTransfer.stop();
+                    BluetoothOppTransfer transfer = mTransfers.get(batch.mId);
+                    if (transfer == null) {
+                        Log.e(TAG, "Unexpected error! no transfer for batch " + batch.mId);
                     } else {
-                        Log.e(TAG, "Unexpected error! batch id " + batch.mId
-                                + " doesn't match mTransfer id " + mTransfer.getBatchId());
+                        transfer.stop();
+                        mTransfers.remove(batch.mId);
                     }
-                    mTransfer = null;
                 } else {
                     if (mServerTransfer == null) {
                         Log.e(TAG, "Unexpected error! mServerTransfer is null");
@@ -897,6 +1070,7 @@ public class BluetoothOppService extends Service {
             }
         }
         mShares.remove(arrayPos);
+        mShareStore.remove(info.mId);
     }
 
     private String stringFromCursor(String old, Cursor cursor, String column) {
@@ -938,38 +1112,85 @@ public class BluetoothOppService extends Service {
     private void removeBatch(BluetoothOppBatch batch) {
         if (V) Log.v(TAG, "Remove batch " + batch.mId);
         mBatchs.remove(batch);
-        BluetoothOppBatch nextBatch;
-        if (mBatchs.size() > 0) {
-            for (int i = 0; i < mBatchs.size(); i++) {
-                // we have a running batch
-                nextBatch = mBatchs.get(i);
-                if (nextBatch.mStatus == Constants.BATCH_STATUS_RUNNING) {
-                    return;
-                } else {
-                    // just finish a transfer, start pending outbound transfer
-                    if (nextBatch.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
-                        if (V) Log.v(TAG, "Start pending outbound batch " + nextBatch.mId);
-                        mTransfer = new BluetoothOppTransfer(this, mPowerManager, nextBatch);
-                        mTransfer.start();
-                        return;
-                    } else if (nextBatch.mDirection == BluetoothShare.DIRECTION_INBOUND
-                            && mServerSession != null) {
-                        // have to support pending inbound transfer
-                        // if an outbound transfer and incoming socket happens together
-                        if (V) Log.v(TAG, "Start pending inbound batch " + nextBatch.mId);
-                        mServerTransfer = new BluetoothOppTransfer(this, mPowerManager, nextBatch,
-                                                                   mServerSession);
-                        mServerTransfer.start();
-                        if (nextBatch.getPendingShare() != null
-                            && nextBatch.getPendingShare().mConfirm ==
-                                BluetoothShare.USER_CONFIRMATION_CONFIRMED) {
-                            mServerTransfer.confirmStatusChanged();
-                        }
-                        return;
-                    }
+        BluetoothOppTransfer transfer = mTransfers.get(batch.mId);
+        if (transfer != null) {
+            // Batch removed while still running, e.g. all its shares were deleted
+            transfer.stop();
+            mTransfers.remove(batch.mId);
+        }
+        startPendingBatches();
+    }
+
+    /**
+     * Start pending batches, in the order they were queued. Outbound batches
+     * run concurrently, one per remote device and up to mMaxOutboundTransfers
+     * in total. Inbound batches run one at a time on the server session.
+     */
+    private void startPendingBatches() {
+        for (int i = 0; i < mBatchs.size(); i++) {
+            BluetoothOppBatch nextBatch = mBatchs.get(i);
+            if (nextBatch.mStatus != Constants.BATCH_STATUS_PENDING
+                    || mTransfers.get(nextBatch.mId) != null) {
+                continue;
+            }
+            if (nextBatch.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
+                if (mTransfers.size() >= mMaxOutboundTransfers) {
+                    continue;
+                }
+                if (isDeviceBusy(nextBatch)) {
+                    continue;
+                }
+                BluetoothOppShareInfo share = nextBatch.getPendingShare();
+                if (share != null && !mFileBuffers.isAvailable(share.mUri)) {
+                    // The file is too large to buffer and is sent to another device
+                    continue;
+                }
+                if (V) Log.v(TAG, "Start pending outbound batch " + nextBatch.mId);
+                BluetoothOppTransfer transfer = new BluetoothOppTransfer(this, mPowerManager,
+                        nextBatch);
+                mTransfers.put(nextBatch.mId, transfer);
+                if (mTransfers.size() > mMaxConcurrentTransfers) {
+                    mMaxConcurrentTransfers = mTransfers.size();
+                }
+                transfer.start();
+            } else if (nextBatch.mDirection == BluetoothShare.DIRECTION_INBOUND
+                    && mServerTransfer == null && mServerSession != null) {
+                // have to support pending inbound transfer
+                // if an outbound transfer and incoming socket happens together
+                if (V) Log.v(TAG, "Start pending inbound batch " + nextBatch.mId);
+                mServerTransfer = new BluetoothOppTransfer(this, mPowerManager, nextBatch,
+                                                           mServerSession);
+                mServerTransfer.start();
+                if (nextBatch.getPendingShare() != null
+                    && nextBatch.getPendingShare().mConfirm ==
+                        BluetoothShare.USER_CONFIRMATION_CONFIRMED) {
+                    mServerTransfer.confirmStatusChanged();
+                }
+            }
+        }
+    }
+
+    /* Whether an outbound transfer to the destination of the batch is running */
+    private boolean isDeviceBusy(BluetoothOppBatch batch) {
+        for (int i = 0; i < mTransfers.size(); i++) {
+            int batchId = mTransfers.keyAt(i);
+            for (int j = 0; j < mBatchs.size(); j++) {
+                BluetoothOppBatch running = mBatchs.get(j);
+                if (running.mId == batchId && running.mDestination.equals(batch.mDestination)) {
+                    return true;
                 }
             }
         }
+        return false;
+    }
+
+    private boolean hasInboundBatch() {
+        for (int i = 0; i < mBatchs.size(); i++) {
+            if (mBatchs.get(i).mDirection == BluetoothShare.DIRECTION_INBOUND) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private boolean needAction(int arrayPos) {
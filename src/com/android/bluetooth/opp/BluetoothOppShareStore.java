@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseLongArray;
+
+import java.util.ArrayList;
+
+/**
+ * In-memory state of the shares handled by {@link BluetoothOppService}, keyed by share id.
+ *
+ * Transfer sessions report progress here instead of writing CURRENT_BYTES to the
+ * provider themselves. The progress of all running shares is written to the provider
+ * in one batch every {@link #PROGRESS_FLUSH_INTERVAL} ms, and the resulting change
+ * notification is flagged with {@link Constants#PROGRESS_UPDATE_PARAMETER} so the
+ * service does not need to re-read the share table for it.
+ */
+class BluetoothOppShareStore {
+    private static final String TAG = "BtOppShareStore";
+    private static final boolean V = Constants.VERBOSE;
+
+    private static final int MSG_FLUSH_PROGRESS = 1;
+
+    private static final int PROGRESS_FLUSH_INTERVAL = 1000;
+
+    private static BluetoothOppShareStore sInstance;
+
+    private final ContentResolver mContentResolver;
+
+    private final SparseArray<BluetoothOppShareInfo> mShares =
+            new SparseArray<BluetoothOppShareInfo>();
+
+    /* Share id -> current bytes not yet written to the provider */
+    private final SparseLongArray mPendingProgress = new SparseLongArray();
+
+    private final Handler mHandler;
+
+    /* Serializes provider writes, so a progress batch taken before a share was
+     * committed cannot be applied after the final progress of the share */
+    private final Object mWriteLock = new Object();
+
+    private long mProgressUpdates;
+
+    private long mProviderBatches;
+
+    static synchronized BluetoothOppShareStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BluetoothOppShareStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BluetoothOppShareStore(Context context) {
+        mContentResolver = context.getContentResolver();
+        HandlerThread thread = new HandlerThread("BtOpp ShareStore",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new StoreHandler(thread.getLooper());
+    }
+
+    private final class StoreHandler extends Handler {
+        private StoreHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_FLUSH_PROGRESS:
+                    flushProgress();
+                    break;
+            }
+        }
+    }
+
+    synchronized void put(BluetoothOppShareInfo info) {
+        mShares.put(info.mId, info);
+    }
+
+    synchronized BluetoothOppShareInfo get(int id) {
+        return mShares.get(id);
+    }
+
+    synchronized void remove(int id) {
+        mShares.remove(id);
+        mPendingProgress.delete(id);
+    }
+
+    synchronized int size() {
+        return mShares.size();
+    }
+
+    synchronized void clear() {
+        mShares.clear();
+        mPendingProgress.clear();
+        mHandler.removeMessages(MSG_FLUSH_PROGRESS);
+    }
+
+    /**
+     * Report the progress of a running share. The provider is updated
+     * asynchronously, together with the progress of other running shares.
+     */
+    synchronized void updateProgress(int id, long currentBytes) {
+        BluetoothOppShareInfo info = mShares.get(id);
+        if (info != null) {
+            info.mCurrentBytes = currentBytes;
+        }
+        mPendingProgress.put(id, currentBytes);
+        mProgressUpdates++;
+        if (!mHandler.hasMessages(MSG_FLUSH_PROGRESS)) {
+            mHandler.sendEmptyMessageDelayed(MSG_FLUSH_PROGRESS, PROGRESS_FLUSH_INTERVAL);
+        }
+    }
+
+    /**
+     * Write the final progress of a share to the provider right away,
+     * e.g. when the transfer of the share has ended.
+     */
+    void commitProgress(int id, long currentBytes) {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                BluetoothOppShareInfo info = mShares.get(id);
+                if (info != null) {
+                    info.mCurrentBytes = currentBytes;
+                }
+                mPendingProgress.delete(id);
+            }
+            ContentValues updateValues = new ContentValues();
+            updateValues.put(BluetoothShare.CURRENT_BYTES, currentBytes);
+            mContentResolver.update(Uri.parse(BluetoothShare.CONTENT_URI + "/" + id),
+                    updateValues, null, null);
+        }
+    }
+
+    private void flushProgress() {
+        synchronized (mWriteLock) {
+            writePendingProgress();
+        }
+    }
+
+    private void writePendingProgress() {
+        ArrayList<ContentProviderOperation> ops;
+        synchronized (this) {
+            int size = mPendingProgress.size();
+            if (size == 0) {
+                return;
+            }
+            ops = new ArrayList<ContentProviderOperation>(size);
+            for (int i = 0; i < size; i++) {
+                ops.add(ContentProviderOperation.newUpdate(
+                        Uri.parse(BluetoothShare.CONTENT_URI + "/" + mPendingProgress.keyAt(i)))
+                        .withValue(BluetoothShare.CURRENT_BYTES, mPendingProgress.valueAt(i))
+                        .build());
+            }
+            mPendingProgress.clear();
+            mProviderBatches++;
+        }
+        if (V) Log.v(TAG, "Writing progress of " + ops.size() + " shares");
+        try {
+            mContentResolver.applyBatch(BluetoothShare.CONTENT_URI.getAuthority(), ops);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to write share progress", e);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Failed to write share progress", e);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BluetoothOppShareStore: shares=" + mShares.size() + " pendingProgress="
+                + mPendingProgress.size() + " progressUpdates=" + mProgressUpdates
+                + " providerBatches=" + mProviderBatches;
+    }
+}
@@ -331,7 +331,7 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
                 if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
                     BluetoothOppSendFileInfo fileInfo
                             = BluetoothOppUtility.getSendFileInfo(info.mUri);
-                    BluetoothOppUtility.closeSendFileInfo(info.mUri);
+                    BluetoothOppFileBufferCache.getInstance().release(info.mUri);
                     if (fileInfo.mFileName != null) {
                         updateValues.put(BluetoothShare.FILENAME_HINT, fileInfo.mFileName);
                         updateValues.put(BluetoothShare.TOTAL_BYTES, fileInfo.mLength);
@@ -573,7 +573,7 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
                 /* SDP failed, start rfcomm connect directly */
                 mConnectThread = new SocketConnectThread(mBatch.mDestination, false, false);
                 /* update bd address as sdp could not be started */
-                OolConnManager.setSdpInitiatedAddress(null);
+                OolConnManager.clearSdpInitiatedAddress(mBatch.mDestination);
             } else {
                 /* SDP sucessfully started, start l2cap connect after sdp completes */
                 mConnectThread = new SocketConnectThread(mBatch.mDestination, false, true);
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Writes the content of a file being received behind the OBEX session.
+ *
+ * The session thread fills pooled buffers from the OBEX stream and submits
+ * them; a writer thread writes them to disk, so packet reception and disk
+ * writes overlap instead of alternating on the session thread.
+ */
+class BluetoothOppWriteBehindWriter {
+    private static final String TAG = "BtOppWriteBehind";
+    private static final boolean V = Constants.VERBOSE;
+
+    /** Number of filled buffers that may wait for the disk */
+    private static final int WRITE_DEPTH = 2;
+
+    private static final class Chunk {
+        final byte[] data;
+        final int length;
+
+        Chunk(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private static final Chunk END_OF_STREAM = new Chunk(null, 0);
+
+    private final OutputStream mOutputStream;
+
+    private final BluetoothOppBufferPool mPool;
+
+    private final ArrayBlockingQueue<Chunk> mChunks =
+            new ArrayBlockingQueue<Chunk>(WRITE_DEPTH);
+
+    private final Thread mThread;
+
+    private volatile IOException mError;
+
+    private volatile boolean mStopped;
+
+    BluetoothOppWriteBehindWriter(OutputStream outputStream, BluetoothOppBufferPool pool) {
+        mOutputStream = outputStream;
+        mPool = pool;
+        mThread = new Thread("BtOpp WriteBehindWriter") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                writeLoop();
+            }
+        };
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /** Get an empty buffer to fill with received data. */
+    byte[] obtainBuffer() {
+        return mPool.acquire();
+    }
+
+    /**
+     * Queue a filled buffer for writing. Ownership of the buffer passes to the writer.
+     * Blocks while {@link #WRITE_DEPTH} buffers are already waiting for the disk.
+     */
+    void submit(byte[] buffer, int length) throws IOException {
+        checkError();
+        if (length <= 0) {
+            mPool.release(buffer);
+            return;
+        }
+        try {
+            mChunks.put(new Chunk(buffer, length));
+        } catch (InterruptedException e) {
+            mPool.release(buffer);
+            throw new IOException("Interrupted while writing file");
+        }
+    }
+
+    /**
+     * Wait until all submitted data has been written and flushed.
+     * @throws IOException if writing any of the data failed
+     */
+    void finish() throws IOException {
+        try {
+            mChunks.put(END_OF_STREAM);
+            mThread.join();
+        } catch (InterruptedException e) {
+            abort();
+            throw new IOException("Interrupted while writing file");
+        }
+        checkError();
+    }
+
+    /** Stop writing, dropping data that has not been written yet. */
+    void abort() {
+        mStopped = true;
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            if (V) Log.v(TAG, "Interrupted waiting for writer thread to join");
+        }
+        Chunk chunk;
+        while ((chunk = mChunks.poll()) != null) {
+            mPool.release(chunk.data);
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (!mStopped) {
+                Chunk chunk = mChunks.take();
+                if (chunk == END_OF_STREAM) {
+                    mOutputStream.flush();
+                    return;
+                }
+                try {
+                    mOutputStream.write(chunk.data, 0, chunk.length);
+                } finally {
+                    mPool.release(chunk.data);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing file: " + e);
+            mError = e;
+            // Keep draining so the session thread does not block on submit()
+            Chunk chunk;
+            while ((chunk = mChunks.poll()) != null) {
+                mPool.release(chunk.data);
+            }
+        } catch (InterruptedException e) {
+            if (V) Log.v(TAG, "Writer interrupted");
+        }
+    }
+}
@@ -192,6 +192,12 @@ public class Constants {
 
     public static final int MEDIA_SCANNED_SCANNED_FAILED = 2;
 
+    /**
+     * Query parameter added to the change notification uri when only the
+     * transfer progress (CURRENT_BYTES) of shares has changed.
+     */
+    public static final String PROGRESS_UPDATE_PARAMETER = "progress";
+
     /**
      * The MIME type(s) of we could share to other device.
      */
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pan;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Admission of PANU clients to the local NAP.
+ *
+ * At most a configured number of clients are connected at the same time.
+ * A client rejected because the NAP is full is put on a waiting list. When
+ * slots free up they are held for the clients that have waited longest,
+ * so a client retrying its connection is not starved by new clients.
+ * Waiting clients that do not retry within {@link #WAIT_TIMEOUT_MS} lose
+ * their place.
+ *
+ * Admission runs on the PanService handler thread and dump() on binder
+ * threads, all methods are synchronized.
+ */
+class PanAdmission {
+    static final int WAIT_TIMEOUT_MS = 60000;
+
+    private final int mMaxClients;
+    // Rejected clients, in order of their first rejection, with the time of their last attempt
+    private final LinkedHashMap<BluetoothDevice, Long> mWaiting =
+            new LinkedHashMap<BluetoothDevice, Long>();
+    private long mAdmitted = 0;
+    private long mRejected = 0;
+
+    PanAdmission(int maxClients) {
+        mMaxClients = maxClients;
+    }
+
+    /**
+     * @param connected the number of clients connected, not counting |device|
+     * @return true if |device| may connect
+     */
+    boolean admit(BluetoothDevice device, int connected) {
+        return admit(device, connected, SystemClock.elapsedRealtime());
+    }
+
+    @VisibleForTesting
+    synchronized boolean admit(BluetoothDevice device, int connected, long now) {
+        expireWaiting(now);
+
+        int free = mMaxClients - connected;
+        int position = 0;
+        boolean waiting = false;
+        for (BluetoothDevice waiter : mWaiting.keySet()) {
+            if (waiter.equals(device)) {
+                waiting = true;
+                break;
+            }
+            position++;
+        }
+        // Clients waiting longer have the first free slots
+        if (free > 0 && (waiting ? position < free : mWaiting.size() < free)) {
+            mWaiting.remove(device);
+            mAdmitted++;
+            return true;
+        }
+        // Keeps the place in the queue, only the time of the attempt is updated
+        mWaiting.put(device, now);
+        mRejected++;
+        return false;
+    }
+
+    private void expireWaiting(long now) {
+        Iterator<Map.Entry<BluetoothDevice, Long>> it = mWaiting.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue() > WAIT_TIMEOUT_MS) it.remove();
+        }
+    }
+
+    synchronized void clear() {
+        mWaiting.clear();
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  max clients: " + mMaxClients + ", admitted: " + mAdmitted + ", rejected: "
+                + mRejected + ", waiting: " + mWaiting.size() + "\n");
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pan;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.bluetooth.btservice.BluetoothProto;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Traffic statistics of the Bluetooth PAN network interface.
+ *
+ * While an interface is up its kernel counters are sampled from
+ * /sys/class/net/<iface>/statistics every {@link #SAMPLE_INTERVAL_MS}.
+ * Throughput is computed over the last {@link #WINDOW_SAMPLES} samples.
+ * All PAN peers share the interface, so the counters are per interface;
+ * per peer only the connection time is tracked (see PanService).
+ *
+ * Sampling runs on the thread of the handler passed in, while dump() is
+ * called from binder threads, so all methods touching the sessions are
+ * synchronized.
+ */
+class PanMetrics {
+    private static final String TAG = "PanMetrics";
+
+    static final int SAMPLE_INTERVAL_MS = 5000;
+    static final int WINDOW_SAMPLES = 12;
+    static final int MAX_SESSIONS = 5;
+
+    private static final String STATS_PATH = "/sys/class/net/%s/statistics/%s";
+    private static final String[] COUNTERS = {
+        "rx_bytes", "tx_bytes", "rx_packets", "tx_packets", "rx_dropped", "tx_dropped"
+    };
+    private static final int RX_BYTES = 0;
+    private static final int TX_BYTES = 1;
+    private static final int RX_PACKETS = 2;
+    private static final int TX_PACKETS = 3;
+    private static final int RX_DROPPED = 4;
+    private static final int TX_DROPPED = 5;
+
+    /** Counters of one interface session, relative to when it was brought up. */
+    static class Session {
+        final String mIface;
+        final long mStartTime;
+        long mEndTime = 0;
+        final long[] mBase = new long[COUNTERS.length];
+        final long[] mCurrent = new long[COUNTERS.length];
+        long mPeakRxRate = 0;
+        long mPeakTxRate = 0;
+        int mMaxPeers = 0;
+
+        Session(String iface, long now) {
+            mIface = iface;
+            mStartTime = now;
+        }
+
+        long get(int counter) {
+            return mCurrent[counter] - mBase[counter];
+        }
+
+        long getDurationMs(long now) {
+            return (mEndTime != 0 ? mEndTime : now) - mStartTime;
+        }
+    }
+
+    private final Handler mHandler;
+    private final String mStatsPath;
+    private Session mSession;
+    private final ArrayList<Session> mPastSessions = new ArrayList<Session>();
+
+    // Rolling window of (time, rx bytes, tx bytes) samples
+    private final long[] mSampleTimes = new long[WINDOW_SAMPLES];
+    private final long[] mSampleRx = new long[WINDOW_SAMPLES];
+    private final long[] mSampleTx = new long[WINDOW_SAMPLES];
+    private int mSamples = 0;
+
+    private final Runnable mSampleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+            mHandler.postDelayed(this, SAMPLE_INTERVAL_MS);
+        }
+    };
+
+    PanMetrics(Handler handler) {
+        this(handler, STATS_PATH);
+    }
+
+    @VisibleForTesting
+    PanMetrics(Handler handler, String statsPath) {
+        mHandler = handler;
+        mStatsPath = statsPath;
+    }
+
+    /** Start sampling |iface|, ending the current session if on another interface. */
+    synchronized void start(String iface) {
+        if (iface == null) return;
+        if (mSession != null) {
+            if (mSession.mIface.equals(iface)) return;
+            stop();
+        }
+        mSession = new Session(iface, SystemClock.elapsedRealtime());
+        readCounters(iface, mSession.mBase);
+        System.arraycopy(mSession.mBase, 0, mSession.mCurrent, 0, COUNTERS.length);
+        mSamples = 0;
+        sample();
+        mHandler.postDelayed(mSampleRunnable, SAMPLE_INTERVAL_MS);
+    }
+
+    synchronized void stop() {
+        mHandler.removeCallbacks(mSampleRunnable);
+        if (mSession == null) return;
+        sample();
+        mSession.mEndTime = SystemClock.elapsedRealtime();
+        if (mPastSessions.size() == MAX_SESSIONS) mPastSessions.remove(0);
+        mPastSessions.add(mSession);
+        mSession = null;
+    }
+
+    synchronized void onPeerCountChanged(int peers) {
+        if (mSession != null && peers > mSession.mMaxPeers) mSession.mMaxPeers = peers;
+    }
+
+    /** @return receive throughput over the sampling window, in bytes per second */
+    synchronized long getRxRate() {
+        return getRate(mSampleRx);
+    }
+
+    /** @return transmit throughput over the sampling window, in bytes per second */
+    synchronized long getTxRate() {
+        return getRate(mSampleTx);
+    }
+
+    private long getRate(long[] values) {
+        if (mSamples < 2) return 0;
+        int newest = (mSamples - 1) % WINDOW_SAMPLES;
+        int oldest = mSamples > WINDOW_SAMPLES ? mSamples % WINDOW_SAMPLES : 0;
+        long elapsed = mSampleTimes[newest] - mSampleTimes[oldest];
+        if (elapsed <= 0) return 0;
+        return (values[newest] - values[oldest]) * 1000 / elapsed;
+    }
+
+    private synchronized void sample() {
+        if (mSession == null) return;
+        if (!readCounters(mSession.mIface, mSession.mCurrent)) return;
+        int index = mSamples % WINDOW_SAMPLES;
+        mSampleTimes[index] = SystemClock.elapsedRealtime();
+        mSampleRx[index] = mSession.get(RX_BYTES);
+        mSampleTx[index] = mSession.get(TX_BYTES);
+        mSamples++;
+        mSession.mPeakRxRate = Math.max(mSession.mPeakRxRate, getRxRate());
+        mSession.mPeakTxRate = Math.max(mSession.mPeakTxRate, getTxRate());
+    }
+
+    private boolean readCounters(String iface, long[] counters) {
+        for (int i = 0; i < COUNTERS.length; i++) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(
+                        new FileReader(String.format(mStatsPath, iface, COUNTERS[i])));
+                String line = reader.readLine();
+                if (line == null) return false;
+                counters[i] = Long.parseLong(line.trim());
+            } catch (IOException | NumberFormatException e) {
+                Log.w(TAG, "Unable to read " + COUNTERS[i] + " of " + iface + ": " + e);
+                return false;
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        // Ignore
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        long now = SystemClock.elapsedRealtime();
+        if (mSession != null) {
+            sb.append("  Current: ");
+            dumpSession(sb, mSession, now);
+            sb.append("    throughput rx: " + getRxRate() + " B/s, tx: " + getTxRate() + " B/s\n");
+        }
+        for (Session session : mPastSessions) {
+            sb.append("  Past: ");
+            dumpSession(sb, session, now);
+        }
+    }
+
+    private static void dumpSession(StringBuilder sb, Session s, long now) {
+        sb.append(s.mIface + " up " + s.getDurationMs(now) / 1000 + "s, rx " + s.get(RX_BYTES)
+                + " B/" + s.get(RX_PACKETS) + " pkts (" + s.get(RX_DROPPED) + " dropped), tx "
+                + s.get(TX_BYTES) + " B/" + s.get(TX_PACKETS) + " pkts (" + s.get(TX_DROPPED)
+                + " dropped), peak rx " + s.mPeakRxRate + " B/s, peak tx " + s.mPeakTxRate
+                + " B/s, max peers " + s.mMaxPeers + "\n");
+    }
+
+    synchronized void dumpProto(BluetoothProto.BluetoothLog proto) {
+        long now = SystemClock.elapsedRealtime();
+        for (Session session : mPastSessions) {
+            proto.addPanSession(toProto(session, now));
+        }
+        if (mSession != null) {
+            proto.addPanSession(toProto(mSession, now));
+        }
+    }
+
+    private static BluetoothProto.PanSession toProto(Session s, long now) {
+        BluetoothProto.PanSession session = new BluetoothProto.PanSession();
+        session.setSessionDurationSec(s.getDurationMs(now) / 1000);
+        session.setRxBytes(s.get(RX_BYTES));
+        session.setTxBytes(s.get(TX_BYTES));
+        session.setRxPackets(s.get(RX_PACKETS));
+        session.setTxPackets(s.get(TX_PACKETS));
+        session.setRxDropped(s.get(RX_DROPPED));
+        session.setTxDropped(s.get(TX_DROPPED));
+        session.setPeakRxBytesPerSec(s.mPeakRxRate);
+        session.setPeakTxBytesPerSec(s.mPeakTxRate);
+        session.setMaxConnectedPeers(s.mMaxPeers);
+        return session;
+    }
+}
@@ -42,6 +42,7 @@ import android.provider.Settings;
 import android.util.Log;
 
 import com.android.bluetooth.a2dp.A2dpService;
+import com.android.bluetooth.btservice.BluetoothProto;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.Utils;
 
@@ -79,6 +80,8 @@ public class PanService extends ProfileService {
     private boolean mTetherOn = false;
 
     private BluetoothTetheringNetworkFactory mNetworkFactory;
+    private PanMetrics mMetrics;
+    private PanAdmission mAdmission;
     private BluetoothAdapter mAdapter;
 
 
@@ -106,6 +109,8 @@ public class PanService extends ProfileService {
         } catch (NotFoundException e) {
             mMaxPanDevices = BLUETOOTH_MAX_PAN_CONNECTIONS;
         }
+        mMetrics = new PanMetrics(mHandler);
+        mAdmission = new PanAdmission(mMaxPanDevices);
         initializeNative();
         mNativeAvailable=true;
 
@@ -119,6 +124,8 @@ public class PanService extends ProfileService {
 
     protected boolean stop() {
         mHandler.removeCallbacksAndMessages(null);
+        if (mMetrics != null) mMetrics.stop();
+        if (mAdmission != null) mAdmission.clear();
         return true;
     }
 
@@ -448,6 +455,13 @@ public class PanService extends ProfileService {
                     return;
                 }
                 if(DBG) Log.d(TAG, "handlePanDeviceStateChange LOCAL_NAP_ROLE:REMOTE_PANU_ROLE");
+                int connectedPanu = getConnectedPanuCount(device);
+                if (!mAdmission.admit(device, connectedPanu)) {
+                    Log.i(TAG, "NAP is full, rejecting PANU " + device);
+                    mPanDevices.remove(device);
+                    disconnectPanNative(Utils.getByteAddress(device));
+                    return;
+                }
                 if (mNapIfaceAddr == null) {
                     mNapIfaceAddr = startTethering(iface);
                     if (mNapIfaceAddr == null) {
@@ -456,12 +470,15 @@ public class PanService extends ProfileService {
                         disconnectPanNative(Utils.getByteAddress(device));
                         return;
                     }
+                    mMetrics.start(iface);
                 }
+                mMetrics.onPeerCountChanged(connectedPanu + 1);
             } else if (state == BluetoothProfile.STATE_DISCONNECTED) {
                 mPanDevices.remove(device);
                 Log.i(TAG, "remote(PANU) is disconnected, Remaining connected PANU devices: "
                         + mPanDevices.size());
                 if (mNapIfaceAddr != null && mPanDevices.size() == 0) {
+                    mMetrics.stop();
                     stopTethering(iface);
                     mNapIfaceAddr = null;
                 }
@@ -472,10 +489,12 @@ public class PanService extends ProfileService {
                     + state + ", prevState = " + prevState);
             if (state == BluetoothProfile.STATE_CONNECTED) {
                 mNetworkFactory.startReverseTether(iface);
+                mMetrics.start(iface);
            } else if (state == BluetoothProfile.STATE_DISCONNECTED &&
                    (prevState == BluetoothProfile.STATE_CONNECTED ||
                    prevState == BluetoothProfile.STATE_DISCONNECTING)) {
                 mNetworkFactory.stopReverseTether();
+                mMetrics.stop();
                 mPanDevices.remove(device);
             }
         }
@@ -591,6 +610,19 @@ public class PanService extends ProfileService {
         return panDevice.mState;
     }
 
+    private int getConnectedPanuCount(BluetoothDevice exclude) {
+        int count = 0;
+        for (Map.Entry<BluetoothDevice, BluetoothPanDevice> entry : mPanDevices.entrySet()) {
+            BluetoothPanDevice panDevice = entry.getValue();
+            if (panDevice.mLocalRole == BluetoothPan.LOCAL_NAP_ROLE
+                    && panDevice.mState == BluetoothProfile.STATE_CONNECTED
+                    && !entry.getKey().equals(exclude)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
@@ -601,6 +633,19 @@ public class PanService extends ProfileService {
         for (BluetoothDevice device : mPanDevices.keySet()) {
             println(sb, "  " + device + " : " + mPanDevices.get(device));
         }
+        if (mAdmission != null) {
+            println(sb, "NAP admission:");
+            mAdmission.dump(sb);
+        }
+        if (mMetrics != null) {
+            println(sb, "Interface traffic:");
+            mMetrics.dump(sb);
+        }
+    }
+
+    @Override
+    public void dumpProto(BluetoothProto.BluetoothLog proto) {
+        if (mMetrics != null) mMetrics.dumpProto(proto);
     }
 
     private class BluetoothPanDevice {
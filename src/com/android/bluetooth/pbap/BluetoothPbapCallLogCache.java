@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.pbap;
+
+import android.os.SystemClock;
+import android.provider.CallLog.Calls;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the call history shared by the ich, och, mch and cch folders.
+ *
+ * The calls are kept newest first, as the handles of the call history folders
+ * are assigned, with the positions of each folder's calls. The vCards of a call
+ * are composed once per vCard version and kept with the call.
+ *
+ * The cache is refreshed after {@link #invalidate()}, i.e. when the call log
+ * changed. A refresh only reads the columns that may change for the known calls,
+ * and all the columns of the calls newer than the latest known _ID. Snapshots
+ * are immutable, the listing, size and pull of a request all see the same calls.
+ */
+public class BluetoothPbapCallLogCache {
+    private static final String TAG = "BluetoothPbapCallLogCache";
+    private static final boolean V = Log.isLoggable(BluetoothPbapService.LOG_TAG, Log.VERBOSE);
+
+    /** One row of the call log. */
+    public static final class Call {
+        public final long id;
+        public final int type;
+        public final String number;
+        public final long date;
+        public final int numberPresentation;
+        public final String cachedName;
+        public final int cachedNumberType;
+        public final String cachedNumberLabel;
+        public final boolean isNew;
+
+        private volatile String mVcard21;
+        private volatile String mVcard30;
+
+        public Call(long id, int type, String number, long date, int numberPresentation,
+                String cachedName, int cachedNumberType, String cachedNumberLabel,
+                boolean isNew) {
+            this.id = id;
+            this.type = type;
+            this.number = number;
+            this.date = date;
+            this.numberPresentation = numberPresentation;
+            this.cachedName = cachedName;
+            this.cachedNumberType = cachedNumberType;
+            this.cachedNumberLabel = cachedNumberLabel;
+            this.isNew = isNew;
+        }
+
+        /* The call with the changing columns of update */
+        private Call update(Call update) {
+            if (equals(cachedName, update.cachedName)
+                    && cachedNumberType == update.cachedNumberType
+                    && equals(cachedNumberLabel, update.cachedNumberLabel)) {
+                if (isNew == update.isNew) {
+                    return this;
+                }
+                // The vCard does not depend on the new flag
+                Call call = new Call(id, type, number, date, numberPresentation, cachedName,
+                        cachedNumberType, cachedNumberLabel, update.isNew);
+                call.mVcard21 = mVcard21;
+                call.mVcard30 = mVcard30;
+                return call;
+            }
+            return new Call(id, type, number, date, numberPresentation, update.cachedName,
+                    update.cachedNumberType, update.cachedNumberLabel, update.isNew);
+        }
+
+        private static boolean equals(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /** Reads the call log. */
+    public interface Source {
+        /**
+         * Read calls, newest first.
+         * @param newerThanId only read the calls with a larger _ID, -1 for all
+         * @param allColumns false to only read the _ID and the columns that may
+         *        change, i.e. the new flag and the cached name, number type and
+         *        label
+         * @return the calls, or null on error
+         */
+        ArrayList<Call> queryCalls(long newerThanId, boolean allColumns);
+    }
+
+    /** Composes the vCard of a call. */
+    public interface Composer {
+        String compose(Call call, boolean vcardType21);
+    }
+
+    public final class Snapshot {
+        private final Call[] mCalls;
+        /* Indexes in mCalls of the calls of each folder */
+        private final int[] mIncoming;
+        private final int[] mOutgoing;
+        private final int[] mMissed;
+        private final int mNewMissed;
+
+        Snapshot(Call[] calls) {
+            mCalls = calls;
+            int incoming = 0, outgoing = 0, missed = 0, newMissed = 0;
+            for (Call call : calls) {
+                if (call.type == Calls.INCOMING_TYPE) {
+                    incoming++;
+                } else if (call.type == Calls.OUTGOING_TYPE) {
+                    outgoing++;
+                } else if (call.type == Calls.MISSED_TYPE) {
+                    missed++;
+                    if (call.isNew) newMissed++;
+                }
+            }
+            mIncoming = new int[incoming];
+            mOutgoing = new int[outgoing];
+            mMissed = new int[missed];
+            mNewMissed = newMissed;
+            incoming = outgoing = missed = 0;
+            for (int i = 0; i < calls.length; i++) {
+                if (calls[i].type == Calls.INCOMING_TYPE) {
+                    mIncoming[incoming++] = i;
+                } else if (calls[i].type == Calls.OUTGOING_TYPE) {
+                    mOutgoing[outgoing++] = i;
+                } else if (calls[i].type == Calls.MISSED_TYPE) {
+                    mMissed[missed++] = i;
+                }
+            }
+        }
+
+        /* null for the combined history */
+        private int[] getPositions(int folder) {
+            switch (folder) {
+                case BluetoothPbapObexServer.ContentType.INCOMING_CALL_HISTORY:
+                    return mIncoming;
+                case BluetoothPbapObexServer.ContentType.OUTGOING_CALL_HISTORY:
+                    return mOutgoing;
+                case BluetoothPbapObexServer.ContentType.MISSED_CALL_HISTORY:
+                    return mMissed;
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * @param folder the {@link BluetoothPbapObexServer.ContentType} of a call history
+         */
+        public int size(int folder) {
+            int[] positions = getPositions(folder);
+            return positions == null ? mCalls.length : positions.length;
+        }
+
+        /**
+         * @param position the position in the folder, 0 for the newest call
+         */
+        public Call getCall(int folder, int position) {
+            int[] positions = getPositions(folder);
+            return mCalls[positions == null ? position : positions[position]];
+        }
+
+        /** @return the number of calls of the folder at or after the date */
+        public int countSince(int folder, long date) {
+            int count = 0;
+            for (int i = 0; i < size(folder); i++) {
+                if (getCall(folder, i).date >= date) count++;
+            }
+            return count;
+        }
+
+        public int getNewMissedCount() {
+            return mNewMissed;
+        }
+
+        /**
+         * @return the vCard of the call, composed once per version
+         */
+        public String getVcard(Call call, boolean vcardType21, Composer composer) {
+            String vcard = vcardType21 ? call.mVcard21 : call.mVcard30;
+            if (vcard != null) {
+                synchronized (BluetoothPbapCallLogCache.this) {
+                    mVcardsReused++;
+                }
+                return vcard;
+            }
+            vcard = composer.compose(call, vcardType21);
+            if (vcard == null) {
+                return null;
+            }
+            if (vcardType21) {
+                call.mVcard21 = vcard;
+            } else {
+                call.mVcard30 = vcard;
+            }
+            synchronized (BluetoothPbapCallLogCache.this) {
+                mVcardsComposed++;
+            }
+            return vcard;
+        }
+    }
+
+    /* Incremented on each change of the call log */
+    private final AtomicLong mGeneration = new AtomicLong();
+    private Snapshot mSnapshot;
+    private long mSnapshotGeneration = -1;
+
+    /* Statistics */
+    private long mHits = 0;
+    private long mRefreshes = 0;
+    private long mCallsAppended = 0;
+    private long mCallsUpdated = 0;
+    private long mVcardsComposed = 0;
+    private long mVcardsReused = 0;
+    private long mLastRefreshMs = 0;
+
+    /**
+     * @return the calls, refreshed if the call log changed, or null on error
+     */
+    public synchronized Snapshot getSnapshot(Source source) {
+        // Changes from now on invalidate the calls read below
+        final long generation = mGeneration.get();
+        if (mSnapshot != null && mSnapshotGeneration == generation) {
+            mHits++;
+            return mSnapshot;
+        }
+        long start = SystemClock.elapsedRealtime();
+        Snapshot snapshot = mSnapshot == null ? load(source) : refresh(source);
+        if (snapshot == null) {
+            return null;
+        }
+        mSnapshot = snapshot;
+        mSnapshotGeneration = generation;
+        mRefreshes++;
+        mLastRefreshMs = SystemClock.elapsedRealtime() - start;
+        return snapshot;
+    }
+
+    private Snapshot load(Source source) {
+        ArrayList<Call> calls = source.queryCalls(-1, true);
+        if (calls == null) {
+            return null;
+        }
+        mCallsAppended += calls.size();
+        return new Snapshot(calls.toArray(new Call[calls.size()]));
+    }
+
+    private Snapshot refresh(Source source) {
+        Call[] known = mSnapshot.mCalls;
+        long latestId = known.length > 0 ? known[0].id : -1;
+
+        ArrayList<Call> states = source.queryCalls(-1, false);
+        ArrayList<Call> added = source.queryCalls(latestId, true);
+        if (states == null || added == null) {
+            return null;
+        }
+
+        HashMap<Long, Call> knownById = new HashMap<Long, Call>(known.length);
+        for (Call call : known) {
+            knownById.put(call.id, call);
+        }
+        ArrayList<Call> calls = new ArrayList<Call>(added.size() + states.size());
+        calls.addAll(added);
+        for (Call state : states) {
+            if (state.id <= latestId) {
+                Call call = knownById.get(state.id);
+                if (call == null) {
+                    continue;
+                }
+                Call updated = call.update(state);
+                if (updated != call) mCallsUpdated++;
+                calls.add(updated);
+            }
+        }
+        mCallsAppended += added.size();
+        if (V) Log.v(TAG, "Call log refreshed, " + added.size()
+                + " calls added, " + (known.length + added.size() - calls.size()) + " removed");
+        return new Snapshot(calls.toArray(new Call[calls.size()]));
+    }
+
+    /**
+     * Refresh the calls at the next request, e.g. when the call log changed.
+     */
+    public void invalidate() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Drop the cached calls.
+     */
+    public synchronized void clear() {
+        mSnapshot = null;
+        mSnapshotGeneration = -1;
+    }
+
+    public synchronized void dump(StringBuilder sb) {
+        long requests = mHits + mRefreshes;
+        sb.append("  Call log cache calls: "
+                + (mSnapshot == null ? 0 : mSnapshot.mCalls.length) + ", valid: "
+                + (mSnapshotGeneration == mGeneration.get()) + "\n");
+        sb.append("  Call log cache hits: " + mHits + ", refreshes: " + mRefreshes
+                + ", hit ratio: " + (requests == 0 ? 0 : mHits * 100 / requests)
+                + "%, last refresh: " + mLastRefreshMs + "ms\n");
+        sb.append("  Call log cache calls appended: " + mCallsAppended + ", updated: "
+                + mCallsUpdated + ", vCards composed: " + mVcardsComposed + ", reused: "
+                + mVcardsReused + "\n");
+    }
+}
@@ -134,13 +134,25 @@ public class BluetoothPbapCallLogComposer {
     }
 
     private String createOneCallLogEntryInternal(boolean vcardVer21) {
+        return composeCallLogEntry(mCursor.getString(CALLER_NAME_COLUMN_INDEX),
+                mCursor.getString(NUMBER_COLUMN_INDEX),
+                mCursor.getInt(NUMBER_PRESENTATION_COLUMN_INDEX),
+                mCursor.getInt(CALLER_NUMBERTYPE_COLUMN_INDEX),
+                mCursor.getString(CALLER_NUMBERLABEL_COLUMN_INDEX),
+                mCursor.getInt(CALL_TYPE_COLUMN_INDEX),
+                mCursor.getLong(DATE_COLUMN_INDEX), vcardVer21);
+    }
+
+    /**
+     * Compose the vCard of a call from the values of its call log row. Does not
+     * need {@link #init}.
+     */
+    public String composeCallLogEntry(String name, String number, int numberPresentation,
+            int type, String label, int callLogType, long date, boolean vcardVer21) {
         final int vcardType = (vcardVer21 ? VCardConfig.VCARD_TYPE_V21_GENERIC :
                 VCardConfig.VCARD_TYPE_V30_GENERIC) |
                 VCardConfig.FLAG_REFRAIN_PHONE_NUMBER_FORMATTING;
         final VCardBuilder builder = new VCardBuilder(vcardType);
-        String name = mCursor.getString(CALLER_NAME_COLUMN_INDEX);
-        String number = mCursor.getString(NUMBER_COLUMN_INDEX);
-        final int numberPresentation = mCursor.getInt(NUMBER_PRESENTATION_COLUMN_INDEX);
         if (TextUtils.isEmpty(name)) {
             name = "";
         }
@@ -155,13 +167,11 @@ public class BluetoothPbapCallLogComposer {
         builder.appendLine(VCardConstants.PROPERTY_FN, name, needCharset, false);
         builder.appendLine(VCardConstants.PROPERTY_N, name, needCharset, false);
 
-        final int type = mCursor.getInt(CALLER_NUMBERTYPE_COLUMN_INDEX);
-        String label = mCursor.getString(CALLER_NUMBERLABEL_COLUMN_INDEX);
         if (TextUtils.isEmpty(label)) {
             label = Integer.toString(type);
         }
         builder.appendTelLine(type, label, number, false);
-        tryAppendCallHistoryTimeStampField(builder);
+        tryAppendCallHistoryTimeStampField(builder, callLogType, date);
 
         return builder.toString();
     }
@@ -205,7 +215,8 @@ public class BluetoothPbapCallLogComposer {
      * Try to append the property line for a call history time stamp field if possible.
      * Do nothing if the call log type gotton from the database is invalid.
      */
-    private void tryAppendCallHistoryTimeStampField(final VCardBuilder builder) {
+    private void tryAppendCallHistoryTimeStampField(final VCardBuilder builder,
+            final int callLogType, final long dateAsLong) {
         // Extension for call history as defined in
         // in the Specification for Ic Mobile Communcation - ver 1.1,
         // Oct 2000. This is used to send the details of the call
@@ -214,7 +225,6 @@ public class BluetoothPbapCallLogComposer {
         // when connected over bluetooth)
         //
         // e.g. "X-IRMC-CALL-DATETIME;MISSED:20050320T100000"
-        final int callLogType = mCursor.getInt(CALL_TYPE_COLUMN_INDEX);
         final String callLogTypeStr;
         switch (callLogType) {
             case Calls.INCOMING_TYPE: {
@@ -235,7 +245,6 @@ public class BluetoothPbapCallLogComposer {
             }
         }
 
-        final long dateAsLong = mCursor.getLong(DATE_COLUMN_INDEX);
         builder.appendLine(VCARD_PROPERTY_X_TIMESTAMP,
                 Arrays.asList(callLogTypeStr), toRfc2455Format(dateAsLong));
     }
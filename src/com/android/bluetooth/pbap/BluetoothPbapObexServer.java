@@ -34,8 +34,6 @@ package com.android.bluetooth.pbap;
 
 import com.android.bluetooth.R;
 import android.content.Context;
-import android.content.ContentResolver;
-import android.database.Cursor;
 import android.os.Message;
 import android.os.Handler;
 import android.provider.CallLog.Calls;
@@ -555,6 +553,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         Log.d(TAG,"Resetting Folder version counters on new connection");
         BluetoothPbapService.primaryVersionCounter = 0;
         BluetoothPbapService.secondaryVersionCounter = 0;
+        BluetoothPbapVcardManager.invalidatePhonebookCaches();
     }
 
     private boolean checkPbapFeatureSupport(long featureBit) {
@@ -843,11 +842,16 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         ArrayList<Integer> savedPosList = new ArrayList<>();
         ArrayList<String> nameList = null;
         ArrayList<String> selectedNameList = new ArrayList<String>();
+        boolean selected = !isDisabledNonAosp && mVcardSelector;
+        if (!SIM && !selected) {
+            // Plain phonebook listing, served from the phonebook index
+            return createIndexedList(maxListCount, listStartOffset, searchValue, result, type);
+        }
         //check if current request is for SIM
         if (SIM) {
              nameList = mVcardManager.getSIMPhonebookNameList(mOrderBy);
         } else {
-             if (!isDisabledNonAosp && mVcardSelector)
+             if (selected)
                 nameList = mVcardManager.getSelectedPhonebookNameList(mOrderBy, vcard21,
                     needSendBody, size, vCardSelector, vCardSelectorOperator);
              else
@@ -931,6 +935,30 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         return itemsFound;
     }
 
+    /* Phonebook listing from the phonebook index, see createList() */
+    private int createIndexedList(final int maxListCount, final int listStartOffset,
+            final String searchValue, StringBuilder result, String type) {
+        BluetoothPbapPhonebookIndex index = mVcardManager.getPhonebookIndex(mOrderBy);
+        int[] positions;
+        if (type.equals("number")) {
+            positions = index.searchByNumber(searchValue);
+        } else {
+            positions = index.searchByName(searchValue);
+        }
+        final int requestSize = Math.min(maxListCount, index.size());
+
+        if (D) Log.d(TAG, "indexed search by " + type + ", requestSize=" + requestSize
+                + " offset=" + listStartOffset + " searchValue=" + searchValue + " matches="
+                + positions.length);
+
+        int itemsFound = 0;
+        for (int i = listStartOffset; i < positions.length && itemsFound < requestSize; i++) {
+            itemsFound++;
+            writeVCardEntry(index.getHandle(positions[i]), index.getName(positions[i]), result);
+        }
+        return itemsFound;
+    }
+
     /**
      * Function to send obex header back to client such as get phonebook size
      * request
@@ -1002,22 +1030,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
 
             if (mNeedNewMissedCallsNum) {
                 mNeedNewMissedCallsNum = false;
-                int nmnum = 0;
-                ContentResolver contentResolver;
-                contentResolver = mContext.getContentResolver();
-
-                Cursor c = contentResolver.query(
-                    Calls.CONTENT_URI,
-                    null,
-                    Calls.TYPE + " = " + Calls.MISSED_TYPE + " AND " + android.provider.CallLog.Calls.NEW + " = 1",
-                    null,
-                    Calls.DEFAULT_SORT_ORDER);
-
-                if (c != null) {
-                  nmnum = c.getCount();
-                  c.close();
-                }
-
+                int nmnum = mVcardManager.getNewMissedCallsCount();
                 nmnum = nmnum > 0 ? nmnum : 0;
                 misnum[0] = (byte)nmnum;
                 if (D) Log.d(TAG, "handleAppParaForResponse(): mNeedNewMissedCallsNum=true,  num= " + nmnum);
@@ -1069,22 +1082,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         if (mNeedNewMissedCallsNum) {
             if (D) Log.d(TAG, "Need new missed call num in response header.");
             mNeedNewMissedCallsNum = false;
-            int nmnum = 0;
-            ContentResolver contentResolver;
-            contentResolver = mContext.getContentResolver();
-
-            Cursor c = contentResolver.query(
-                Calls.CONTENT_URI,
-                null,
-                Calls.TYPE + " = " + Calls.MISSED_TYPE + " AND " + android.provider.CallLog.Calls.NEW + " = 1",
-                null,
-                Calls.DEFAULT_SORT_ORDER);
-
-            if (c != null) {
-              nmnum = c.getCount();
-              c.close();
-            }
-
+            int nmnum = mVcardManager.getNewMissedCallsCount();
             nmnum = nmnum > 0 ? nmnum : 0;
             misnum[0] = (byte)nmnum;
             if (D) Log.d(TAG, "handleAppParaForResponse(): mNeedNewMissedCallsNum=true,  num= " + nmnum);
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Index of the phonebook name list used for vCard listings and searches.
+ *
+ * The index is built from the "name,handle" list returned by
+ * {@link BluetoothPbapVcardManager#getPhonebookNameList(int)} and the phone numbers
+ * of the contacts. It is valid for one value of
+ * {@link BluetoothPbapService#primaryVersionCounter} and one listing order.
+ *
+ * Name searches use an array of the lower-cased names sorted alphabetically:
+ * a prefix matches a contiguous range of it, found by binary search. Number searches
+ * use a map from the caller id min match of each number to the contacts having it.
+ * Both return positions in listing order, so a search costs O(log n + k log k)
+ * for k matches instead of a scan of the whole list.
+ */
+public class BluetoothPbapPhonebookIndex {
+    private static final int[] EMPTY = new int[0];
+
+    private final long mVersion;
+    private final int mOrderBy;
+    private final String mOwnerName;
+
+    /* Names and handles in listing order */
+    private final String[] mNames;
+    private final int[] mHandles;
+
+    /* Lower-cased names, sorted, and the listing position of each */
+    private final String[] mSortedNames;
+    private final int[] mSortedPositions;
+
+    /* Caller id min match -> numbers having it */
+    private final HashMap<String, ArrayList<NumberEntry>> mNumbers =
+            new HashMap<String, ArrayList<NumberEntry>>();
+
+    /* Listing positions of the contacts having at least one number */
+    private final int[] mPositionsWithNumber;
+
+    private static class NumberEntry {
+        final String number;
+        final int[] positions;
+
+        NumberEntry(String number, int[] positions) {
+            this.number = number;
+            this.positions = positions;
+        }
+    }
+
+    /**
+     * @param version the primary version counter the name list was read at
+     * @param orderBy the listing order of nameList
+     * @param ownerName the owner name included in nameList
+     * @param nameList the "name,handle" entries, in listing order
+     * @param numbers pairs of phone number and contact id, the handle of the contact
+     */
+    public BluetoothPbapPhonebookIndex(long version, int orderBy, String ownerName,
+            List<String> nameList, List<String[]> numbers) {
+        mVersion = version;
+        mOrderBy = orderBy;
+        mOwnerName = ownerName;
+
+        final int size = nameList.size();
+        mNames = new String[size];
+        mHandles = new int[size];
+        HashMap<Integer, int[]> positionsByHandle = new HashMap<Integer, int[]>(size);
+        for (int pos = 0; pos < size; pos++) {
+            String entry = nameList.get(pos);
+            int comma = entry.lastIndexOf(',');
+            int handle = -1;
+            if (comma != -1) {
+                try {
+                    handle = Integer.parseInt(entry.substring(comma + 1));
+                } catch (NumberFormatException e) {
+                    handle = -1;
+                }
+                entry = entry.substring(0, comma);
+            }
+            mNames[pos] = entry;
+            mHandles[pos] = handle >= 0 ? handle : pos;
+            if (handle >= 0) {
+                positionsByHandle.put(handle, append(positionsByHandle.get(handle), pos));
+            }
+        }
+
+        Integer[] order = new Integer[size];
+        final String[] lowerNames = new String[size];
+        for (int pos = 0; pos < size; pos++) {
+            order[pos] = pos;
+            lowerNames[pos] = mNames[pos].toLowerCase();
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int result = lowerNames[a].compareTo(lowerNames[b]);
+                return result != 0 ? result : a - b;
+            }
+        });
+        mSortedNames = new String[size];
+        mSortedPositions = new int[size];
+        for (int i = 0; i < size; i++) {
+            mSortedNames[i] = lowerNames[order[i]];
+            mSortedPositions[i] = order[i];
+        }
+
+        boolean[] hasNumber = new boolean[size];
+        int withNumber = 0;
+        if (numbers != null) {
+            for (String[] number : numbers) {
+                if (number == null || number.length < 2 || TextUtils.isEmpty(number[0])) {
+                    continue;
+                }
+                int[] positions;
+                try {
+                    positions = positionsByHandle.get(Integer.parseInt(number[1]));
+                } catch (NumberFormatException e) {
+                    positions = null;
+                }
+                if (positions == null) {
+                    continue;
+                }
+                String key = getNumberKey(number[0]);
+                ArrayList<NumberEntry> entries = mNumbers.get(key);
+                if (entries == null) {
+                    entries = new ArrayList<NumberEntry>(1);
+                    mNumbers.put(key, entries);
+                }
+                entries.add(new NumberEntry(number[0], positions));
+                for (int pos : positions) {
+                    if (!hasNumber[pos]) {
+                        hasNumber[pos] = true;
+                        withNumber++;
+                    }
+                }
+            }
+        }
+        mPositionsWithNumber = new int[withNumber];
+        for (int pos = 0, i = 0; pos < size; pos++) {
+            if (hasNumber[pos]) {
+                mPositionsWithNumber[i++] = pos;
+            }
+        }
+    }
+
+    private static int[] append(int[] array, int value) {
+        if (array == null) {
+            return new int[] { value };
+        }
+        int[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = value;
+        return result;
+    }
+
+    private static String getNumberKey(String number) {
+        String key = PhoneNumberUtils.toCallerIDMinMatch(number);
+        return key != null ? key : number;
+    }
+
+    /** Whether the index is still valid for the given listing parameters */
+    public boolean isValid(long version, int orderBy, String ownerName) {
+        return mVersion == version && mOrderBy == orderBy
+                && TextUtils.equals(mOwnerName, ownerName);
+    }
+
+    public int size() {
+        return mNames.length;
+    }
+
+    /** @return the name of the entry at the listing position */
+    public String getName(int pos) {
+        return mNames[pos];
+    }
+
+    /** @return the vCard handle of the entry at the listing position */
+    public int getHandle(int pos) {
+        return mHandles[pos];
+    }
+
+    /**
+     * Find the entries whose name starts with the search value, ignoring case.
+     * @return the listing positions of the entries, in listing order
+     */
+    public int[] searchByName(String searchValue) {
+        if (searchValue == null) {
+            return EMPTY;
+        }
+        String prefix = searchValue.trim().toLowerCase();
+        if (searchValue.isEmpty()) {
+            int[] all = new int[mNames.length];
+            for (int pos = 0; pos < all.length; pos++) {
+                all[pos] = pos;
+            }
+            return all;
+        }
+        int start = lowerBound(prefix);
+        int end = start;
+        while (end < mSortedNames.length && mSortedNames[end].startsWith(prefix)) {
+            end++;
+        }
+        int[] result = Arrays.copyOfRange(mSortedPositions, start, end);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /* Index of the first sorted name not less than key */
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = mSortedNames.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mSortedNames[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Find the entries of the contacts having the number. An empty number matches
+     * every contact having a number.
+     * @return the listing positions of the entries, in listing order
+     */
+    public int[] searchByNumber(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return mPositionsWithNumber.clone();
+        }
+        ArrayList<NumberEntry> entries = mNumbers.get(getNumberKey(number));
+        if (entries == null) {
+            return EMPTY;
+        }
+        int count = 0;
+        int[] result = EMPTY;
+        for (NumberEntry entry : entries) {
+            if (!PhoneNumberUtils.compare(entry.number, number)) {
+                continue;
+            }
+            if (count + entry.positions.length > result.length) {
+                result = Arrays.copyOf(result, count + entry.positions.length);
+            }
+            System.arraycopy(entry.positions, 0, result, count, entry.positions.length);
+            count += entry.positions.length;
+        }
+        Arrays.sort(result, 0, count);
+        // A contact may be reached through several of its numbers
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || result[distinct - 1] != result[i]) {
+                result[distinct++] = result[i];
+            }
+        }
+        if (distinct != result.length) {
+            result = Arrays.copyOf(result, distinct);
+        }
+        return result;
+    }
+}
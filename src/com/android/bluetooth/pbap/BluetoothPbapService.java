@@ -46,6 +46,7 @@ import android.bluetooth.BluetoothSocket;
 import android.bluetooth.IBluetooth;
 import android.bluetooth.IBluetoothPbap;
 import android.bluetooth.BluetoothUuid;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.ContentResolver;
 import android.content.Intent;
@@ -59,6 +60,7 @@ import android.os.Message;
 import android.os.PowerManager;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.provider.CallLog;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Log;
@@ -75,7 +77,9 @@ import com.android.bluetooth.util.DevicePolicyUtils;
 import com.android.bluetooth.R;
 import com.android.bluetooth.btservice.AdapterService;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 
 import javax.obex.ServerSession;
 
@@ -226,6 +230,7 @@ public class BluetoothPbapService extends Service implements IObexConnectionHand
         "com.android.settings.bluetooth.BluetoothPermissionRequest";
 
     private ContentObserver contactChangeObserver;
+    private ContentObserver callLogChangeObserver;
     public static long primaryVersionCounter = 0;
     public static long secondaryVersionCounter = 0;
 
@@ -238,6 +243,12 @@ public class BluetoothPbapService extends Service implements IObexConnectionHand
                 primaryVersionCounter = primaryVersionCounter + 1;
             }
         };
+        callLogChangeObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                BluetoothPbapVcardManager.onCallLogChanged();
+            }
+        };
 
 
     }
@@ -264,11 +275,14 @@ public class BluetoothPbapService extends Service implements IObexConnectionHand
                         .obtainMessage(START_LISTENER));
             }
         }
-        // Register observer on contact to update version counter
+        // Register observers on contacts to update version counter and on
+        // the call log to refresh the cached call history
         try {
             if (DEBUG) Log.d(TAG,"Registering observer");
             getContentResolver().registerContentObserver(
                DevicePolicyUtils.getEnterprisePhoneUri(this), false, contactChangeObserver);
+            getContentResolver().registerContentObserver(
+               CallLog.Calls.CONTENT_URI, true, callLogChangeObserver);
         } catch (SQLiteException e) {
             Log.e(TAG, "SQLite exception: " + e);
         } catch (IllegalStateException e) {
@@ -426,6 +440,15 @@ public class BluetoothPbapService extends Service implements IObexConnectionHand
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            if (DEBUG) Log.d(TAG, "Trimming phonebook caches, level " + level);
+            BluetoothPbapVcardManager.trimPhonebookCaches();
+        }
+    }
+
     @Override
     public void onDestroy() {
         if (DEBUG) Log.d(TAG, "Pbap Service onDestroy");
@@ -433,6 +456,9 @@ public class BluetoothPbapService extends Service implements IObexConnectionHand
         try {
             if (DEBUG) Log.d(TAG,"Unregistering observer");
                 getContentResolver().unregisterContentObserver(contactChangeObserver);
+                getContentResolver().unregisterContentObserver(callLogChangeObserver);
+                // Contact changes are no longer counted
+                BluetoothPbapVcardManager.clearPhonebookCaches();
         } catch (SQLiteException e) {
             Log.e(TAG, "SQLite exception: " + e);
         } catch (IllegalStateException e) {
@@ -513,6 +539,14 @@ public class BluetoothPbapService extends Service implements IObexConnectionHand
         }
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Primary version counter: " + primaryVersionCounter + "\n");
+        BluetoothPbapVcardManager.dump(sb);
+        writer.print(sb);
+    }
+
     private void updateDbIdentifier(){
         mDbIndetifier.set(Calendar.getInstance().getTime().getTime());
     }
@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.pbap;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Versioned cache of the composed vCards of the phonebook.
+ *
+ * The contact ids of the phonebook, in handle order, and the last update time
+ * of each contact are read once per value of
+ * {@link BluetoothPbapService#primaryVersionCounter}. A snapshot holds the
+ * encoded vCard of each of these contacts for one vCard format, i.e. version,
+ * photo and property filter. Pulls at an unchanged version are served from the
+ * snapshot without querying the contacts provider. When the version changed,
+ * only the contacts added or updated since the previous snapshot of the format
+ * are composed again.
+ *
+ * A new snapshot is filled while it is sent: each vCard goes to the
+ * {@link EntrySink} as soon as it and the ones before it are available, so a
+ * pull does not wait for the whole phonebook to be composed.
+ *
+ * Snapshots are immutable: a pull keeps the snapshot it started with while a
+ * newer one is built by another session. The vCards are composed outside the
+ * lock of the cache, so a slow composition does not hold up other sessions.
+ *
+ * The snapshots kept are limited to {@link #DEFAULT_MAX_BYTES} of vCards in
+ * total, least recently used formats are dropped first. A snapshot larger
+ * than the limit is sent without being held: its vCards are released once
+ * sent. {@link #trimMemory()} drops all snapshots when the system runs low on
+ * memory.
+ */
+public class BluetoothPbapVcardCache {
+    private static final String TAG = "BluetoothPbapVcardCache";
+
+    /* Formats kept at a time, e.g. vCard 2.1 and 3.0 */
+    private static final int MAX_FORMATS = 2;
+
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    /** Reads the contacts of the phonebook. */
+    public interface Source {
+        /**
+         * @return the distinct contact ids in ascending order, in [0], and the
+         *         last update time of each contact, in [1], or null on error.
+         *         A negative time means the contact must always be composed.
+         */
+        long[][] queryContacts();
+    }
+
+    /** Receives encoded vCards in order. */
+    public interface EntrySink {
+        /**
+         * @param index the position of the vCard
+         * @param entry the encoded vCard
+         * @return false to stop, e.g. if the pull was aborted
+         */
+        boolean onEntry(int index, byte[] entry);
+    }
+
+    /** Composes the vCards of contacts in one format. */
+    public interface Composer {
+        /**
+         * Pass the encoded vCard of each contact to the sink, with its index
+         * in contactIds, in order. A contact removed meanwhile is passed as
+         * null.
+         * @return false on error or if the sink stopped
+         */
+        boolean compose(long[] contactIds, EntrySink sink);
+    }
+
+    /* Placeholder for a contact removed while its vCard was composed */
+    private static final byte[] REMOVED = new byte[0];
+
+    public static final class Snapshot {
+        private final long[] mContactIds;
+        private final long[] mUpdated;
+        private final byte[][] mEntries;
+        private final long mBytes;
+
+        Snapshot(long[] contactIds, long[] updated, byte[][] entries) {
+            mContactIds = contactIds;
+            mUpdated = updated;
+            mEntries = entries;
+            long bytes = 0;
+            for (byte[] entry : entries) {
+                bytes += entry.length;
+            }
+            mBytes = bytes;
+        }
+
+        public int size() {
+            return mContactIds.length;
+        }
+
+        public long getContactId(int position) {
+            return mContactIds[position];
+        }
+
+        /** @return the encoded vCard of the contact at the position */
+        public byte[] getEntry(int position) {
+            return mEntries[position];
+        }
+    }
+
+    /* Contacts read at mContactsVersion, -1 if they must be read again */
+    private long mContactsVersion = -1;
+    private long[] mContactIds;
+    private long[] mUpdated;
+
+    /* Format -> latest snapshot, in access order */
+    private final LinkedHashMap<String, Snapshot> mSnapshots =
+            new LinkedHashMap<String, Snapshot>(MAX_FORMATS + 1, 0.75f, true);
+    private final long mMaxBytes;
+    private long mBytes = 0;
+
+    /* Statistics */
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEntriesReused = 0;
+    private long mEntriesComposed = 0;
+    private long mLastRebuildMs = 0;
+    private long mMaxRebuildMs = 0;
+    private long mEvictions = 0;
+
+    public BluetoothPbapVcardCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public BluetoothPbapVcardCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return the number of contacts at the version, or -1 if they could not
+     *         be read
+     */
+    public synchronized int getContactCount(long version, Source source) {
+        if (!refreshContacts(version, source)) {
+            return -1;
+        }
+        return mContactIds.length;
+    }
+
+    /**
+     * Get the snapshot of a format at the version if it is cached, without
+     * reading the contacts or composing any vCard.
+     * @return the snapshot, or null if it is not cached at the version
+     */
+    public synchronized Snapshot getCachedSnapshot(long version, String format) {
+        if (mContactIds == null || mContactsVersion != version) {
+            return null;
+        }
+        Snapshot snapshot = mSnapshots.get(format);
+        if (snapshot == null || snapshot.mContactIds != mContactIds) {
+            return null;
+        }
+        mHits++;
+        return snapshot;
+    }
+
+    /**
+     * Send the vCards of a format at the version to the sink in handle
+     * order, composing the contacts added or updated since the previous
+     * snapshot of the format. The vCards are sent as they become available.
+     * The sink gets the position of each vCard in the snapshot; contacts
+     * removed while composing are skipped.
+     * @param format identifies the vCard version, photo and filter the
+     *        composer produces
+     * @return true if all vCards were sent, false if the contacts could not
+     *         be read, a vCard could not be composed or the sink stopped
+     */
+    public boolean sendSnapshot(long version, String format, Source source,
+            Composer composer, EntrySink sink) {
+        final long[] contactIds;
+        final long[] updated;
+        final Snapshot previous;
+        synchronized (this) {
+            if (!refreshContacts(version, source)) {
+                return false;
+            }
+            contactIds = mContactIds;
+            updated = mUpdated;
+            previous = mSnapshots.get(format);
+            if (previous != null && previous.mContactIds == contactIds) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+        }
+        if (previous != null && previous.mContactIds == contactIds) {
+            for (int pos = 0; pos < previous.size(); pos++) {
+                if (!sink.onEntry(pos, previous.mEntries[pos])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        final int size = contactIds.length;
+        final byte[][] entries = new byte[size][];
+        final int[] missing = new int[size];
+        int missingCount = 0;
+        int old = 0;
+        for (int pos = 0; pos < size; pos++) {
+            // Both id lists are in ascending order
+            if (previous != null) {
+                while (old < previous.mContactIds.length
+                        && previous.mContactIds[old] < contactIds[pos]) {
+                    old++;
+                }
+                if (old < previous.mContactIds.length
+                        && previous.mContactIds[old] == contactIds[pos]
+                        && updated[pos] >= 0 && previous.mUpdated[old] == updated[pos]) {
+                    entries[pos] = previous.mEntries[old];
+                    continue;
+                }
+            }
+            missing[missingCount++] = pos;
+        }
+
+        final SnapshotWriter writer = new SnapshotWriter(entries, sink);
+        boolean result = writer.flush();
+        if (result && missingCount > 0) {
+            long[] ids = new long[missingCount];
+            for (int i = 0; i < missingCount; i++) {
+                ids[i] = contactIds[missing[i]];
+            }
+            result = composer.compose(ids, new EntrySink() {
+                @Override
+                public boolean onEntry(int index, byte[] entry) {
+                    entries[missing[index]] = entry != null ? entry : REMOVED;
+                    return writer.flush();
+                }
+            });
+            // The composer may stop early, e.g. when the sink stops
+            result = result && writer.flush() && writer.mNext == size;
+            if (!result && !writer.mStopped) {
+                Log.e(TAG, "Failed to compose " + missingCount + " vCards");
+            }
+        }
+
+        long rebuildMs = SystemClock.elapsedRealtime() - start;
+        synchronized (this) {
+            // Not kept if the contacts were read again meanwhile, or changed
+            // while composing, in which case they are read again next time
+            if (result && contactIds == mContactIds) {
+                if (writer.mRemoved) {
+                    mContactsVersion = -1;
+                } else if (writer.mKeep) {
+                    put(format, new Snapshot(contactIds, updated, entries));
+                }
+            }
+            mEntriesComposed += missingCount;
+            mEntriesReused += size - missingCount;
+            mLastRebuildMs = rebuildMs;
+            if (mLastRebuildMs > mMaxRebuildMs) {
+                mMaxRebuildMs = mLastRebuildMs;
+            }
+        }
+        Log.d(TAG, "Sent " + writer.mSent + " vCards at version " + version + ": "
+                + missingCount + " composed in " + rebuildMs + " ms"
+                + (writer.mKeep ? "" : ", too large to keep"));
+        return result;
+    }
+
+    /* Sends the vCards of a snapshot being filled, in order */
+    private class SnapshotWriter {
+        private final byte[][] mEntries;
+        private final EntrySink mSink;
+        /* Next position to send */
+        int mNext = 0;
+        int mSent = 0;
+        long mBytes = 0;
+        boolean mKeep = true;
+        boolean mRemoved = false;
+        boolean mStopped = false;
+
+        SnapshotWriter(byte[][] entries, EntrySink sink) {
+            mEntries = entries;
+            mSink = sink;
+        }
+
+        /* Send the vCards available from mNext on */
+        boolean flush() {
+            while (mNext < mEntries.length && mEntries[mNext] != null) {
+                byte[] entry = mEntries[mNext];
+                if (entry == REMOVED) {
+                    mRemoved = true;
+                } else {
+                    if (!mSink.onEntry(mSent, entry)) {
+                        mStopped = true;
+                        return false;
+                    }
+                    mSent++;
+                    mBytes += entry.length;
+                }
+                if (mKeep && mBytes > mMaxBytes) {
+                    // Too large to keep, release the vCards sent so far
+                    mKeep = false;
+                    for (int pos = 0; pos < mNext; pos++) {
+                        mEntries[pos] = null;
+                    }
+                }
+                if (!mKeep) {
+                    mEntries[mNext] = null;
+                }
+                mNext++;
+            }
+            return true;
+        }
+    }
+
+    private void put(String format, Snapshot snapshot) {
+        Snapshot replaced = mSnapshots.put(format, snapshot);
+        if (replaced != null) {
+            mBytes -= replaced.mBytes;
+        }
+        mBytes += snapshot.mBytes;
+        Iterator<Snapshot> snapshots = mSnapshots.values().iterator();
+        while (mSnapshots.size() > MAX_FORMATS || mBytes > mMaxBytes) {
+            Snapshot eldest = snapshots.next();
+            mBytes -= eldest.mBytes;
+            snapshots.remove();
+            if (eldest != snapshot) {
+                mEvictions++;
+            }
+        }
+    }
+
+    /**
+     * Drop the cached vCards to free memory. The contact ids are kept, so the
+     * snapshots are composed again at the next full pull.
+     */
+    public synchronized void trimMemory() {
+        mEvictions += mSnapshots.size();
+        mSnapshots.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Read the contacts again at the next request, e.g. when the version
+     * counter is reset. The cached vCards of unchanged contacts are kept.
+     */
+    public synchronized void invalidate() {
+        mContactsVersion = -1;
+    }
+
+    /**
+     * Drop all cached vCards.
+     */
+    public synchronized void clear() {
+        mContactsVersion = -1;
+        mContactIds = null;
+        mUpdated = null;
+        mSnapshots.clear();
+        mBytes = 0;
+    }
+
+    public synchronized void dump(StringBuilder sb) {
+        long requests = mHits + mMisses;
+        sb.append("  vCard cache version: " + mContactsVersion + ", contacts: "
+                + (mContactIds == null ? 0 : mContactIds.length) + ", formats: "
+                + mSnapshots.size() + ", bytes: " + mBytes + "/" + mMaxBytes + ", evictions: "
+                + mEvictions + "\n");
+        sb.append("  vCard cache hits: " + mHits + ", misses: " + mMisses + ", hit ratio: "
+                + (requests == 0 ? 0 : mHits * 100 / requests) + "%\n");
+        sb.append("  vCard cache entries reused: " + mEntriesReused + ", composed: "
+                + mEntriesComposed + ", last rebuild: " + mLastRebuildMs + "ms, max: "
+                + mMaxRebuildMs + "ms\n");
+    }
+
+    private boolean refreshContacts(long version, Source source) {
+        if (mContactIds != null && mContactsVersion == version) {
+            return true;
+        }
+        long[][] contacts = source.queryContacts();
+        if (contacts == null) {
+            return false;
+        }
+        mContactIds = contacts[0];
+        mUpdated = contacts[1];
+        mContactsVersion = version;
+        return true;
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * Property filter and vCard selector applied to composed vCards.
+ *
+ * A vCard is processed in a single pass over its characters and written to
+ * an {@link Output} as UTF-8, without splitting it into lines or property
+ * strings. The property name of each line is looked up in a table built once,
+ * giving both its filter bit and its vCardSelector bit. Excluded properties
+ * and their continuation lines are skipped without being copied, the
+ * selector is evaluated on the properties seen in the same pass, and TEL
+ * values can be stripped of formatting characters on the way.
+ *
+ * Once configured, a filter may be applied from several threads at a time.
+ */
+public class BluetoothPbapVcardFilter {
+    /* vCardSelectorOperator values */
+    public static final String SELECTOR_OPERATOR_OR = "0";
+    public static final String SELECTOR_OPERATOR_AND = "1";
+
+    private static final int FILTER_BIT_PHOTO = 3;
+
+    private static final String X_PREFIX = "X-";
+    private static final String CALL_DATETIME = "X-IRMC-CALL-DATETIME";
+    private static final String TEL = "TEL";
+
+    private static final class Property {
+        final String name;
+        /* bit in the PBAP property filter, -1 if not filtered by bit */
+        final int filterBit;
+        /* bit in the vCardSelector, -1 if it can not be selected on */
+        final int selectorBit;
+        final boolean onlyCheckV21;
+        final boolean excludeForV21;
+
+        Property(String name, int filterBit, int selectorBit, boolean onlyCheckV21,
+                boolean excludeForV21) {
+            this.name = name;
+            this.filterBit = filterBit;
+            this.selectorBit = selectorBit;
+            this.onlyCheckV21 = onlyCheckV21;
+            this.excludeForV21 = excludeForV21;
+        }
+    }
+
+    private static final Property[] PROPERTIES = {
+        //           name                     filter  selector  onlyCheckV21  excludeForV21
+        new Property("VERSION",                   -1,        0,        false,         false),
+        new Property("FN",                         1,        1,         true,         false),
+        new Property("N",                         -1,        2,        false,         false),
+        new Property("PHOTO",                      3,        3,        false,         false),
+        new Property("BDAY",                       4,        4,        false,         false),
+        new Property("ADR",                        5,        5,        false,         false),
+        new Property("LABEL",                     -1,        6,        false,         false),
+        new Property("TEL",                       -1,        7,        false,         false),
+        new Property("EMAIL",                      8,        8,        false,         false),
+        new Property("TITLE",                     12,       12,        false,         false),
+        new Property("ORG",                       16,       16,        false,         false),
+        new Property("NOTE",                      17,       17,        false,         false),
+        new Property("URL",                       20,       20,        false,         false),
+        new Property("NICKNAME",                  23,       23,        false,          true),
+        new Property("X-IRMC-CALL-DATETIME",      28,       -1,        false,         false),
+        new Property("DATETIME",                  -1,       28,        false,         false),
+    };
+
+    /* PROPERTIES by the first character of their name */
+    private static final Property[][] PROPERTIES_BY_CHAR = new Property['Z' - 'A' + 1][];
+
+    static {
+        for (char c = 'A'; c <= 'Z'; c++) {
+            ArrayList<Property> list = new ArrayList<Property>();
+            for (Property p : PROPERTIES) {
+                if (p.name.charAt(0) == c) list.add(p);
+            }
+            PROPERTIES_BY_CHAR[c - 'A'] = list.toArray(new Property[list.size()]);
+        }
+    }
+
+    private final byte[] mFilter;
+    private final boolean mVCardType21;
+    private final boolean mStripTelephoneNumbers;
+    /* selector bits of known properties, 0 if no selector is used */
+    private long mSelectorMask;
+    private boolean mSelectorAnd;
+
+    /**
+     * @param filter the PBAP property filter, or null to keep all properties
+     * @param vCardType21 true if the vCards are version 2.1
+     * @param stripTelephoneNumbers true to remove '(', ')', '-' and ' ' from TEL lines
+     */
+    public BluetoothPbapVcardFilter(byte[] filter, boolean vCardType21,
+            boolean stripTelephoneNumbers) {
+        mFilter = filter;
+        mVCardType21 = vCardType21;
+        mStripTelephoneNumbers = stripTelephoneNumbers;
+    }
+
+    /**
+     * Only pass vCards matching the vCardSelector.
+     * @param selector the vCardSelector, or null to pass all vCards
+     * @param operator {@link #SELECTOR_OPERATOR_OR} or {@link #SELECTOR_OPERATOR_AND},
+     *        any other value passes all vCards
+     */
+    public void setSelector(byte[] selector, String operator) {
+        mSelectorMask = 0;
+        mSelectorAnd = SELECTOR_OPERATOR_AND.equals(operator);
+        if (selector == null || !(mSelectorAnd || SELECTOR_OPERATOR_OR.equals(operator))) {
+            return;
+        }
+        for (Property p : PROPERTIES) {
+            if (p.selectorBit >= 0 && isSelectorBitSet(selector, p.selectorBit)) {
+                mSelectorMask |= 1L << p.selectorBit;
+            }
+        }
+    }
+
+    public boolean isPhotoEnabled() {
+        return mFilter == null || isFilterBitSet(mFilter, FILTER_BIT_PHOTO);
+    }
+
+    /**
+     * @return true if the vCard matches the vCardSelector
+     */
+    public boolean isSelected(CharSequence vcard) {
+        return mSelectorMask == 0 || isSelected(process(vcard, null));
+    }
+
+    /**
+     * Filter a vCard and append it to the output, unless it does not match the
+     * vCardSelector.
+     * @return true if the vCard was selected and appended
+     */
+    public boolean apply(CharSequence vcard, Output out) {
+        int mark = out.length();
+        if (isSelected(process(vcard, out))) {
+            out.endEntry();
+            return true;
+        }
+        out.setLength(mark);
+        return false;
+    }
+
+    private boolean isSelected(long present) {
+        if (mSelectorMask == 0) return true;
+        if (mSelectorAnd) return (present & mSelectorMask) == mSelectorMask;
+        return (present & mSelectorMask) != 0;
+    }
+
+    /**
+     * Copy the filtered lines of the vCard to out, if not null.
+     * @return the selector bits of the properties present
+     */
+    private long process(CharSequence vcard, Output out) {
+        final int length = vcard.length();
+        long present = 0;
+        boolean filteredIn = true;
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && vcard.charAt(lineEnd) != '\n') lineEnd++;
+
+            if (lineEnd > lineStart) {
+                char first = vcard.charAt(lineStart);
+                // A new property starts unless this is a folded or
+                // quoted-printable continuation line
+                if (!Character.isWhitespace(first) && first != '=') {
+                    int nameEnd = lineStart;
+                    while (nameEnd < lineEnd) {
+                        char c = vcard.charAt(nameEnd);
+                        if (c == ';' || c == ':') break;
+                        nameEnd++;
+                    }
+                    Property p = lookup(vcard, lineStart, nameEnd);
+                    if (p != null && p.selectorBit >= 0) {
+                        present |= 1L << p.selectorBit;
+                    }
+                    filteredIn = isFilteredIn(p, vcard, lineStart, nameEnd);
+                }
+                if (filteredIn && out != null) {
+                    if (mStripTelephoneNumbers && startsWith(vcard, lineStart, lineEnd, TEL)) {
+                        out.appendStripped(vcard, lineStart, lineEnd);
+                    } else {
+                        out.append(vcard, lineStart, lineEnd);
+                    }
+                    out.appendByte('\n');
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return present;
+    }
+
+    private boolean isFilteredIn(Property p, CharSequence vcard, int start, int end) {
+        if (mFilter == null) return true;
+        // Since PBAP does not have filter bits for IM and SIP, exclude
+        // them by default. Easiest way is to exclude all X- fields,
+        // except date time....
+        if (startsWith(vcard, start, end, X_PREFIX)) {
+            return p != null && CALL_DATETIME.equals(p.name);
+        }
+        if (p == null || p.filterBit < 0) return true;
+        if (!mVCardType21 && p.onlyCheckV21) return true;
+        if (mVCardType21 && p.excludeForV21) return false;
+        return isFilterBitSet(mFilter, p.filterBit);
+    }
+
+    private static Property lookup(CharSequence s, int start, int end) {
+        if (start == end) return null;
+        char c = s.charAt(start);
+        if (c < 'A' || c > 'Z') return null;
+        for (Property p : PROPERTIES_BY_CHAR[c - 'A']) {
+            if (p.name.length() == end - start && startsWith(s, start, end, p.name)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    private static boolean startsWith(CharSequence s, int start, int end, String prefix) {
+        if (end - start < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (s.charAt(start + i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /* Bits are numbered from the least significant bit of the last byte */
+    private static boolean isFilterBitSet(byte[] filter, int pos) {
+        final int offset = (pos / 8) + 1;
+        if (offset >= filter.length) return true;
+        return ((filter[filter.length - offset] >> (pos % 8)) & 0x01) != 0;
+    }
+
+    private static boolean isSelectorBitSet(byte[] selector, int pos) {
+        final int offset = (pos / 8) + 1;
+        if (offset > selector.length) return false;
+        return ((selector[selector.length - offset] >> (pos % 8)) & 0x01) != 0;
+    }
+
+    /**
+     * Growable UTF-8 byte buffer the filtered vCards are written to. The end
+     * of each vCard appended by {@link #apply} is recorded.
+     */
+    public static final class Output {
+        private byte[] mBuf;
+        private int mLength;
+        private int[] mEntryEnds = new int[8];
+        private int mEntries;
+
+        public Output() {
+            this(4096);
+        }
+
+        public Output(int capacity) {
+            mBuf = new byte[Math.max(16, capacity)];
+        }
+
+        public int length() {
+            return mLength;
+        }
+
+        void setLength(int length) {
+            mLength = length;
+        }
+
+        public void reset() {
+            mLength = 0;
+            mEntries = 0;
+        }
+
+        /**
+         * @return the end offsets of the vCards in the buffer, in order
+         */
+        public int[] getEntryEnds() {
+            int[] ends = new int[mEntries];
+            System.arraycopy(mEntryEnds, 0, ends, 0, mEntries);
+            return ends;
+        }
+
+        void endEntry() {
+            if (mEntries == mEntryEnds.length) {
+                int[] ends = new int[mEntries * 2];
+                System.arraycopy(mEntryEnds, 0, ends, 0, mEntries);
+                mEntryEnds = ends;
+            }
+            mEntryEnds[mEntries++] = mLength;
+        }
+
+        public byte[] toByteArray() {
+            byte[] data = new byte[mLength];
+            System.arraycopy(mBuf, 0, data, 0, mLength);
+            return data;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(mBuf, 0, mLength);
+        }
+
+        public void append(CharSequence s) {
+            append(s, 0, s.length());
+        }
+
+        void appendByte(int b) {
+            ensureCapacity(1);
+            mBuf[mLength++] = (byte) b;
+        }
+
+        void append(CharSequence s, int start, int end) {
+            // at most 3 bytes per UTF-16 char
+            ensureCapacity((end - start) * 3);
+            for (int i = start; i < end; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    mBuf[mLength++] = (byte) c;
+                } else if (c < 0x800) {
+                    mBuf[mLength++] = (byte) (0xc0 | (c >> 6));
+                    mBuf[mLength++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < end
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    mBuf[mLength++] = (byte) (0xf0 | (cp >> 18));
+                    mBuf[mLength++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    mBuf[mLength++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    mBuf[mLength++] = (byte) (0x80 | (cp & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    // unpaired surrogate, encoded as '?' like String.getBytes()
+                    mBuf[mLength++] = (byte) '?';
+                } else {
+                    mBuf[mLength++] = (byte) (0xe0 | (c >> 12));
+                    mBuf[mLength++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    mBuf[mLength++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+
+        /* TEL lines are sent without number formatting characters */
+        void appendStripped(CharSequence s, int start, int end) {
+            ensureCapacity((end - start) * 3);
+            int runStart = start;
+            for (int i = start; i < end; i++) {
+                char c = s.charAt(i);
+                if (c == '(' || c == ')' || c == '-' || c == ' ') {
+                    append(s, runStart, i);
+                    runStart = i + 1;
+                }
+            }
+            append(s, runStart, end);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (mLength + extra <= mBuf.length) return;
+            int capacity = Math.max(mBuf.length * 2, mLength + extra);
+            byte[] buf = new byte[capacity];
+            System.arraycopy(mBuf, 0, buf, 0, mLength);
+            mBuf = buf;
+        }
+    }
+}
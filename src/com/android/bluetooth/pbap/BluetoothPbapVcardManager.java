@@ -67,6 +67,7 @@ import com.android.vcard.VCardPhoneNumberTranslationCallback;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 
 import javax.obex.Operation;
@@ -109,6 +110,16 @@ public class BluetoothPbapVcardManager {
             Phone.DISPLAY_NAME, // 1
     };
 
+    static final String[] PHONE_NUMBER_PROJECTION = new String[] {
+            Phone.NUMBER, // 0
+            Phone.CONTACT_ID, // 1
+    };
+
+    static final String[] CONTACT_UPDATE_PROJECTION = new String[] {
+            Phone.CONTACT_ID, // 0
+            Phone.CONTACT_LAST_UPDATED_TIMESTAMP, // 1
+    };
+
     static final String[] PHONE_LOOKUP_PROJECTION = new String[] {
             PhoneLookup._ID, PhoneLookup.DISPLAY_NAME
     };
@@ -119,6 +130,32 @@ public class BluetoothPbapVcardManager {
 
     static long LAST_FETCHED_TIME_STAMP;
 
+    /* Shared by the server sessions, valid for one primaryVersionCounter */
+    private static BluetoothPbapPhonebookIndex sPhonebookIndex;
+
+    /* Composed phonebook vCards, shared by the server sessions */
+    private static final BluetoothPbapVcardCache sVcardCache = new BluetoothPbapVcardCache();
+
+    /* Call history of the four history folders, shared by the server sessions */
+    private static final BluetoothPbapCallLogCache sCallLogCache =
+            new BluetoothPbapCallLogCache();
+
+    /* The columns of a call that may change come first */
+    static final String[] CALLLOG_CACHE_PROJECTION = new String[] {
+            Calls._ID, // 0
+            Calls.NEW, // 1
+            Calls.CACHED_NAME, // 2
+            Calls.CACHED_NUMBER_TYPE, // 3
+            Calls.CACHED_NUMBER_LABEL, // 4
+            Calls.TYPE, // 5
+            Calls.NUMBER, // 6
+            Calls.DATE, // 7
+            Calls.NUMBER_PRESENTATION, // 8
+    };
+    private static final int CALLLOG_CACHE_CHANGING_COLUMNS = 5;
+
+    private BluetoothPbapCallLogComposer mCallLogComposer;
+
     // call histories use dynamic handles, and handles should order by date; the
     // most recently one should be the first handle. In table "calls", _id and
     // date are consistent in ordering, to implement simply, we sort by _id
@@ -192,6 +229,12 @@ public class BluetoothPbapVcardManager {
     }
 
     public final int getContactsSize() {
+        int cachedSize = sVcardCache.getContactCount(BluetoothPbapService.primaryVersionCounter,
+                mCacheSource);
+        if (cachedSize >= 0) {
+            return cachedSize + 1; // always has the 0.vcf
+        }
+
         final Uri myUri = DevicePolicyUtils.getEnterprisePhoneUri(mContext);
         Cursor contactCursor = null;
         try {
@@ -229,6 +272,11 @@ public class BluetoothPbapVcardManager {
     }
 
     public final int getCallHistorySize(final int type) {
+        BluetoothPbapCallLogCache.Snapshot calls = sCallLogCache.getSnapshot(mCallLogSource);
+        if (calls != null) {
+            return calls.size(type);
+        }
+
         final Uri myUri = CallLog.Calls.CONTENT_URI;
         String selection = BluetoothPbapObexServer.createSelectionPara(type);
         int size = 0;
@@ -251,6 +299,17 @@ public class BluetoothPbapVcardManager {
     }
 
     public final ArrayList<String> loadCallHistoryList(final int type) {
+        BluetoothPbapCallLogCache.Snapshot calls = sCallLogCache.getSnapshot(mCallLogSource);
+        if (calls != null) {
+            ArrayList<String> list = new ArrayList<String>(calls.size(type));
+            for (int pos = 0; pos < calls.size(type); pos++) {
+                BluetoothPbapCallLogCache.Call call = calls.getCall(type, pos);
+                list.add(getCallHistoryName(call.cachedName, call.numberPresentation,
+                        call.number));
+            }
+            return list;
+        }
+
         final Uri myUri = CallLog.Calls.CONTENT_URI;
         String selection = BluetoothPbapObexServer.createSelectionPara(type);
         String[] projection = new String[] {
@@ -268,18 +327,9 @@ public class BluetoothPbapVcardManager {
             if (callCursor != null) {
                 for (callCursor.moveToFirst(); !callCursor.isAfterLast();
                         callCursor.moveToNext()) {
-                    String name = callCursor.getString(CALLS_NAME_COLUMN_INDEX);
-                    if (TextUtils.isEmpty(name)) {
-                        // name not found, use number instead
-                        final int numberPresentation = callCursor.getInt(
-                                CALLS_NUMBER_PRESENTATION_COLUMN_INDEX);
-                        if (numberPresentation != Calls.PRESENTATION_ALLOWED) {
-                            name = mContext.getString(R.string.unknownNumber);
-                        } else {
-                            name = callCursor.getString(CALLS_NUMBER_COLUMN_INDEX);
-                        }
-                    }
-                    list.add(name);
+                    list.add(getCallHistoryName(callCursor.getString(CALLS_NAME_COLUMN_INDEX),
+                            callCursor.getInt(CALLS_NUMBER_PRESENTATION_COLUMN_INDEX),
+                            callCursor.getString(CALLS_NUMBER_COLUMN_INDEX)));
                 }
             }
         } catch (CursorWindowAllocationException e) {
@@ -292,6 +342,103 @@ public class BluetoothPbapVcardManager {
         }
         return list;
     }
+
+    private String getCallHistoryName(String name, int numberPresentation, String number) {
+        if (TextUtils.isEmpty(name)) {
+            // name not found, use number instead
+            if (numberPresentation != Calls.PRESENTATION_ALLOWED) {
+                name = mContext.getString(R.string.unknownNumber);
+            } else {
+                name = number;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * @return the number of new missed calls
+     */
+    public final int getNewMissedCallsCount() {
+        BluetoothPbapCallLogCache.Snapshot calls = sCallLogCache.getSnapshot(mCallLogSource);
+        if (calls != null) {
+            return calls.getNewMissedCount();
+        }
+
+        int count = 0;
+        Cursor c = mResolver.query(Calls.CONTENT_URI, null,
+                Calls.TYPE + " = " + Calls.MISSED_TYPE + " AND " + Calls.NEW + " = 1",
+                null, Calls.DEFAULT_SORT_ORDER);
+        if (c != null) {
+            count = c.getCount();
+            c.close();
+        }
+        return count;
+    }
+
+    /**
+     * Refresh the cached call history at the next request.
+     */
+    public static void onCallLogChanged() {
+        sCallLogCache.invalidate();
+    }
+
+    private final BluetoothPbapCallLogCache.Source mCallLogSource =
+            new BluetoothPbapCallLogCache.Source() {
+        @Override
+        public ArrayList<BluetoothPbapCallLogCache.Call> queryCalls(long newerThanId,
+                boolean allColumns) {
+            return getCalls(newerThanId, allColumns);
+        }
+    };
+
+    private final BluetoothPbapCallLogCache.Composer mCallLogVcardComposer =
+            new BluetoothPbapCallLogCache.Composer() {
+        @Override
+        public String compose(BluetoothPbapCallLogCache.Call call, boolean vcardType21) {
+            if (mCallLogComposer == null) {
+                mCallLogComposer = new BluetoothPbapCallLogComposer(mContext);
+            }
+            return mCallLogComposer.composeCallLogEntry(call.cachedName, call.number,
+                    call.numberPresentation, call.cachedNumberType, call.cachedNumberLabel,
+                    call.type, call.date, vcardType21);
+        }
+    };
+
+    /* Calls newest first, see BluetoothPbapCallLogCache.Source */
+    private ArrayList<BluetoothPbapCallLogCache.Call> getCalls(long newerThanId,
+            boolean allColumns) {
+        String[] projection = allColumns ? CALLLOG_CACHE_PROJECTION
+                : Arrays.copyOf(CALLLOG_CACHE_PROJECTION, CALLLOG_CACHE_CHANGING_COLUMNS);
+        String selection = newerThanId >= 0 ? Calls._ID + ">" + newerThanId : null;
+        Cursor callCursor = null;
+        try {
+            callCursor = mResolver.query(CallLog.Calls.CONTENT_URI, projection, selection, null,
+                    CALLLOG_SORT_ORDER);
+            if (callCursor == null) {
+                return null;
+            }
+            ArrayList<BluetoothPbapCallLogCache.Call> calls =
+                    new ArrayList<BluetoothPbapCallLogCache.Call>(callCursor.getCount());
+            while (callCursor.moveToNext()) {
+                calls.add(new BluetoothPbapCallLogCache.Call(callCursor.getLong(0),
+                        allColumns ? callCursor.getInt(5) : 0,
+                        allColumns ? callCursor.getString(6) : null,
+                        allColumns ? callCursor.getLong(7) : 0,
+                        allColumns ? callCursor.getInt(8) : Calls.PRESENTATION_ALLOWED,
+                        callCursor.getString(2), callCursor.getInt(3), callCursor.getString(4),
+                        callCursor.getInt(1) != 0));
+            }
+            return calls;
+        } catch (CursorWindowAllocationException e) {
+            Log.e(TAG, "CursorWindowAllocationException while reading call log");
+        } finally {
+            if (callCursor != null) {
+                callCursor.close();
+            }
+        }
+        return null;
+    }
+
     public final ArrayList<String> getSIMPhonebookNameList(final int orderByWhat) {
         ArrayList<String> nameList = new ArrayList<String>();
         nameList.add(BluetoothPbapService.getLocalPhoneName());
@@ -333,8 +480,7 @@ public class BluetoothPbapVcardManager {
 
     }
 
-    public final ArrayList<String> getPhonebookNameList(final int orderByWhat) {
-        ArrayList<String> nameList = new ArrayList<String>();
+    private String getOwnerName() {
         //Owner vCard enhancement. Use "ME" profile if configured
         String ownerName = null;
         if (BluetoothPbapConfig.useProfileForOwnerVcard()) {
@@ -343,8 +489,12 @@ public class BluetoothPbapVcardManager {
         if (ownerName == null || ownerName.length()==0) {
             ownerName = BluetoothPbapService.getLocalPhoneName();
         }
-        nameList.add(ownerName + "," + "0");
-        //End enhancement
+        return ownerName;
+    }
+
+    public final ArrayList<String> getPhonebookNameList(final int orderByWhat) {
+        ArrayList<String> nameList = new ArrayList<String>();
+        nameList.add(getOwnerName() + "," + "0");
 
         final Uri myUri = DevicePolicyUtils.getEnterprisePhoneUri(mContext);
         Cursor contactCursor = null;
@@ -374,12 +524,147 @@ public class BluetoothPbapVcardManager {
         return nameList;
     }
 
+    /**
+     * Get the index of the phonebook name list for listings and searches. The
+     * index is rebuilt when the contacts changed since it was built.
+     */
+    public final BluetoothPbapPhonebookIndex getPhonebookIndex(final int orderByWhat) {
+        final long version = BluetoothPbapService.primaryVersionCounter;
+        final String ownerName = getOwnerName();
+        synchronized (BluetoothPbapVcardManager.class) {
+            if (sPhonebookIndex != null
+                    && sPhonebookIndex.isValid(version, orderByWhat, ownerName)) {
+                return sPhonebookIndex;
+            }
+        }
+        long start = System.currentTimeMillis();
+        BluetoothPbapPhonebookIndex index = new BluetoothPbapPhonebookIndex(version, orderByWhat,
+                ownerName, getPhonebookNameList(orderByWhat), getPhonebookNumberList());
+        if (V) Log.v(TAG, "Phonebook index of " + index.size() + " entries built in "
+                + (System.currentTimeMillis() - start) + " ms");
+        synchronized (BluetoothPbapVcardManager.class) {
+            sPhonebookIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Drop the phonebook index and revalidate the cached vCards and calls, e.g.
+     * when the version counter is reset or contact changes are no longer observed.
+     */
+    public static void invalidatePhonebookCaches() {
+        synchronized (BluetoothPbapVcardManager.class) {
+            sPhonebookIndex = null;
+        }
+        sVcardCache.invalidate();
+        sCallLogCache.invalidate();
+    }
+
+    /**
+     * Drop the phonebook index, the cached vCards and calls.
+     */
+    public static void clearPhonebookCaches() {
+        synchronized (BluetoothPbapVcardManager.class) {
+            sPhonebookIndex = null;
+        }
+        sVcardCache.clear();
+        sCallLogCache.clear();
+    }
+
+    /**
+     * Drop the cached vCards when the system runs low on memory. The phonebook
+     * index and the calls are small and kept.
+     */
+    public static void trimPhonebookCaches() {
+        sVcardCache.trimMemory();
+    }
+
+    public static void dump(StringBuilder sb) {
+        sVcardCache.dump(sb);
+        sCallLogCache.dump(sb);
+    }
+
+    private final BluetoothPbapVcardCache.Source mCacheSource =
+            new BluetoothPbapVcardCache.Source() {
+        @Override
+        public long[][] queryContacts() {
+            return getContactUpdateTimes();
+        }
+    };
+
+    /* Distinct contact ids in ascending order and the last update time of each */
+    private long[][] getContactUpdateTimes() {
+        Cursor contactCursor = null;
+        try {
+            contactCursor = mResolver.query(DevicePolicyUtils.getEnterprisePhoneUri(mContext),
+                    CONTACT_UPDATE_PROJECTION, CLAUSE_ONLY_VISIBLE, null, Phone.CONTACT_ID);
+            if (contactCursor == null) {
+                return null;
+            }
+            long[] contactIds = new long[contactCursor.getCount()];
+            long[] updated = new long[contactIds.length];
+            int count = 0;
+            while (contactCursor.moveToNext() && count < contactIds.length) {
+                long contactId = contactCursor.getLong(0);
+                long time = contactCursor.isNull(1) ? -1 : contactCursor.getLong(1);
+                if (count > 0 && contactIds[count - 1] == contactId) {
+                    continue;
+                }
+                contactIds[count] = contactId;
+                updated[count] = time;
+                count++;
+            }
+            return new long[][] {
+                    Arrays.copyOf(contactIds, count), Arrays.copyOf(updated, count)
+            };
+        } catch (CursorWindowAllocationException e) {
+            Log.e(TAG, "CursorWindowAllocationException while getting contact update times");
+        } catch (IllegalArgumentException e) {
+            // Last update time not supported by the provider
+            Log.e(TAG, "Exception while getting contact update times", e);
+        } finally {
+            if (contactCursor != null) {
+                contactCursor.close();
+            }
+        }
+        return null;
+    }
+
+    /* Pairs of phone number and contact id of all visible phone numbers */
+    private ArrayList<String[]> getPhonebookNumberList() {
+        ArrayList<String[]> numberList = new ArrayList<String[]>();
+        Cursor phoneCursor = null;
+        try {
+            phoneCursor = mResolver.query(DevicePolicyUtils.getEnterprisePhoneUri(mContext),
+                    PHONE_NUMBER_PROJECTION, CLAUSE_ONLY_VISIBLE, null, null);
+            if (phoneCursor != null) {
+                while (phoneCursor.moveToNext()) {
+                    numberList.add(new String[] {
+                            phoneCursor.getString(0), Long.toString(phoneCursor.getLong(1))
+                    });
+                }
+            }
+        } catch (CursorWindowAllocationException e) {
+            Log.e(TAG, "CursorWindowAllocationException while getting phonebook numbers");
+        } catch (Exception e) {
+            Log.e(TAG, "Exception while getting phonebook numbers", e);
+        } finally {
+            if (phoneCursor != null) {
+                phoneCursor.close();
+                phoneCursor = null;
+            }
+        }
+        return numberList;
+    }
+
     public final ArrayList<String> getSelectedPhonebookNameList(final int orderByWhat,
         final boolean vcardType21, int needSendBody, int pbSize, byte[] selector,
             String vcardselectorop) {
 
         ArrayList<String> nameList = new ArrayList<String>();
-        PropertySelector vcardselector = new PropertySelector(selector);
+        BluetoothPbapVcardFilter vcardselector =
+                new BluetoothPbapVcardFilter(null, vcardType21, false);
+        vcardselector.setSelector(selector, vcardselectorop);
         VCardComposer composer = null;
         int vcardType;
 
@@ -432,13 +717,13 @@ public class BluetoothPbapVcardManager {
                     }
                     if (V) Log.v(TAG, "Checking selected bits in the vcard composer" + vcard);
 
-                    if (!vcardselector.CheckVcardSelector(vcard, vcardselectorop)){
+                    if (!vcardselector.isSelected(vcard)) {
                         Log.e(TAG, "vcard selector check fail");
                         vcard = null;
                         pbSize--;
                         continue;
                     } else {
-                        String name = vcardselector.getName(vcard);
+                        String name = getVcardName(vcard);
                         if (TextUtils.isEmpty(name)) {
                             name = mContext.getString(android.R.string.unknownName);
                         }
@@ -572,19 +857,23 @@ public class BluetoothPbapVcardManager {
         Cursor callCursor = null;
         long count = 0;
         long primaryVcMsb = 0;
-        ArrayList<String> list = new ArrayList<String>();
-        try {
-            callCursor = mResolver.query(myUri, null, selection, null,
-                    null);
-            while ( callCursor  != null && callCursor.moveToNext()) {
-                count = count +1;
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "exception while fetching callHistory pvc");
-        } finally {
-            if (callCursor != null) {
-                callCursor.close();
-                callCursor = null;
+        BluetoothPbapCallLogCache.Snapshot calls = sCallLogCache.getSnapshot(mCallLogSource);
+        if (calls != null) {
+            count = calls.countSince(type, LAST_FETCHED_TIME_STAMP);
+        } else {
+            try {
+                callCursor = mResolver.query(myUri, null, selection, null,
+                        null);
+                while ( callCursor  != null && callCursor.moveToNext()) {
+                    count = count +1;
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "exception while fetching callHistory pvc");
+            } finally {
+                if (callCursor != null) {
+                    callCursor.close();
+                    callCursor = null;
+                }
             }
         }
 
@@ -607,6 +896,13 @@ public class BluetoothPbapVcardManager {
             Log.e(TAG, "internal error: startPoint or endPoint is not correct.");
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
+
+        BluetoothPbapCallLogCache.Snapshot calls = sCallLogCache.getSnapshot(mCallLogSource);
+        if (calls != null) {
+            return sendCallLogSnapshot(op, calls, type, startPoint, endPoint, vcardType21, null,
+                    NEED_SEND_BODY, 0);
+        }
+
         String typeSelection = BluetoothPbapObexServer.createSelectionPara(type);
 
         final Uri myUri = CallLog.Calls.CONTENT_URI;
@@ -674,6 +970,16 @@ public class BluetoothPbapVcardManager {
             Log.e(TAG, "internal error: startPoint or endPoint is not correct.");
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
+
+        BluetoothPbapCallLogCache.Snapshot calls = sCallLogCache.getSnapshot(mCallLogSource);
+        if (calls != null) {
+            BluetoothPbapVcardFilter vcardfilter =
+                    new BluetoothPbapVcardFilter(ignorefilter ? null : filter, vcardType21, false);
+            vcardfilter.setSelector(vcardselector, vcardselectorop);
+            return sendCallLogSnapshot(op, calls, type, startPoint, endPoint, vcardType21,
+                    vcardfilter, needSendBody, pbSize);
+        }
+
         String typeSelection = BluetoothPbapObexServer.createSelectionPara(type);
 
         final Uri myUri = CallLog.Calls.CONTENT_URI;
@@ -733,6 +1039,72 @@ public class BluetoothPbapVcardManager {
             pbSize, null, ignorefilter, filter, vcardselector, vcardselectorop);
     }
 
+    /**
+     * Send the vCards of the calls at positions startPoint to endPoint, from 1,
+     * of a call history folder.
+     * @param vcardfilter the filter and selector to apply, null to send the vCards
+     *        as composed
+     */
+    private int sendCallLogSnapshot(Operation op, BluetoothPbapCallLogCache.Snapshot calls,
+            int type, int startPoint, int endPoint, boolean vcardType21,
+            BluetoothPbapVcardFilter vcardfilter, int needSendBody, int pbSize) {
+        long timestamp = 0;
+        if (V) timestamp = System.currentTimeMillis();
+
+        final int end = Math.min(endPoint, calls.size(type));
+        if (needSendBody != NEED_SEND_BODY) {
+            for (int pos = startPoint; pos <= end; pos++) {
+                String vcard = calls.getVcard(calls.getCall(type, pos - 1), vcardType21,
+                        mCallLogVcardComposer);
+                if (vcard == null) {
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                }
+                if (vcardfilter != null && !vcardfilter.isSelected(vcard)) {
+                    Log.e(TAG, "Checking vcard selector for call log");
+                    pbSize--;
+                }
+            }
+            return pbSize;
+        }
+
+        HandlerForStringBuffer buffer = new HandlerForStringBuffer(op, null);
+        BluetoothPbapVcardFilter.Output output = new BluetoothPbapVcardFilter.Output();
+        try {
+            if (!buffer.onInit(mContext)) {
+                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+            }
+            for (int pos = startPoint; pos <= end; pos++) {
+                if (BluetoothPbapObexServer.sIsAborted) {
+                    ((ServerOperation) op).isAborted = true;
+                    BluetoothPbapObexServer.sIsAborted = false;
+                    break;
+                }
+                String vcard = calls.getVcard(calls.getCall(type, pos - 1), vcardType21,
+                        mCallLogVcardComposer);
+                if (vcard == null) {
+                    Log.e(TAG, "Failed to compose call log vCard");
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                }
+                if (vcardfilter == null) {
+                    buffer.onEntryCreated(vcard);
+                    continue;
+                }
+                output.reset();
+                if (!vcardfilter.apply(vcard, output)) {
+                    Log.e(TAG, "Checking vcard selector for call log");
+                    continue;
+                }
+                buffer.onEntryCreated(output);
+            }
+        } finally {
+            buffer.onTerminate();
+        }
+
+        if (V) Log.v(TAG, "Sending " + (end - startPoint + 1) + " cached call log vCards takes "
+                + (System.currentTimeMillis() - timestamp) + " ms");
+        return ResponseCodes.OBEX_HTTP_OK;
+    }
+
     public final int composeAndSendPhonebookVcards(Operation op, final int startPoint,
             final int endPoint, final boolean vcardType21, String ownerVCard, int needSendBody,
             int pbSize, boolean ignorefilter, byte[] filter, byte[] vcardselector,
@@ -742,6 +1114,27 @@ public class BluetoothPbapVcardManager {
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
 
+        // A single entry is looked up by contact id, see ContactCursorFilter.
+        // Only a pull of the whole phonebook builds a snapshot, a range is
+        // served from the snapshot if it is already cached.
+        if ((isDisabledNonAosp || !vcardselect) && startPoint != endPoint) {
+            byte[] vcardFilter = ignorefilter ? null : filter;
+            if (startPoint == 1 && endPoint >= pbSize - 1) {
+                int result = sendPhonebookFromCache(op, vcardType21, vcardFilter, endPoint,
+                        ownerVCard);
+                if (result != SEND_WITHOUT_CACHE) {
+                    return result;
+                }
+            } else {
+                BluetoothPbapVcardCache.Snapshot snapshot =
+                        sVcardCache.getCachedSnapshot(BluetoothPbapService.primaryVersionCounter,
+                                getPhonebookFormat(vcardType21, vcardFilter));
+                if (snapshot != null) {
+                    return sendPhonebookSnapshot(op, snapshot, startPoint, endPoint, ownerVCard);
+                }
+            }
+        }
+
         final Uri myUri = DevicePolicyUtils.getEnterprisePhoneUri(mContext);
         Cursor contactCursor = null;
         Cursor contactIdCursor = new MatrixCursor(new String[] {
@@ -971,93 +1364,328 @@ public class BluetoothPbapVcardManager {
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
-    public final int composeContactsAndSendVCards(Operation op, final Cursor contactIdCursor,
-            final boolean vcardType21, String ownerVCard, boolean ignorefilter, byte[] filter) {
+    public final int composeContactsAndSendVCards(final Operation op,
+            final Cursor contactIdCursor, final boolean vcardType21, String ownerVCard,
+            boolean ignorefilter, byte[] filter) {
         long timestamp = 0;
         if (V) timestamp = System.currentTimeMillis();
 
-        VCardComposer composer = null;
-        VCardFilter vcardfilter = new VCardFilter(ignorefilter ? null : filter);
+        final BluetoothPbapVcardFilter vcardfilter =
+                new BluetoothPbapVcardFilter(ignorefilter ? null : filter, vcardType21, true);
 
-        HandlerForStringBuffer buffer = null;
+        final long[] contactIds = getContactIds(contactIdCursor);
+        Log.v(TAG, "contactIdCursor size: " + contactIds.length);
+
+        BluetoothPbapVcardPipeline pipeline =
+                createContactsPipeline(getContactsVcardType(vcardType21, vcardfilter), vcardfilter);
+
+        final HandlerForStringBuffer buffer = new HandlerForStringBuffer(op, ownerVCard);
+        final boolean[] aborted = new boolean[1];
         try {
-            // Currently only support Generic Vcard 2.1 and 3.0
-            int vcardType;
-            if (vcardType21) {
-                vcardType = VCardConfig.VCARD_TYPE_V21_GENERIC;
-            } else {
-                vcardType = VCardConfig.VCARD_TYPE_V30_GENERIC;
+            if (!buffer.onInit(mContext)) {
+                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
             }
-            if (!vcardfilter.isPhotoEnabled()) {
-                vcardType |= VCardConfig.FLAG_REFRAIN_IMAGE_EXPORT;
+
+            boolean result = pipeline.run(contactIds, new BluetoothPbapVcardPipeline.Sink() {
+                @Override
+                public boolean onChunk(byte[] vcards, int[] ends) {
+                    if (BluetoothPbapObexServer.sIsAborted) {
+                        ((ServerOperation) op).isAborted = true;
+                        BluetoothPbapObexServer.sIsAborted = false;
+                        aborted[0] = true;
+                        return false;
+                    }
+                    // onEntryCreated() already emits error.
+                    return buffer.onEntryCreated(vcards);
+                }
+            });
+            if (!result && !aborted[0]) {
+                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
             }
+        } finally {
+            buffer.onTerminate();
+        }
 
-            // Enhancement: customize Vcard based on preferences/settings and
-            // input from caller
-            composer = BluetoothPbapUtils.createFilteredVCardComposer(mContext, vcardType, null);
-            // End enhancement
+        if (V) Log.v(TAG, "Total vcard composing and sending out takes "
+                    + (System.currentTimeMillis() - timestamp) + " ms");
 
-            // BT does want PAUSE/WAIT conversion while it doesn't want the
-            // other formatting
-            // done by vCard library by default.
-            composer.setPhoneNumberTranslationCallback(new VCardPhoneNumberTranslationCallback() {
-                public String onValueReceived(String rawValue, int type, String label,
-                        boolean isPrimary) {
-                    // 'p' and 'w' are the standard characters for pause and
-                    // wait
-                    // (see RFC 3601)
-                    // so use those when exporting phone numbers via vCard.
-                    String numberWithControlSequence = rawValue
-                            .replace(PhoneNumberUtils.PAUSE, 'p').replace(PhoneNumberUtils.WAIT,
-                                    'w');
-                    return numberWithControlSequence;
+        return ResponseCodes.OBEX_HTTP_OK;
+    }
+
+    private static int getContactsVcardType(boolean vcardType21,
+            BluetoothPbapVcardFilter vcardfilter) {
+        // Currently only support Generic Vcard 2.1 and 3.0
+        int type;
+        if (vcardType21) {
+            type = VCardConfig.VCARD_TYPE_V21_GENERIC;
+        } else {
+            type = VCardConfig.VCARD_TYPE_V30_GENERIC;
+        }
+        if (!vcardfilter.isPhotoEnabled()) {
+            type |= VCardConfig.FLAG_REFRAIN_IMAGE_EXPORT;
+        }
+        return type;
+    }
+
+    private BluetoothPbapVcardPipeline createContactsPipeline(final int vcardType,
+            final BluetoothPbapVcardFilter vcardfilter) {
+        return new BluetoothPbapVcardPipeline(new BluetoothPbapVcardPipeline.VcardSource() {
+            @Override
+            public int compose(long[] ids, BluetoothPbapVcardFilter.Output out) {
+                return composeContacts(ids, vcardType, vcardfilter, out);
+            }
+        }, BluetoothPbapVcardPipeline.getDefaultWorkerCount(),
+                BluetoothPbapVcardPipeline.DEFAULT_CHUNK_SIZE);
+    }
+
+    private static String getPhonebookFormat(boolean vcardType21, byte[] filter) {
+        BluetoothPbapVcardFilter vcardfilter =
+                new BluetoothPbapVcardFilter(filter, vcardType21, true);
+        return getContactsVcardType(vcardType21, vcardfilter) + "/" + Arrays.toString(filter);
+    }
+
+    /* Returned by sendPhonebookFromCache() when nothing was sent */
+    private static final int SEND_WITHOUT_CACHE = -1;
+
+    /**
+     * Send a pull of the whole phonebook through the vCard cache. The
+     * contacts changed since the cached snapshot are composed while the
+     * vCards before them are already being sent.
+     * @return the response code, or SEND_WITHOUT_CACHE if the contacts could
+     *         not be read or composed before anything was sent
+     */
+    private int sendPhonebookFromCache(final Operation op, boolean vcardType21,
+            byte[] filter, final int endPoint, String ownerVCard) {
+        long timestamp = 0;
+        if (V) timestamp = System.currentTimeMillis();
+
+        final BluetoothPbapVcardFilter vcardfilter =
+                new BluetoothPbapVcardFilter(filter, vcardType21, true);
+        final int vcardType = getContactsVcardType(vcardType21, vcardfilter);
+        final HandlerForStringBuffer buffer = new HandlerForStringBuffer(op, ownerVCard);
+        // opened, aborted, write failed
+        final boolean[] state = new boolean[3];
+        try {
+            boolean result = sVcardCache.sendSnapshot(BluetoothPbapService.primaryVersionCounter,
+                    getPhonebookFormat(vcardType21, filter), mCacheSource,
+                    new BluetoothPbapVcardCache.Composer() {
+                @Override
+                public boolean compose(long[] contactIds,
+                        BluetoothPbapVcardCache.EntrySink sink) {
+                    return composeCacheEntries(contactIds, vcardType, vcardfilter, sink);
+                }
+            }, new BluetoothPbapVcardCache.EntrySink() {
+                @Override
+                public boolean onEntry(int index, byte[] entry) {
+                    if (BluetoothPbapObexServer.sIsAborted) {
+                        ((ServerOperation) op).isAborted = true;
+                        BluetoothPbapObexServer.sIsAborted = false;
+                        state[1] = true;
+                        return false;
+                    }
+                    if (!state[0]) {
+                        state[0] = true;
+                        if (!buffer.onInit(mContext)) {
+                            state[2] = true;
+                            return false;
+                        }
+                    }
+                    // As endPoint index starts from 1, skip contacts added since pbSize
+                    if (index < endPoint && !buffer.onEntryCreated(entry)) {
+                        // onEntryCreate() already emits error.
+                        state[2] = true;
+                        return false;
+                    }
+                    return true;
                 }
             });
-            buffer = new HandlerForStringBuffer(op, ownerVCard);
-            Log.v(TAG, "contactIdCursor size: " + contactIdCursor.getCount());
-            if (!composer.initWithCallback(contactIdCursor,
-                    new EnterpriseRawContactEntitlesInfoCallback())
-                    || !buffer.onInit(mContext)) {
+            if (state[1]) {
+                return ResponseCodes.OBEX_HTTP_OK;
+            }
+            if (!result && !state[0]) {
+                return SEND_WITHOUT_CACHE;
+            }
+            if (!result || state[2]) {
                 return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
             }
+            if (!state[0]) {
+                // Empty phonebook, only the owner vCard
+                state[0] = true;
+                if (!buffer.onInit(mContext)) {
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                }
+            }
+        } finally {
+            if (state[0]) {
+                buffer.onTerminate();
+            }
+        }
 
-            while (!composer.isAfterLast()) {
+        if (V) Log.v(TAG, "Sending the phonebook through the vCard cache takes "
+                + (System.currentTimeMillis() - timestamp) + " ms");
+        return ResponseCodes.OBEX_HTTP_OK;
+    }
+
+    /**
+     * Compose the vCards of contacts for the vCard cache on the pipeline,
+     * passing each to the sink with its index as soon as its chunk is done.
+     */
+    private boolean composeCacheEntries(final long[] contactIds, final int vcardType,
+            final BluetoothPbapVcardFilter vcardfilter,
+            final BluetoothPbapVcardCache.EntrySink sink) {
+        final int chunkSize = BluetoothPbapVcardPipeline.DEFAULT_CHUNK_SIZE;
+        final int[] next = new int[1];
+        boolean result = createContactsPipeline(vcardType, vcardfilter).run(contactIds,
+                new BluetoothPbapVcardPipeline.Sink() {
+            @Override
+            public boolean onChunk(byte[] vcards, int[] ends) {
+                final int offset = next[0];
+                final int count = Math.min(chunkSize, contactIds.length - offset);
+                next[0] += count;
+                if (ends.length == count) {
+                    int start = 0;
+                    for (int i = 0; i < count; i++) {
+                        if (!sink.onEntry(offset + i, Arrays.copyOfRange(vcards, start,
+                                ends[i]))) {
+                            return false;
+                        }
+                        start = ends[i];
+                    }
+                    return true;
+                }
+                // A contact was removed meanwhile, find out which one
+                for (int i = 0; i < count; i++) {
+                    BluetoothPbapVcardFilter.Output out =
+                            new BluetoothPbapVcardFilter.Output(BYTES_PER_CONTACT);
+                    if (composeContacts(new long[] {contactIds[offset + i]}, vcardType,
+                            vcardfilter, out) < 0) {
+                        return false;
+                    }
+                    boolean found = out.getEntryEnds().length == 1 && out.length() > 0;
+                    if (!sink.onEntry(offset + i, found ? out.toByteArray() : null)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+        return result && next[0] == contactIds.length;
+    }
+
+    /* Initial output capacity when composing a single contact */
+    private static final int BYTES_PER_CONTACT = 512;
+
+    private int sendPhonebookSnapshot(Operation op, BluetoothPbapVcardCache.Snapshot snapshot,
+            int startPoint, int endPoint, String ownerVCard) {
+        long timestamp = 0;
+        if (V) timestamp = System.currentTimeMillis();
+
+        // As startPoint, endPoint index starts from 1 to n
+        final int end = Math.min(endPoint, snapshot.size());
+        HandlerForStringBuffer buffer = new HandlerForStringBuffer(op, ownerVCard);
+        try {
+            if (!buffer.onInit(mContext)) {
+                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+            }
+            for (int pos = startPoint; pos <= end; pos++) {
                 if (BluetoothPbapObexServer.sIsAborted) {
                     ((ServerOperation) op).isAborted = true;
                     BluetoothPbapObexServer.sIsAborted = false;
                     break;
                 }
+                if (!buffer.onEntryCreated(snapshot.getEntry(pos - 1))) {
+                    // onEntryCreate() already emits error.
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                }
+            }
+        } finally {
+            buffer.onTerminate();
+        }
+
+        if (V) Log.v(TAG, "Sending " + (end - startPoint + 1) + " cached vCards takes "
+                    + (System.currentTimeMillis() - timestamp) + " ms");
+        return ResponseCodes.OBEX_HTTP_OK;
+    }
+
+    /**
+     * Compose and filter the vCards of some contacts with a composer of its own.
+     * Called from the workers of {@link BluetoothPbapVcardPipeline}.
+     * @return the number of vCards appended to out, or -1 on error
+     */
+    private int composeContacts(long[] contactIds, int vcardType,
+            BluetoothPbapVcardFilter vcardfilter, BluetoothPbapVcardFilter.Output out) {
+        MatrixCursor idCursor = new MatrixCursor(new String[] {
+            Phone.CONTACT_ID
+        }, contactIds.length);
+        for (long id : contactIds) {
+            idCursor.addRow(new Long[] {id});
+        }
+
+        VCardComposer composer = null;
+        try {
+            composer = createContactsComposer(vcardType);
+            if (!composer.initWithCallback(idCursor,
+                    new EnterpriseRawContactEntitlesInfoCallback())) {
+                Log.e(TAG, "Failed to init composer: " + composer.getErrorReason());
+                return -1;
+            }
+
+            int count = 0;
+            while (!composer.isAfterLast()) {
                 String vcard = composer.createOneEntry();
                 if (vcard == null) {
                     Log.e(TAG,
                             "Failed to read a contact. Error reason: " + composer.getErrorReason());
-                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                    return -1;
                 }
                 if (V) Log.v(TAG, "vCard from composer: " + vcard);
 
-                vcard = vcardfilter.apply(vcard, vcardType21);
-                vcard = StripTelephoneNumber(vcard);
-
-                if (V) Log.v(TAG, "vCard after cleanup: " + vcard);
-
-                if (!buffer.onEntryCreated(vcard)) {
-                    // onEntryCreate() already emits error.
-                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-                }
+                vcardfilter.apply(vcard, out);
+                count++;
             }
+            return count;
         } finally {
             if (composer != null) {
                 composer.terminate();
             }
-            if (buffer != null) {
-                buffer.onTerminate();
-            }
+            idCursor.close();
         }
+    }
 
-        if (V) Log.v(TAG, "Total vcard composing and sending out takes "
-                    + (System.currentTimeMillis() - timestamp) + " ms");
+    private VCardComposer createContactsComposer(int vcardType) {
+        // Enhancement: customize Vcard based on preferences/settings and
+        // input from caller
+        VCardComposer composer =
+                BluetoothPbapUtils.createFilteredVCardComposer(mContext, vcardType, null);
+        // End enhancement
 
-        return ResponseCodes.OBEX_HTTP_OK;
+        // BT does want PAUSE/WAIT conversion while it doesn't want the
+        // other formatting
+        // done by vCard library by default.
+        composer.setPhoneNumberTranslationCallback(new VCardPhoneNumberTranslationCallback() {
+            public String onValueReceived(String rawValue, int type, String label,
+                    boolean isPrimary) {
+                // 'p' and 'w' are the standard characters for pause and
+                // wait
+                // (see RFC 3601)
+                // so use those when exporting phone numbers via vCard.
+                String numberWithControlSequence = rawValue
+                        .replace(PhoneNumberUtils.PAUSE, 'p').replace(PhoneNumberUtils.WAIT,
+                                'w');
+                return numberWithControlSequence;
+            }
+        });
+        return composer;
+    }
+
+    private static long[] getContactIds(Cursor contactIdCursor) {
+        long[] contactIds = new long[contactIdCursor.getCount()];
+        int i = 0;
+        contactIdCursor.moveToPosition(-1);
+        while (contactIdCursor.moveToNext() && i < contactIds.length) {
+            contactIds[i++] = contactIdCursor.getLong(0);
+        }
+        return contactIds;
     }
 
     public final int composeContactsAndSendSelectedVCards(Operation op, final Cursor
@@ -1067,8 +1695,10 @@ public class BluetoothPbapVcardManager {
         if (V) timestamp = System.currentTimeMillis();
 
         VCardComposer composer = null;
-        VCardFilter vcardfilter = new VCardFilter(ignorefilter ? null : filter);
-        PropertySelector vcardselector = new PropertySelector(selector);
+        BluetoothPbapVcardFilter vcardfilter =
+                new BluetoothPbapVcardFilter(ignorefilter ? null : filter, vcardType21, true);
+        vcardfilter.setSelector(selector, vcardselectorop);
+        BluetoothPbapVcardFilter.Output output = new BluetoothPbapVcardFilter.Output();
 
         HandlerForStringBuffer buffer = null;
 
@@ -1127,25 +1757,24 @@ public class BluetoothPbapVcardManager {
                 }
                 if (V) Log.v(TAG, "Checking selected bits in the vcard composer" + vcard);
 
-                if (!vcardselector.CheckVcardSelector(vcard, vcardselectorop)){
-                    Log.e(TAG, "vcard selector check fail");
-                    vcard = null;
-                    pbSize--;
+                if (needSendBody != NEED_SEND_BODY) {
+                    if (!vcardfilter.isSelected(vcard)) {
+                        Log.e(TAG, "vcard selector check fail");
+                        pbSize--;
+                    }
                     continue;
                 }
 
-                Log.e(TAG, "vcard selector check pass");
-
-                if(needSendBody == NEED_SEND_BODY){
-                    vcard = vcardfilter.apply(vcard, vcardType21);
-                    vcard = StripTelephoneNumber(vcard);
-
-                    if (V) Log.v(TAG, "vCard after cleanup: " + vcard);
+                // Selector check and filtering in one pass
+                output.reset();
+                if (!vcardfilter.apply(vcard, output)) {
+                    Log.e(TAG, "vcard selector check fail");
+                    continue;
+                }
 
-                    if (!buffer.onEntryCreated(vcard)) {
-                        // onEntryCreate() already emits error.
-                        return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-                    }
+                if (!buffer.onEntryCreated(output)) {
+                    // onEntryCreate() already emits error.
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                 }
             }
 
@@ -1227,8 +1856,10 @@ public class BluetoothPbapVcardManager {
 
         try {
 
-            VCardFilter vcardfilter = new VCardFilter(ignorefilter ? null : filter);
-            PropertySelector vcardselector = new PropertySelector(selector);
+            BluetoothPbapVcardFilter vcardfilter =
+                    new BluetoothPbapVcardFilter(ignorefilter ? null : filter, vcardType21, false);
+            vcardfilter.setSelector(selector, vcardselectorop);
+            BluetoothPbapVcardFilter.Output output = new BluetoothPbapVcardFilter.Output();
             composer = new BluetoothPbapCallLogComposer(mContext);
             buffer = new HandlerForStringBuffer(op, ownerVCard);
             if (!composer.init(CallLog.Calls.CONTENT_URI, selection, null, CALLLOG_SORT_ORDER)
@@ -1243,31 +1874,32 @@ public class BluetoothPbapVcardManager {
                     break;
                 }
                 String vcard = composer.createOneEntry(vcardType21);
-
-                if (!vcardselector.CheckVcardSelector(vcard, vcardselectorop)){
-                    Log.e(TAG, "Checking vcard selector for call log");
-                    vcard = null;
-                    pbSize--;
-                    continue;
+                if (vcard == null) {
+                    Log.e(TAG,
+                            "Failed to read a contact. Error reason: " +
+                                composer.getErrorReason());
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                 }
 
-                if (needSendBody == NEED_SEND_BODY){
-                    if (vcard != null) {
-                        vcard = vcardfilter.apply(vcard, vcardType21);
-                    }
-                    if (vcard == null) {
-                        Log.e(TAG,
-                                "Failed to read a contact. Error reason: " +
-                                    composer.getErrorReason());
-                        return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-                    }
-                    if (V) {
-                        Log.v(TAG, "Vcard Entry:");
-                        Log.v(TAG, vcard);
+                if (needSendBody != NEED_SEND_BODY) {
+                    if (!vcardfilter.isSelected(vcard)) {
+                        Log.e(TAG, "Checking vcard selector for call log");
+                        pbSize--;
                     }
+                    continue;
+                }
 
-                    buffer.onEntryCreated(vcard);
+                output.reset();
+                if (!vcardfilter.apply(vcard, output)) {
+                    Log.e(TAG, "Checking vcard selector for call log");
+                    continue;
                 }
+                if (V) {
+                    Log.v(TAG, "Vcard Entry:");
+                    Log.v(TAG, vcard);
+                }
+
+                buffer.onEntryCreated(output);
             }
             if (needSendBody != NEED_SEND_BODY)
                 return pbSize;
@@ -1285,28 +1917,22 @@ public class BluetoothPbapVcardManager {
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
-    public String StripTelephoneNumber (String vCard){
-        String attr [] = vCard.split(System.getProperty("line.separator"));
-        String Vcard = "";
-            for (int i=0; i < attr.length; i++) {
-                if(attr[i].startsWith("TEL")) {
-                    attr[i] = attr[i].replace("(", "");
-                    attr[i] = attr[i].replace(")", "");
-                    attr[i] = attr[i].replace("-", "");
-                    attr[i] = attr[i].replace(" ", "");
-                }
-            }
-
-            for (int i=0; i < attr.length; i++) {
-                if(!attr[i].equals("")){
-                    Vcard = Vcard.concat(attr[i] + "\n");
-                }
+    /* Name of a vCard for a listing, as the text from the last ':' of its N property */
+    private static String getVcardName(String vcard) {
+        String name = "";
+        int lineStart = 0;
+        while (lineStart < vcard.length()) {
+            int lineEnd = vcard.indexOf('\n', lineStart);
+            if (lineEnd < 0) lineEnd = vcard.length();
+            if (vcard.startsWith("N:", lineStart)) {
+                name = vcard.substring(vcard.lastIndexOf(':', lineEnd - 1), lineEnd);
             }
-        if (V) Log.v(TAG, "Vcard with stripped telephone no.: " + Vcard);
-        return Vcard;
+            lineStart = lineEnd + 1;
+        }
+        Log.d(TAG, "returning name: " + name);
+        return name;
     }
 
-
     /**
      * Handler to emit vCards to PCE.
      */
@@ -1355,207 +1981,33 @@ public class BluetoothPbapVcardManager {
             return write(vcard);
         }
 
-        public void onTerminate() {
-            if (!BluetoothPbapObexServer.closeStream(outputStream, operation)) {
-                if (V) Log.v(TAG, "CloseStream failed!");
-            } else {
-                if (V) Log.v(TAG, "CloseStream ok!");
-            }
-        }
-    }
-
-    public static class VCardFilter {
-        private static enum FilterBit {
-            //       bit  property                  onlyCheckV21  excludeForV21
-            FN (       1, "FN",                       true,         false),
-            PHOTO(     3, "PHOTO",                    false,        false),
-            BDAY(      4, "BDAY",                     false,        false),
-            ADR(       5, "ADR",                      false,        false),
-            EMAIL(     8, "EMAIL",                    false,        false),
-            TITLE(    12, "TITLE",                    false,        false),
-            ORG(      16, "ORG",                      false,        false),
-            NOTE(     17, "NOTE",                     false,        false),
-            URL(      20, "URL",                      false,        false),
-            NICKNAME( 23, "NICKNAME",                 false,        true),
-            DATETIME( 28, "X-IRMC-CALL-DATETIME",     false,        false);
-
-            public final int pos;
-            public final String prop;
-            public final boolean onlyCheckV21;
-            public final boolean excludeForV21;
-
-            FilterBit(int pos, String prop, boolean onlyCheckV21, boolean excludeForV21) {
-                this.pos = pos;
-                this.prop = prop;
-                this.onlyCheckV21 = onlyCheckV21;
-                this.excludeForV21 = excludeForV21;
-            }
-        }
-
-        private static final String SEPARATOR = System.getProperty("line.separator");
-        private final byte[] filter;
-
-        //This function returns true if the attributes needs to be included in the filtered vcard.
-        private boolean isFilteredIn(FilterBit bit, boolean vCardType21) {
-            final int offset = (bit.pos / 8) + 1;
-            final int bit_pos = bit.pos % 8;
-            if (!vCardType21 && bit.onlyCheckV21) return true;
-            if (vCardType21 && bit.excludeForV21) return false;
-            if (filter == null || offset >= filter.length) return true;
-            return ((filter[filter.length - offset] >> bit_pos) & 0x01) != 0;
-        }
-
-        VCardFilter(byte[] filter) {
-            this.filter = filter;
-        }
-
-        public boolean isPhotoEnabled() {
-            return isFilteredIn(FilterBit.PHOTO, false);
-        }
-
-        public String apply(String vCard, boolean vCardType21){
-            if (filter == null) return vCard;
-            String lines[] = vCard.split(SEPARATOR);
-            StringBuilder filteredVCard = new StringBuilder();
-            boolean filteredIn = false;
-
-            for (String line : lines) {
-                // Check whether the current property is changing (ignoring multi-line properties)
-                // and determine if the current property is filtered in.
-                if (!Character.isWhitespace(line.charAt(0)) && !line.startsWith("=")) {
-                    String currentProp = line.split("[;:]")[0];
-                    filteredIn = true;
-
-                    for (FilterBit bit : FilterBit.values()) {
-                        if (bit.prop.equals(currentProp)) {
-                            filteredIn = isFilteredIn(bit, vCardType21);
-                            break;
-                        }
-                    }
-
-                    // Since PBAP does not have filter bits for IM and SIP,
-                    // exclude them by default. Easiest way is to exclude all
-                    // X- fields, except date time....
-                    if (currentProp.startsWith("X-")) {
-                        filteredIn = false;
-                        if (currentProp.equals("X-IRMC-CALL-DATETIME")) {
-                            filteredIn = true;
-                        }
-                    }
-                }
-
-                // Build filtered vCard
-                if (filteredIn) {
-                    filteredVCard.append(line + SEPARATOR);
-                }
-            }
-
-            return filteredVCard.toString();
-        }
-    }
-
-    public static class PropertySelector {
-        private static enum PropertyMask{
-            //               bit    property
-            VERSION(   0, "VERSION"),
-            FN (       1, "FN"),
-            NAME(      2, "N"),
-            PHOTO(     3, "PHOTO"),
-            BDAY(      4, "BDAY"),
-            ADR(       5, "ADR"),
-            LABEL(     6, "LABEL"),
-            TEL(       7, "TEL"),
-            EMAIL(     8, "EMAIL"),
-            TITLE(    12, "TITLE"),
-            ORG(      16, "ORG"),
-            NOTE(     17, "NOTE"),
-            URL(      20, "URL"),
-            NICKNAME( 23, "NICKNAME"),
-            DATETIME( 28, "DATETIME");
-
-            public final int pos;
-            public final String prop;
-
-            PropertyMask(int pos, String prop) {
-                this.pos = pos;
-                this.prop = prop;
-            }
-        }
-
-        private static final String SEPARATOR = System.getProperty("line.separator");
-        private final byte[] selector;
-
-        PropertySelector(byte[] selector) {
-            this.selector = selector;
-        }
-
-        private boolean checkbit ( int attr_bit, byte[] selector){
-        int selectorlen = selector.length;
-            if( ((selector[selectorlen -1 -((int)attr_bit/8)] >> (attr_bit%8)) & 0x01) == 0) {
-                return false;
-            }
-            return true;
-        }
-
-        private boolean checkprop(String vcard, String prop){
-            String lines[] = vcard.split(SEPARATOR);
-            boolean isPresent = false;
-            for (String line : lines) {
-                if (!Character.isWhitespace(line.charAt(0)) && !line.startsWith("=")) {
-                    String currentProp = line.split("[;:]")[0];
-                    if (prop.equals(currentProp)) {
-                        Log.e(TAG, "bit.prop.equals current prop :" + prop);
-                        isPresent = true;
-                        return isPresent;
-                    }
-                }
+        public boolean onEntryCreated(BluetoothPbapVcardFilter.Output vcard) {
+            try {
+                vcard.writeTo(outputStream);
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "write outputstrem failed" + e.toString());
             }
-
-            return isPresent;
+            return false;
         }
 
-        public boolean CheckVcardSelector(String vcard, String vcardselectorop){
-
-            boolean selectedIn = true;
-
-            for (PropertyMask bit : PropertyMask.values()) {
-                if (checkbit(bit.pos, selector)){
-                    Log.e(TAG, "checking for prop :" + bit.prop);
-                    if(vcardselectorop.equals("0")){
-                        if (checkprop(vcard, bit.prop)){
-                            Log.e(TAG, "bit.prop.equals current prop :" + bit.prop);
-                            selectedIn = true;
-                            break;
-                        } else {
-                            selectedIn = false;
-                        }
-                    } else if(vcardselectorop.equals("1")){
-                        if (!checkprop(vcard, bit.prop)){
-                            Log.e(TAG, "bit.prop.notequals current prop" + bit.prop);
-                            selectedIn = false;
-                            return selectedIn;
-                        } else {
-                            selectedIn = true;
-                        }
-                    }
-                }
+        public boolean onEntryCreated(byte[] vcards) {
+            try {
+                outputStream.write(vcards);
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "write outputstrem failed" + e.toString());
             }
-            return selectedIn;
+            return false;
         }
 
-        public String getName(String vcard){
-            String lines[] = vcard.split(SEPARATOR);
-            String name = "";
-            for (String line : lines) {
-                if (!Character.isWhitespace(line.charAt(0)) && !line.startsWith("=")) {
-                    if(line.startsWith("N:"))
-                        name = line.substring(line.lastIndexOf(':'), line.length());
-                }
+        public void onTerminate() {
+            if (!BluetoothPbapObexServer.closeStream(outputStream, operation)) {
+                if (V) Log.v(TAG, "CloseStream failed!");
+            } else {
+                if (V) Log.v(TAG, "CloseStream ok!");
             }
-            Log.d(TAG, "returning name: " + name);
-            return name;
         }
-
     }
 
     private static final Uri getPhoneLookupFilterUri() {
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Composes the vCards of a phonebook pull on a small worker pool.
+ *
+ * The contact ids are split into chunks which are composed, filtered and
+ * encoded independently by the workers, each with its own composer. The
+ * calling thread takes the results in chunk order from a bounded window of
+ * pending chunks, which acts as the reorder buffer, and hands them to the
+ * {@link Sink}, i.e. the OBEX operation, so the output order matches the
+ * order of the ids. Pulls of a single chunk are composed on the calling
+ * thread.
+ */
+public class BluetoothPbapVcardPipeline {
+    private static final String TAG = "BluetoothPbapVcardPipeline";
+    private static final boolean V = Log.isLoggable(BluetoothPbapService.LOG_TAG, Log.VERBOSE);
+
+    public static final int DEFAULT_CHUNK_SIZE = 32;
+
+    /* Pending chunks per worker, bounds the memory held by the reorder buffer */
+    private static final int CHUNKS_PER_WORKER = 2;
+
+    /**
+     * Composes the vCards of a chunk of contacts. Called concurrently from
+     * the workers, implementations must not share a composer between calls.
+     */
+    public interface VcardSource {
+        /**
+         * Append the encoded vCards of the contacts, in the order of
+         * {@code contactIds}, to the output.
+         * @return the number of vCards appended, or -1 if a contact could not
+         *         be composed
+         */
+        int compose(long[] contactIds, BluetoothPbapVcardFilter.Output out);
+    }
+
+    /**
+     * Receives the encoded vCards in order, on the calling thread.
+     */
+    public interface Sink {
+        /**
+         * @param vcards the encoded vCards of a chunk
+         * @param ends the end offset of each vCard in vcards
+         * @return false to stop the pull, e.g. if it was aborted or the
+         *         write failed
+         */
+        boolean onChunk(byte[] vcards, int[] ends);
+    }
+
+    private final VcardSource mSource;
+    private final int mWorkers;
+    private final int mChunkSize;
+
+    private long mFirstChunkMs = -1;
+    private long mTotalMs;
+    private int mComposed;
+
+    public BluetoothPbapVcardPipeline(VcardSource source, int workers, int chunkSize) {
+        mSource = source;
+        mWorkers = Math.max(1, workers);
+        mChunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * @return the number of workers to use on this device
+     */
+    public static int getDefaultWorkerCount() {
+        return Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * Compose the vCards of the contacts and pass them to the sink.
+     * @return true if all contacts were composed and accepted by the sink
+     */
+    public boolean run(long[] contactIds, Sink sink) {
+        long start = SystemClock.elapsedRealtime();
+        mFirstChunkMs = -1;
+        mComposed = 0;
+        try {
+            if (contactIds.length <= mChunkSize || mWorkers == 1) {
+                return runSequential(contactIds, sink, start);
+            }
+            return runParallel(contactIds, sink, start);
+        } finally {
+            mTotalMs = SystemClock.elapsedRealtime() - start;
+            if (V) Log.v(TAG, "Composed " + mComposed + " of " + contactIds.length
+                    + " vCards in " + mTotalMs + " ms, first chunk after "
+                    + mFirstChunkMs + " ms");
+        }
+    }
+
+    /**
+     * @return the time from the start of the last run to its first chunk
+     *         being passed to the sink, -1 if none was
+     */
+    public long getFirstChunkTimeMs() {
+        return mFirstChunkMs;
+    }
+
+    /**
+     * @return the duration of the last run
+     */
+    public long getTotalTimeMs() {
+        return mTotalMs;
+    }
+
+    /**
+     * @return the number of vCards passed to the sink in the last run
+     */
+    public int getComposedCount() {
+        return mComposed;
+    }
+
+    private boolean runSequential(long[] contactIds, Sink sink, long start) {
+        for (int offset = 0; offset < contactIds.length; offset += mChunkSize) {
+            Chunk chunk = new ComposeTask(contactIds, offset).call();
+            if (!deliver(chunk, sink, start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean runParallel(long[] contactIds, Sink sink, long start) {
+        ExecutorService executor = Executors.newFixedThreadPool(mWorkers);
+        ArrayDeque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+        int window = mWorkers * CHUNKS_PER_WORKER;
+        int next = 0;
+        try {
+            while (next < contactIds.length || !pending.isEmpty()) {
+                while (next < contactIds.length && pending.size() < window) {
+                    pending.add(executor.submit(new ComposeTask(contactIds, next)));
+                    next += mChunkSize;
+                }
+                Chunk chunk;
+                try {
+                    chunk = pending.poll().get();
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Composing vCards failed", e.getCause());
+                    return false;
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "Interrupted while composing vCards");
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                if (!deliver(chunk, sink, start)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            for (Future<Chunk> future : pending) {
+                future.cancel(false);
+            }
+            executor.shutdown();
+        }
+    }
+
+    private boolean deliver(Chunk chunk, Sink sink, long start) {
+        if (chunk.data == null) {
+            Log.e(TAG, "Failed to compose contacts");
+            return false;
+        }
+        if (!sink.onChunk(chunk.data, chunk.ends)) {
+            return false;
+        }
+        if (mFirstChunkMs < 0) {
+            mFirstChunkMs = SystemClock.elapsedRealtime() - start;
+        }
+        mComposed += chunk.ends.length;
+        return true;
+    }
+
+    /* Initial output capacity per contact of a chunk */
+    private static final int BYTES_PER_CONTACT = 512;
+
+    private static class Chunk {
+        final byte[] data;
+        final int[] ends;
+
+        Chunk(byte[] data, int[] ends) {
+            this.data = data;
+            this.ends = ends;
+        }
+    }
+
+    private class ComposeTask implements Callable<Chunk> {
+        private final long[] mIds;
+
+        ComposeTask(long[] contactIds, int offset) {
+            int count = Math.min(mChunkSize, contactIds.length - offset);
+            mIds = new long[count];
+            System.arraycopy(contactIds, offset, mIds, 0, count);
+        }
+
+        @Override
+        public Chunk call() {
+            BluetoothPbapVcardFilter.Output out =
+                    new BluetoothPbapVcardFilter.Output(mIds.length * BYTES_PER_CONTACT);
+            if (mSource.compose(mIds, out) < 0) {
+                return new Chunk(null, null);
+            }
+            return new Chunk(out.toByteArray(), out.getEntryEnds());
+        }
+    }
+}
@@ -26,15 +26,23 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.util.Log;
 import com.android.bluetooth.OolConnManager;
 
+import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AbstractionLayer;
 import com.android.bluetooth.btservice.AdapterService;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class SdpManager {
 
@@ -78,12 +86,25 @@ public class SdpManager {
 
 
     /* Variables to keep track of ongoing and queued search requests.
-     * mTrackerLock must be held, when using/changing sSdpSearchTracker
-     * and mSearchInProgress. */
+     * mTrackerLock must be held, when using/changing sSdpSearchTracker,
+     * sSdpResultCache and the statistics. */
     static SdpSearchTracker sSdpSearchTracker;
-    static boolean mSearchInProgress = false;
+    static SdpResultCache sSdpResultCache;
     static Object mTrackerLock = new Object();
 
+    /* The number of searches to different devices allowed to run at the same time */
+    private static int sMaxParallelSearches = 1;
+
+    /* How long, and for how many searches, successful results are reused */
+    private static final int SDP_CACHE_TTL = 30000;
+    private static final int SDP_CACHE_SIZE = 32;
+
+    /* Statistics */
+    private static long sSearchesStarted = 0;
+    private static long sSearchesMerged = 0;
+    private static long sCacheHits = 0;
+    private static int sMaxQueueDepth = 0;
+
     /* The timeout to wait for reply from native. Should never fire. */
     private static final int SDP_INTENT_DELAY = 6000;
     private static final int MESSAGE_SDP_INTENT = 2;
@@ -122,20 +143,85 @@ public class SdpManager {
     private native boolean sdpRemoveSdpRecordNative(int record_id);
 
 
+    /* Key identifying a search: the device address and the UUID searched for.
+     * Built directly from the bytes reported by native to avoid string conversions. */
+    static final class SearchKey {
+        private final long mAddress;
+        private final long mUuidMsb;
+        private final long mUuidLsb;
+
+        SearchKey(byte[] address, byte[] uuid) {
+            long addr = 0;
+            for (int i = 0; i < address.length; i++) {
+                addr = (addr << 8) | (address[i] & 0xFF);
+            }
+            long msb = 0;
+            long lsb = 0;
+            for (int i = 0; i < 8; i++) {
+                msb = (msb << 8) | (uuid[i] & 0xFF);
+                lsb = (lsb << 8) | (uuid[i + 8] & 0xFF);
+            }
+            mAddress = addr;
+            mUuidMsb = msb;
+            mUuidLsb = lsb;
+        }
+
+        SearchKey(BluetoothDevice device, ParcelUuid uuid) {
+            byte[] address = Utils.getBytesFromAddress(device.getAddress());
+            long addr = 0;
+            for (int i = 0; i < address.length; i++) {
+                addr = (addr << 8) | (address[i] & 0xFF);
+            }
+            mAddress = addr;
+            mUuidMsb = uuid.getUuid().getMostSignificantBits();
+            mUuidLsb = uuid.getUuid().getLeastSignificantBits();
+        }
+
+        long getAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SearchKey)) {
+                return false;
+            }
+            SearchKey other = (SearchKey) o;
+            return mAddress == other.mAddress && mUuidMsb == other.mUuidMsb
+                    && mUuidLsb == other.mUuidLsb;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = mAddress * 31 + mUuidMsb;
+            h = h * 31 + mUuidLsb;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
     /* Inner class used for wrapping sdp search instance data */
     private class SdpSearchInstance {
+        private final SearchKey mKey;
         private final BluetoothDevice mDevice;
         private final ParcelUuid mUuid;
         private int mStatus = 0;
         private boolean mSearching;
+        /* Records received so far, cached once the search completes successfully */
+        private final ArrayList<Parcelable> mRecords = new ArrayList<Parcelable>(1);
+        private boolean mCacheable = true;
         /* TODO: If we change the API to use another mechanism than intents for
          *       delivering the results, this would be the place to keep a list
          *       of the objects to deliver the results to. */
-        public SdpSearchInstance(int status, BluetoothDevice device, ParcelUuid uuid){
+        public SdpSearchInstance(int status, SearchKey key, BluetoothDevice device,
+                ParcelUuid uuid) {
+            this.mKey = key;
             this.mDevice = device;
             this.mUuid = uuid;
             this.mStatus = status;
-            mSearching = true;
+            mSearching = false;
+        }
+        public SearchKey getKey() {
+            return mKey;
         }
         public BluetoothDevice getDevice() {
             return mDevice;
@@ -149,6 +235,21 @@ public class SdpManager {
 
         public void setStatus(int status) {
             this.mStatus = status;
+            if (status != AbstractionLayer.BT_STATUS_SUCCESS) {
+                mCacheable = false;
+            }
+        }
+
+        void addRecord(Parcelable record) {
+            if (record == null) {
+                mCacheable = false;
+            } else {
+                mRecords.add(record);
+            }
+        }
+
+        boolean isCacheable() {
+            return mCacheable && !mRecords.isEmpty();
         }
 
         public void startSearch() {
@@ -169,59 +270,106 @@ public class SdpManager {
     }
 
 
-    /* We wrap the ArrayList class to decorate with functionality to
-     * find an instance based on UUID AND device address.
-     * As we use a mix of byte[] and object instances, this is more
-     * efficient than implementing comparable. */
+    /* Keeps the queued and running searches, indexed by SearchKey.
+     * Only one search runs per device at a time, and at most
+     * sMaxParallelSearches devices are searched at the same time.
+     * Queued searches are started in the order they were requested. */
     class SdpSearchTracker {
-        private final ArrayList<SdpSearchInstance> list = new ArrayList<SdpSearchInstance>();
+        private final HashMap<SearchKey, SdpSearchInstance> mSearches =
+                new HashMap<SearchKey, SdpSearchInstance>();
+        private final ArrayDeque<SdpSearchInstance> mQueue = new ArrayDeque<SdpSearchInstance>();
+        private final HashSet<Long> mBusyDevices = new HashSet<Long>();
 
         void clear() {
-            list.clear();
+            mSearches.clear();
+            mQueue.clear();
+            mBusyDevices.clear();
         }
 
-        boolean add(SdpSearchInstance inst){
-            return list.add(inst);
+        void add(SdpSearchInstance inst) {
+            mSearches.put(inst.getKey(), inst);
+            mQueue.add(inst);
         }
 
-        boolean remove(SdpSearchInstance inst) {
-            return list.remove(inst);
+        void remove(SdpSearchInstance inst) {
+            if (mSearches.remove(inst.getKey()) == null) {
+                return;
+            }
+            if (!mQueue.remove(inst)) {
+                mBusyDevices.remove(inst.getKey().getAddress());
+            }
         }
 
-        SdpSearchInstance getNext() {
-            if(list.size() > 0) {
-                return list.get(0);
+        /* Take the first queued search that may start now, and mark its device busy */
+        SdpSearchInstance getNext(int maxParallel) {
+            if (mBusyDevices.size() >= maxParallel) {
+                return null;
+            }
+            Iterator<SdpSearchInstance> it = mQueue.iterator();
+            while (it.hasNext()) {
+                SdpSearchInstance inst = it.next();
+                if (mBusyDevices.add(inst.getKey().getAddress())) {
+                    it.remove();
+                    return inst;
+                }
             }
             return null;
         }
 
         SdpSearchInstance getSearchInstance(byte[] address, byte[] uuidBytes) {
-            String addressString = Utils.getAddressStringFromByte(address);
-            ParcelUuid uuid = Utils.byteArrayToUuid(uuidBytes)[0];
-            for (SdpSearchInstance inst : list) {
-                if (inst.getDevice().getAddress().equals(addressString)
-                        && inst.getUuid().equals(uuid)) {
-                    return inst;
-                }
+            return mSearches.get(new SearchKey(address, uuidBytes));
+        }
+
+        SdpSearchInstance getSearchInstance(SearchKey key) {
+            return mSearches.get(key);
+        }
+
+        int getQueued() {
+            return mQueue.size();
+        }
+
+        int getRunning() {
+            return mBusyDevices.size();
+        }
+    }
+
+    /* Results of recent successful searches. Entries expire after SDP_CACHE_TTL,
+     * and the least recently stored entry is dropped when the cache is full. */
+    static class SdpResultCache extends LinkedHashMap<SearchKey, SdpResultCache.Entry> {
+        static class Entry {
+            final ArrayList<Parcelable> mRecords;
+            final long mTimestamp;
+
+            Entry(ArrayList<Parcelable> records, long timestamp) {
+                mRecords = records;
+                mTimestamp = timestamp;
             }
-            return null;
         }
 
-        boolean isSearching(BluetoothDevice device, ParcelUuid uuid) {
-            String addressString = device.getAddress();
-            for (SdpSearchInstance inst : list) {
-                if (inst.getDevice().getAddress().equals(addressString)
-                        && inst.getUuid().equals(uuid)) {
-                    return inst.isSearching();
-                }
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SearchKey, Entry> eldest) {
+            return size() > SDP_CACHE_SIZE;
+        }
+
+        ArrayList<Parcelable> getRecords(SearchKey key, long now) {
+            Entry entry = get(key);
+            if (entry == null) {
+                return null;
             }
-            return false;
+            if (now - entry.mTimestamp > SDP_CACHE_TTL) {
+                remove(key);
+                return null;
+            }
+            return entry.mRecords;
         }
     }
 
 
     private SdpManager(AdapterService adapterService) {
         sSdpSearchTracker = new SdpSearchTracker();
+        sSdpResultCache = new SdpResultCache();
+        sMaxParallelSearches = Math.max(1, adapterService.getResources().getInteger(
+                R.integer.config_bluetooth_sdp_max_parallel_searches));
 
         /* This is only needed until intents are no longer used */
         sAdapterService = adapterService;
@@ -243,6 +391,7 @@ public class SdpManager {
         if (sSdpSearchTracker !=null) {
             synchronized(mTrackerLock) {
                 sSdpSearchTracker.clear();
+                sSdpResultCache.clear();
             }
         }
 
@@ -431,39 +580,55 @@ public class SdpManager {
             Log.e(TAG, "Native not initialized!");
             return;
         }
+        ArrayList<Parcelable> records;
         synchronized (mTrackerLock) {
-            if (sSdpSearchTracker.isSearching(device, uuid)) {
-                /* Search already in progress */
+            SearchKey key = new SearchKey(device, uuid);
+            if (sSdpSearchTracker.getSearchInstance(key) != null) {
+                /* Search already queued or in progress, the result is broadcast to all */
+                sSearchesMerged++;
                 return;
             }
 
-            SdpSearchInstance inst = new SdpSearchInstance(0, device, uuid);
-            sSdpSearchTracker.add(inst); // Queue the request
+            records = sSdpResultCache.getRecords(key, SystemClock.elapsedRealtime());
+            if (records == null) {
+                SdpSearchInstance inst = new SdpSearchInstance(0, key, device, uuid);
+                sSdpSearchTracker.add(inst); // Queue the request
+                if (sSdpSearchTracker.getQueued() > sMaxQueueDepth) {
+                    sMaxQueueDepth = sSdpSearchTracker.getQueued();
+                }
 
-            startSearch(); // Start search if not busy
+                startSearch(); // Start search if not busy
+                return;
+            }
+            records = new ArrayList<Parcelable>(records);
+            sCacheHits++;
         }
 
+        /* Replay the cached result like a completed search */
+        if(D) Log.d(TAG, "Using cached result for UUID: " + uuid);
+        for (int i = 0; i < records.size(); i++) {
+            Parcelable record = records.get(i);
+            sendSdpIntent(device, uuid, AbstractionLayer.BT_STATUS_SUCCESS, record);
+            if (record instanceof SdpOppOpsRecord) {
+                OolConnManager.saveOppSdpRecord((SdpOppOpsRecord) record, device);
+            }
+        }
     }
 
     /* Caller must hold the mTrackerLock */
     private void startSearch() {
-
-        SdpSearchInstance inst = sSdpSearchTracker.getNext();
-
-        if((inst != null) && (mSearchInProgress == false)) {
+        SdpSearchInstance inst;
+        while ((inst = sSdpSearchTracker.getNext(sMaxParallelSearches)) != null) {
             if(D) Log.d(TAG, "Starting search for UUID: "+ inst.getUuid());
-            mSearchInProgress = true;
+            sSearchesStarted++;
 
             inst.startSearch(); // Trigger timeout message
 
             sdpSearchNative(Utils.getBytesFromAddress(inst.getDevice().getAddress()),
                                             Utils.uuidToByteArray(inst.getUuid()));
-        } // Else queue is empty.
-        else {
-            if(D) Log.d(TAG, "startSearch(): nextInst = " + inst +
-                    " mSearchInProgress = " + mSearchInProgress
-                    + " - search busy or queue empty.");
         }
+        if(V) Log.v(TAG, "startSearch(): running = " + sSdpSearchTracker.getRunning()
+                + " queued = " + sSdpSearchTracker.getQueued());
     }
 
     /* Caller must hold the mTrackerLock */
@@ -471,24 +636,45 @@ public class SdpManager {
             Parcelable record, boolean moreResults) {
 
         inst.stopSearch();
+        inst.addRecord(record);
+
+        sendSdpIntent(inst.getDevice(), inst.getUuid(), inst.getStatus(), record);
 
+        if(moreResults == false) {
+            if (inst.isCacheable()) {
+                sSdpResultCache.put(inst.getKey(), new SdpResultCache.Entry(
+                        inst.mRecords, SystemClock.elapsedRealtime()));
+            }
+            //Remove the outstanding UUID request
+            sSdpSearchTracker.remove(inst);
+            startSearch();
+        }
+    }
+
+    private void sendSdpIntent(BluetoothDevice device, ParcelUuid uuid, int status,
+            Parcelable record) {
         Intent intent = new Intent(BluetoothDevice.ACTION_SDP_RECORD);
 
-        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, inst.getDevice());
-        intent.putExtra(BluetoothDevice.EXTRA_SDP_SEARCH_STATUS, inst.getStatus());
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+        intent.putExtra(BluetoothDevice.EXTRA_SDP_SEARCH_STATUS, status);
         if (record != null)  intent.putExtra(BluetoothDevice.EXTRA_SDP_RECORD, record);
-        intent.putExtra(BluetoothDevice.EXTRA_UUID, inst.getUuid());
+        intent.putExtra(BluetoothDevice.EXTRA_UUID, uuid);
         /* TODO:  BLUETOOTH_ADMIN_PERM was private... change to callback interface.
          * Keep in mind that the MAP client needs to use this as well,
          * hence to make it call-backs, the MAP client profile needs to be
          * part of the Bluetooth APK. */
         sAdapterService.sendBroadcast(intent, AdapterService.BLUETOOTH_ADMIN_PERM);
+    }
 
-        if(moreResults == false) {
-            //Remove the outstanding UUID request
-            sSdpSearchTracker.remove(inst);
-            mSearchInProgress = false;
-            startSearch();
+    public void dump(StringBuilder sb) {
+        synchronized (mTrackerLock) {
+            sb.append("SdpManager:\n");
+            sb.append("  searches running: " + sSdpSearchTracker.getRunning() + " (max "
+                    + sMaxParallelSearches + "), queued: " + sSdpSearchTracker.getQueued()
+                    + ", max queued: " + sMaxQueueDepth + "\n");
+            sb.append("  searches started: " + sSearchesStarted + ", merged: " + sSearchesMerged
+                    + ", cache hits: " + sCacheHits + ", cached: " + sSdpResultCache.size()
+                    + "\n");
         }
     }
 
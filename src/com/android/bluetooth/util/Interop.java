@@ -16,35 +16,42 @@
 
 package com.android.bluetooth.util;
 
-import java.util.ArrayList;
-import java.util.List;
+import android.bluetooth.BluetoothProfile;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Centralized Bluetooth Interoperability workaround utilities and database.
  * This is the Java version. An analagous native version can be found
  * in /system/bt/devices/include/interop_database.h.
+ *
+ * Besides the built-in entries below, rules are read from
+ * {@link #RULES_FILE} when present (see {@link InteropDatabase#load}), so
+ * workarounds can be added to a device without a software update.
  */
 public class Interop {
+  private static final String TAG = "Interop";
 
   /**
-   * Simple interop entry consisting of a workarond id (see below)
-   * and a (partial or complete) Bluetooth device address string
-   * to match against.
+   * Optional on-device file with additional interop rules.
    */
-  private static class Entry {
-    String address;
-    int workaround_id;
+  public static final String RULES_FILE = "/data/misc/bluedroid/interop_database_java.conf";
 
-    public Entry(int workaround_id, String address) {
-      this.workaround_id = workaround_id;
-      this.address = address;
-    }
-  }
+  /**
+   * The compiled "database" of interop entries.
+   */
+  private static InteropDatabase database = null;
 
   /**
-   * The actual "database" of interop entries.
+   * Number of positive matches per workaround id.
    */
-  private static List<Entry> entries = null;
+  private static final AtomicLongArray hits = new AtomicLongArray(32);
 
   /**
    * Workaround ID for deivces which do not accept non-ASCII
@@ -52,18 +59,63 @@ public class Interop {
    */
   public static final int INTEROP_MAP_ASCIIONLY = 1;
 
+  /**
+   * Workaround names as used in the rules file, and the profile each
+   * workaround applies to.
+   */
+  private static final HashMap<String, Integer> WORKAROUND_NAMES = new HashMap<String, Integer>();
+  private static final int[] WORKAROUND_PROFILES = new int[32];
+
+  static {
+    addWorkaround("INTEROP_MAP_ASCIIONLY", INTEROP_MAP_ASCIIONLY, BluetoothProfile.MAP);
+  }
+
+  private static void addWorkaround(String name, int workaround_id, int profile) {
+    WORKAROUND_NAMES.put(name, workaround_id);
+    WORKAROUND_PROFILES[workaround_id] = profile;
+  }
+
   /**
    * Initializes the interop datbase with the relevant workaround
    * entries.
    * When adding entries, please provide a description for each
    * device as to what problem the workaround addresses.
    */
-  private static void lazyInitInteropDatabase() {
-    if (entries != null) return;
-    entries = new ArrayList<Entry>();
+  private static synchronized InteropDatabase lazyInitInteropDatabase() {
+    if (database != null) return database;
+    InteropDatabase db = new InteropDatabase();
 
     /** Mercedes Benz NTG 4.5 does not handle non-ASCII characters in SMS */
-    entries.add(new Entry(INTEROP_MAP_ASCIIONLY, "00:26:e8"));
+    db.addAddress(INTEROP_MAP_ASCIIONLY, "00:26:e8");
+
+    File file = new File(RULES_FILE);
+    if (file.exists()) {
+      BufferedReader reader = null;
+      try {
+        reader = new BufferedReader(new FileReader(file));
+        int added = db.load(reader, WORKAROUND_NAMES);
+        Log.i(TAG, "Loaded " + added + " interop rules from " + RULES_FILE);
+      } catch (IOException e) {
+        Log.e(TAG, "Unable to read " + RULES_FILE, e);
+      } finally {
+        if (reader != null) {
+          try {
+            reader.close();
+          } catch (IOException e) {
+            // Ignore
+          }
+        }
+      }
+    }
+
+    database = db;
+    return database;
+  }
+
+  private static boolean countHit(int workaround_id, int mask) {
+    if ((mask & InteropDatabase.getMask(workaround_id)) == 0) return false;
+    hits.incrementAndGet(workaround_id);
+    return true;
   }
 
   /**
@@ -74,14 +126,45 @@ public class Interop {
   public static boolean matchByAddress(int workaround_id, String address) {
     if (address == null || address.isEmpty()) return false;
 
-    lazyInitInteropDatabase();
-    for (Entry entry : entries) {
-      if (entry.workaround_id == workaround_id &&
-          entry.address.startsWith(address.toLowerCase())) {
-        return true;
+    return countHit(workaround_id, lazyInitInteropDatabase().matchAddress(address));
+  }
+
+  /**
+   * Checks whether a device with the name |name| is a match for the
+   * workaround identified by |workaround_id|.
+   */
+  public static boolean matchByName(int workaround_id, String name) {
+    if (name == null || name.isEmpty()) return false;
+
+    return countHit(workaround_id, lazyInitInteropDatabase().matchName(name));
+  }
+
+  /**
+   * Returns all workarounds for |profile| (see {@link BluetoothProfile})
+   * that apply to the device identified by |address| and |name|, as a
+   * bit mask with bit n set for workaround id n. Either of |address| and
+   * |name| may be null. Intended to be queried once, e.g. on connection,
+   * instead of once per workaround.
+   */
+  public static int matchByProfile(int profile, String address, String name) {
+    InteropDatabase db = lazyInitInteropDatabase();
+    int mask = db.matchAddress(address) | db.matchName(name);
+    int result = 0;
+    for (int id = 1; mask != 0 && id < WORKAROUND_PROFILES.length; id++) {
+      int bit = InteropDatabase.getMask(id);
+      if ((mask & bit) != 0 && WORKAROUND_PROFILES[id] == profile) {
+        hits.incrementAndGet(id);
+        result |= bit;
       }
+      mask &= ~bit;
     }
+    return result;
+  }
 
-    return false;
+  public static void dump(StringBuilder sb) {
+    sb.append("Interop database: " + lazyInitInteropDatabase().size() + " rules\n");
+    for (String name : WORKAROUND_NAMES.keySet()) {
+      sb.append("  " + name + " hits: " + hits.get(WORKAROUND_NAMES.get(name)) + "\n");
+    }
   }
 }
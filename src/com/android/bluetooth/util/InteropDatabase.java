@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.util;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Compiled set of interop rules.
+ *
+ * Address rules are stored in a trie with one level per address nibble.
+ * Every node holds the bit mask of the workarounds whose address prefix
+ * ends at that node, so a lookup visits at most 12 nodes no matter how
+ * many rules exist. Name rules match the start of the remote device name.
+ *
+ * Workaround ids are used as bit positions and must be in the range 1-31.
+ * The database is filled once and only read afterwards; it is not
+ * synchronized.
+ */
+public class InteropDatabase {
+  private static final String TAG = "InteropDatabase";
+
+  /** The rule file format version understood by {@link #load}. */
+  public static final int VERSION = 1;
+
+  private static final int ADDRESS_NIBBLES = 12;
+
+  private static class Node {
+    final Node[] children = new Node[16];
+    int workarounds;
+  }
+
+  private static class NameRule {
+    final String prefix;
+    final int workaround_mask;
+
+    NameRule(String prefix, int workaround_mask) {
+      this.prefix = prefix;
+      this.workaround_mask = workaround_mask;
+    }
+  }
+
+  private final Node root = new Node();
+  private final ArrayList<NameRule> nameRules = new ArrayList<NameRule>();
+  private int ruleCount = 0;
+
+  /**
+   * Returns the bit for |workaround_id| in the masks returned by the
+   * match functions.
+   */
+  public static int getMask(int workaround_id) {
+    if (workaround_id < 1 || workaround_id > 31) {
+      throw new IllegalArgumentException("Invalid workaround id " + workaround_id);
+    }
+    return 1 << workaround_id;
+  }
+
+  /**
+   * Adds a rule matching all devices whose address starts with |prefix|,
+   * e.g. "00:26:e8". Case and separators are ignored.
+   */
+  public void addAddress(int workaround_id, String prefix) {
+    int mask = getMask(workaround_id);
+    Node node = root;
+    int nibbles = 0;
+    for (int i = 0; i < prefix.length(); i++) {
+      char c = prefix.charAt(i);
+      if (c == ':') continue;
+      int digit = Character.digit(c, 16);
+      if (digit < 0 || nibbles == ADDRESS_NIBBLES) {
+        throw new IllegalArgumentException("Invalid address prefix " + prefix);
+      }
+      if (node.children[digit] == null) {
+        node.children[digit] = new Node();
+      }
+      node = node.children[digit];
+      nibbles++;
+    }
+    if (nibbles == 0) {
+      throw new IllegalArgumentException("Empty address prefix");
+    }
+    node.workarounds |= mask;
+    ruleCount++;
+  }
+
+  /**
+   * Adds a rule matching all devices whose name starts with |prefix|.
+   */
+  public void addName(int workaround_id, String prefix) {
+    if (prefix == null || prefix.isEmpty()) {
+      throw new IllegalArgumentException("Empty name prefix");
+    }
+    nameRules.add(new NameRule(prefix, getMask(workaround_id)));
+    ruleCount++;
+  }
+
+  /**
+   * Returns the mask of the workarounds matching |address|.
+   */
+  public int matchAddress(String address) {
+    if (address == null) return 0;
+    int result = 0;
+    Node node = root;
+    for (int i = 0; i < address.length() && node != null; i++) {
+      char c = address.charAt(i);
+      if (c == ':') continue;
+      int digit = Character.digit(c, 16);
+      if (digit < 0) break;
+      node = node.children[digit];
+      if (node != null) result |= node.workarounds;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the mask of the workarounds matching the device name |name|.
+   */
+  public int matchName(String name) {
+    if (name == null || name.isEmpty()) return 0;
+    int result = 0;
+    for (int i = 0; i < nameRules.size(); i++) {
+      NameRule rule = nameRules.get(i);
+      if (name.startsWith(rule.prefix)) result |= rule.workaround_mask;
+    }
+    return result;
+  }
+
+  public int size() {
+    return ruleCount;
+  }
+
+  /**
+   * Adds the rules read from |reader|.
+   *
+   * The first non-comment line must be "version <n>". The remaining lines
+   * have the form "<workaround> address <prefix>" or
+   * "<workaround> name <prefix>", where <workaround> is a key of
+   * |workarounds| and the name prefix is the rest of the line. Lines
+   * starting with '#' are ignored, as are lines that cannot be parsed.
+   * Files with a version newer than {@link #VERSION} are ignored.
+   *
+   * @return the number of rules added
+   */
+  public int load(BufferedReader reader, Map<String, Integer> workarounds) throws IOException {
+    int added = 0;
+    boolean versionSeen = false;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) continue;
+
+      String[] fields = line.split("\\s+", 3);
+      if (!versionSeen) {
+        int version = -1;
+        if (fields.length == 2 && fields[0].equals("version")) {
+          try {
+            version = Integer.parseInt(fields[1]);
+          } catch (NumberFormatException e) {
+            // Handled below
+          }
+        }
+        if (version < 1 || version > VERSION) {
+          Log.w(TAG, "Unsupported interop rules version: " + line);
+          return added;
+        }
+        versionSeen = true;
+        continue;
+      }
+
+      Integer id = fields.length == 3 ? workarounds.get(fields[0]) : null;
+      if (id == null) {
+        Log.w(TAG, "Ignoring interop rule: " + line);
+        continue;
+      }
+      try {
+        if (fields[1].equals("address")) {
+          addAddress(id, fields[2]);
+        } else if (fields[1].equals("name")) {
+          addName(id, fields[2]);
+        } else {
+          Log.w(TAG, "Ignoring interop rule: " + line);
+          continue;
+        }
+        added++;
+      } catch (IllegalArgumentException e) {
+        Log.w(TAG, "Ignoring interop rule: " + line + ": " + e.getMessage());
+      }
+    }
+    return added;
+  }
+}
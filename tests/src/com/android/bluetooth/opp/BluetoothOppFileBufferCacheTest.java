@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for {@link BluetoothOppFileBufferCache}.
+ */
+public class BluetoothOppFileBufferCacheTest extends AndroidTestCase {
+
+    private static final int FILE_SIZE = 200 * 1024;
+
+    private static final Uri URI = Uri.parse("content://media/external/images/1@12345");
+
+    private File mFile;
+    private byte[] mContent;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContent = new byte[FILE_SIZE];
+        new Random(0).nextBytes(mContent);
+        mFile = new File(getContext().getCacheDir(), "opp_buffer_cache_test");
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(mContent);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private BluetoothOppSendFileInfo createFileInfo() throws Exception {
+        return new BluetoothOppSendFileInfo("test.bin", "application/octet-stream",
+                FILE_SIZE, new FileInputStream(mFile), BluetoothShare.STATUS_PENDING);
+    }
+
+    private static byte[] readAll(InputStream in, int readSize) throws Exception {
+        byte[] data = new byte[FILE_SIZE];
+        int offset = 0;
+        int read;
+        while (offset < data.length
+                && (read = in.read(data, offset, Math.min(readSize, data.length - offset))) > 0) {
+            offset += read;
+        }
+        assertEquals(FILE_SIZE, offset);
+        assertEquals(-1, in.read(new byte[1], 0, 1));
+        return data;
+    }
+
+    @SmallTest
+    public void testSingleShareReadsStreamDirectly() throws Exception {
+        BluetoothOppFileBufferCache cache = new BluetoothOppFileBufferCache();
+        BluetoothOppSendFileInfo fileInfo = createFileInfo();
+        cache.register(URI);
+        assertSame(fileInfo.mInputStream, cache.open(URI, fileInfo));
+        assertTrue(Arrays.equals(mContent, readAll(fileInfo.mInputStream, 4096)));
+        fileInfo.mInputStream.close();
+    }
+
+    @SmallTest
+    public void testLateShareReadsWholeFile() throws Exception {
+        BluetoothOppFileBufferCache cache = new BluetoothOppFileBufferCache();
+        BluetoothOppSendFileInfo fileInfo = createFileInfo();
+        cache.register(URI);
+        InputStream first = cache.open(URI, fileInfo);
+        byte[] head = new byte[1000];
+        assertEquals(1000, first.read(head, 0, head.length));
+
+        // A share of the same file registered after the first transfer started
+        cache.register(URI);
+        assertFalse(cache.isAvailable(URI));
+        cache.close(URI);
+        assertTrue(cache.isAvailable(URI));
+        InputStream second = cache.open(URI, fileInfo);
+        assertTrue(Arrays.equals(mContent, readAll(second, 4096)));
+        fileInfo.mInputStream.close();
+    }
+
+    @SmallTest
+    public void testLargeFileReadByOneTransferAtATime() throws Exception {
+        BluetoothOppFileBufferCache cache = new BluetoothOppFileBufferCache();
+        BluetoothOppSendFileInfo fileInfo = new BluetoothOppSendFileInfo("test.bin",
+                "application/octet-stream", BluetoothOppFileBufferCache.MAX_SHARED_FILE_SIZE + 1,
+                new FileInputStream(mFile), BluetoothShare.STATUS_PENDING);
+        cache.register(URI);
+        cache.register(URI);
+        assertTrue(cache.isAvailable(URI));
+        assertSame(fileInfo.mInputStream, cache.open(URI, fileInfo));
+        assertFalse(cache.isAvailable(URI));
+        cache.close(URI);
+        assertTrue(cache.isAvailable(URI));
+        fileInfo.mInputStream.close();
+    }
+
+    @SmallTest
+    public void testSharedReadersSeeSameContent() throws Exception {
+        BluetoothOppFileBufferCache cache = new BluetoothOppFileBufferCache();
+        BluetoothOppSendFileInfo fileInfo = createFileInfo();
+        cache.register(URI);
+        cache.register(URI);
+
+        InputStream first = cache.open(URI, fileInfo);
+        InputStream second = cache.open(URI, fileInfo);
+        assertNotSame(fileInfo.mInputStream, first);
+        assertNotSame(first, second);
+
+        // Interleave the readers with different read sizes
+        byte[] head = new byte[1000];
+        assertEquals(1000, first.read(head, 0, head.length));
+        assertTrue(Arrays.equals(Arrays.copyOf(mContent, 1000), head));
+        assertTrue(Arrays.equals(mContent, readAll(second, 4096)));
+        byte[] rest = new byte[FILE_SIZE];
+        System.arraycopy(head, 0, rest, 0, head.length);
+        int offset = head.length;
+        int read;
+        while ((read = first.read(rest, offset, rest.length - offset)) > 0) {
+            offset += read;
+        }
+        assertEquals(FILE_SIZE, offset);
+        assertTrue(Arrays.equals(mContent, rest));
+        fileInfo.mInputStream.close();
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.bluetooth.tests.ObexPipeTransport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput benchmark of the OPP file data path. A file is pushed by a
+ * {@link BluetoothOppObexClientSession} to a {@link BluetoothOppObexServerSession} over an
+ * in-process OBEX transport, so the prefetch reader, the write-behind writer and the
+ * buffer pool are measured as the real sessions use them. The results are logged per
+ * packet size and SRM mode, e.g.:
+ *   adb logcat -s BluetoothOppTransferBenchmark
+ *
+ * Run the benchmark with Bluetooth turned off, to keep BluetoothOppService from picking
+ * up the inbound shares. The received files are removed when the test ends.
+ */
+public class BluetoothOppTransferBenchmark extends AndroidTestCase {
+    private static final String TAG = "BluetoothOppTransferBenchmark";
+
+    private static final String SOCKET_NAME = "com.android.bluetooth.opp.benchmark";
+
+    private static final int[] PACKET_SIZES = {0x1000, 0x4000, 0xFFFE};
+    private static final boolean[] SRM_MODES = {false, true};
+
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+
+    private static final int ITERATIONS = 3;
+
+    private static final String MIME_TYPE = "image/jpeg";
+
+    /* The destination reported by the OPP server for non Bluetooth transports */
+    private static final String DESTINATION = "FF:FF:FF:00:00:00";
+
+    /* The outbound share is not in the provider, so its updates do not match a row */
+    private static final int OUTBOUND_SHARE_ID = -1;
+
+    private static final int TRANSFER_TIMEOUT = 60;
+
+    private File mSourceFile;
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSourceFile = new File(getContext().getCacheDir(), "opp_benchmark_src.jpg");
+        if (mSourceFile.length() != FILE_SIZE) {
+            byte[] data = new byte[FILE_SIZE];
+            new Random(0).nextBytes(data);
+            FileOutputStream out = new FileOutputStream(mSourceFile);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        }
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        BluetoothOppManager.getInstance(getContext()).addToWhitelist(DESTINATION);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHandlerThread.quit();
+        deleteInboundShares(getContext().getContentResolver());
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testFilePush() throws Exception {
+        for (int packetSize : PACKET_SIZES) {
+            for (boolean srm : SRM_MODES) {
+                long totalMs = 0;
+                for (int i = 0; i < ITERATIONS; i++) {
+                    totalMs += pushFile(packetSize, srm);
+                }
+                long avgMs = Math.max(1, totalMs / ITERATIONS);
+                Log.i(TAG, "Push of " + FILE_SIZE + " bytes (" + packetSize + " bytes/packet, SRM "
+                        + (srm ? "on" : "off") + "): " + avgMs + " ms, "
+                        + BluetoothShare.throughputInKbps(FILE_SIZE, avgMs) + " Kbps, "
+                        + BluetoothOppBufferPool.getInstance());
+            }
+        }
+    }
+
+    /**
+     * Push the source file from a client session to a server session.
+     * @return the time in ms from the server accepting the share until the client
+     *         reports it as sent
+     */
+    private long pushFile(int packetSize, boolean srm) throws Exception {
+        ContentResolver resolver = getContext().getContentResolver();
+        LocalServerSocket serverSock = new LocalServerSocket(SOCKET_NAME);
+        LocalSocket clientSock = new LocalSocket();
+        clientSock.connect(serverSock.getLocalSocketAddress());
+        LocalSocket acceptSock = serverSock.accept();
+        ObexPipeTransport clientTransport = new ObexPipeTransport(clientSock.getInputStream(),
+                clientSock.getOutputStream(), srm, packetSize);
+        ObexPipeTransport serverTransport = new ObexPipeTransport(acceptSock.getInputStream(),
+                acceptSock.getOutputStream(), srm, packetSize);
+
+        Uri uri = Uri.fromFile(mSourceFile);
+        BluetoothOppUtility.putSendFileInfo(uri, new BluetoothOppSendFileInfo(
+                mSourceFile.getName(), MIME_TYPE, FILE_SIZE, new FileInputStream(mSourceFile),
+                0));
+        BluetoothOppFileBufferCache.getInstance().register(uri);
+        BluetoothOppShareInfo share = new BluetoothOppShareInfo(OUTBOUND_SHARE_ID, uri, null,
+                null, MIME_TYPE, BluetoothShare.DIRECTION_OUTBOUND, DESTINATION,
+                BluetoothShare.VISIBILITY_VISIBLE, BluetoothShare.USER_CONFIRMATION_CONFIRMED,
+                BluetoothShare.STATUS_PENDING, FILE_SIZE, 0, System.currentTimeMillis(), false);
+
+        SessionCallback callback = new SessionCallback(share);
+        BluetoothOppObexServerSession server = new BluetoothOppObexServerSession(getContext(),
+                serverTransport);
+        server.preStart();
+        server.start(callback, 0);
+        ShareAcceptor acceptor = new ShareAcceptor(resolver, server);
+        resolver.registerContentObserver(BluetoothShare.CONTENT_URI, true, acceptor);
+        BluetoothOppObexClientSession client = new BluetoothOppObexClientSession(getContext(),
+                clientTransport);
+        try {
+            client.start(callback, 1);
+            client.addShare(share);
+            assertTrue(callback.mDone.await(TRANSFER_TIMEOUT, TimeUnit.SECONDS));
+            assertFalse(callback.mFailed);
+            assertEquals(FILE_SIZE, new File(acceptor.getFileName()).length());
+            return callback.mEndTime - acceptor.mStartTime;
+        } finally {
+            resolver.unregisterContentObserver(acceptor);
+            client.stop();
+            server.stop();
+            clientSock.close();
+            acceptSock.close();
+            serverSock.close();
+        }
+    }
+
+    /**
+     * Receives the messages of both sessions, and counts down once the client has sent
+     * the share and the server has received it.
+     */
+    private class SessionCallback extends Handler {
+        private final BluetoothOppShareInfo mShare;
+        final CountDownLatch mDone = new CountDownLatch(2);
+        volatile boolean mFailed = false;
+        volatile long mEndTime;
+
+        SessionCallback(BluetoothOppShareInfo share) {
+            super(mHandlerThread.getLooper());
+            mShare = share;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case BluetoothOppObexSession.MSG_SHARE_COMPLETE:
+                    if (msg.obj == mShare) {
+                        mEndTime = SystemClock.elapsedRealtime();
+                    }
+                    mDone.countDown();
+                    break;
+                case BluetoothOppObexSession.MSG_SESSION_ERROR:
+                case BluetoothOppObexSession.MSG_SHARE_INTERRUPTED:
+                    Log.e(TAG, "Transfer failed: " + msg.what);
+                    mFailed = true;
+                    while (mDone.getCount() > 0) {
+                        mDone.countDown();
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Plays the part of BluetoothOppService for the inbound share: hands it back to the
+     * server session and unblocks it right away.
+     */
+    private class ShareAcceptor extends ContentObserver {
+        private final ContentResolver mResolver;
+        private final BluetoothOppObexServerSession mSession;
+        private int mShareId = -1;
+        volatile long mStartTime;
+
+        ShareAcceptor(ContentResolver resolver, BluetoothOppObexServerSession session) {
+            super(mHandler);
+            mResolver = resolver;
+            mSession = session;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            if (mShareId >= 0) {
+                return;
+            }
+            Cursor cursor = mResolver.query(BluetoothShare.CONTENT_URI, null,
+                    BluetoothShare.DESTINATION + "=? AND " + BluetoothShare.DIRECTION + "=? AND "
+                    + BluetoothShare._DATA + " IS NULL",
+                    new String[] {DESTINATION, Integer.toString(BluetoothShare.DIRECTION_INBOUND)},
+                    BluetoothShare._ID + " DESC");
+            if (cursor == null) {
+                return;
+            }
+            try {
+                if (cursor.moveToFirst()) {
+                    BluetoothOppShareInfo info = createShareInfo(cursor);
+                    mShareId = info.mId;
+                    mSession.addShare(info);
+                    mStartTime = SystemClock.elapsedRealtime();
+                    /* The server polls the flag once a second, wake it up instead */
+                    synchronized (mSession) {
+                        mSession.unblock();
+                        mSession.notifyAll();
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        String getFileName() {
+            Cursor cursor = mResolver.query(
+                    Uri.parse(BluetoothShare.CONTENT_URI + "/" + mShareId),
+                    new String[] {BluetoothShare._DATA}, null, null, null);
+            assertNotNull(cursor);
+            try {
+                assertTrue(cursor.moveToFirst());
+                return cursor.getString(0);
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private static BluetoothOppShareInfo createShareInfo(Cursor cursor) {
+        String uri = cursor.getString(cursor.getColumnIndexOrThrow(BluetoothShare.URI));
+        return new BluetoothOppShareInfo(
+                cursor.getInt(cursor.getColumnIndexOrThrow(BluetoothShare._ID)),
+                uri != null ? Uri.parse(uri) : null,
+                cursor.getString(cursor.getColumnIndexOrThrow(BluetoothShare.FILENAME_HINT)),
+                cursor.getString(cursor.getColumnIndexOrThrow(BluetoothShare._DATA)),
+                cursor.getString(cursor.getColumnIndexOrThrow(BluetoothShare.MIMETYPE)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(BluetoothShare.DIRECTION)),
+                cursor.getString(cursor.getColumnIndexOrThrow(BluetoothShare.DESTINATION)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(BluetoothShare.VISIBILITY)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(BluetoothShare.USER_CONFIRMATION)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(BluetoothShare.STATUS)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(BluetoothShare.TOTAL_BYTES)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(BluetoothShare.CURRENT_BYTES)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(BluetoothShare.TIMESTAMP)),
+                false);
+    }
+
+    private static void deleteInboundShares(ContentResolver resolver) {
+        String where = BluetoothShare.DESTINATION + "=?";
+        String[] args = new String[] {DESTINATION};
+        Cursor cursor = resolver.query(BluetoothShare.CONTENT_URI,
+                new String[] {BluetoothShare._DATA}, where, args, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    String fileName = cursor.getString(0);
+                    if (fileName != null) {
+                        new File(fileName).delete();
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        resolver.delete(BluetoothShare.CONTENT_URI, where, args);
+    }
+}
@@ -0,0 +1,69 @@
+package com.android.bluetooth.pan;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link PanAdmission}.
+ */
+public class PanAdmissionTest extends AndroidTestCase {
+
+    private static BluetoothDevice getDevice(String address) {
+        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+    }
+
+    @SmallTest
+    public void testAdmitUpToMaxClients() {
+        PanAdmission admission = new PanAdmission(2);
+        assertTrue(admission.admit(getDevice("00:11:22:33:44:01"), 0, 0));
+        assertTrue(admission.admit(getDevice("00:11:22:33:44:02"), 1, 0));
+        assertFalse(admission.admit(getDevice("00:11:22:33:44:03"), 2, 0));
+    }
+
+    @SmallTest
+    public void testFreedSlotHeldForWaitingClient() {
+        PanAdmission admission = new PanAdmission(1);
+        BluetoothDevice waiter = getDevice("00:11:22:33:44:01");
+        BluetoothDevice other = getDevice("00:11:22:33:44:02");
+        assertFalse(admission.admit(waiter, 1, 0));
+        // A slot frees up, a new client must not take it from the waiting one
+        assertFalse(admission.admit(other, 0, 1000));
+        assertTrue(admission.admit(waiter, 0, 2000));
+        // Next in line
+        assertTrue(admission.admit(other, 0, 3000));
+    }
+
+    @SmallTest
+    public void testWaitingClientsAdmittedInOrder() {
+        PanAdmission admission = new PanAdmission(2);
+        BluetoothDevice first = getDevice("00:11:22:33:44:01");
+        BluetoothDevice second = getDevice("00:11:22:33:44:02");
+        assertFalse(admission.admit(first, 2, 0));
+        assertFalse(admission.admit(second, 2, 0));
+        // One free slot belongs to the first waiter
+        assertFalse(admission.admit(second, 1, 1000));
+        assertTrue(admission.admit(first, 1, 1000));
+    }
+
+    @SmallTest
+    public void testWaitingClientExpires() {
+        PanAdmission admission = new PanAdmission(1);
+        BluetoothDevice waiter = getDevice("00:11:22:33:44:01");
+        BluetoothDevice other = getDevice("00:11:22:33:44:02");
+        assertFalse(admission.admit(waiter, 1, 0));
+        assertTrue(admission.admit(other, 0, PanAdmission.WAIT_TIMEOUT_MS + 1));
+    }
+
+    @SmallTest
+    public void testClearDropsWaitingClients() {
+        PanAdmission admission = new PanAdmission(1);
+        assertFalse(admission.admit(getDevice("00:11:22:33:44:01"), 1, 0));
+        admission.clear();
+        assertTrue(admission.admit(getDevice("00:11:22:33:44:02"), 0, 0));
+        StringBuilder sb = new StringBuilder();
+        admission.dump(sb);
+        assertTrue(sb.toString(), sb.toString().contains("admitted: 1, rejected: 1, waiting: 0"));
+    }
+}
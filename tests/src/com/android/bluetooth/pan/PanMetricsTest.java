@@ -0,0 +1,119 @@
+package com.android.bluetooth.pan;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Test cases for {@link PanMetrics}.
+ */
+public class PanMetricsTest extends AndroidTestCase {
+
+    private static final String IFACE = "bt-pan";
+
+    private File mStatsDir;
+    private PanMetrics mMetrics;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStatsDir = new File(getContext().getCacheDir(), "pan_metrics_test");
+        new File(mStatsDir, IFACE + "/statistics").mkdirs();
+        mMetrics = new PanMetrics(new Handler(Looper.getMainLooper()),
+                mStatsDir.getPath() + "/%s/statistics/%s");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mMetrics.stop();
+        deleteRecursive(mStatsDir);
+        super.tearDown();
+    }
+
+    private static void deleteRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void writeCounters(long rxBytes, long txBytes, long rxPackets, long txPackets)
+            throws IOException {
+        writeCounter("rx_bytes", rxBytes);
+        writeCounter("tx_bytes", txBytes);
+        writeCounter("rx_packets", rxPackets);
+        writeCounter("tx_packets", txPackets);
+        writeCounter("rx_dropped", 0);
+        writeCounter("tx_dropped", 0);
+    }
+
+    private void writeCounter(String name, long value) throws IOException {
+        FileWriter writer = new FileWriter(new File(mStatsDir, IFACE + "/statistics/" + name));
+        try {
+            writer.write(value + "\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private String dump() {
+        StringBuilder sb = new StringBuilder();
+        mMetrics.dump(sb);
+        return sb.toString();
+    }
+
+    @SmallTest
+    public void testSessionCountsFromStart() throws IOException {
+        writeCounters(1000, 2000, 10, 20);
+        mMetrics.start(IFACE);
+        writeCounters(1500, 2600, 15, 26);
+        mMetrics.onPeerCountChanged(2);
+        mMetrics.onPeerCountChanged(1);
+        mMetrics.stop();
+        String dump = dump();
+        assertTrue(dump, dump.contains("Past: " + IFACE));
+        assertTrue(dump, dump.contains("rx 500 B/5 pkts"));
+        assertTrue(dump, dump.contains("tx 600 B/6 pkts"));
+        assertTrue(dump, dump.contains("max peers 2"));
+        assertFalse(dump, dump.contains("Current:"));
+    }
+
+    @SmallTest
+    public void testCurrentSessionDumped() throws IOException {
+        writeCounters(0, 0, 0, 0);
+        mMetrics.start(IFACE);
+        String dump = dump();
+        assertTrue(dump, dump.contains("Current: " + IFACE));
+        assertTrue(dump, dump.contains("throughput rx: 0 B/s, tx: 0 B/s"));
+    }
+
+    @SmallTest
+    public void testMissingInterfaceKeepsZeroCounters() {
+        mMetrics.start("bt-missing");
+        assertEquals(0, mMetrics.getRxRate());
+        assertEquals(0, mMetrics.getTxRate());
+        mMetrics.stop();
+        String dump = dump();
+        assertTrue(dump, dump.contains("Past: bt-missing"));
+        assertTrue(dump, dump.contains("rx 0 B/0 pkts"));
+    }
+
+    @SmallTest
+    public void testPastSessionsAreCapped() throws IOException {
+        writeCounters(0, 0, 0, 0);
+        for (int i = 0; i < PanMetrics.MAX_SESSIONS + 2; i++) {
+            mMetrics.start(IFACE);
+            mMetrics.stop();
+        }
+        String dump = dump();
+        assertEquals(PanMetrics.MAX_SESSIONS, dump.split("Past: ", -1).length - 1);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.tests;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.bluetooth.a2dp.A2dpMulticastController;
+
+/**
+ * Tests for {@link A2dpMulticastController}.
+ */
+public class A2dpMulticastControllerTest extends AndroidTestCase {
+
+    private BluetoothDevice mGood;
+    private BluetoothDevice mBad;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        mGood = adapter.getRemoteDevice("00:11:22:33:44:55");
+        mBad = adapter.getRemoteDevice("00:11:22:33:44:66");
+    }
+
+    private A2dpMulticastController startGroup(boolean evict) {
+        A2dpMulticastController controller = new A2dpMulticastController(evict);
+        controller.setMulticastEnabled(true);
+        controller.onSinkConnected(mGood, 0);
+        controller.onSinkConnected(mBad, 0);
+        controller.onStreamStarted(mGood, 1000);
+        controller.onStreamStarted(mBad, 1200);
+        return controller;
+    }
+
+    @SmallTest
+    public void testRepeatedStallsEvictSink() {
+        A2dpMulticastController controller = startGroup(true);
+        assertFalse(controller.onStreamSuspended(mBad, 2000));
+        controller.onStreamStarted(mBad, 2300);
+        assertFalse(controller.onStreamSuspended(mBad, 10000));
+        controller.onStreamStarted(mBad, 10500);
+        assertTrue(controller.onStreamSuspended(mBad, 20000));
+
+        assertTrue(controller.isDegraded(mBad));
+        assertFalse(controller.isDegraded(mGood));
+        assertTrue(controller.isQuarantined(mBad, 21000));
+        assertFalse(controller.isQuarantined(mBad, 20000 + 5 * 60 * 1000));
+
+        StringBuilder sb = new StringBuilder();
+        controller.dump(sb, 30000);
+        String dump = sb.toString();
+        assertTrue(dump, dump.contains("remote suspends: 3, stalls: 3"));
+        assertTrue(dump, dump.contains("resume latency avg: 400ms, max: 500ms"));
+        assertTrue(dump, dump.contains("join skew avg: 200ms"));
+    }
+
+    @SmallTest
+    public void testSparseStallsAndSoloSuspendsAreTolerated() {
+        A2dpMulticastController controller = startGroup(true);
+        assertFalse(controller.onStreamSuspended(mBad, 2000));
+        controller.onStreamStarted(mBad, 2100);
+        assertFalse(controller.onStreamSuspended(mBad, 40000));
+        controller.onStreamStarted(mBad, 40100);
+        // First stall is out of the window by now
+        assertFalse(controller.onStreamSuspended(mBad, 70000));
+        assertFalse(controller.isDegraded(mBad));
+
+        // Suspends while no other sink streams are not stalls
+        controller.onStreamStopped(mGood, 80000);
+        controller.onStreamStarted(mBad, 80000);
+        assertFalse(controller.onStreamSuspended(mBad, 80100));
+        assertFalse(controller.isDegraded(mBad));
+    }
+
+    @SmallTest
+    public void testNoEvictionWhenDisabled() {
+        A2dpMulticastController controller = startGroup(false);
+        for (int i = 0; i < 3; i++) {
+            assertFalse(controller.onStreamSuspended(mBad, 2000 + i * 1000));
+            controller.onStreamStarted(mBad, 2500 + i * 1000);
+        }
+        assertTrue(controller.isDegraded(mBad));
+        assertFalse(controller.isQuarantined(mBad, 6000));
+    }
+
+    @SmallTest
+    public void testNoQuarantineWithoutMulticast() {
+        A2dpMulticastController controller = startGroup(true);
+        for (int i = 0; i < 3; i++) {
+            controller.onStreamSuspended(mBad, 2000 + i * 1000);
+            controller.onStreamStarted(mBad, 2500 + i * 1000);
+        }
+        assertTrue(controller.isQuarantined(mBad, 6000));
+
+        controller.setMulticastEnabled(false);
+        assertFalse(controller.isQuarantined(mBad, 6000));
+        controller.setMulticastEnabled(true);
+        assertTrue(controller.isQuarantined(mBad, 6000));
+    }
+}
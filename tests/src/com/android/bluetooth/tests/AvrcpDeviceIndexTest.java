@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.tests;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.bluetooth.avrcp.AvrcpDeviceIndex;
+
+/**
+ * Tests for {@link AvrcpDeviceIndex}.
+ */
+public class AvrcpDeviceIndexTest extends AndroidTestCase {
+
+    private static final String ADDRESS_1 = "00:11:22:AA:BB:CC";
+    private static final String ADDRESS_2 = "00:11:22:AA:BB:CD";
+    private static final String ADDRESS_3 = "F0:11:22:AA:BB:CC";
+    private static final byte[] BYTES_1 =
+            {0x00, 0x11, 0x22, (byte) 0xAA, (byte) 0xBB, (byte) 0xCC};
+
+    private static BluetoothDevice getDevice(String address) {
+        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+    }
+
+    @SmallTest
+    public void testPack() {
+        assertEquals(0x001122AABBCCL, AvrcpDeviceIndex.pack(ADDRESS_1));
+        assertEquals(0x001122AABBCCL, AvrcpDeviceIndex.pack("00:11:22:aa:bb:cc"));
+        assertEquals(0x001122AABBCCL, AvrcpDeviceIndex.pack(BYTES_1));
+        assertEquals(-1L, AvrcpDeviceIndex.pack("00:11:22:AA:BB"));
+        assertEquals(-1L, AvrcpDeviceIndex.pack("00-11-22-AA-BB-CC"));
+        assertEquals(-1L, AvrcpDeviceIndex.pack(new byte[5]));
+    }
+
+    @SmallTest
+    public void testLookupBySlot() {
+        AvrcpDeviceIndex index = new AvrcpDeviceIndex(2);
+        BluetoothDevice device1 = getDevice(ADDRESS_1);
+        BluetoothDevice device2 = getDevice(ADDRESS_2);
+        assertEquals(0, index.add(device1));
+        assertEquals(1, index.add(device2));
+        assertEquals(1, index.add(device2));
+
+        assertEquals(1, index.indexOf(ADDRESS_2));
+        assertEquals(0, index.indexOf(BYTES_1));
+        assertEquals(AvrcpDeviceIndex.INVALID_SLOT, index.indexOf(ADDRESS_3));
+        assertSame(device2, index.getDevice(ADDRESS_2));
+        assertEquals(ADDRESS_1, index.getAddressString(BYTES_1));
+        assertEquals(2, index.size());
+    }
+
+    @SmallTest
+    public void testSlotsAreReusedAndFixed() {
+        AvrcpDeviceIndex index = new AvrcpDeviceIndex(2);
+        BluetoothDevice device1 = getDevice(ADDRESS_1);
+        BluetoothDevice device2 = getDevice(ADDRESS_2);
+        BluetoothDevice device3 = getDevice(ADDRESS_3);
+        assertEquals(0, index.add(device1));
+        assertEquals(1, index.add(device2));
+        assertEquals(AvrcpDeviceIndex.INVALID_SLOT, index.add(device3));
+        assertEquals(AvrcpDeviceIndex.INVALID_SLOT, index.indexOf(device3));
+        assertEquals(2, index.getSlotCount());
+
+        assertEquals(0, index.remove(device1));
+        assertEquals(AvrcpDeviceIndex.INVALID_SLOT, index.indexOf(device1));
+        assertEquals(AvrcpDeviceIndex.INVALID_SLOT, index.remove(device1));
+        assertEquals(1, index.indexOf(device2));
+        assertEquals(0, index.add(device3));
+        assertEquals(0, index.indexOf(ADDRESS_3));
+        assertEquals(2, index.size());
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.tests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.bluetooth.avrcp.AvrcpDispatchStats;
+
+/**
+ * Tests for {@link AvrcpDispatchStats}.
+ */
+public class AvrcpDispatchStatsTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testDelaysAreBucketed() {
+        AvrcpDispatchStats stats = new AvrcpDispatchStats("Control");
+        stats.record(1, 0, 2);
+        stats.record(2, 30, 1);
+        stats.record(3, 5000, 400);
+        // A message handled before it was due counts as no delay
+        stats.record(4, -20, 0);
+
+        assertEquals(4, stats.getMessages());
+        assertEquals(5000, stats.getMaxDelayMs());
+        StringBuilder sb = new StringBuilder();
+        stats.dump(sb);
+        String dump = sb.toString();
+        assertTrue(dump, dump.contains("Control lane messages: 4, queue delay avg: 1257ms"));
+        assertTrue(dump, dump.contains("<=1ms: 2 <=10ms: 0 <=50ms: 1"));
+        assertTrue(dump, dump.contains(">1000ms: 1"));
+        assertTrue(dump, dump.contains("max: 400ms (message 3)"));
+    }
+}
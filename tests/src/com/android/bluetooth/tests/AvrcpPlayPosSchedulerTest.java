@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.tests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.bluetooth.avrcp.AvrcpPlayPosScheduler;
+
+/**
+ * Tests for {@link AvrcpPlayPosScheduler}.
+ */
+public class AvrcpPlayPosSchedulerTest extends AndroidTestCase {
+
+    private static final long TICK_MS = AvrcpPlayPosScheduler.TICK_MS;
+
+    @SmallTest
+    public void testDevicesDueInSameTickAreBatched() {
+        AvrcpPlayPosScheduler scheduler = new AvrcpPlayPosScheduler(2);
+        scheduler.schedule(0, 1010);
+        scheduler.schedule(1, 1040);
+        scheduler.schedule(2, 3000);
+
+        // Never early: both are due at the end of the tick
+        assertEquals(1050, scheduler.getNextDueTime());
+        assertEquals(0, scheduler.pollDue(1049));
+        assertEquals(2, scheduler.pollDue(1050));
+        assertEquals(1, scheduler.size());
+        assertEquals(3000, scheduler.getNextDueTime());
+        assertEquals(1, scheduler.pollDue(3000));
+        assertEquals(2, scheduler.getDueSlot(0));
+        assertEquals(-1, scheduler.getNextDueTime());
+    }
+
+    @SmallTest
+    public void testRescheduleAndCancelAffectOneDevice() {
+        AvrcpPlayPosScheduler scheduler = new AvrcpPlayPosScheduler(2);
+        scheduler.schedule(0, 1000);
+        scheduler.schedule(1, 2000);
+        scheduler.schedule(0, 5000);
+        assertEquals(2000, scheduler.getNextDueTime());
+
+        scheduler.cancel(1);
+        assertFalse(scheduler.isScheduled(1));
+        assertTrue(scheduler.isScheduled(0));
+        assertEquals(5000, scheduler.getNextDueTime());
+        assertEquals(0, scheduler.pollDue(4999));
+        assertEquals(1, scheduler.pollDue(5000));
+        assertEquals(0, scheduler.getDueSlot(0));
+    }
+
+    @SmallTest
+    public void testLongIntervalsAndIdlePeriods() {
+        AvrcpPlayPosScheduler scheduler = new AvrcpPlayPosScheduler(1);
+        // More than one revolution of the wheel ahead
+        scheduler.schedule(0, 100 * TICK_MS);
+        scheduler.schedule(1, 10 * TICK_MS);
+        assertEquals(10 * TICK_MS, scheduler.getNextDueTime());
+        assertEquals(1, scheduler.pollDue(10 * TICK_MS));
+        assertEquals(100 * TICK_MS, scheduler.getNextDueTime());
+        // Same bucket, one round earlier
+        assertEquals(0, scheduler.pollDue(36 * TICK_MS));
+        // Handler woke up late
+        assertEquals(1, scheduler.pollDue(1000 * TICK_MS));
+        assertEquals(0, scheduler.size());
+    }
+}
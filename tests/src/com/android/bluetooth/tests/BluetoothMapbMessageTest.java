@@ -2,9 +2,11 @@ package com.android.bluetooth.tests;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 
@@ -16,6 +18,7 @@ import com.android.bluetooth.map.BluetoothMapSmsPdu;
 import com.android.bluetooth.map.BluetoothMapUtils;
 import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
 import com.android.bluetooth.map.BluetoothMapbMessage;
+import com.android.bluetooth.map.BluetoothMapbMessageEmail;
 import com.android.bluetooth.map.BluetoothMapbMessageMime;
 import com.android.bluetooth.map.BluetoothMapbMessageSms;
 
@@ -518,6 +521,122 @@ public class BluetoothMapbMessageTest extends AndroidTestCase {
         }
     }
 
+    /***
+     * Test that an MMS attachment streamed from a data source is encoded exactly as
+     * the same attachment held in memory, both with a known and an unknown length.
+     */
+    public void testMmsEncodeStreamedAttachment() throws IOException {
+        BluetoothMapbMessageMime msg = new BluetoothMapbMessageMime();
+        String[] phone = {"+4512345678"};
+        msg.addOriginator("Bonde,Casper", "Casper Bonde", phone, null, null, null);
+        msg.setFolder("inbox");
+        msg.setIncludeAttachments(true);
+        msg.addFrom("Casper Bonde", "bonde@email.add");
+
+        BluetoothMapbMessageMime.MimePart part = msg.addMimePart();
+        part.mContentType = "text/plain";
+        part.mData = "A picture, END:MSG\r\n".getBytes("UTF-8");
+
+        // Larger than a single Base64 chunk, and not a multiple of a line
+        byte[] image = new byte[10000];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte)(i * 31);
+        }
+        part = msg.addMimePart();
+        part.mContentType = "image/jpeg";
+        part.mPartName = "image.jpg";
+        part.mData = image;
+
+        msg.setStatus(false);
+        msg.setType(TYPE.MMS);
+        msg.updateCharset();
+        byte[] expected = msg.encode();
+
+        part.mData = null;
+        part.mDataSource = new TestDataSource(image, image.length, 1000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        msg.encode(out);
+        assertTrue(Arrays.equals(expected, out.toByteArray()));
+
+        part.mDataSource = new TestDataSource(image, -1, 1000);
+        assertTrue(Arrays.equals(expected, msg.encode()));
+    }
+
+    /***
+     * Test that an e-mail body streamed from a data source is escaped and encoded exactly
+     * as the same body held in memory, also when END:MSG is split between reads.
+     */
+    public void testEmailEncodeStreamedBody() throws IOException {
+        String body = "Subject: END:MSG\r\n\r\nEND:ME, END:END:MSG and END:MSG";
+        BluetoothMapbMessageEmail msg = new BluetoothMapbMessageEmail();
+        msg.setFolder("inbox");
+        msg.setStatus(true);
+        msg.setType(TYPE.EMAIL);
+        msg.setEmailBody(body);
+        byte[] expected = msg.encode();
+
+        msg = new BluetoothMapbMessageEmail();
+        msg.setFolder("inbox");
+        msg.setStatus(true);
+        msg.setType(TYPE.EMAIL);
+        msg.setEmailBodySource(new TestDataSource(body.getBytes("UTF-8"), -1, 3));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        msg.encode(out);
+        assertTrue(Arrays.equals(expected, out.toByteArray()));
+    }
+
+    /***
+     * Test that an e-mail body missing in the provider, i.e. an empty data source,
+     * is encoded as an empty body.
+     */
+    public void testEmailEncodeEmptyStreamedBody() throws IOException {
+        BluetoothMapbMessageEmail msg = new BluetoothMapbMessageEmail();
+        msg.setFolder("inbox");
+        msg.setStatus(true);
+        msg.setType(TYPE.EMAIL);
+        msg.setEmailBody("");
+        byte[] expected = msg.encode();
+
+        msg = new BluetoothMapbMessageEmail();
+        msg.setFolder("inbox");
+        msg.setStatus(true);
+        msg.setType(TYPE.EMAIL);
+        msg.setEmailBodySource(new TestDataSource(new byte[0], 0, 1000));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        msg.encode(out);
+        assertTrue(Arrays.equals(expected, out.toByteArray()));
+    }
+
+    /**
+     * Data source returning at most maxRead bytes per read.
+     */
+    private static class TestDataSource implements BluetoothMapbMessage.DataSource {
+        private final byte[] mData;
+        private final long mLength;
+        private final int mMaxRead;
+
+        TestDataSource(byte[] data, long length, int maxRead) {
+            mData = data;
+            mLength = length;
+            mMaxRead = maxRead;
+        }
+
+        @Override
+        public long getLength() {
+            return mLength;
+        }
+
+        @Override
+        public InputStream open() {
+            return new ByteArrayInputStream(mData) {
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+                    return super.read(b, off, Math.min(len, mMaxRead));
+                }
+            };
+        }
+    }
+
     public void testQuotedPrintable() {
         testQuotedPrintableIso8859_1();
         testQuotedPrintableUTF_8();
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.tests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.bluetooth.map.BluetoothMnsEventQueue;
+import com.android.bluetooth.map.BluetoothMnsEventQueue.EventEntry;
+
+import java.util.List;
+
+/**
+ * Tests for {@link BluetoothMnsEventQueue}.
+ */
+public class BluetoothMnsEventQueueTest extends AndroidTestCase {
+
+    private static final String EVENT_TYPE_SHIFT = "MessageShift";
+    private static final byte[] DATA = new byte[0];
+
+    @SmallTest
+    public void testNewThenDeletedCancels() {
+        BluetoothMnsEventQueue queue = new BluetoothMnsEventQueue();
+        queue.offer(0, BluetoothMnsEventQueue.EVENT_TYPE_NEW, "1", DATA);
+        queue.offer(0, BluetoothMnsEventQueue.EVENT_TYPE_READ_STATUS, "1", DATA);
+        queue.offer(0, BluetoothMnsEventQueue.EVENT_TYPE_NEW, "2", DATA);
+        queue.offer(0, BluetoothMnsEventQueue.EVENT_TYPE_DELETE, "1", DATA);
+
+        List<EventEntry> events = queue.drain();
+        assertEquals(1, events.size());
+        assertEquals("2", events.get(0).handle);
+        assertEquals(3, queue.getEventsCancelled());
+    }
+
+    @SmallTest
+    public void testDeleteWithoutNewIsKept() {
+        BluetoothMnsEventQueue queue = new BluetoothMnsEventQueue();
+        queue.offer(0, BluetoothMnsEventQueue.EVENT_TYPE_READ_STATUS, "1", DATA);
+        queue.offer(0, BluetoothMnsEventQueue.EVENT_TYPE_DELETE, "1", DATA);
+
+        List<EventEntry> events = queue.drain();
+        assertEquals(2, events.size());
+        assertEquals(BluetoothMnsEventQueue.EVENT_TYPE_READ_STATUS, events.get(0).eventType);
+        assertEquals(BluetoothMnsEventQueue.EVENT_TYPE_DELETE, events.get(1).eventType);
+    }
+
+    @SmallTest
+    public void testReadStatusMergedKeepsOrder() {
+        BluetoothMnsEventQueue queue = new BluetoothMnsEventQueue();
+        queue.offer(0, BluetoothMnsEventQueue.EVENT_TYPE_READ_STATUS, "1", DATA);
+        queue.offer(0, EVENT_TYPE_SHIFT, "1", DATA);
+        queue.offer(0, BluetoothMnsEventQueue.EVENT_TYPE_READ_STATUS, "2", DATA);
+        queue.offer(0, BluetoothMnsEventQueue.EVENT_TYPE_READ_STATUS, "1", DATA);
+
+        List<EventEntry> events = queue.drain();
+        assertEquals(3, events.size());
+        assertEquals(EVENT_TYPE_SHIFT, events.get(0).eventType);
+        assertEquals("2", events.get(1).handle);
+        assertEquals("1", events.get(2).handle);
+        assertEquals(BluetoothMnsEventQueue.EVENT_TYPE_READ_STATUS, events.get(2).eventType);
+        assertEquals(1, queue.getEventsMerged());
+    }
+
+    @SmallTest
+    public void testMasInstancesAreSeparate() {
+        BluetoothMnsEventQueue queue = new BluetoothMnsEventQueue();
+        queue.offer(0, BluetoothMnsEventQueue.EVENT_TYPE_NEW, "1", DATA);
+        queue.offer(1, BluetoothMnsEventQueue.EVENT_TYPE_DELETE, "1", DATA);
+        queue.offer(1, null, null, DATA);
+
+        assertEquals(3, queue.size());
+        assertEquals(3, queue.drain().size());
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.tests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.bluetooth.hdp.HealthApduRingBuffer;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link HealthApduRingBuffer}.
+ */
+public class HealthApduRingBufferTest extends AndroidTestCase {
+
+    /* PRST APDU with a 2 byte body */
+    private static final byte[] PRST = {(byte) 0xE7, 0x00, 0x00, 0x02, 0x11, 0x22};
+    /* RLRQ APDU without a body */
+    private static final byte[] RLRQ = {(byte) 0xE4, 0x00, 0x00, 0x00};
+
+    @SmallTest
+    public void testPartialApduIsHeldBack() throws Exception {
+        HealthApduRingBuffer buffer = new HealthApduRingBuffer(64);
+        buffer.write(PRST, 0, 3);
+        assertNull(buffer.poll());
+        buffer.write(PRST, 3, PRST.length - 3);
+        assertTrue(Arrays.equals(PRST, buffer.poll()));
+        assertNull(buffer.poll());
+    }
+
+    @SmallTest
+    public void testSeveralApdusInOneWrite() throws Exception {
+        HealthApduRingBuffer buffer = new HealthApduRingBuffer(64);
+        byte[] data = new byte[PRST.length + RLRQ.length];
+        System.arraycopy(PRST, 0, data, 0, PRST.length);
+        System.arraycopy(RLRQ, 0, data, PRST.length, RLRQ.length);
+        buffer.write(data, 0, data.length);
+        assertTrue(Arrays.equals(PRST, buffer.poll()));
+        assertTrue(Arrays.equals(RLRQ, buffer.poll()));
+        assertEquals(2, buffer.getApduCount());
+    }
+
+    @SmallTest
+    public void testInvalidBytesAreSkipped() throws Exception {
+        HealthApduRingBuffer buffer = new HealthApduRingBuffer(64);
+        byte[] garbage = {0x01, 0x02, 0x03};
+        buffer.write(garbage, 0, garbage.length);
+        buffer.write(RLRQ, 0, RLRQ.length);
+        assertTrue(Arrays.equals(RLRQ, buffer.poll()));
+        assertEquals(3, buffer.getFramingErrors());
+    }
+
+    @SmallTest
+    public void testWrapAround() throws Exception {
+        HealthApduRingBuffer buffer = new HealthApduRingBuffer(16);
+        for (int i = 0; i < 20; i++) {
+            buffer.write(PRST, 0, PRST.length);
+            assertTrue(Arrays.equals(PRST, buffer.poll()));
+        }
+    }
+
+    @SmallTest
+    public void testTakeBatchStopsAtMaxBytes() throws Exception {
+        HealthApduRingBuffer buffer = new HealthApduRingBuffer(64);
+        byte[] garbage = {0x01};
+        buffer.write(RLRQ, 0, RLRQ.length);
+        buffer.write(garbage, 0, garbage.length);
+        buffer.write(RLRQ, 0, RLRQ.length);
+        buffer.write(PRST, 0, PRST.length);
+        byte[] batch = buffer.takeBatch(2 * RLRQ.length + 1, 1000);
+        assertEquals(2 * RLRQ.length, batch.length);
+        assertTrue(Arrays.equals(RLRQ, Arrays.copyOfRange(batch, RLRQ.length, batch.length)));
+        assertTrue(Arrays.equals(PRST, buffer.takeBatch(1, 1000)));
+        assertEquals(0, buffer.takeBatch(64, 0).length);
+        buffer.close();
+        assertNull(buffer.takeBatch(64, 0));
+    }
+
+    @SmallTest
+    public void testTakeAfterClose() throws Exception {
+        HealthApduRingBuffer buffer = new HealthApduRingBuffer(16);
+        buffer.close();
+        assertNull(buffer.take(1000));
+        assertFalse(buffer.write(RLRQ, 0, RLRQ.length));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.tests;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.bluetooth.hid.HidReportCallbacks;
+import com.android.bluetooth.hid.IBluetoothHidReportCallback;
+
+/**
+ * Tests for {@link HidReportCallbacks}.
+ */
+public class HidReportCallbacksTest extends AndroidTestCase {
+
+    private static final String ADDRESS_1 = "00:11:22:AA:BB:CC";
+    private static final String ADDRESS_2 = "00:11:22:AA:BB:CD";
+
+    private static BluetoothDevice getDevice(String address) {
+        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+    }
+
+    private static class TestCallback extends IBluetoothHidReportCallback.Stub {
+        int mReports;
+        int mHandshakes;
+        int mProtocolModes;
+        int mLastStatus = -1;
+
+        @Override
+        public void onReport(BluetoothDevice device, byte[] report, int bufferSize) {
+            mReports++;
+        }
+
+        @Override
+        public void onHandshake(BluetoothDevice device, int status) {
+            mHandshakes++;
+            mLastStatus = status;
+        }
+
+        @Override
+        public void onProtocolMode(BluetoothDevice device, int protocolMode) {
+            mProtocolModes++;
+        }
+    }
+
+    @SmallTest
+    public void testDeliveredOnlyToCallbacksOfTheDevice() {
+        HidReportCallbacks callbacks = new HidReportCallbacks();
+        BluetoothDevice device1 = getDevice(ADDRESS_1);
+        BluetoothDevice device2 = getDevice(ADDRESS_2);
+        TestCallback callback = new TestCallback();
+        assertTrue(callbacks.register(device1, callback));
+
+        assertTrue(callbacks.onReport(device1, new byte[] {1, 2}, 2));
+        assertTrue(callbacks.onHandshake(device1, 3));
+        assertTrue(callbacks.onProtocolMode(device1, 0));
+        assertEquals(1, callback.mReports);
+        assertEquals(1, callback.mHandshakes);
+        assertEquals(3, callback.mLastStatus);
+        assertEquals(1, callback.mProtocolModes);
+
+        // Without a callback the caller falls back to the broadcast
+        assertFalse(callbacks.onReport(device2, new byte[] {1, 2}, 2));
+        assertEquals(1, callback.mReports);
+    }
+
+    @SmallTest
+    public void testUnregisterFallsBackToBroadcast() {
+        HidReportCallbacks callbacks = new HidReportCallbacks();
+        BluetoothDevice device = getDevice(ADDRESS_1);
+        TestCallback callback = new TestCallback();
+        callbacks.register(device, callback);
+        callbacks.unregister(callback);
+        assertFalse(callbacks.onHandshake(device, 0));
+        assertEquals(0, callback.mHandshakes);
+    }
+
+    @SmallTest
+    public void testDisconnectDropsOnlyThatDevice() {
+        HidReportCallbacks callbacks = new HidReportCallbacks();
+        BluetoothDevice device1 = getDevice(ADDRESS_1);
+        BluetoothDevice device2 = getDevice(ADDRESS_2);
+        TestCallback callback1 = new TestCallback();
+        TestCallback callback2 = new TestCallback();
+        callbacks.register(device1, callback1);
+        callbacks.register(device2, callback2);
+
+        callbacks.removeDevice(device1);
+        assertFalse(callbacks.onReport(device1, new byte[] {1}, 1));
+        assertTrue(callbacks.onReport(device2, new byte[] {1}, 1));
+        assertEquals(0, callback1.mReports);
+        assertEquals(1, callback2.mReports);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.tests;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.bluetooth.hid.HidReportLatency;
+
+/**
+ * Tests for {@link HidReportLatency}.
+ */
+public class HidReportLatencyTest extends AndroidTestCase {
+
+    private static final String ADDRESS_1 = "00:11:22:AA:BB:CC";
+    private static final String ADDRESS_2 = "00:11:22:AA:BB:CD";
+
+    private static BluetoothDevice getDevice(String address) {
+        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+    }
+
+    @SmallTest
+    public void testReportAnswersGetReport() {
+        HidReportLatency latency = new HidReportLatency();
+        BluetoothDevice device = getDevice(ADDRESS_1);
+        latency.onRequest(device, HidReportLatency.REQUEST_GET_REPORT);
+        latency.onReport(device);
+        assertEquals(1, latency.getSampleTotal());
+        assertEquals(0, latency.getPendingCount(device));
+    }
+
+    @SmallTest
+    public void testHandshakeAnswersSetReport() {
+        HidReportLatency latency = new HidReportLatency();
+        BluetoothDevice device = getDevice(ADDRESS_1);
+        latency.onRequest(device, HidReportLatency.REQUEST_SET_REPORT);
+        latency.onHandshake(device);
+        assertEquals(1, latency.getSampleTotal());
+        assertEquals(0, latency.getPendingCount(device));
+    }
+
+    @SmallTest
+    public void testProtocolAndIdleHandshakesAreNotSampled() {
+        HidReportLatency latency = new HidReportLatency();
+        BluetoothDevice device = getDevice(ADDRESS_1);
+        latency.onRequest(device, HidReportLatency.REQUEST_SET_PROTOCOL);
+        latency.onRequest(device, HidReportLatency.REQUEST_SET_IDLE);
+        latency.onRequest(device, HidReportLatency.REQUEST_SET_REPORT);
+        latency.onHandshake(device);
+        latency.onHandshake(device);
+        assertEquals(0, latency.getSampleTotal());
+        assertEquals(1, latency.getPendingCount(device));
+        latency.onHandshake(device);
+        assertEquals(1, latency.getSampleTotal());
+        assertEquals(0, latency.getPendingCount(device));
+    }
+
+    @SmallTest
+    public void testHandshakeDoesNotCompleteQueuedGetReport() {
+        HidReportLatency latency = new HidReportLatency();
+        BluetoothDevice device = getDevice(ADDRESS_1);
+        latency.onRequest(device, HidReportLatency.REQUEST_SET_PROTOCOL);
+        latency.onRequest(device, HidReportLatency.REQUEST_GET_REPORT);
+        latency.onHandshake(device);
+        assertEquals(0, latency.getSampleTotal());
+        latency.onReport(device);
+        assertEquals(1, latency.getSampleTotal());
+        assertEquals(0, latency.getPendingCount(device));
+    }
+
+    @SmallTest
+    public void testFailedGetReportIsNotSampled() {
+        HidReportLatency latency = new HidReportLatency();
+        BluetoothDevice device = getDevice(ADDRESS_1);
+        latency.onRequest(device, HidReportLatency.REQUEST_GET_REPORT);
+        latency.onRequest(device, HidReportLatency.REQUEST_SET_REPORT);
+        // The get report is answered by an error handshake
+        latency.onHandshake(device);
+        assertEquals(0, latency.getSampleTotal());
+        latency.onHandshake(device);
+        assertEquals(1, latency.getSampleTotal());
+    }
+
+    @SmallTest
+    public void testReportSkipsUnansweredRequests() {
+        HidReportLatency latency = new HidReportLatency();
+        BluetoothDevice device = getDevice(ADDRESS_1);
+        latency.onRequest(device, HidReportLatency.REQUEST_SET_IDLE);
+        latency.onRequest(device, HidReportLatency.REQUEST_GET_REPORT);
+        latency.onRequest(device, HidReportLatency.REQUEST_SET_REPORT);
+        latency.onReport(device);
+        assertEquals(1, latency.getSampleTotal());
+        assertEquals(1, latency.getPendingCount(device));
+        latency.onReport(device);
+        assertEquals(1, latency.getSampleTotal());
+        assertEquals(0, latency.getPendingCount(device));
+    }
+
+    @SmallTest
+    public void testCancelAndClear() {
+        HidReportLatency latency = new HidReportLatency();
+        BluetoothDevice device1 = getDevice(ADDRESS_1);
+        BluetoothDevice device2 = getDevice(ADDRESS_2);
+        latency.onRequest(device1, HidReportLatency.REQUEST_SET_REPORT);
+        latency.onRequest(device1, HidReportLatency.REQUEST_GET_REPORT);
+        latency.cancel(device1);
+        assertEquals(1, latency.getPendingCount(device1));
+        latency.onRequest(device2, HidReportLatency.REQUEST_SET_REPORT);
+        latency.onHandshake(device2);
+        assertEquals(1, latency.getSampleTotal());
+        assertEquals(1, latency.getPendingCount(device1));
+        latency.clear(device1);
+        assertEquals(0, latency.getPendingCount(device1));
+        latency.onHandshake(device1);
+        assertEquals(1, latency.getSampleTotal());
+    }
+}
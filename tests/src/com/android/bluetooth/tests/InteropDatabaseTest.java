@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.tests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.bluetooth.util.InteropDatabase;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.HashMap;
+
+/**
+ * Tests for {@link InteropDatabase}.
+ */
+public class InteropDatabaseTest extends AndroidTestCase {
+
+    private static final int WORKAROUND_A = 1;
+    private static final int WORKAROUND_B = 2;
+
+    @SmallTest
+    public void testAddressPrefix() {
+        InteropDatabase db = new InteropDatabase();
+        db.addAddress(WORKAROUND_A, "00:26:e8");
+        db.addAddress(WORKAROUND_B, "00:26:E8:11");
+
+        int a = InteropDatabase.getMask(WORKAROUND_A);
+        int b = InteropDatabase.getMask(WORKAROUND_B);
+        assertEquals(a, db.matchAddress("00:26:E8:22:33:44"));
+        assertEquals(a | b, db.matchAddress("00:26:e8:11:33:44"));
+        assertEquals(0, db.matchAddress("00:26:E9:11:33:44"));
+        assertEquals(0, db.matchAddress("00:26"));
+        assertEquals(0, db.matchAddress(null));
+    }
+
+    @SmallTest
+    public void testNamePrefix() {
+        InteropDatabase db = new InteropDatabase();
+        db.addName(WORKAROUND_A, "NTG4");
+
+        assertEquals(InteropDatabase.getMask(WORKAROUND_A), db.matchName("NTG4.5 Car"));
+        assertEquals(0, db.matchName("Car NTG4"));
+        assertEquals(0, db.matchName(null));
+    }
+
+    @SmallTest
+    public void testInvalidRules() {
+        InteropDatabase db = new InteropDatabase();
+        try {
+            db.addAddress(WORKAROUND_A, "00:2x");
+            fail("Invalid address accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            db.addAddress(WORKAROUND_A, "00:11:22:33:44:55:66");
+            fail("Too long address accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            db.addName(32, "Car");
+            fail("Invalid workaround id accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertEquals(0, db.size());
+    }
+
+    @SmallTest
+    public void testLoad() throws Exception {
+        HashMap<String, Integer> names = new HashMap<String, Integer>();
+        names.put("A", WORKAROUND_A);
+        names.put("B", WORKAROUND_B);
+        String rules = "# comment\n"
+                + "version 1\n"
+                + "A address 00:11:22\n"
+                + "B name My Car\n"
+                + "C address 00:11:33\n"
+                + "A address zz\n";
+
+        InteropDatabase db = new InteropDatabase();
+        assertEquals(2, db.load(new BufferedReader(new StringReader(rules)), names));
+        assertEquals(InteropDatabase.getMask(WORKAROUND_A), db.matchAddress("00:11:22:33:44:55"));
+        assertEquals(InteropDatabase.getMask(WORKAROUND_B), db.matchName("My Car 2"));
+        assertEquals(0, db.matchAddress("00:11:33:44:55:66"));
+    }
+
+    @SmallTest
+    public void testLoadUnsupportedVersion() throws Exception {
+        HashMap<String, Integer> names = new HashMap<String, Integer>();
+        names.put("A", WORKAROUND_A);
+        String rules = "version " + (InteropDatabase.VERSION + 1) + "\n"
+                + "A address 00:11:22\n";
+
+        InteropDatabase db = new InteropDatabase();
+        assertEquals(0, db.load(new BufferedReader(new StringReader(rules)), names));
+        assertEquals(0, db.size());
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.tests;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.Debug;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.obex.ClientSession;
+import javax.obex.HeaderSet;
+import javax.obex.Operation;
+import javax.obex.ServerRequestHandler;
+import javax.obex.ServerSession;
+
+/**
+ * Harness to measure OBEX operations against a profile server over an in-process
+ * {@link ObexPipeTransport} pair, with a configurable packet size and SRM on or off.
+ *
+ * The transports are backed by a local socket pair, as the java.io pipes are too slow
+ * to be representative. For every GET and PUT the bytes transferred, the duration, the
+ * time to the first body byte and the allocations and garbage collections during the
+ * operation are recorded. The allocation and GC counters are process global, hence they
+ * include the client side, which only reads or writes into a reused buffer.
+ */
+public class ObexBenchmark {
+    private static final String TAG = "ObexBenchmark";
+
+    private static final String SOCKET_NAME = "com.android.bluetooth.tests.benchmark";
+    private static final int BUFFER_SIZE = 0x10000;
+
+    /** The measurements of a single OBEX operation */
+    public static class Result {
+        public final String label;
+        public final int responseCode;
+        public final long bytes;
+        public final long durationNs;
+        /* -1 if no body data was transferred */
+        public final long firstByteNs;
+        public final int allocCount;
+        public final long allocBytes;
+        public final int gcCount;
+
+        Result(String label, int responseCode, long bytes, long durationNs, long firstByteNs,
+                int allocCount, long allocBytes, int gcCount) {
+            this.label = label;
+            this.responseCode = responseCode;
+            this.bytes = bytes;
+            this.durationNs = durationNs;
+            this.firstByteNs = firstByteNs;
+            this.allocCount = allocCount;
+            this.allocBytes = allocBytes;
+            this.gcCount = gcCount;
+        }
+
+        /** @return the throughput in kbyte/s */
+        public long getThroughput() {
+            return bytes * 1000000L / Math.max(1, durationNs);
+        }
+
+        @Override
+        public String toString() {
+            return label + ": " + bytes + " bytes in " + toMs(durationNs) + " ms ("
+                    + getThroughput() + " kbyte/s), first byte after " + toMs(firstByteNs)
+                    + " ms, " + allocCount + " allocations (" + allocBytes + " bytes), "
+                    + gcCount + " GCs, response 0x" + Integer.toHexString(responseCode);
+        }
+    }
+
+    private final String mName;
+    private final LocalServerSocket mServerSock;
+    private final LocalSocket mClientSock;
+    private final LocalSocket mAcceptSock;
+    private final ObexPipeTransport mClientTransport;
+    private final ObexPipeTransport mServerTransport;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final ArrayList<Result> mResults = new ArrayList<Result>();
+    private ServerSession mServerSession = null;
+    private ClientSession mClientSession = null;
+
+    /* Measurement state of the current operation */
+    private long mStartNs;
+    private long mFirstByteNs;
+
+    /**
+     * Create the interconnected transports.
+     * @param name prefix for the reported results
+     * @param packetSize the maximum OBEX packet size of both transports
+     * @param enableSrm whether the transports support single response mode
+     */
+    public ObexBenchmark(String name, int packetSize, boolean enableSrm) throws IOException {
+        mName = name + " (" + packetSize + " bytes/packet, SRM " + (enableSrm ? "on" : "off")
+                + ")";
+        mServerSock = new LocalServerSocket(SOCKET_NAME);
+        mClientSock = new LocalSocket();
+        mClientSock.connect(mServerSock.getLocalSocketAddress());
+        mAcceptSock = mServerSock.accept();
+        mClientTransport = new ObexPipeTransport(mClientSock.getInputStream(),
+                mClientSock.getOutputStream(), enableSrm, packetSize);
+        mServerTransport = new ObexPipeTransport(mAcceptSock.getInputStream(),
+                mAcceptSock.getOutputStream(), enableSrm, packetSize);
+    }
+
+    /**
+     * @return the server side transport, for servers creating their own
+     *         {@link ServerSession} instead of using {@link #startServer(ServerRequestHandler)}.
+     */
+    public ObexPipeTransport getServerTransport() {
+        return mServerTransport;
+    }
+
+    public void startServer(ServerRequestHandler handler) throws IOException {
+        mServerSession = new ServerSession(mServerTransport, handler, null);
+    }
+
+    public HeaderSet connect(HeaderSet request) throws IOException {
+        mClientSession = new ClientSession(mClientTransport);
+        return mClientSession.connect(request);
+    }
+
+    public HeaderSet setPath(String name) throws IOException {
+        HeaderSet request = new HeaderSet();
+        request.setHeader(HeaderSet.NAME, name);
+        return mClientSession.setPath(request, false, false);
+    }
+
+    /**
+     * Execute a GET operation reading the entire response body.
+     * @return the measurements, which are also kept for {@link #logSummary()}
+     */
+    public Result get(String label, HeaderSet request) throws IOException {
+        begin();
+        Operation op = mClientSession.get(request);
+        InputStream in = op.openInputStream();
+        long bytes = 0;
+        int read;
+        while ((read = in.read(mBuffer)) != -1) {
+            if (read > 0 && mFirstByteNs < 0) {
+                mFirstByteNs = System.nanoTime() - mStartNs;
+            }
+            bytes += read;
+        }
+        in.close();
+        int responseCode = op.getResponseCode();
+        op.close();
+        return end(label, responseCode, bytes);
+    }
+
+    /**
+     * Execute a PUT operation sending the content of source in chunks of the negotiated
+     * packet size. For a PUT the time to first byte is the time until the first chunk
+     * has been accepted by the client operation.
+     * @return the measurements, which are also kept for {@link #logSummary()}
+     */
+    public Result put(String label, HeaderSet request, InputStream source) throws IOException {
+        begin();
+        Operation op = mClientSession.put(request);
+        OutputStream out = op.openOutputStream();
+        int chunkSize = Math.min(op.getMaxPacketSize(), mBuffer.length);
+        long bytes = 0;
+        int read;
+        while ((read = source.read(mBuffer, 0, chunkSize)) != -1) {
+            out.write(mBuffer, 0, read);
+            if (read > 0 && mFirstByteNs < 0) {
+                mFirstByteNs = System.nanoTime() - mStartNs;
+            }
+            bytes += read;
+        }
+        out.close();
+        int responseCode = op.getResponseCode();
+        op.close();
+        return end(label, responseCode, bytes);
+    }
+
+    public List<Result> getResults() {
+        return mResults;
+    }
+
+    /**
+     * Log the results accumulated per label: number of operations, total bytes and
+     * throughput, average and maximum time to first byte, and the allocations and
+     * GCs per operation.
+     */
+    public void logSummary() {
+        LinkedHashMap<String, List<Result>> byLabel = new LinkedHashMap<String, List<Result>>();
+        for (Result result : mResults) {
+            List<Result> results = byLabel.get(result.label);
+            if (results == null) {
+                results = new ArrayList<Result>();
+                byLabel.put(result.label, results);
+            }
+            results.add(result);
+        }
+        for (Map.Entry<String, List<Result>> entry : byLabel.entrySet()) {
+            List<Result> results = entry.getValue();
+            long bytes = 0, durationNs = 0, firstByteNs = 0, maxFirstByteNs = 0, allocBytes = 0;
+            long allocCount = 0, gcCount = 0;
+            int withBody = 0;
+            for (Result result : results) {
+                bytes += result.bytes;
+                durationNs += result.durationNs;
+                if (result.firstByteNs >= 0) {
+                    firstByteNs += result.firstByteNs;
+                    maxFirstByteNs = Math.max(maxFirstByteNs, result.firstByteNs);
+                    withBody++;
+                }
+                allocCount += result.allocCount;
+                allocBytes += result.allocBytes;
+                gcCount += result.gcCount;
+            }
+            int ops = results.size();
+            Log.i(TAG, mName + " " + entry.getKey() + ": " + ops + " operations, " + bytes
+                    + " bytes in " + toMs(durationNs) + " ms ("
+                    + (bytes * 1000000L / Math.max(1, durationNs)) + " kbyte/s), first byte avg "
+                    + toMs(firstByteNs / Math.max(1, withBody)) + " ms, max " + toMs(maxFirstByteNs) + " ms, "
+                    + (allocCount / ops) + " allocations (" + (allocBytes / ops)
+                    + " bytes) and " + ((float) gcCount / ops) + " GCs per operation");
+        }
+    }
+
+    public void close() {
+        try {
+            if (mClientSession != null) {
+                mClientSession.disconnect(null);
+                mClientSession.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Disconnect failed", e);
+        }
+        try {
+            if (mServerSession != null) {
+                mServerSession.close();
+            }
+            mClientSock.close();
+            mAcceptSock.close();
+            mServerSock.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Close failed", e);
+        }
+    }
+
+    private void begin() {
+        mFirstByteNs = -1;
+        Debug.resetAllCounts();
+        Debug.startAllocCounting();
+        mStartNs = System.nanoTime();
+    }
+
+    private Result end(String label, int responseCode, long bytes) {
+        long durationNs = System.nanoTime() - mStartNs;
+        Debug.stopAllocCounting();
+        Result result = new Result(label, responseCode, bytes, durationNs, mFirstByteNs,
+                Debug.getGlobalAllocCount(), Debug.getGlobalAllocSize(),
+                Debug.getGlobalGcInvocationCount());
+        mResults.add(result);
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, mName + " " + result);
+        }
+        return result;
+    }
+
+    private static String toMs(long ns) {
+        return String.format("%.2f", ns / 1000000.0);
+    }
+}
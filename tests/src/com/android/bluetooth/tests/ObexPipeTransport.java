@@ -29,6 +29,8 @@ public class ObexPipeTransport implements ObexTransport {
     InputStream mInStream;
     OutputStream mOutStream;
     boolean mEnableSrm;
+    int mMaxTransmitPacketSize = 3*15432;
+    int mMaxReceivePacketSize = 2*23450;
 
     public ObexPipeTransport(InputStream inStream, 
             OutputStream outStream, boolean enableSrm) {
@@ -37,6 +39,17 @@ public class ObexPipeTransport implements ObexTransport {
         mEnableSrm = enableSrm;
     }
 
+    /**
+     * Create a transport with a fixed maximum OBEX packet size in both directions,
+     * e.g. to compare the throughput for the packet sizes used by different remotes.
+     */
+    public ObexPipeTransport(InputStream inStream,
+            OutputStream outStream, boolean enableSrm, int maxPacketSize) {
+        this(inStream, outStream, enableSrm);
+        mMaxTransmitPacketSize = maxPacketSize;
+        mMaxReceivePacketSize = maxPacketSize;
+    }
+
     public void close() throws IOException {
         mInStream.close();
         mOutStream.close();
@@ -75,11 +88,11 @@ public class ObexPipeTransport implements ObexTransport {
     }
 
     public int getMaxTransmitPacketSize() {
-        return 3*15432;
+        return mMaxTransmitPacketSize;
     }
 
     public int getMaxReceivePacketSize() {
-        return 2*23450;
+        return mMaxReceivePacketSize;
     }
 
     @Override
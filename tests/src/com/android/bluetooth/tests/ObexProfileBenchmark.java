@@ -0,0 +1,540 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.tests;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.Sms;
+import android.provider.Telephony.Threads;
+import android.telephony.TelephonyManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.bluetooth.map.BluetoothMapAppParams;
+import com.android.bluetooth.map.BluetoothMapContent;
+import com.android.bluetooth.map.BluetoothMapContentObserver;
+import com.android.bluetooth.map.BluetoothMapMasInstance;
+import com.android.bluetooth.map.BluetoothMapObexServer;
+import com.android.bluetooth.map.BluetoothMapUtils;
+import com.android.bluetooth.map.BluetoothMnsObexClient;
+import com.android.bluetooth.opp.BluetoothOppManager;
+import com.android.bluetooth.opp.BluetoothOppObexServerSession;
+import com.android.bluetooth.opp.BluetoothOppShareInfo;
+import com.android.bluetooth.opp.BluetoothShare;
+import com.android.bluetooth.pbap.BluetoothPbapObexServer;
+import com.android.bluetooth.pbap.BluetoothPbapVcardManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+import javax.obex.HeaderSet;
+import javax.obex.ResponseCodes;
+
+/**
+ * Throughput benchmarks of the MAP, PBAP and OPP OBEX servers over in-process transports,
+ * for each combination of {@link #PACKET_SIZES} and SRM on/off, using synthetic content
+ * inserted into the real providers. The results are reported per operation type by
+ * {@link ObexBenchmark#logSummary()}, e.g.:
+ *   adb logcat -s ObexBenchmark
+ *
+ * The PBAP pulls are run twice per configuration, first with the phonebook caches cleared
+ * and then served from them, and reported as cold and warm.
+ *
+ * The synthetic messages, contacts and received files are removed when the test ends.
+ * Run the OPP benchmark with Bluetooth turned off, to keep BluetoothOppService from
+ * picking up the inbound shares.
+ */
+public class ObexProfileBenchmark extends AndroidTestCase {
+    private static final String TAG = "ObexProfileBenchmark";
+
+    private static final int[] PACKET_SIZES = {0x1000, 0x4000, 0xFFFE};
+    private static final boolean[] SRM_MODES = {false, true};
+
+    private static final int MAP_MESSAGES = 50000;
+    private static final int MAP_LISTING_SIZE = 1024;
+    private static final int MAP_GET_MESSAGES = 100;
+    private static final String MAP_BODY_PREFIX = "OBEX benchmark message ";
+    private static final String MAP_MMS_SUBJECT = "OBEX benchmark MMS";
+    /* Size of the attachment of the MMS, read while the message is sent */
+    private static final int MAP_MMS_PART_SIZE = 4 * 1024 * 1024;
+    private static final int MAS_ID = 0;
+    private static final int MAP_FEATURE_MASK = 0x07FFFFFF;
+
+    private static final int PBAP_CONTACTS = 10000;
+    /* Raw contacts per applyBatch(), each contact takes 4 operations */
+    private static final int PBAP_BATCH_SIZE = 100;
+    private static final String PBAP_ACCOUNT_TYPE = "com.android.bluetooth.tests.benchmark";
+    private static final String PBAP_ACCOUNT_NAME = "ObexProfileBenchmark";
+    private static final byte[] PBAP_TARGET = new byte[] {
+            (byte) 0x79, (byte) 0x61, (byte) 0x35, (byte) 0xf0,
+            (byte) 0xf0, (byte) 0xc5, (byte) 0x11, (byte) 0xd8,
+            (byte) 0x09, (byte) 0x66, (byte) 0x08, (byte) 0x00,
+            (byte) 0x20, (byte) 0x0c, (byte) 0x9a, (byte) 0x66
+            };
+
+    private static final int OPP_FILE_SIZE = 8 * 1024 * 1024;
+    private static final int OPP_ITERATIONS = 3;
+    /* The destination reported by the OPP server for non Bluetooth transports */
+    private static final String OPP_DESTINATION = "FF:FF:FF:00:00:00";
+
+    private HandlerThread mHandlerThread;
+    /* Receives and drops the messages the servers send to their service */
+    private Handler mCallback;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mCallback = new Handler(mHandlerThread.getLooper());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHandlerThread.quit();
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testMapMessageListing() throws Exception {
+        Context context = getContext();
+        ContentResolver resolver = context.getContentResolver();
+        deleteMapMessages(resolver);
+        insertMapMessages(resolver);
+        try {
+            ArrayList<String> handles = getMapHandles(context);
+            String mmsHandle = BluetoothMapUtils.getMapHandle(insertMapMms(context),
+                    BluetoothMapUtils.TYPE.MMS);
+            for (int packetSize : PACKET_SIZES) {
+                for (boolean srm : SRM_MODES) {
+                    ObexBenchmark benchmark = new ObexBenchmark("MAP", packetSize, srm);
+                    try {
+                        runMap(benchmark, handles, mmsHandle);
+                        benchmark.logSummary();
+                    } finally {
+                        benchmark.close();
+                    }
+                }
+            }
+        } finally {
+            deleteMapMessages(resolver);
+        }
+    }
+
+    @LargeTest
+    public void testPbapPhonebookPull() throws Exception {
+        ContentResolver resolver = getContext().getContentResolver();
+        deletePbapContacts(resolver);
+        insertPbapContacts(resolver);
+        try {
+            for (int packetSize : PACKET_SIZES) {
+                for (boolean srm : SRM_MODES) {
+                    ObexBenchmark benchmark = new ObexBenchmark("PBAP", packetSize, srm);
+                    try {
+                        runPbap(benchmark);
+                        benchmark.logSummary();
+                    } finally {
+                        benchmark.close();
+                    }
+                }
+            }
+        } finally {
+            deletePbapContacts(resolver);
+        }
+    }
+
+    @LargeTest
+    public void testOppFilePush() throws Exception {
+        byte[] data = new byte[OPP_FILE_SIZE];
+        new Random(0).nextBytes(data);
+        try {
+            for (int packetSize : PACKET_SIZES) {
+                for (boolean srm : SRM_MODES) {
+                    ObexBenchmark benchmark = new ObexBenchmark("OPP", packetSize, srm);
+                    try {
+                        runOpp(benchmark, data);
+                        benchmark.logSummary();
+                    } finally {
+                        benchmark.close();
+                    }
+                }
+            }
+        } finally {
+            deleteOppShares(getContext().getContentResolver());
+        }
+    }
+
+    private void runMap(ObexBenchmark benchmark, ArrayList<String> handles, String mmsHandle)
+            throws Exception {
+        Context context = getContext();
+        BluetoothMapMasInstance masInstance = new MockMasInstance(MAS_ID, MAP_FEATURE_MASK);
+        BluetoothMnsObexClient mnsClient = new BluetoothMnsObexClient(
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice("12:23:34:45:56:67"),
+                null, null);
+        BluetoothMapContentObserver observer = new BluetoothMapContentObserver(context,
+                mnsClient, masInstance, null, true);
+        benchmark.startServer(new BluetoothMapObexServer(null, context, observer, masInstance,
+                null, true));
+
+        HeaderSet request = new HeaderSet();
+        request.setHeader(HeaderSet.TARGET, MapObexLevelTest.MAS_TARGET);
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, benchmark.connect(request).responseCode);
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, benchmark.setPath("telecom").responseCode);
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, benchmark.setPath("msg").responseCode);
+
+        for (int offset = 0; offset < MAP_MESSAGES; offset += MAP_LISTING_SIZE) {
+            BluetoothMapAppParams appParams = new BluetoothMapAppParams();
+            appParams.setMaxListCount(MAP_LISTING_SIZE);
+            appParams.setStartOffset(offset);
+            request = new HeaderSet();
+            request.setHeader(HeaderSet.TYPE, MapObexLevelTest.TYPE_GET_MESSAGE_LISTING);
+            request.setHeader(HeaderSet.NAME, "inbox");
+            request.setHeader(HeaderSet.APPLICATION_PARAMETER, appParams.EncodeParams());
+            assertEquals(ResponseCodes.OBEX_HTTP_OK,
+                    benchmark.get("GetMessagesListing", request).responseCode);
+        }
+
+        for (String handle : handles) {
+            BluetoothMapAppParams appParams = new BluetoothMapAppParams();
+            appParams.setAttachment(0);
+            appParams.setCharset(BluetoothMapContent.MAP_MESSAGE_CHARSET_UTF8);
+            request = new HeaderSet();
+            request.setHeader(HeaderSet.TYPE, MapObexLevelTest.TYPE_MESSAGE);
+            request.setHeader(HeaderSet.NAME, handle);
+            request.setHeader(HeaderSet.APPLICATION_PARAMETER, appParams.EncodeParams());
+            assertEquals(ResponseCodes.OBEX_HTTP_OK,
+                    benchmark.get("GetMessage", request).responseCode);
+        }
+
+        BluetoothMapAppParams appParams = new BluetoothMapAppParams();
+        appParams.setAttachment(1);
+        appParams.setCharset(BluetoothMapContent.MAP_MESSAGE_CHARSET_UTF8);
+        request = new HeaderSet();
+        request.setHeader(HeaderSet.TYPE, MapObexLevelTest.TYPE_MESSAGE);
+        request.setHeader(HeaderSet.NAME, mmsHandle);
+        request.setHeader(HeaderSet.APPLICATION_PARAMETER, appParams.EncodeParams());
+        ObexBenchmark.Result result = benchmark.get("GetMessage (MMS)", request);
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, result.responseCode);
+        /* The attachment is sent base64 encoded */
+        assertTrue(result.bytes > MAP_MMS_PART_SIZE);
+        observer.deinit();
+    }
+
+    private void runPbap(ObexBenchmark benchmark) throws Exception {
+        /* No service is needed as long as the client does not announce PBAP 1.2 features */
+        benchmark.startServer(new BluetoothPbapObexServer(mCallback, getContext(), null));
+
+        HeaderSet request = new HeaderSet();
+        request.setHeader(HeaderSet.TARGET, PBAP_TARGET);
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, benchmark.connect(request).responseCode);
+
+        /* The caches outlive the server, drop what the previous configuration left */
+        BluetoothPbapVcardManager.clearPhonebookCaches();
+        try {
+            pullPbap(benchmark, " (cold)");
+            pullPbap(benchmark, " (warm)");
+        } finally {
+            BluetoothPbapVcardManager.clearPhonebookCaches();
+        }
+    }
+
+    private static void pullPbap(ObexBenchmark benchmark, String label) throws Exception {
+        HeaderSet request = new HeaderSet();
+        request.setHeader(HeaderSet.TYPE, "x-bt/phonebook");
+        request.setHeader(HeaderSet.NAME, "telecom/pb.vcf");
+        assertEquals(ResponseCodes.OBEX_HTTP_OK,
+                benchmark.get("PullPhoneBook" + label, request).responseCode);
+
+        request = new HeaderSet();
+        request.setHeader(HeaderSet.TYPE, "x-bt/vcard-listing");
+        request.setHeader(HeaderSet.NAME, "telecom/pb");
+        assertEquals(ResponseCodes.OBEX_HTTP_OK,
+                benchmark.get("PullvCardListing" + label, request).responseCode);
+    }
+
+    private void runOpp(ObexBenchmark benchmark, byte[] data) throws Exception {
+        Context context = getContext();
+        BluetoothOppManager.getInstance(context).addToWhitelist(OPP_DESTINATION);
+        BluetoothOppObexServerSession session = new BluetoothOppObexServerSession(
+                context, benchmark.getServerTransport());
+        session.preStart();
+        session.start(mCallback, 0);
+        OppShareAcceptor acceptor = new OppShareAcceptor(context.getContentResolver(), session);
+        context.getContentResolver().registerContentObserver(BluetoothShare.CONTENT_URI, true,
+                acceptor);
+        try {
+            assertEquals(ResponseCodes.OBEX_HTTP_OK,
+                    benchmark.connect(new HeaderSet()).responseCode);
+            for (int i = 0; i < OPP_ITERATIONS; i++) {
+                HeaderSet request = new HeaderSet();
+                request.setHeader(HeaderSet.NAME, "obex_benchmark.jpg");
+                request.setHeader(HeaderSet.TYPE, "image/jpeg");
+                request.setHeader(HeaderSet.LENGTH, (long) data.length);
+                ObexBenchmark.Result result = benchmark.put("PushFile", request,
+                        new ByteArrayInputStream(data));
+                assertEquals(ResponseCodes.OBEX_HTTP_OK, result.responseCode);
+                assertEquals(data.length, result.bytes);
+            }
+        } finally {
+            /* The server session ends when the benchmark closes the transport */
+            context.getContentResolver().unregisterContentObserver(acceptor);
+        }
+    }
+
+    /**
+     * Plays the part of BluetoothOppService for the inbound shares of the benchmark:
+     * hands each share inserted by the server session back to it and unblocks it.
+     */
+    private class OppShareAcceptor extends ContentObserver {
+        private final ContentResolver mResolver;
+        private final BluetoothOppObexServerSession mSession;
+        private int mLastId = -1;
+
+        OppShareAcceptor(ContentResolver resolver, BluetoothOppObexServerSession session) {
+            super(mCallback);
+            mResolver = resolver;
+            mSession = session;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            Cursor cursor = mResolver.query(BluetoothShare.CONTENT_URI, null,
+                    BluetoothShare.DESTINATION + "=? AND " + BluetoothShare._ID + ">?",
+                    new String[] {OPP_DESTINATION, Integer.toString(mLastId)},
+                    BluetoothShare._ID);
+            if (cursor == null) {
+                return;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    BluetoothOppShareInfo info = createShareInfo(cursor);
+                    mLastId = info.mId;
+                    if (info.mDirection == BluetoothShare.DIRECTION_INBOUND
+                            && info.mFilename == null) {
+                        mSession.addShare(info);
+                        mSession.unblock();
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private static BluetoothOppShareInfo createShareInfo(Cursor cursor) {
+        String uri = cursor.getString(cursor.getColumnIndexOrThrow(BluetoothShare.URI));
+        return new BluetoothOppShareInfo(
+                cursor.getInt(cursor.getColumnIndexOrThrow(BluetoothShare._ID)),
+                uri != null ? Uri.parse(uri) : null,
+                cursor.getString(cursor.getColumnIndexOrThrow(BluetoothShare.FILENAME_HINT)),
+                cursor.getString(cursor.getColumnIndexOrThrow(BluetoothShare._DATA)),
+                cursor.getString(cursor.getColumnIndexOrThrow(BluetoothShare.MIMETYPE)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(BluetoothShare.DIRECTION)),
+                cursor.getString(cursor.getColumnIndexOrThrow(BluetoothShare.DESTINATION)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(BluetoothShare.VISIBILITY)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(BluetoothShare.USER_CONFIRMATION)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(BluetoothShare.STATUS)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(BluetoothShare.TOTAL_BYTES)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(BluetoothShare.CURRENT_BYTES)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(BluetoothShare.TIMESTAMP)),
+                false);
+    }
+
+    private static void deleteOppShares(ContentResolver resolver) {
+        String where = BluetoothShare.DESTINATION + "=?";
+        String[] args = new String[] {OPP_DESTINATION};
+        Cursor cursor = resolver.query(BluetoothShare.CONTENT_URI,
+                new String[] {BluetoothShare._DATA}, where, args, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    String fileName = cursor.getString(0);
+                    if (fileName != null) {
+                        new File(fileName).delete();
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        resolver.delete(BluetoothShare.CONTENT_URI, where, args);
+    }
+
+    private static void insertMapMessages(ContentResolver resolver) {
+        Log.i(TAG, "Inserting " + MAP_MESSAGES + " messages...");
+        long date = System.currentTimeMillis() - MAP_MESSAGES * 60000L;
+        ContentValues[] values = new ContentValues[MAP_MESSAGES];
+        for (int i = 0; i < MAP_MESSAGES; i++) {
+            ContentValues item = new ContentValues(5);
+            item.put(Sms.ADDRESS, "+1555010" + String.format("%04d", i % 1000));
+            item.put(Sms.BODY, MAP_BODY_PREFIX + i);
+            item.put(Sms.DATE, date += 60000L);
+            item.put(Sms.READ, i % 3 == 0 ? 1 : 0);
+            item.put(Sms.TYPE, Sms.MESSAGE_TYPE_INBOX);
+            values[i] = item;
+        }
+        resolver.bulkInsert(Sms.CONTENT_URI, values);
+    }
+
+    /**
+     * Insert an MMS with a text part and a {@link #MAP_MMS_PART_SIZE} image part.
+     * @return the id of the MMS
+     */
+    private static long insertMapMms(Context context) throws Exception {
+        ContentResolver resolver = context.getContentResolver();
+        String address = "+15550100000";
+        ContentValues values = new ContentValues();
+        values.put(Mms.THREAD_ID, Threads.getOrCreateThreadId(context, address));
+        values.put(Mms.SUBJECT, MAP_MMS_SUBJECT);
+        values.put(Mms.DATE, System.currentTimeMillis() / 1000L);
+        values.put(Mms.READ, 0);
+        values.put(Mms.MESSAGE_BOX, Mms.MESSAGE_BOX_INBOX);
+        /* PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF */
+        values.put(Mms.MESSAGE_TYPE, 0x84);
+        values.put(Mms.CONTENT_TYPE, "application/vnd.wap.multipart.related");
+        Uri mmsUri = resolver.insert(Mms.Inbox.CONTENT_URI, values);
+        assertNotNull(mmsUri);
+        long id = Long.parseLong(mmsUri.getLastPathSegment());
+
+        values = new ContentValues();
+        values.put(Mms.Addr.ADDRESS, address);
+        /* PduHeaders.FROM */
+        values.put(Mms.Addr.TYPE, 0x89);
+        values.put(Mms.Addr.CHARSET, 106);
+        resolver.insert(Uri.parse(Mms.CONTENT_URI + "/" + id + "/addr"), values);
+
+        Uri partsUri = Uri.parse(Mms.CONTENT_URI + "/" + id + "/part");
+        values = new ContentValues();
+        values.put(Mms.Part.MSG_ID, id);
+        values.put(Mms.Part.CONTENT_TYPE, "text/plain");
+        values.put(Mms.Part.CHARSET, 106);
+        values.put(Mms.Part.CONTENT_ID, "<text_0>");
+        values.put(Mms.Part.TEXT, MAP_MMS_SUBJECT);
+        resolver.insert(partsUri, values);
+
+        values = new ContentValues();
+        values.put(Mms.Part.MSG_ID, id);
+        values.put(Mms.Part.CONTENT_TYPE, "image/jpeg");
+        values.put(Mms.Part.NAME, "obex_benchmark.jpg");
+        values.put(Mms.Part.FILENAME, "obex_benchmark.jpg");
+        values.put(Mms.Part.CONTENT_ID, "<image_0>");
+        Uri partUri = resolver.insert(partsUri, values);
+        assertNotNull(partUri);
+        byte[] data = new byte[64 * 1024];
+        Random random = new Random(0);
+        OutputStream os = resolver.openOutputStream(partUri);
+        try {
+            for (int written = 0; written < MAP_MMS_PART_SIZE; written += data.length) {
+                random.nextBytes(data);
+                os.write(data);
+            }
+        } finally {
+            os.close();
+        }
+        return id;
+    }
+
+    private static void deleteMapMessages(ContentResolver resolver) {
+        resolver.delete(Sms.CONTENT_URI, Sms.BODY + " LIKE ?",
+                new String[] {MAP_BODY_PREFIX + "%"});
+        /* Also removes the parts and their data */
+        resolver.delete(Mms.CONTENT_URI, Mms.SUBJECT + "=?", new String[] {MAP_MMS_SUBJECT});
+    }
+
+    /** @return the MAP handles of the first {@link #MAP_GET_MESSAGES} synthetic messages */
+    private static ArrayList<String> getMapHandles(Context context) {
+        TelephonyManager tm = (TelephonyManager) context.getSystemService(
+                Context.TELEPHONY_SERVICE);
+        BluetoothMapUtils.TYPE type = tm.getPhoneType() == TelephonyManager.PHONE_TYPE_CDMA
+                ? BluetoothMapUtils.TYPE.SMS_CDMA : BluetoothMapUtils.TYPE.SMS_GSM;
+        ArrayList<String> handles = new ArrayList<String>(MAP_GET_MESSAGES);
+        Cursor cursor = context.getContentResolver().query(Sms.CONTENT_URI,
+                new String[] {Sms._ID}, Sms.BODY + " LIKE ?",
+                new String[] {MAP_BODY_PREFIX + "%"}, Sms._ID + " LIMIT " + MAP_GET_MESSAGES);
+        assertNotNull(cursor);
+        try {
+            while (cursor.moveToNext()) {
+                handles.add(BluetoothMapUtils.getMapHandle(cursor.getLong(0), type));
+            }
+        } finally {
+            cursor.close();
+        }
+        return handles;
+    }
+
+    private static void insertPbapContacts(ContentResolver resolver) throws Exception {
+        Log.i(TAG, "Inserting " + PBAP_CONTACTS + " contacts...");
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < PBAP_CONTACTS; i++) {
+            int rawContact = ops.size();
+            ops.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                    .withValue(RawContacts.ACCOUNT_TYPE, PBAP_ACCOUNT_TYPE)
+                    .withValue(RawContacts.ACCOUNT_NAME, PBAP_ACCOUNT_NAME)
+                    .build());
+            ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, rawContact)
+                    .withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE)
+                    .withValue(StructuredName.GIVEN_NAME, "Benchmark")
+                    .withValue(StructuredName.FAMILY_NAME, "Contact" + i)
+                    .build());
+            ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, rawContact)
+                    .withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE)
+                    .withValue(Phone.NUMBER, "+1 555 01" + String.format("%05d", i))
+                    .withValue(Phone.TYPE, Phone.TYPE_MOBILE)
+                    .build());
+            ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, rawContact)
+                    .withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE)
+                    .withValue(Email.ADDRESS, "contact" + i + "@example.com")
+                    .withValue(Email.TYPE, Email.TYPE_HOME)
+                    .build());
+            if ((i + 1) % PBAP_BATCH_SIZE == 0 || i == PBAP_CONTACTS - 1) {
+                resolver.applyBatch(ContactsContract.AUTHORITY, ops);
+                ops.clear();
+            }
+        }
+    }
+
+    private static void deletePbapContacts(ContentResolver resolver) {
+        Uri uri = RawContacts.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+                .build();
+        resolver.delete(uri, RawContacts.ACCOUNT_TYPE + "=?",
+                new String[] {PBAP_ACCOUNT_TYPE});
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.tests.pbap;
+
+import com.android.bluetooth.pbap.BluetoothPbapCallLogCache;
+import com.android.bluetooth.pbap.BluetoothPbapCallLogCache.Call;
+import com.android.bluetooth.pbap.BluetoothPbapObexServer.ContentType;
+
+import android.provider.CallLog.Calls;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+public class BluetoothPbapCallLogCacheTest extends AndroidTestCase {
+
+    private static class FakeCallLog implements BluetoothPbapCallLogCache.Source,
+            BluetoothPbapCallLogCache.Composer {
+        /* Newest first */
+        final ArrayList<Call> calls = new ArrayList<Call>();
+        int fullRowsRead = 0;
+        int composed = 0;
+
+        void add(long id, int type, boolean isNew) {
+            calls.add(0, new Call(id, type, "555" + id, id * 1000, Calls.PRESENTATION_ALLOWED,
+                    null, 0, null, isNew));
+        }
+
+        @Override
+        public ArrayList<Call> queryCalls(long newerThanId, boolean allColumns) {
+            ArrayList<Call> result = new ArrayList<Call>();
+            for (Call call : calls) {
+                if (call.id <= newerThanId) continue;
+                if (allColumns) {
+                    fullRowsRead++;
+                    result.add(call);
+                } else {
+                    result.add(new Call(call.id, 0, null, 0, 0, call.cachedName,
+                            call.cachedNumberType, call.cachedNumberLabel, call.isNew));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public String compose(Call call, boolean vcardType21) {
+            composed++;
+            return call.id + ":" + call.cachedName;
+        }
+    }
+
+    @SmallTest
+    public void testFoldersShareOneSnapshot() {
+        FakeCallLog log = new FakeCallLog();
+        log.add(1, Calls.INCOMING_TYPE, false);
+        log.add(2, Calls.MISSED_TYPE, true);
+        log.add(3, Calls.OUTGOING_TYPE, false);
+        log.add(4, Calls.MISSED_TYPE, false);
+        BluetoothPbapCallLogCache cache = new BluetoothPbapCallLogCache();
+
+        BluetoothPbapCallLogCache.Snapshot snapshot = cache.getSnapshot(log);
+        assertSame(snapshot, cache.getSnapshot(log));
+        assertEquals(4, snapshot.size(ContentType.COMBINED_CALL_HISTORY));
+        assertEquals(1, snapshot.size(ContentType.INCOMING_CALL_HISTORY));
+        assertEquals(1, snapshot.size(ContentType.OUTGOING_CALL_HISTORY));
+        assertEquals(2, snapshot.size(ContentType.MISSED_CALL_HISTORY));
+        assertEquals(4, snapshot.getCall(ContentType.MISSED_CALL_HISTORY, 0).id);
+        assertEquals(2, snapshot.getCall(ContentType.MISSED_CALL_HISTORY, 1).id);
+        assertEquals(1, snapshot.getNewMissedCount());
+        assertEquals(2, snapshot.countSince(ContentType.COMBINED_CALL_HISTORY, 3000));
+    }
+
+    @SmallTest
+    public void testNewCallsAreAppended() {
+        FakeCallLog log = new FakeCallLog();
+        log.add(1, Calls.INCOMING_TYPE, false);
+        log.add(2, Calls.MISSED_TYPE, true);
+        BluetoothPbapCallLogCache cache = new BluetoothPbapCallLogCache();
+        BluetoothPbapCallLogCache.Snapshot first = cache.getSnapshot(log);
+        Call missed = first.getCall(ContentType.MISSED_CALL_HISTORY, 0);
+        first.getVcard(missed, true, log);
+
+        log.add(3, Calls.MISSED_TYPE, true);
+        log.calls.remove(log.calls.size() - 1); // call 1 deleted
+        cache.invalidate();
+        log.fullRowsRead = 0;
+        BluetoothPbapCallLogCache.Snapshot second = cache.getSnapshot(log);
+
+        assertEquals(1, log.fullRowsRead);
+        assertEquals(2, second.size(ContentType.COMBINED_CALL_HISTORY));
+        assertEquals(3, second.getCall(ContentType.MISSED_CALL_HISTORY, 0).id);
+        assertEquals(2, second.getNewMissedCount());
+        // The vCard of the known call is not composed again
+        assertSame(missed, second.getCall(ContentType.MISSED_CALL_HISTORY, 1));
+        second.getVcard(missed, true, log);
+        assertEquals(1, log.composed);
+        // The older snapshot is unchanged
+        assertEquals(1, first.size(ContentType.INCOMING_CALL_HISTORY));
+    }
+
+    @SmallTest
+    public void testChangedCallsAreUpdated() {
+        FakeCallLog log = new FakeCallLog();
+        log.add(1, Calls.MISSED_TYPE, true);
+        BluetoothPbapCallLogCache cache = new BluetoothPbapCallLogCache();
+        BluetoothPbapCallLogCache.Snapshot first = cache.getSnapshot(log);
+        first.getVcard(first.getCall(ContentType.MISSED_CALL_HISTORY, 0), false, log);
+
+        // Missed call seen
+        log.calls.set(0, new Call(1, Calls.MISSED_TYPE, "5551", 1000,
+                Calls.PRESENTATION_ALLOWED, null, 0, null, false));
+        cache.invalidate();
+        BluetoothPbapCallLogCache.Snapshot second = cache.getSnapshot(log);
+        assertEquals(0, second.getNewMissedCount());
+        Call call = second.getCall(ContentType.MISSED_CALL_HISTORY, 0);
+        assertEquals("1:null", second.getVcard(call, false, log));
+        assertEquals(1, log.composed);
+
+        // Name found for the number
+        log.calls.set(0, new Call(1, Calls.MISSED_TYPE, "5551", 1000,
+                Calls.PRESENTATION_ALLOWED, "Alice", 2, null, false));
+        cache.invalidate();
+        BluetoothPbapCallLogCache.Snapshot third = cache.getSnapshot(log);
+        call = third.getCall(ContentType.MISSED_CALL_HISTORY, 0);
+        assertEquals("5551", call.number);
+        assertEquals("1:Alice", third.getVcard(call, false, log));
+        assertEquals(2, log.composed);
+    }
+}
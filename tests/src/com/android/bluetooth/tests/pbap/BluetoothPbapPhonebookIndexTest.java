@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.tests.pbap;
+
+import com.android.bluetooth.pbap.BluetoothPbapObexServer;
+import com.android.bluetooth.pbap.BluetoothPbapPhonebookIndex;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class BluetoothPbapPhonebookIndexTest extends AndroidTestCase {
+    private static final String TAG = "BluetoothPbapPhonebookIndexTest";
+
+    private static final int BENCHMARK_CONTACTS = 10000;
+
+    private static final int BENCHMARK_SEARCHES = 200;
+
+    private static BluetoothPbapPhonebookIndex createIndex(List<String> names,
+            List<String[]> numbers) {
+        return new BluetoothPbapPhonebookIndex(1, BluetoothPbapObexServer.ORDER_BY_INDEXED,
+                "Owner", names, numbers);
+    }
+
+    private static List<String[]> numbers(String... numberAndId) {
+        ArrayList<String[]> list = new ArrayList<String[]>();
+        for (int i = 0; i < numberAndId.length; i += 2) {
+            list.add(new String[] { numberAndId[i], numberAndId[i + 1] });
+        }
+        return list;
+    }
+
+    @SmallTest
+    public void testSearchByNameKeepsListingOrder() {
+        BluetoothPbapPhonebookIndex index = createIndex(Arrays.asList("Owner,0", "bob,1",
+                "Alice,2", "alan,3", "Bob (1),1"), null);
+
+        assertTrue(Arrays.equals(new int[] { 2, 3 }, index.searchByName("AL")));
+        assertTrue(Arrays.equals(new int[] { 1, 4 }, index.searchByName(" bob")));
+        assertTrue(Arrays.equals(new int[] { 0, 1, 2, 3, 4 }, index.searchByName("")));
+        assertEquals(0, index.searchByName(null).length);
+        assertEquals(0, index.searchByName("zed").length);
+
+        assertEquals("Bob (1)", index.getName(4));
+        assertEquals(1, index.getHandle(4));
+        assertEquals(0, index.getHandle(0));
+    }
+
+    @SmallTest
+    public void testSearchByNumber() {
+        BluetoothPbapPhonebookIndex index = createIndex(
+                Arrays.asList("Owner,0", "A,1", "A (1),1", "B,2", "C,3"),
+                numbers("650-555-1234", "1", "+1 650 555 1234", "1", "111-111-111", "3"));
+
+        assertTrue(Arrays.equals(new int[] { 1, 2 }, index.searchByNumber("6505551234")));
+        assertTrue(Arrays.equals(new int[] { 4 }, index.searchByNumber("111111111")));
+        assertEquals(0, index.searchByNumber("222-222-222").length);
+        assertTrue(Arrays.equals(new int[] { 1, 2, 4 }, index.searchByNumber("")));
+    }
+
+    @SmallTest
+    public void testIsValid() {
+        BluetoothPbapPhonebookIndex index = createIndex(Arrays.asList("Owner,0"), null);
+        assertTrue(index.isValid(1, BluetoothPbapObexServer.ORDER_BY_INDEXED, "Owner"));
+        assertFalse(index.isValid(2, BluetoothPbapObexServer.ORDER_BY_INDEXED, "Owner"));
+        assertFalse(index.isValid(1, BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL, "Owner"));
+        assertFalse(index.isValid(1, BluetoothPbapObexServer.ORDER_BY_INDEXED, "Other"));
+    }
+
+    /**
+     * Compare prefix searches on a 10k contact phonebook with the linear scan
+     * previously done for every listing request.
+     */
+    @LargeTest
+    public void testBenchmarkNameSearch() {
+        Random random = new Random(0);
+        ArrayList<String> names = new ArrayList<String>(BENCHMARK_CONTACTS + 1);
+        ArrayList<String[]> numbers = new ArrayList<String[]>(BENCHMARK_CONTACTS);
+        names.add("Owner,0");
+        for (int id = 1; id <= BENCHMARK_CONTACTS; id++) {
+            names.add(randomName(random) + "," + id);
+            numbers.add(new String[] { "+1650" + (1000000 + random.nextInt(9000000)),
+                    Integer.toString(id) });
+        }
+        String[] prefixes = new String[BENCHMARK_SEARCHES];
+        for (int i = 0; i < prefixes.length; i++) {
+            prefixes[i] = randomName(random).substring(0, 1 + random.nextInt(3));
+        }
+
+        long start = System.nanoTime();
+        BluetoothPbapPhonebookIndex index = createIndex(names, numbers);
+        long buildNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int indexedMatches = 0;
+        for (String prefix : prefixes) {
+            indexedMatches += index.searchByName(prefix).length;
+        }
+        long indexedNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int linearMatches = 0;
+        for (String prefix : prefixes) {
+            linearMatches += linearSearch(names, prefix).size();
+        }
+        long linearNs = System.nanoTime() - start;
+
+        assertEquals(linearMatches, indexedMatches);
+        Log.i(TAG, BENCHMARK_CONTACTS + " contacts: index built in " + buildNs / 1000000
+                + " ms, " + BENCHMARK_SEARCHES + " searches indexed " + indexedNs / 1000000
+                + " ms, linear " + linearNs / 1000000 + " ms");
+    }
+
+    /* The search as done by BluetoothPbapObexServer.createList() before the index */
+    private static ArrayList<Integer> linearSearch(List<String> names, String searchValue) {
+        ArrayList<Integer> result = new ArrayList<Integer>();
+        String compareValue = searchValue.trim().toLowerCase();
+        for (int pos = 0; pos < names.size(); pos++) {
+            String currentValue = names.get(pos);
+            currentValue = currentValue.substring(0, currentValue.lastIndexOf(','));
+            if (currentValue.toLowerCase().startsWith(compareValue.toLowerCase())) {
+                result.add(pos);
+            }
+        }
+        return result;
+    }
+
+    private static String randomName(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int length = 4 + random.nextInt(8);
+        sb.append((char) ('A' + random.nextInt(26)));
+        for (int i = 1; i < length; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.tests.pbap;
+
+import com.android.bluetooth.pbap.BluetoothPbapVcardCache;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BluetoothPbapVcardCacheTest extends AndroidTestCase {
+    private static final String FORMAT = "3.0";
+
+    private static class FakeContacts implements BluetoothPbapVcardCache.Source,
+            BluetoothPbapVcardCache.Composer {
+        long[] ids;
+        long[] updated;
+        int queries = 0;
+        int composed = 0;
+        // Contacts composed as removed
+        long removed = -1;
+
+        FakeContacts(long[] ids, long[] updated) {
+            this.ids = ids;
+            this.updated = updated;
+        }
+
+        @Override
+        public long[][] queryContacts() {
+            queries++;
+            return new long[][] { ids.clone(), updated.clone() };
+        }
+
+        @Override
+        public boolean compose(long[] contactIds, BluetoothPbapVcardCache.EntrySink sink) {
+            for (int i = 0; i < contactIds.length; i++) {
+                int pos = 0;
+                while (ids[pos] != contactIds[i]) pos++;
+                composed++;
+                byte[] entry = contactIds[i] == removed
+                        ? null : (contactIds[i] + "@" + updated[pos]).getBytes();
+                if (!sink.onEntry(i, entry)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Collector implements BluetoothPbapVcardCache.EntrySink {
+        final List<String> entries = new ArrayList<String>();
+
+        @Override
+        public boolean onEntry(int index, byte[] entry) {
+            assertEquals(entries.size(), index);
+            entries.add(new String(entry));
+            return true;
+        }
+    }
+
+    private static List<String> send(BluetoothPbapVcardCache cache, long version,
+            String format, FakeContacts contacts) {
+        Collector collector = new Collector();
+        assertTrue(cache.sendSnapshot(version, format, contacts, contacts, collector));
+        return collector.entries;
+    }
+
+    private static String entry(BluetoothPbapVcardCache.Snapshot snapshot, int pos) {
+        return new String(snapshot.getEntry(pos));
+    }
+
+    @SmallTest
+    public void testUnchangedVersionIsServedFromCache() {
+        BluetoothPbapVcardCache cache = new BluetoothPbapVcardCache();
+        FakeContacts contacts = new FakeContacts(new long[] {1, 2, 3}, new long[] {10, 10, 10});
+
+        assertEquals(3, cache.getContactCount(0, contacts));
+        List<String> first = send(cache, 0, FORMAT, contacts);
+        assertEquals(Arrays.asList("1@10", "2@10", "3@10"), first);
+        assertEquals(first, send(cache, 0, FORMAT, contacts));
+        assertEquals(1, contacts.queries);
+        assertEquals(3, contacts.composed);
+    }
+
+    @SmallTest
+    public void testOnlyChangedContactsAreComposed() {
+        BluetoothPbapVcardCache cache = new BluetoothPbapVcardCache();
+        FakeContacts contacts = new FakeContacts(new long[] {1, 2, 3}, new long[] {10, 10, 10});
+        send(cache, 0, FORMAT, contacts);
+        BluetoothPbapVcardCache.Snapshot first = cache.getCachedSnapshot(0, FORMAT);
+
+        // 1 deleted, 2 updated, 4 added
+        contacts.ids = new long[] {2, 3, 4};
+        contacts.updated = new long[] {20, 10, 20};
+        contacts.composed = 0;
+        assertEquals(Arrays.asList("2@20", "3@10", "4@20"), send(cache, 1, FORMAT, contacts));
+        assertEquals(2, contacts.composed);
+        BluetoothPbapVcardCache.Snapshot second = cache.getCachedSnapshot(1, FORMAT);
+        assertEquals(3, second.size());
+        assertSame(first.getEntry(2), second.getEntry(1));
+
+        // The older snapshot is unchanged
+        assertEquals(3, first.size());
+        assertEquals("1@10", entry(first, 0));
+    }
+
+    @SmallTest
+    public void testInvalidateKeepsUnchangedEntries() {
+        BluetoothPbapVcardCache cache = new BluetoothPbapVcardCache();
+        FakeContacts contacts = new FakeContacts(new long[] {1, 2}, new long[] {10, -1});
+        send(cache, 0, FORMAT, contacts);
+
+        cache.invalidate();
+        contacts.composed = 0;
+        assertEquals(Arrays.asList("1@10", "2@-1"), send(cache, 0, FORMAT, contacts));
+        assertEquals(2, contacts.queries);
+        // Contacts without an update time are always composed
+        assertEquals(1, contacts.composed);
+    }
+
+    @SmallTest
+    public void testComposeFailureKeepsCache() {
+        BluetoothPbapVcardCache cache = new BluetoothPbapVcardCache();
+        FakeContacts contacts = new FakeContacts(new long[] {1}, new long[] {10});
+        BluetoothPbapVcardCache.Composer failing = new BluetoothPbapVcardCache.Composer() {
+            @Override
+            public boolean compose(long[] contactIds, BluetoothPbapVcardCache.EntrySink sink) {
+                return false;
+            }
+        };
+        assertFalse(cache.sendSnapshot(0, FORMAT, contacts, failing, new Collector()));
+        assertNull(cache.getCachedSnapshot(0, FORMAT));
+        assertEquals(1, send(cache, 0, FORMAT, contacts).size());
+    }
+
+    @SmallTest
+    public void testEntriesAreSentWhileComposing() {
+        BluetoothPbapVcardCache cache = new BluetoothPbapVcardCache();
+        final FakeContacts contacts =
+                new FakeContacts(new long[] {1, 2, 3}, new long[] {10, 10, 10});
+        final Collector collector = new Collector();
+        BluetoothPbapVcardCache.Composer stalling = new BluetoothPbapVcardCache.Composer() {
+            @Override
+            public boolean compose(long[] contactIds, BluetoothPbapVcardCache.EntrySink sink) {
+                // The first vCard is sent before the second one is composed
+                assertTrue(sink.onEntry(0, "1@10".getBytes()));
+                assertEquals(Arrays.asList("1@10"), collector.entries);
+                return false;
+            }
+        };
+        assertFalse(cache.sendSnapshot(0, FORMAT, contacts, stalling, collector));
+        assertNull(cache.getCachedSnapshot(0, FORMAT));
+    }
+
+    @SmallTest
+    public void testStoppedSinkStopsComposing() {
+        BluetoothPbapVcardCache cache = new BluetoothPbapVcardCache();
+        FakeContacts contacts = new FakeContacts(new long[] {1, 2, 3}, new long[] {10, 10, 10});
+        BluetoothPbapVcardCache.EntrySink stopping = new BluetoothPbapVcardCache.EntrySink() {
+            @Override
+            public boolean onEntry(int index, byte[] entry) {
+                return index < 1;
+            }
+        };
+        assertFalse(cache.sendSnapshot(0, FORMAT, contacts, contacts, stopping));
+        assertEquals(2, contacts.composed);
+        assertNull(cache.getCachedSnapshot(0, FORMAT));
+    }
+
+    @SmallTest
+    public void testRemovedContactIsSkipped() {
+        BluetoothPbapVcardCache cache = new BluetoothPbapVcardCache();
+        FakeContacts contacts = new FakeContacts(new long[] {1, 2, 3}, new long[] {10, 10, 10});
+        contacts.removed = 2;
+        assertEquals(Arrays.asList("1@10", "3@10"), send(cache, 0, FORMAT, contacts));
+        // Not kept, the contacts are read again
+        assertNull(cache.getCachedSnapshot(0, FORMAT));
+        contacts.ids = new long[] {1, 3};
+        contacts.updated = new long[] {10, 10};
+        contacts.removed = -1;
+        assertEquals(Arrays.asList("1@10", "3@10"), send(cache, 0, FORMAT, contacts));
+        assertEquals(2, contacts.queries);
+        assertNotNull(cache.getCachedSnapshot(0, FORMAT));
+    }
+
+    @SmallTest
+    public void testCachedSnapshotDoesNotCompose() {
+        BluetoothPbapVcardCache cache = new BluetoothPbapVcardCache();
+        FakeContacts contacts = new FakeContacts(new long[] {1, 2}, new long[] {10, 10});
+        assertNull(cache.getCachedSnapshot(0, FORMAT));
+
+        send(cache, 0, FORMAT, contacts);
+        BluetoothPbapVcardCache.Snapshot snapshot = cache.getCachedSnapshot(0, FORMAT);
+        assertEquals("2@10", entry(snapshot, 1));
+        assertNull(cache.getCachedSnapshot(1, FORMAT));
+        assertNull(cache.getCachedSnapshot(0, "2.1"));
+        assertEquals(1, contacts.queries);
+        assertEquals(2, contacts.composed);
+    }
+
+    @SmallTest
+    public void testSnapshotsOverBudgetAreNotKept() {
+        // Each entry is 4 bytes, e.g. "1@10"
+        BluetoothPbapVcardCache cache = new BluetoothPbapVcardCache(10);
+        FakeContacts contacts = new FakeContacts(new long[] {1, 2}, new long[] {10, 10});
+        send(cache, 0, FORMAT, contacts);
+        assertNotNull(cache.getCachedSnapshot(0, FORMAT));
+
+        // A second format does not fit next to the first one, the older is dropped
+        send(cache, 0, "2.1", contacts);
+        assertNull(cache.getCachedSnapshot(0, FORMAT));
+        assertNotNull(cache.getCachedSnapshot(0, "2.1"));
+
+        // Larger than the whole budget: sent, but not kept
+        contacts.ids = new long[] {1, 2, 3};
+        contacts.updated = new long[] {10, 10, 10};
+        assertEquals(3, send(cache, 1, FORMAT, contacts).size());
+        assertNull(cache.getCachedSnapshot(1, FORMAT));
+    }
+
+    @SmallTest
+    public void testTrimMemoryDropsSnapshots() {
+        BluetoothPbapVcardCache cache = new BluetoothPbapVcardCache();
+        FakeContacts contacts = new FakeContacts(new long[] {1, 2}, new long[] {10, 10});
+        send(cache, 0, FORMAT, contacts);
+
+        cache.trimMemory();
+        assertNull(cache.getCachedSnapshot(0, FORMAT));
+        contacts.composed = 0;
+        assertEquals(2, send(cache, 0, FORMAT, contacts).size());
+        // The contact ids are kept
+        assertEquals(1, contacts.queries);
+        assertEquals(2, contacts.composed);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.bluetooth.tests.pbap;
+
+import com.android.bluetooth.pbap.BluetoothPbapVcardFilter;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class BluetoothPbapVcardFilterTest extends AndroidTestCase {
+
+    private static final String VCARD = "BEGIN:VCARD\n"
+            + "VERSION:3.0\n"
+            + "FN:Alice\n"
+            + "N:;Alice;;;\n"
+            + "TEL;TYPE=CELL:(555) 123-4567\n"
+            + "EMAIL:alice@example.com\n"
+            + "X-SIP:alice@example.com\n"
+            + "END:VCARD\n";
+
+    private static final String VCARD_NO_EMAIL = "BEGIN:VCARD\n"
+            + "VERSION:3.0\n"
+            + "FN:Bob\n"
+            + "N:;Bob;;;\n"
+            + "TEL;TYPE=HOME:555-7654\n"
+            + "END:VCARD\n";
+
+    /* TEL */
+    private static final byte[] FILTER_TEL = new byte[] {0, 0, 0, 0, 0, 0, 0, (byte) 0x80};
+    /* EMAIL */
+    private static final byte[] SELECTOR_EMAIL = new byte[] {0, 0, 0, 0, 0, 0, 0x01, 0};
+    /* TEL and EMAIL */
+    private static final byte[] SELECTOR_TEL_EMAIL =
+            new byte[] {0, 0, 0, 0, 0, 0, 0x01, (byte) 0x80};
+
+    private static String apply(BluetoothPbapVcardFilter filter, String vcard) {
+        BluetoothPbapVcardFilter.Output out = new BluetoothPbapVcardFilter.Output();
+        if (!filter.apply(vcard, out)) {
+            return null;
+        }
+        return new String(out.toByteArray());
+    }
+
+    @SmallTest
+    public void testNoFilterKeepsAllProperties() {
+        BluetoothPbapVcardFilter filter = new BluetoothPbapVcardFilter(null, false, false);
+        assertEquals(VCARD, apply(filter, VCARD));
+        assertTrue(filter.isPhotoEnabled());
+    }
+
+    @SmallTest
+    public void testFilterDropsPropertiesAndStripsNumbers() {
+        BluetoothPbapVcardFilter filter = new BluetoothPbapVcardFilter(FILTER_TEL, false, true);
+        assertEquals("BEGIN:VCARD\n"
+                + "VERSION:3.0\n"
+                + "FN:Alice\n"
+                + "N:;Alice;;;\n"
+                + "TEL;TYPE=CELL:5551234567\n"
+                + "END:VCARD\n", apply(filter, VCARD));
+        assertFalse(filter.isPhotoEnabled());
+    }
+
+    @SmallTest
+    public void testSelectorOr() {
+        BluetoothPbapVcardFilter filter = new BluetoothPbapVcardFilter(null, false, false);
+        filter.setSelector(SELECTOR_TEL_EMAIL, BluetoothPbapVcardFilter.SELECTOR_OPERATOR_OR);
+        assertTrue(filter.isSelected(VCARD));
+        assertTrue(filter.isSelected(VCARD_NO_EMAIL));
+    }
+
+    @SmallTest
+    public void testSelectorAnd() {
+        BluetoothPbapVcardFilter filter = new BluetoothPbapVcardFilter(null, false, false);
+        filter.setSelector(SELECTOR_TEL_EMAIL, BluetoothPbapVcardFilter.SELECTOR_OPERATOR_AND);
+        assertTrue(filter.isSelected(VCARD));
+        assertFalse(filter.isSelected(VCARD_NO_EMAIL));
+    }
+
+    @SmallTest
+    public void testUnselectedVcardIsNotAppended() {
+        BluetoothPbapVcardFilter filter = new BluetoothPbapVcardFilter(FILTER_TEL, false, true);
+        filter.setSelector(SELECTOR_EMAIL, BluetoothPbapVcardFilter.SELECTOR_OPERATOR_OR);
+        BluetoothPbapVcardFilter.Output out = new BluetoothPbapVcardFilter.Output();
+        assertTrue(filter.apply(VCARD, out));
+        int length = out.length();
+        assertFalse(filter.apply(VCARD_NO_EMAIL, out));
+        assertEquals(length, out.length());
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.tests.pbap;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.bluetooth.pbap.BluetoothPbapVcardFilter;
+import com.android.bluetooth.pbap.BluetoothPbapVcardPipeline;
+import com.android.bluetooth.tests.ObexPipeTransport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.obex.ClientSession;
+import javax.obex.HeaderSet;
+import javax.obex.Operation;
+import javax.obex.ResponseCodes;
+import javax.obex.ServerRequestHandler;
+import javax.obex.ServerSession;
+
+/**
+ * Benchmark of a phonebook pull through {@link BluetoothPbapVcardPipeline} over an
+ * in-process OBEX transport, with a synthetic vCard source that costs a fixed
+ * query latency per chunk plus composing and filtering each contact. Reports
+ * contacts/sec and the time to the first byte seen by the client, and checks
+ * that the vCards arrive in contact order.
+ */
+public class BluetoothPbapVcardPipelineBenchmark extends AndroidTestCase {
+    private static final String TAG = "BluetoothPbapVcardPipelineBenchmark";
+
+    private static final int CONTACTS = 5000;
+
+    /* Simulated contacts provider query time per chunk */
+    private static final long QUERY_LATENCY_MS = 5;
+
+    /* Strips TEL formatting like phonebook pulls, drops X- properties */
+    private static final BluetoothPbapVcardFilter FILTER = new BluetoothPbapVcardFilter(
+            new byte[] {0, 0, 0, 0, 0, 0, 0, (byte) 0xff}, true, true);
+
+    @LargeTest
+    public void testSequentialPull() throws Exception {
+        runBenchmark(1);
+    }
+
+    @LargeTest
+    public void testParallelPull() throws Exception {
+        runBenchmark(BluetoothPbapVcardPipeline.getDefaultWorkerCount());
+    }
+
+    private void runBenchmark(int workers) throws Exception {
+        long[] ids = new long[CONTACTS];
+        for (int i = 0; i < CONTACTS; i++) {
+            ids[i] = i + 1;
+        }
+
+        LocalServerSocket serverSock = new LocalServerSocket(
+                "com.android.bluetooth.pbap.benchmark");
+        LocalSocket clientSock = new LocalSocket();
+        clientSock.connect(serverSock.getLocalSocketAddress());
+        LocalSocket acceptSock = serverSock.accept();
+
+        ObexPipeTransport clientTransport = new ObexPipeTransport(clientSock.getInputStream(),
+                clientSock.getOutputStream(), false);
+        ObexPipeTransport serverTransport = new ObexPipeTransport(acceptSock.getInputStream(),
+                acceptSock.getOutputStream(), false);
+
+        PhonebookServer server = new PhonebookServer(new BluetoothPbapVcardPipeline(
+                new SyntheticSource(), workers, BluetoothPbapVcardPipeline.DEFAULT_CHUNK_SIZE),
+                ids);
+        ServerSession serverSession = new ServerSession(serverTransport, server, null);
+        ClientSession clientSession = new ClientSession(clientTransport);
+        try {
+            clientSession.connect(new HeaderSet());
+
+            long start = SystemClock.elapsedRealtime();
+            long firstByte = -1;
+            Operation getOperation = clientSession.get(new HeaderSet());
+            InputStream in = getOperation.openInputStream();
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (firstByte < 0 && read > 0) {
+                    firstByte = SystemClock.elapsedRealtime() - start;
+                }
+                received.write(buffer, 0, read);
+            }
+            in.close();
+            assertEquals(ResponseCodes.OBEX_HTTP_OK, getOperation.getResponseCode());
+            getOperation.close();
+            long duration = Math.max(1, SystemClock.elapsedRealtime() - start);
+
+            MoreAsserts.assertEquals(expectedPhonebook(ids), received.toByteArray());
+            Log.i(TAG, workers + " worker(s): " + CONTACTS + " contacts in " + duration
+                    + " ms, " + (CONTACTS * 1000L / duration) + " contacts/sec, first byte after "
+                    + firstByte + " ms");
+            clientSession.disconnect(null);
+        } finally {
+            clientSession.close();
+            serverSession.close();
+            clientSock.close();
+            acceptSock.close();
+            serverSock.close();
+        }
+    }
+
+    private static String composeVcard(long id) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("BEGIN:VCARD\r\n");
+        sb.append("VERSION:2.1\r\n");
+        sb.append("N:Contact").append(id).append(";Benchmark;;;\r\n");
+        sb.append("FN:Benchmark Contact").append(id).append("\r\n");
+        sb.append("TEL;CELL:+1 (555) 01-").append(id).append("\r\n");
+        sb.append("EMAIL;HOME:contact").append(id).append("@example.com\r\n");
+        sb.append("X-SIP:contact").append(id).append("@sip.example.com\r\n");
+        sb.append("END:VCARD\r\n");
+        return sb.toString();
+    }
+
+    private static byte[] expectedPhonebook(long[] ids) {
+        BluetoothPbapVcardFilter.Output out = new BluetoothPbapVcardFilter.Output();
+        for (long id : ids) {
+            FILTER.apply(composeVcard(id), out);
+        }
+        return out.toByteArray();
+    }
+
+    private static class SyntheticSource implements BluetoothPbapVcardPipeline.VcardSource {
+        @Override
+        public int compose(long[] contactIds, BluetoothPbapVcardFilter.Output out) {
+            SystemClock.sleep(QUERY_LATENCY_MS);
+            for (long id : contactIds) {
+                FILTER.apply(composeVcard(id), out);
+            }
+            return contactIds.length;
+        }
+    }
+
+    private static class PhonebookServer extends ServerRequestHandler {
+        private final BluetoothPbapVcardPipeline mPipeline;
+        private final long[] mIds;
+
+        PhonebookServer(BluetoothPbapVcardPipeline pipeline, long[] ids) {
+            mPipeline = pipeline;
+            mIds = ids;
+        }
+
+        @Override
+        public int onConnect(HeaderSet request, HeaderSet reply) {
+            return ResponseCodes.OBEX_HTTP_OK;
+        }
+
+        @Override
+        public int onGet(Operation operation) {
+            try {
+                final OutputStream out = operation.openOutputStream();
+                boolean result = mPipeline.run(mIds, new BluetoothPbapVcardPipeline.Sink() {
+                    @Override
+                    public boolean onChunk(byte[] vcards, int[] ends) {
+                        try {
+                            out.write(vcards);
+                            return true;
+                        } catch (IOException e) {
+                            Log.e(TAG, "Write failed", e);
+                            return false;
+                        }
+                    }
+                });
+                out.close();
+                Log.i(TAG, "Server: " + mPipeline.getComposedCount() + " vCards, first chunk after "
+                        + mPipeline.getFirstChunkTimeMs() + " ms");
+                return result ? ResponseCodes.OBEX_HTTP_OK
+                        : ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+            } catch (IOException e) {
+                Log.e(TAG, "Get failed", e);
+                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+            }
+        }
+    }
+}